@@ -30,13 +30,12 @@ import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.HydratedResult;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.ResultHydrator;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
@@ -49,7 +48,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @Component(immediate = true, metatype = true)
 @Service(value = SolrSearchBatchResultProcessor.class)
@@ -72,30 +74,44 @@ public class LiteAllActivitiesResultProcessor implements SolrSearchBatchResultPr
     Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
         .adaptTo(javax.jcr.Session.class));
     try {
-      ContentManager contentManager = session.getContentManager();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      ResultHydrator hydrator = ResultHydrator.forRequest(request, session);
+      List<HydratedResult> rows = hydrator.hydrate(iterator, Long.MAX_VALUE);
 
-      while (iterator.hasNext()) {
-        Result result = iterator.next();
+      // load the sources and actors of the whole page before writing any of it
+      Set<String> sourcePaths = new LinkedHashSet<String>();
+      Set<String> actorIds = new LinkedHashSet<String>();
+      for (HydratedResult row : rows) {
+        Content activityNode = row.getContent();
+        if (activityNode != null) {
+          sourcePaths.add((String) activityNode.getProperty(ActivityConstants.PARAM_SOURCE));
+          actorIds.add((String) activityNode.getProperty(ActivityConstants.PARAM_ACTOR_ID));
+        }
+      }
+      hydrator.loadContent(sourcePaths);
+      for (String sourcePath : sourcePaths) {
+        Content contentNode = hydrator.getContent(sourcePath);
+        if (contentNode != null
+            && "sakai/group-home".equals(contentNode.getProperty("sling:resourceType"))) {
+          actorIds.add(PathUtils.getAuthorizableId(contentNode.getPath()));
+        }
+      }
+      hydrator.loadAuthorizables(actorIds);
 
-        String path = result.getPath();
-        Content activityNode;
-        try {
-          activityNode = contentManager.get(path);
-        } catch (AccessDeniedException e) {
+      for (HydratedResult row : rows) {
+        String path = row.getPath();
+        if (hydrator.isAccessDenied(path)) {
           LOGGER.debug("Activity node at " + path + " is not readable by " + session.getUserId());
           continue;
         }
+        Content activityNode = row.getContent();
         if (activityNode != null) {
           String sourcePath = (String) activityNode.getProperty(ActivityConstants.PARAM_SOURCE);
           LOGGER.debug("Processing {} {} Source = {} ", new Object[]{path, activityNode.getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY), sourcePath});
-          Content contentNode;
-          try {
-            contentNode = contentManager.get(sourcePath);
-          } catch (AccessDeniedException e) {
+          if (hydrator.isAccessDenied(sourcePath)) {
             LOGGER.debug("Activity source at " + sourcePath + " is not readable by " + session.getUserId());
             continue;
           }
+          Content contentNode = hydrator.getContent(sourcePath);
           write.object();
           if (contentNode != null) {
             ExtendedJSONWriter.writeValueMapInternals(write, contentNode.getProperties());
@@ -108,28 +124,29 @@ public class LiteAllActivitiesResultProcessor implements SolrSearchBatchResultPr
           }
           write.key("who");
           write.object();
-          try {
-            ExtendedJSONWriter.writeValueMapInternals(write, basicUserInfoService
-                .getProperties(authorizableManager.findAuthorizable((String) activityNode
-                    .getProperty(ActivityConstants.PARAM_ACTOR_ID))));
-          } catch (AccessDeniedException e) {
-            LOGGER.debug(e.getMessage(), e);
+          String actorId = (String) activityNode.getProperty(ActivityConstants.PARAM_ACTOR_ID);
+          Authorizable actor = hydrator.getAuthorizable(actorId);
+          if (hydrator.isAuthorizableAccessDenied(actorId)) {
+            LOGGER.debug("Actor {} is not readable by {} ", actorId, session.getUserId());
+          } else {
+            ExtendedJSONWriter.writeValueMapInternals(write,
+                basicUserInfoService.getProperties(actor));
           }
           write.endObject();
           if (contentNode != null) {
             // KERN-1867 Activity feed should return more data about a group
             if ("sakai/group-home".equals(contentNode.getProperty("sling:resourceType"))) {
-              try {
-                final Authorizable group = authorizableManager.findAuthorizable(PathUtils
-                    .getAuthorizableId(contentNode.getPath()));
+              final String groupId = PathUtils.getAuthorizableId(contentNode.getPath());
+              final Authorizable group = hydrator.getAuthorizable(groupId);
+              if (hydrator.isAuthorizableAccessDenied(groupId)) {
+                LOGGER.debug("Group {} is not readable by {} ", groupId, session.getUserId());
+              } else {
                 final Map<String, Object> basicUserInfo = basicUserInfoService
                     .getProperties(group);
                 if (basicUserInfo != null) {
                   write.key("profile");
                   ExtendedJSONWriter.writeValueMap(write, basicUserInfo);
                 }
-              } catch (AccessDeniedException e) {
-                LOGGER.debug(e.getMessage(), e);
               }
             }
             // KERN-1864 Return comment in activity feed
@@ -142,7 +159,7 @@ public class LiteAllActivitiesResultProcessor implements SolrSearchBatchResultPr
           }
           write.endObject();
         } else {
-          ExtendedJSONWriter.writeValueMap(write, result.getProperties());
+          ExtendedJSONWriter.writeValueMap(write, row.getResult().getProperties());
         }
       }
 
@@ -21,6 +21,8 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
@@ -33,6 +35,8 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.personal.ActivityAggregator;
+import org.sakaiproject.nakamura.api.personal.ActivityCount;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
@@ -60,12 +64,32 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
   public static final String STARTPAGE_PARAM = "startpage";
   public static final String NUMITEMS_PARAM = "numitems";
 
+  /**
+   * The resource type the activity on pooled content is counted under.
+   */
+  private static final String CONTENT_ACTIVITY = "content";
+
+  /**
+   * As many resources as the search used to summarize.
+   */
+  private static final int MAX_RANKED = 10000;
+
+  /**
+   * Request attribute holding the {@link RankedActivity} when the counts come from the
+   * {@link ActivityAggregator}.
+   */
+  static final String RANKED_ATTRIBUTE = LiteMostActiveContentSearchBatchResultProcessor.class
+      .getName() + ".ranked";
+
   private static final Logger LOG = LoggerFactory
       .getLogger(LiteMostActiveContentSearchBatchResultProcessor.class);
 
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected ActivityAggregator activityAggregator;
+
   /**
    * 
    * {@inheritDoc}
@@ -75,6 +99,11 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
+    final RankedActivity ranked = (RankedActivity) request.getAttribute(RANKED_ATTRIBUTE);
+    if (ranked != null) {
+      writeRankedResults(request, write, ranked);
+      return;
+    }
     final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
@@ -99,8 +128,11 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
             resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
                 (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
           }
-          // increment the count for this particular resource.
-          resources.get(resourceId).activityScore++;
+          // increment the count for this particular resource. Records written in
+          // batches carry the number of events they stand for.
+          final Object count = node.getProperty("count");
+          resources.get(resourceId).activityScore += (count instanceof Number) ? ((Number) count)
+              .intValue() : 1;
         }
       } catch (StorageClientException e) {
         // if something is wrong with this particular resourceNode,
@@ -116,11 +148,7 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
     // KERN-1724 determine how many content items the current user can read
     long totalCanRead = 0L;
     try {
-      final String queryString = "resourceType:"
-          + ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT);
-      final Query query = new Query(queryString);
-      final SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request,
-          query);
+      final SolrSearchResultSet rs = getCanReadResultSet(request);
       if (rs != null) {
         totalCanRead = rs.getSize();
       }
@@ -132,44 +160,123 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
     final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
         resources.values());
     Collections.sort(resourceActivities, Collections.reverseOrder());
+    final int startpage = getStartPage(request);
+    final int numitems = getNumItems(request);
+    final int beginPosition = (startpage * numitems) - numitems;
+    final List<ResourceActivity> page = new ArrayList<ResourceActivity>();
+    for (int i = beginPosition; i < resourceActivities.size() && page.size() < numitems; i++) {
+      page.add(resourceActivities.get(i));
+    }
+    writeFeed(write, totalCanRead, resources.size(), startpage, numitems, page);
+  }
+
+  /**
+   * Write a page of the feed from counts kept by the {@link ActivityAggregator}. The
+   * ranking is made without regard to access, so resources are only loaded, as the
+   * current user, until the requested page has been filled with ones they can read.
+   */
+  private void writeRankedResults(SlingHttpServletRequest request, JSONWriter write,
+      RankedActivity ranked) throws JSONException {
+    final Session session = StorageClientUtils.adaptToSession(request
+        .getResourceResolver().adaptTo(javax.jcr.Session.class));
+    final int startpage = getStartPage(request);
+    final int numitems = getNumItems(request);
+    final int beginPosition = (startpage * numitems) - numitems;
+    final List<ResourceActivity> page = new ArrayList<ResourceActivity>();
+    int readable = 0;
+    for (ActivityCount activity : ranked.counts) {
+      if (page.size() >= numitems) {
+        break;
+      }
+      try {
+        final Content resourceNode = session.getContentManager().get(
+            activity.getResourceId());
+        if (resourceNode == null) {
+          continue;
+        }
+        if (readable++ < beginPosition) {
+          continue;
+        }
+        final Long lastModified = (Long) resourceNode
+            .getProperty(FilesConstants.LAST_MODIFIED);
+        final ResourceActivity resourceActivity = new ResourceActivity(
+            activity.getResourceId(), 0, (String) resourceNode
+                .getProperty(FilesConstants.POOLED_CONTENT_FILENAME),
+            lastModified == null ? 0L : lastModified);
+        resourceActivity.activityScore = (int) activity.getCount();
+        page.add(resourceActivity);
+      } catch (StorageClientException e) {
+        continue;
+      } catch (AccessDeniedException e) {
+        continue;
+      }
+    }
+    writeFeed(write, ranked.totalCanRead, ranked.counts.size(), startpage, numitems, page);
+  }
+
+  private void writeFeed(JSONWriter write, long totalCanRead, int total, int startpage,
+      int numitems, List<ResourceActivity> page) throws JSONException {
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
     write.key(SolrSearchConstants.TOTAL);
-    write.value(resources.size());
-    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
-    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
-    startpage = (startpage < 1) ? 1 : startpage;
+    write.value(total);
     write.key(STARTPAGE_PARAM);
     write.value(startpage);
-    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
-    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
-                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
-    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
     write.key(NUMITEMS_PARAM);
     write.value(numitems);
-    final int beginPosition = (startpage * numitems) - numitems;
     write.key("content");
     write.array();
-    if (beginPosition < resourceActivities.size()) {
-      int count = 0;
-      for (int i = beginPosition; i < resourceActivities.size() && count < numitems; i++) {
-        final ResourceActivity resourceActivity = resourceActivities.get(i);
-        write.object();
-        write.key("id");
-        write.value(resourceActivity.id);
-        write.key("name");
-        write.value(resourceActivity.name);
-        write.key("count");
-        write.value(Long.valueOf(resourceActivity.activityScore));
-        write.endObject();
-        count++;
-      }
+    for (ResourceActivity resourceActivity : page) {
+      write.object();
+      write.key("id");
+      write.value(resourceActivity.id);
+      write.key("name");
+      write.value(resourceActivity.name);
+      write.key("count");
+      write.value(Long.valueOf(resourceActivity.activityScore));
+      write.endObject();
     }
     write.endArray();
     write.endObject();
   }
 
+  private int getStartPage(SlingHttpServletRequest request) {
+    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
+    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
+    return (startpage < 1) ? 1 : startpage;
+  }
+
+  private int getNumItems(SlingHttpServletRequest request) {
+    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
+    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
+                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+    return (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
+  }
+
+  /**
+   * @return the pooled content the current user can read.
+   */
+  private SolrSearchResultSet getCanReadResultSet(SlingHttpServletRequest request)
+      throws SolrSearchException {
+    final String queryString = "resourceType:"
+        + ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT);
+    return searchServiceFactory.getSearchResultSet(request, new Query(queryString));
+  }
+
+  /**
+   * The ranking taken from the {@link ActivityAggregator} for one request.
+   */
+  static class RankedActivity {
+    final List<ActivityCount> counts;
+    final long totalCanRead;
+
+    RankedActivity(List<ActivityCount> counts, long totalCanRead) {
+      this.counts = counts;
+      this.totalCanRead = totalCanRead;
+    }
+  }
+
   public class ResourceActivity implements Comparable<ResourceActivity> {
     public final String id;
     public final String name;
@@ -244,7 +351,18 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-
+    final ActivityAggregator aggregator = activityAggregator;
+    final long then = MostActiveContentPropertyProvider.getThen(request);
+    if (aggregator != null && aggregator.covers(CONTENT_ACTIVITY, then)) {
+      // the activity is counted in memory, so the only search left to do is the one
+      // for totalCanRead, and its results stand in for the activity records.
+      final SolrSearchResultSet rs = getCanReadResultSet(request);
+      if (rs != null) {
+        request.setAttribute(RANKED_ATTRIBUTE, new RankedActivity(aggregator.getMostActive(
+            CONTENT_ACTIVITY, then, MAX_RANKED), rs.getSize()));
+        return rs;
+      }
+    }
     return searchServiceFactory.getSearchResultSet(request, query);
   }
 
@@ -54,6 +54,13 @@ public class MostActiveContentPropertyProvider implements SolrSearchPropertyProv
   }
 
   protected long deriveThen(final SlingHttpServletRequest request) {
+    return getThen(request);
+  }
+
+  /**
+   * @return the start of the window asked for by the request, in ms.
+   */
+  public static long getThen(final SlingHttpServletRequest request) {
     final RequestParameter thenParam = request.getRequestParameter("then");
     final long now = new Date().getTime();
     long then = now - DEFAULT_DAYS_MS;
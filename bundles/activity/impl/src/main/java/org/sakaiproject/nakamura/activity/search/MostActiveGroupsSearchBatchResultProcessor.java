@@ -131,8 +131,11 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
           resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
               (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED)));
         }
-        // increment the count for this particular resource.
-        resources.get(resourceId).activityScore++;
+        // increment the count for this particular resource. Records written in
+        // batches carry the number of events they stand for.
+        final Object count = content.getProperty("count");
+        resources.get(resourceId).activityScore += (count instanceof Number) ? ((Number) count)
+            .intValue() : 1;
       }
     }
 
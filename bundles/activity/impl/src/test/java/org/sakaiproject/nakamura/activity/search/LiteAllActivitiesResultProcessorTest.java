@@ -188,6 +188,9 @@ public class LiteAllActivitiesResultProcessorTest {
     repository.loginAdministrative().getAccessControlManager().setAcl(Security.ZONE_AUTHORIZABLES, "bob", aclModifications.toArray(new AclModification[aclModifications.size()]));
     processor.writeResults(request, jsonWriter, resultIterator);
     processor.writeResults(request, jsonWriter, resultIterator);
+    // the actor is left out rather than described as nobody
+    verify(processor.basicUserInfoService, Mockito.never()).getProperties(
+        (Authorizable) Matchers.isNull());
   }
 
   @Test
@@ -43,6 +43,14 @@ public interface ClusterTrackingService {
    *
    */
   public static final String EVENT_FROM_SERVER = "from-server";
+  /**
+   * The tracking cookies of a batched ping, in the same order as {@link #EVENT_USERS}.
+   */
+  public static final String EVENT_TRACKING_COOKIES = "tracking-cookies";
+  /**
+   * The users of a batched ping, in the same order as {@link #EVENT_TRACKING_COOKIES}.
+   */
+  public static final String EVENT_USERS = "users";
 
   public static final String EVENT_PING_CLUSTER_USER = "org/sakaiproject/nakamura/cluster/user/ping";
 
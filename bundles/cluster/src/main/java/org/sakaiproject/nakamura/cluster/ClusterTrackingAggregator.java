@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects remote user tracking pings per destination server so that they can be sent as
+ * a single batched event rather than one event per request. Pings are de-duplicated by
+ * tracking cookie, the most recent user for a cookie wins.
+ */
+public class ClusterTrackingAggregator {
+
+  /**
+   * Pending pings, keyed by destination server id, then by tracking cookie.
+   */
+  private Map<String, Map<String, String>> pending = new HashMap<String, Map<String, String>>();
+
+  /**
+   * The number of distinct cookies currently waiting to be flushed.
+   */
+  private int size;
+
+  /**
+   * Record a ping for a tracking cookie that is homed on another server.
+   *
+   * @param toServer
+   *          the server id the ping should be delivered to.
+   * @param trackingCookie
+   *          the tracking cookie.
+   * @param remoteUser
+   *          the user currently associated with the cookie.
+   */
+  public synchronized void add(String toServer, String trackingCookie, String remoteUser) {
+    Map<String, String> cookies = pending.get(toServer);
+    if (cookies == null) {
+      cookies = new LinkedHashMap<String, String>();
+      pending.put(toServer, cookies);
+    }
+    if (cookies.put(trackingCookie, remoteUser) == null) {
+      size++;
+    }
+  }
+
+  /**
+   * @return the number of distinct tracking cookies waiting to be flushed.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Take all pending pings, leaving the aggregator empty.
+   *
+   * @return a map of destination server id to a map of tracking cookie to user.
+   */
+  public synchronized Map<String, Map<String, String>> drain() {
+    Map<String, Map<String, String>> drained = pending;
+    pending = new HashMap<String, Map<String, String>>();
+    size = 0;
+    return drained;
+  }
+}
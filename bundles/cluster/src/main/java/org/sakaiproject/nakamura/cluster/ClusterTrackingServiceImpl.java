@@ -46,6 +46,8 @@ import java.util.Dictionary;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.management.MBeanServer;
@@ -88,6 +90,14 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   @Property(name="secure-host-url", value = "http://localhost:8081",description = "The URL where other nodes in the cluster can contact this App server, will be different for each app server. Normal urls appended to the end of the url.")
   protected static final String PROP_SECURE_HOST_URL = "secure-host-url";
 
+  @Property(name="ping-flush-interval", longValue = 10L, description = "The number of seconds remote user tracking pings are collected for before being sent to their home server as a single batched event. 0 sends every ping immediately.")
+  protected static final String PROP_PING_FLUSH_INTERVAL = "ping-flush-interval";
+
+  /**
+   * The name of the job that flushes aggregated remote pings.
+   */
+  private static final String PING_FLUSH_JOB = "cluster-tracking-ping-flush";
+
   /**
    * The Cache Manager service, injected.
    */
@@ -97,6 +107,9 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   @Reference
   private EventAdmin eventAdmin;
 
+  @Reference
+  private Scheduler scheduler;
+
   /**
    * A String representing the time when the service started.
    */
@@ -118,6 +131,10 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   private int serverNumber;
   private String thisSecureUrl;
   private UniqueIdGenerator uniqueIdGenerator;
+  /**
+   * Remote pings waiting to be flushed, null if batching is disabled.
+   */
+  private volatile ClusterTrackingAggregator trackingAggregator;
 
   /**
    * Constructor for testing purposes only.
@@ -142,6 +159,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
 
     Dictionary<String, Object> properties = ctx.getProperties();
     thisSecureUrl = PropertiesUtil.toString(properties.get(PROP_SECURE_HOST_URL), "");
+    long pingFlushInterval = PropertiesUtil.toLong(properties.get(PROP_PING_FLUSH_INTERVAL), 10L);
 
     componentStartTime = String.valueOf(System.currentTimeMillis());
     MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
@@ -150,6 +168,14 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     isActive = true;
     pingInstance();
     uniqueIdGenerator = new UniqueIdGenerator(serverNumber);
+    if (pingFlushInterval > 0 && scheduler != null) {
+      trackingAggregator = new ClusterTrackingAggregator();
+      scheduler.addPeriodicJob(PING_FLUSH_JOB, new Runnable() {
+        public void run() {
+          flushRemoteTracking();
+        }
+      }, null, pingFlushInterval, false);
+    }
     isReady = true;
   }
 
@@ -160,6 +186,11 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    if (trackingAggregator != null) {
+      scheduler.removeJob(PING_FLUSH_JOB);
+      flushRemoteTracking();
+      trackingAggregator = null;
+    }
     try {
       removeInstance(serverId);
     } catch ( IllegalStateException e ) {
@@ -333,6 +364,31 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     }
   }
 
+  /**
+   * Apply a batch of pings received from another server in one pass over the tracking
+   * cache. The pings are not forwarded.
+   *
+   * @param trackingCookies
+   *          the tracking cookies.
+   * @param remoteUsers
+   *          the users for each tracking cookie, in the same order.
+   */
+  protected void pingTrackingBatch(List<?> trackingCookies, List<?> remoteUsers) {
+    Cache<ClusterUser> cache = getTrackingCache();
+    int n = Math.min(trackingCookies.size(), remoteUsers.size());
+    for (int i = 0; i < n; i++) {
+      String trackingCookie = (String) trackingCookies.get(i);
+      String remoteUser = (String) remoteUsers.get(i);
+      if (trackingCookie == null) {
+        continue;
+      }
+      ClusterUser cuser = cache.get(trackingCookie);
+      if (cuser == null || ((ClusterUserImpl) cuser).expired(remoteUser)) {
+        cache.put(trackingCookie, new ClusterUserImpl(remoteUser, serverId));
+      }
+    }
+  }
+
   /**
    * @param trackingCookie
    * @param remoteUser
@@ -345,6 +401,12 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
       throw new PingRemoteTrackingFailedException("Server at " + trackingCookie
           + " not alive ");
     }
+    ClusterTrackingAggregator aggregator = trackingAggregator;
+    if (aggregator != null) {
+      // collected and sent with the next flush
+      aggregator.add(clusterServer.getServerId(), trackingCookie, remoteUser);
+      return;
+    }
     // send over OSGi and then JMS over the OSGi2JMS Bridge
     Dictionary<String, Object> messageDict = new Hashtable<String, Object>();
     messageDict.put(EVENT_FROM_SERVER, serverId);
@@ -358,6 +420,38 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
 
   }
 
+  /**
+   * Send all aggregated remote pings, one event per destination server.
+   */
+  protected void flushRemoteTracking() {
+    ClusterTrackingAggregator aggregator = trackingAggregator;
+    if (aggregator == null || aggregator.size() == 0) {
+      return;
+    }
+    for (Entry<String, Map<String, String>> e : aggregator.drain().entrySet()) {
+      String toServer = e.getKey();
+      Map<String, String> pings = e.getValue();
+      String[] cookies = new String[pings.size()];
+      String[] users = new String[pings.size()];
+      int i = 0;
+      for (Entry<String, String> ping : pings.entrySet()) {
+        cookies[i] = ping.getKey();
+        users[i] = ping.getValue();
+        i++;
+      }
+      // send over OSGi and then JMS over the OSGi2JMS Bridge
+      Dictionary<String, Object> messageDict = new Hashtable<String, Object>();
+      messageDict.put(EVENT_FROM_SERVER, serverId);
+      messageDict.put(EVENT_TO_SERVER, toServer);
+      messageDict.put(EVENT_TRACKING_COOKIES, cookies);
+      messageDict.put(EVENT_USERS, users);
+      String remotePingTopic = EVENT_PING_CLUSTER_USER + "/"
+          + EventUtils.safeTopicElement(toServer);
+      LOGGER.debug("Sending {} tracking pings to {} ", cookies.length, toServer);
+      eventAdmin.postEvent(new Event(remotePingTopic, messageDict));
+    }
+  }
+
   /**
    * Update the server registration.
    */
@@ -26,6 +26,8 @@ import org.sakaiproject.nakamura.util.osgi.EventUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+
 import javax.jms.Connection;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -96,6 +98,22 @@ public class ClusterUserMessageListener implements MessageListener {
       String fromServer = message
           .getStringProperty(ClusterTrackingService.EVENT_FROM_SERVER);
       String toServer = message.getStringProperty(ClusterTrackingService.EVENT_TO_SERVER);
+      Object trackingCookies = message
+          .getObjectProperty(ClusterTrackingService.EVENT_TRACKING_COOKIES);
+      if (trackingCookies instanceof List) {
+        Object remoteUsers = message.getObjectProperty(ClusterTrackingService.EVENT_USERS);
+        List<?> cookieList = (List<?>) trackingCookies;
+        LOGGER.debug(
+            "Started handling batched cluster user jms message. from:{} to:{} pings:{}",
+            new Object[] { fromServer, toServer, cookieList.size() });
+        if (remoteUsers instanceof List) {
+          clusterTrackingServiceImpl.pingTrackingBatch(cookieList, (List<?>) remoteUsers);
+        } else {
+          LOGGER.warn("Batched cluster user message from {} has no users, ignored ",
+              fromServer);
+        }
+        return;
+      }
       String trackingCookie = message
           .getStringProperty(ClusterTrackingService.EVENT_TRACKING_COOKIE);
       String remoteUser = message.getStringProperty(ClusterTrackingService.EVENT_USER);
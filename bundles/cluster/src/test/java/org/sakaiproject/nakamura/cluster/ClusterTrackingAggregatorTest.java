@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class ClusterTrackingAggregatorTest {
+
+  @Test
+  public void testDedupeAndDrain() {
+    ClusterTrackingAggregator aggregator = new ClusterTrackingAggregator();
+    aggregator.add("serverA", "serverA-cookie1", "ieb");
+    aggregator.add("serverA", "serverA-cookie1", "zach");
+    aggregator.add("serverA", "serverA-cookie2", "ieb");
+    aggregator.add("serverB", "serverB-cookie1", "ieb");
+    assertEquals(3, aggregator.size());
+
+    Map<String, Map<String, String>> drained = aggregator.drain();
+    assertEquals(2, drained.size());
+    assertEquals(2, drained.get("serverA").size());
+    assertEquals("zach", drained.get("serverA").get("serverA-cookie1"));
+    assertEquals(1, drained.get("serverB").size());
+
+    assertEquals(0, aggregator.size());
+    assertTrue(aggregator.drain().isEmpty());
+  }
+}
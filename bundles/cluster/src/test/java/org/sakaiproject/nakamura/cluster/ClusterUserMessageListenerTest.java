@@ -38,6 +38,7 @@ import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 
 import javax.jms.Connection;
@@ -141,6 +142,7 @@ public class ClusterUserMessageListenerTest extends AbstractEasyMockTest {
     
     expect(message.getStringProperty("from-server")).andReturn("otherServerId");
     expect(message.getStringProperty("to-server")).andReturn("toserver");
+    expect(message.getObjectProperty("tracking-cookies")).andReturn(null);
     expect(message.getStringProperty("tracking-cookie")).andReturn("thistrackingcookie");
     expect(message.getStringProperty("user")).andReturn("ieb");
     ClusterUserImpl clusterUser = new ClusterUserImpl("ieb", "otherServerId");
@@ -163,6 +165,54 @@ public class ClusterUserMessageListenerTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testBatchedGet() throws Exception {
+    activate();
+    Message message = createMock(Message.class);
+    ConnectionFactory connectionFactory = createMock(ConnectionFactory.class);
+    Connection connection = createMock(Connection.class);
+    Session session = createMock(Session.class);
+    Topic topic = createMock(Topic.class);
+    MessageConsumer messageConsumer = createMock(MessageConsumer.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(connectionFactory);
+    expect(connectionFactory.createConnection()).andReturn(connection);
+    expect(connection.createSession(false, 1)).andReturn(session);
+    expect(session.createTopic((String) EasyMock.anyObject())).andReturn(topic);
+    expect(session.createConsumer(topic)).andReturn(messageConsumer);
+    messageConsumer.setMessageListener(clusterUserMessageListener);
+    EasyMock.expectLastCall();
+    connection.start();
+    EasyMock.expectLastCall();
+
+    expect(message.getStringProperty("from-server")).andReturn("otherServerId");
+    expect(message.getStringProperty("to-server")).andReturn("toserver");
+    expect(message.getObjectProperty("tracking-cookies")).andReturn(
+        Arrays.asList("cookieA", "cookieB"));
+    expect(message.getObjectProperty("users")).andReturn(Arrays.asList("ieb", "zach"));
+
+    // cookieA is current, cookieB is unknown and must be tracked.
+    expect(userTrackingCache.get("cookieA")).andReturn(
+        new ClusterUserImpl("ieb", "otherServerId"));
+    expect(userTrackingCache.get("cookieB")).andReturn(null);
+    Capture<ClusterUserImpl> clusterUserCapture = new Capture<ClusterUserImpl>();
+    expect(userTrackingCache.put(EasyMock.eq("cookieB"), capture(clusterUserCapture)))
+        .andReturn(new Object());
+
+    deactivate();
+
+    replay();
+    clusterTrackingServiceImpl.activate(componentContext);
+    clusterUserMessageListener.activate(componentContext);
+
+    clusterUserMessageListener.onMessage(message);
+
+    clusterTrackingServiceImpl.deactivate(componentContext);
+
+    assertTrue(clusterUserCapture.hasCaptured());
+    assertEquals("zach", clusterUserCapture.getValue().getUser());
+    checkActivation();
+    verify();
+  }
 
   /**
    *
@@ -82,4 +82,42 @@ public interface DiscussionConstants {
 
   public static final String TOPIC_DISCUSSION_MESSAGE = "org/sakaiproject/nakamura/message/discussion";
 
+  /**
+   * The folder in a message store that holds the thread index of its discussions.
+   */
+  public static final String THREAD_INDEX_FOLDER = "threadindex";
+
+  /**
+   * The resource type of the nodes of a thread index.
+   */
+  public static final String THREAD_INDEX_RT = "sakai/discussion-threadindex";
+
+  /**
+   * On a thread node of the index, the sort keys of the initial posts of the thread in
+   * ascending order.
+   */
+  public static final String PROP_THREAD_ROOTS = "sakai:threadroots";
+
+  /**
+   * On a post node of the index, the sort keys of the direct replies in ascending order.
+   */
+  public static final String PROP_THREAD_REPLIES = "sakai:threadreplies";
+
+  /**
+   * On a post node of the index, the depth of the post in its thread, 0 for an initial
+   * post.
+   */
+  public static final String PROP_THREAD_DEPTH = "sakai:threaddepth";
+
+  /**
+   * On a post node of the index, the key posts are ordered by: the creation time and
+   * the id of the post.
+   */
+  public static final String PROP_THREAD_SORTKEY = "sakai:threadsortkey";
+
+  /**
+   * On a post node of the index, the path of the post.
+   */
+  public static final String PROP_THREAD_POST_PATH = "sakai:threadpostpath";
+
 }
@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.api.discussion;
 
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 
@@ -49,4 +51,85 @@ public interface LiteDiscussionManager {
    * @return
    */
   public Content findSettings(String marker, Session session, String type);
+
+  /**
+   * Adds a post to the thread index of its message store. Replies on posts that are not
+   * in the index are not added, as they would not be shown in the thread.
+   *
+   * @param post
+   *          the post, with its sakai:messagestore set.
+   * @param session
+   *          a session that can write to the message store.
+   */
+  public void indexPost(Content post, Session session) throws StorageClientException,
+      AccessDeniedException;
+
+  /**
+   * Removes a post and the replies on it from the thread index of a message store.
+   *
+   * @param messageStore
+   *          the path of the message store, ending in a '/'.
+   * @param postId
+   * @param session
+   *          a session that can write to the message store.
+   */
+  public void unindexPost(String messageStore, String postId, Session session)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * Indexes all the posts of a discussion, for discussions started before there was a
+   * thread index. This writes as the administrator, so it is only for administrators to
+   * call. It is serialised with updates to the thread, and posts that are already in the
+   * index are left as they are, so it can be run again.
+   *
+   * @param messageStore
+   *          the path of the message store, ending in a '/'.
+   * @param marker
+   *          the marker of the discussion.
+   */
+  public void rebuildThreadIndex(String messageStore, String marker)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * Reads a page of the initial posts of a discussion from the thread index, each with up
+   * to <code>replies</code> of its replies, oldest first and depth first.
+   *
+   * @param session
+   * @param messageStore
+   *          the path of the message store, ending in a '/'.
+   * @param marker
+   *          the marker of the discussion.
+   * @param cursor
+   *          the next cursor of the previous page, or null for the first page.
+   * @param items
+   *          the maximum number of initial posts to return.
+   * @param replies
+   *          the maximum number of replies to return per initial post.
+   * @param newestFirst
+   *          true to page from the newest initial post to the oldest.
+   * @return the page, or null if the discussion has not been indexed.
+   */
+  public ThreadPage getThreadPage(Session session, String messageStore, String marker,
+      String cursor, int items, int replies, boolean newestFirst)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * Reads a page of a discussion that has not been indexed, in the same way as
+   * {@link #getThreadPage(Session, String, String, String, int, int, boolean)}, by finding
+   * all of its posts that the session can read. Nothing is written.
+   *
+   * @return the page.
+   */
+  public ThreadPage getUnindexedThreadPage(Session session, String messageStore,
+      String marker, String cursor, int items, int replies, boolean newestFirst)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * Reads a single post from the thread index with up to <code>replies</code> of its
+   * replies, to expand a post for which not all replies were returned.
+   *
+   * @return the post, or null if it is not in the index.
+   */
+  public ThreadIndexEntry getThreadEntry(Session session, String messageStore,
+      String postId, int replies) throws StorageClientException, AccessDeniedException;
 }
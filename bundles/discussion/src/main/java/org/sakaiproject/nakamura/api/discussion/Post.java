@@ -17,8 +17,6 @@
  */
 package org.sakaiproject.nakamura.api.discussion;
 
-import org.apache.sling.api.resource.ValueMap;
-import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -26,12 +24,9 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
-import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -51,6 +46,7 @@ public class Post {
   private List<Post> children;
   private String postId;
   private Session session;
+  private boolean moreReplies;
 
   public Post(Content content, Session session) {
     setContent(content);
@@ -81,6 +77,17 @@ public class Post {
     this.children = children;
   }
 
+  /**
+   * @return true if this post has replies that were not loaded into its children.
+   */
+  public boolean hasMoreReplies() {
+    return moreReplies;
+  }
+
+  public void setMoreReplies(boolean moreReplies) {
+    this.moreReplies = moreReplies;
+  }
+
   public String getPostId() {
     return postId;
   }
@@ -134,6 +141,16 @@ public class Post {
       PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
+    outputPostAsJSON(writer, new PostProfiles(presenceService, basicUserInfoService,
+        session.getAuthorizableManager()));
+  }
+
+  /**
+   * Write this post and its replies, looking up each author once across all the posts
+   * written with the same profiles.
+   */
+  public void outputPostAsJSON(ExtendedJSONWriter writer, PostProfiles profiles)
+      throws JSONException, StorageClientException, AccessDeniedException {
     boolean canEdit = checkEdit();
     boolean canDelete = checkDelete();
 
@@ -148,7 +165,7 @@ public class Post {
     if (isDeleted && !canDelete) {
       // This post has been deleted and we dont have sufficient rights to edit, so we just
       // show the replies.
-      outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
+      outputChildrenAsJSON(writer, profiles);
     } else {
       writer.object();
 
@@ -161,7 +178,6 @@ public class Post {
       writer.key("canDelete");
       writer.value(canDelete);
 
-      AuthorizableManager authMgr = session.getAuthorizableManager();
       // Show profile of editters.
       if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
 
@@ -173,10 +189,7 @@ public class Post {
         writer.array();
         for (int i = 0; i < edittedBy.length; i++) {
           writer.object();
-          Authorizable au = authMgr.findAuthorizable(edittedBy[i]);
-          ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-          writer.valueMapInternals(profile);
-          PresenceUtils.makePresenceJSON(writer, edittedBy[i], presenceService, true);
+          profiles.write(writer, edittedBy[i]);
           writer.endObject();
         }
         writer.endArray();
@@ -189,10 +202,7 @@ public class Post {
       writer.array();
       for (String sender : senders) {
         writer.object();
-        Authorizable au = authMgr.findAuthorizable(sender);
-        ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-        writer.valueMapInternals(profile);
-        PresenceUtils.makePresenceJSON(writer, sender, presenceService, true);
+        profiles.write(writer, sender);
         writer.endObject();
       }
       writer.endArray();
@@ -201,8 +211,12 @@ public class Post {
       // All the replies on this post.
       writer.key("replies");
       writer.array();
-      outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
+      outputChildrenAsJSON(writer, profiles);
       writer.endArray();
+      if (moreReplies) {
+        writer.key("moreReplies");
+        writer.value(true);
+      }
 
       writer.endObject();
     }
@@ -212,9 +226,15 @@ public class Post {
       PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
-    LOG.info("this post {} has {} children", getPostId(), getChildren().size());
+    outputChildrenAsJSON(writer, new PostProfiles(presenceService, basicUserInfoService,
+        session.getAuthorizableManager()));
+  }
+
+  public void outputChildrenAsJSON(ExtendedJSONWriter writer, PostProfiles profiles)
+      throws JSONException, StorageClientException, AccessDeniedException {
+    LOG.debug("this post {} has {} children", getPostId(), getChildren().size());
     for (Post p : children) {
-      p.outputPostAsJSON(writer, presenceService, basicUserInfoService, session);
+      p.outputPostAsJSON(writer, profiles);
     }
   }
 
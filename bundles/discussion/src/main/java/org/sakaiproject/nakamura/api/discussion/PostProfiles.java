@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.discussion;
+
+import com.google.common.collect.Maps;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+
+import java.util.Map;
+
+/**
+ * The profiles and presence of the authors and editors of the posts written in one
+ * response, each looked up once however many posts they wrote.
+ */
+public class PostProfiles {
+
+  private final PresenceService presenceService;
+  private final BasicUserInfoService basicUserInfoService;
+  private final AuthorizableManager authorizableManager;
+  private final Map<String, ValueMap> profiles = Maps.newHashMap();
+  private final Map<String, String[]> presence = Maps.newHashMap();
+
+  public PostProfiles(PresenceService presenceService,
+      BasicUserInfoService basicUserInfoService, AuthorizableManager authorizableManager) {
+    this.presenceService = presenceService;
+    this.basicUserInfoService = basicUserInfoService;
+    this.authorizableManager = authorizableManager;
+  }
+
+  /**
+   * Look up users that will be written, so that they are looked up together.
+   */
+  public void load(Iterable<String> userIds) throws StorageClientException,
+      AccessDeniedException {
+    for (String userId : userIds) {
+      load(userId);
+    }
+  }
+
+  /**
+   * Write the profile and presence of a user as members of the current object.
+   */
+  public void write(ExtendedJSONWriter writer, String userId) throws JSONException,
+      StorageClientException, AccessDeniedException {
+    load(userId);
+    writer.valueMapInternals(profiles.get(userId));
+    String[] status = presence.get(userId);
+    writer.key("user");
+    writer.value(userId);
+    writer.key(PresenceService.PRESENCE_STATUS_PROP);
+    writer.value(status[0]);
+    writer.key(PresenceService.PRESENCE_LOCATION_PROP);
+    writer.value(status[1]);
+  }
+
+  private void load(String userId) throws StorageClientException, AccessDeniedException {
+    if (userId == null || profiles.containsKey(userId)) {
+      return;
+    }
+    Authorizable au = authorizableManager.findAuthorizable(userId);
+    profiles.put(userId, new ValueMapDecorator(basicUserInfoService.getProperties(au)));
+    presence.put(userId, new String[] { presenceService.getStatus(userId),
+        presenceService.getLocation(userId) });
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.discussion;
+
+import java.util.List;
+
+/**
+ * A post as held in the thread index of a discussion, with as many of its replies as
+ * were asked for.
+ */
+public class ThreadIndexEntry {
+
+  private final String postId;
+  private final String parentId;
+  private final int depth;
+  private final String sortKey;
+  private final String author;
+  private final String path;
+  private final int replyCount;
+  private final List<ThreadIndexEntry> replies;
+
+  public ThreadIndexEntry(String postId, String parentId, int depth, String sortKey,
+      String author, String path, int replyCount, List<ThreadIndexEntry> replies) {
+    this.postId = postId;
+    this.parentId = parentId;
+    this.depth = depth;
+    this.sortKey = sortKey;
+    this.author = author;
+    this.path = path;
+    this.replyCount = replyCount;
+    this.replies = replies;
+  }
+
+  public String getPostId() {
+    return postId;
+  }
+
+  /**
+   * @return the id of the post this is a reply on, or null for an initial post.
+   */
+  public String getParentId() {
+    return parentId;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public String getSortKey() {
+    return sortKey;
+  }
+
+  /**
+   * @return the value of sakai:from of the post.
+   */
+  public String getAuthor() {
+    return author;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the number of direct replies on the post, loaded or not.
+   */
+  public int getReplyCount() {
+    return replyCount;
+  }
+
+  /**
+   * @return the direct replies that were loaded, oldest first.
+   */
+  public List<ThreadIndexEntry> getReplies() {
+    return replies;
+  }
+
+  /**
+   * @return true if not all the direct replies were loaded.
+   */
+  public boolean hasMoreReplies() {
+    return replies.size() < replyCount;
+  }
+}
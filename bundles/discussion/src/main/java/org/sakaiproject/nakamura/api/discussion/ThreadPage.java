@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.discussion;
+
+import java.util.List;
+
+/**
+ * One page of the initial posts of a discussion, read from its thread index.
+ */
+public class ThreadPage {
+
+  private final List<ThreadIndexEntry> entries;
+  private final int total;
+  private final String nextCursor;
+
+  public ThreadPage(List<ThreadIndexEntry> entries, int total, String nextCursor) {
+    this.entries = entries;
+    this.total = total;
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * @return the initial posts on this page, in the order asked for.
+   */
+  public List<ThreadIndexEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the number of initial posts in the discussion.
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * @return the cursor to pass to get the next page, or null if this is the last page.
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.util.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Adds a discussion from before the thread index to the index, so that
+ * {@link DiscussionThreadServlet} can page it without finding all of its posts. Only the
+ * administrator may do this, since the posts are found and indexed as the administrator.
+ * </p>
+ * <h4>Methods</h4>
+ * <ul>
+ * <li>POST /system/discussion/threadindex?path=&lt;store&gt;&amp;marker=&lt;marker&gt;</li>
+ * </ul>
+ * <h4>Parameters</h4>
+ * <dl>
+ * <dt>path</dt>
+ * <dd>The message store of the discussion, as for the threaded search.</dd>
+ * <dt>marker</dt>
+ * <dd>The marker of the discussion.</dd>
+ * </dl>
+ */
+@SlingServlet(paths = "/system/discussion/threadindex", methods = "POST")
+public class DiscussionThreadIndexServlet extends SlingAllMethodsServlet {
+
+  private static final long serialVersionUID = -2261742938153604915L;
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(DiscussionThreadIndexServlet.class);
+
+  @Reference
+  protected transient LiteDiscussionManager discussionManager;
+
+  @Override
+  protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!User.ADMIN_USER.equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    String path = request.getParameter("path");
+    String marker = request.getParameter("marker");
+    if (path == null || marker == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "A path and a marker are required");
+      return;
+    }
+    String store = PathUtils.toUserContentPath(path) + "/";
+    try {
+      discussionManager.rebuildThreadIndex(store, marker);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to index discussion {} in {}: {} ",
+          new Object[] { marker, store, e.getMessage() });
+      throw new ServletException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
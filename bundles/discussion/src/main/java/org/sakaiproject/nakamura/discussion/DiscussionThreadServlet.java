@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager;
+import org.sakaiproject.nakamura.api.discussion.Post;
+import org.sakaiproject.nakamura.api.discussion.PostProfiles;
+import org.sakaiproject.nakamura.api.discussion.ThreadIndexEntry;
+import org.sakaiproject.nakamura.api.discussion.ThreadPage;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.PathUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Pages through a discussion using its thread index, rather than searching for and
+ * writing every post of the thread as /var/search/discussions/threaded.json does.
+ * </p>
+ * <h4>Methods</h4>
+ * <ul>
+ * <li>GET /system/discussion/thread.json?path=&lt;store&gt;&amp;marker=&lt;marker&gt;</li>
+ * </ul>
+ * <h4>Parameters</h4>
+ * <dl>
+ * <dt>path</dt>
+ * <dd>The message store of the discussion, as for the threaded search.</dd>
+ * <dt>marker</dt>
+ * <dd>The marker of the discussion.</dd>
+ * <dt>cursor</dt>
+ * <dd>Optional, the nextCursor of the previous page.</dd>
+ * <dt>items</dt>
+ * <dd>Optional, the number of initial posts per page, default 25, at most 100.</dd>
+ * <dt>replies</dt>
+ * <dd>Optional, the number of replies written per initial post, default 25, at most
+ * 500. Posts with replies that were not written have moreReplies set.</dd>
+ * <dt>sortOrder</dt>
+ * <dd>Optional, asc for the oldest initial post first, default desc.</dd>
+ * <dt>post</dt>
+ * <dd>Optional, the id of a single post to write with its replies, in place of a page.</dd>
+ * </dl>
+ * <p>
+ * A discussion from before the thread index is paged by finding all of its posts, until
+ * it is indexed with {@link DiscussionThreadIndexServlet}.
+ * </p>
+ * <h4>Example Response</h4>
+ * <code>
+ * <pre>
+ * {
+ * &quot;items&quot;: 25,
+ * &quot;total&quot;: 212,
+ * &quot;nextCursor&quot;: &quot;001315330000000:66afb63945a9...&quot;,
+ * &quot;results&quot;: [ { &quot;post&quot;: {...}, &quot;replies&quot;: [...] }, ... ]
+ * }
+ * </pre>
+ * </code>
+ */
+@SlingServlet(paths = "/system/discussion/thread", methods = "GET", extensions = "json")
+public class DiscussionThreadServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = 6321407981539612713L;
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(DiscussionThreadServlet.class);
+
+  static final int DEFAULT_ITEMS = 25;
+  static final int MAX_ITEMS = 100;
+  static final int DEFAULT_REPLIES = 25;
+  static final int MAX_REPLIES = 500;
+
+  @Reference
+  protected transient LiteDiscussionManager discussionManager;
+
+  @Reference
+  protected transient PresenceService presenceService;
+
+  @Reference
+  protected transient BasicUserInfoService basicUserInfoService;
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    String path = request.getParameter("path");
+    String marker = request.getParameter("marker");
+    String postId = request.getParameter("post");
+    if (path == null || (marker == null && postId == null)) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "A path and either a marker or a post are required");
+      return;
+    }
+    String store = PathUtils.toUserContentPath(path) + "/";
+    int items = getInt(request, "items", DEFAULT_ITEMS, MAX_ITEMS);
+    int replies = getInt(request, "replies", DEFAULT_REPLIES, MAX_REPLIES);
+    boolean newestFirst = !"asc".equalsIgnoreCase(request.getParameter("sortOrder"));
+
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      ThreadPage page;
+      if (postId != null) {
+        ThreadIndexEntry entry = discussionManager.getThreadEntry(session, store, postId,
+            replies);
+        if (entry == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND);
+          return;
+        }
+        page = new ThreadPage(Collections.singletonList(entry), 1, null);
+      } else {
+        String cursor = request.getParameter("cursor");
+        page = discussionManager.getThreadPage(session, store, marker, cursor, items,
+            replies, newestFirst);
+        if (page == null) {
+          // a discussion from before the thread index, read it without the index until
+          // an administrator indexes it through DiscussionThreadIndexServlet.
+          page = discussionManager.getUnindexedThreadPage(session, store, marker, cursor,
+              items, replies, newestFirst);
+        }
+      }
+
+      ContentManager cm = session.getContentManager();
+      Set<String> authors = Sets.newLinkedHashSet();
+      List<Post> posts = toPosts(page.getEntries(), cm, session, authors);
+      PostProfiles profiles = new PostProfiles(presenceService, basicUserInfoService,
+          session.getAuthorizableManager());
+      profiles.load(authors);
+
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
+      writer.object();
+      writer.key("items").value(items);
+      writer.key("total").value(page.getTotal());
+      if (page.getNextCursor() != null) {
+        writer.key("nextCursor").value(page.getNextCursor());
+      }
+      writer.key("results");
+      writer.array();
+      for (Post post : posts) {
+        post.outputPostAsJSON(writer, profiles);
+      }
+      writer.endArray();
+      writer.endObject();
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to read discussion {} in {}: {} ",
+          new Object[] { marker, store, e.getMessage() });
+      throw new ServletException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+    } catch (JSONException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Load the posts of index entries that the current user can read, collecting their
+   * authors.
+   */
+  private List<Post> toPosts(List<ThreadIndexEntry> entries, ContentManager cm,
+      Session session, Set<String> authors) throws StorageClientException {
+    List<Post> posts = Lists.newArrayListWithCapacity(entries.size());
+    for (ThreadIndexEntry entry : entries) {
+      Content content;
+      try {
+        content = cm.get(entry.getPath());
+      } catch (AccessDeniedException e) {
+        content = null;
+      }
+      if (content == null) {
+        continue;
+      }
+      Post post = new Post(content, session);
+      post.setMoreReplies(entry.hasMoreReplies());
+      post.getChildren().addAll(toPosts(entry.getReplies(), cm, session, authors));
+      if (entry.getAuthor() != null) {
+        Collections.addAll(authors, StringUtils.split(entry.getAuthor(), ','));
+      }
+      posts.add(post);
+    }
+    return posts;
+  }
+
+  private int getInt(SlingHttpServletRequest request, String name, int defaultValue,
+      int max) {
+    String value = request.getParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Math.max(1, Math.min(max, Integer.parseInt(value)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
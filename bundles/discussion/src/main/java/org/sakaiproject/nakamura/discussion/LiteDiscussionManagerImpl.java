@@ -17,40 +17,92 @@
  */
 package org.sakaiproject.nakamura.discussion;
 
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_MARKER;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_REPLY_ON;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_THREAD_DEPTH;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_THREAD_POST_PATH;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_THREAD_REPLIES;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_THREAD_ROOTS;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_THREAD_SORTKEY;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.THREAD_INDEX_FOLDER;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.THREAD_INDEX_RT;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.TOPIC_BASE;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.BOX_INBOX;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_FROM;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_ID;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_MESSAGE_STORE;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.SAKAI_MESSAGE_RT;
+
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager;
+import org.sakaiproject.nakamura.api.discussion.ThreadIndexEntry;
+import org.sakaiproject.nakamura.api.discussion.ThreadPage;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Manager for the discussions.
+ * Manager for the discussions. Also keeps the thread index of each message store, which
+ * holds for every post its parent, depth, sort key and author so that a thread can be
+ * paged without loading every post in it:
+ * <ul>
+ * <li>&lt;store&gt;threadindex/threads/&lt;marker&gt; holds the sort keys of the initial
+ * posts of a discussion.</li>
+ * <li>&lt;store&gt;threadindex/posts/&lt;post id&gt; holds a post and the sort keys of
+ * its direct replies.</li>
+ * </ul>
+ * A sort key is the creation time of a post, zero padded, and its id, so keys sort by
+ * time and name the post they are for.
  */
 @Component(immediate = true, label = "%discussion.manager.label", description = "%discussion.manager.desc")
-@Service
-public class LiteDiscussionManagerImpl implements LiteDiscussionManager {
+@Service(value = { LiteDiscussionManager.class, EventHandler.class })
+public class LiteDiscussionManagerImpl implements LiteDiscussionManager, EventHandler {
 
   public static final Logger LOG = LoggerFactory.getLogger(LiteDiscussionManagerImpl.class);
 
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
+  @Property(value = { TOPIC_BASE + "content/" + DELETE_TOPIC })
+  static final String EVENT_TOPICS = "event.topics";
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected LockManager lockManager;
+
   private Pattern homePathPattern = Pattern.compile("^(.*)(~([\\w-]*?))/");
 
   /**
@@ -154,4 +206,460 @@ public class LiteDiscussionManagerImpl implements LiteDiscussionManager {
     }
     return queryString;
   }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager#indexPost(org.sakaiproject.nakamura.api.lite.content.Content,
+   *      org.sakaiproject.nakamura.api.lite.Session)
+   */
+  public void indexPost(Content post, Session session) throws StorageClientException,
+      AccessDeniedException {
+    String store = (String) post.getProperty(PROP_SAKAI_MESSAGE_STORE);
+    String marker = (String) post.getProperty(PROP_MARKER);
+    if (store == null || marker == null || post.getProperty(PROP_SAKAI_ID) == null) {
+      LOG.debug("Not indexing {}, it is not a discussion post ", post.getPath());
+      return;
+    }
+    Lock lock = lock(getThreadPath(store, marker));
+    try {
+      addToIndex(post, session.getContentManager());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add a post to the thread index, the thread being locked.
+   */
+  private void addToIndex(Content post, ContentManager cm) throws StorageClientException,
+      AccessDeniedException {
+    String store = (String) post.getProperty(PROP_SAKAI_MESSAGE_STORE);
+    String marker = (String) post.getProperty(PROP_MARKER);
+    String postId = (String) post.getProperty(PROP_SAKAI_ID);
+    String threadPath = getThreadPath(store, marker);
+    String entryPath = getEntryPath(store, postId);
+    if (cm.exists(entryPath)) {
+      return;
+    }
+    String sortKey = getSortKey(post, postId);
+    String parentId = (String) post.getProperty(PROP_REPLY_ON);
+    Map<String, Object> props = Maps.newHashMap();
+    props.put("sling:resourceType", THREAD_INDEX_RT);
+    props.put(PROP_MARKER, marker);
+    props.put(PROP_THREAD_SORTKEY, sortKey);
+    props.put(PROP_THREAD_POST_PATH, post.getPath());
+    props.put(PROP_THREAD_REPLIES, new String[0]);
+    if (post.hasProperty(PROP_SAKAI_FROM)) {
+      props.put(PROP_SAKAI_FROM, post.getProperty(PROP_SAKAI_FROM));
+    }
+    if (parentId == null) {
+      props.put(PROP_THREAD_DEPTH, 0);
+      Content thread = cm.get(threadPath);
+      if (thread == null) {
+        thread = new Content(threadPath, null);
+        thread.setProperty("sling:resourceType", THREAD_INDEX_RT);
+        thread.setProperty(PROP_MARKER, marker);
+      }
+      thread.setProperty(PROP_THREAD_ROOTS,
+          insert(getKeys(thread, PROP_THREAD_ROOTS), sortKey));
+      cm.update(new Content(entryPath, props));
+      cm.update(thread);
+    } else {
+      Content parent = cm.get(getEntryPath(store, parentId));
+      if (parent == null || !marker.equals(parent.getProperty(PROP_MARKER))) {
+        LOG.debug("Not indexing {}, it is a reply on {} which is not indexed ", postId,
+            parentId);
+        return;
+      }
+      props.put(PROP_REPLY_ON, parentId);
+      props.put(PROP_THREAD_DEPTH, getDepth(parent) + 1);
+      parent.setProperty(PROP_THREAD_REPLIES,
+          insert(getKeys(parent, PROP_THREAD_REPLIES), sortKey));
+      cm.update(new Content(entryPath, props));
+      cm.update(parent);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager#unindexPost(java.lang.String,
+   *      java.lang.String, org.sakaiproject.nakamura.api.lite.Session)
+   */
+  public void unindexPost(String messageStore, String postId, Session session)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager cm = session.getContentManager();
+    Content entry = cm.get(getEntryPath(messageStore, postId));
+    if (entry == null) {
+      return;
+    }
+    String marker = (String) entry.getProperty(PROP_MARKER);
+    String sortKey = (String) entry.getProperty(PROP_THREAD_SORTKEY);
+    Lock lock = lock(getThreadPath(messageStore, marker));
+    try {
+      String parentId = (String) entry.getProperty(PROP_REPLY_ON);
+      Content parent = cm.get(parentId == null ? getThreadPath(messageStore, marker)
+          : getEntryPath(messageStore, parentId));
+      if (parent != null) {
+        String name = parentId == null ? PROP_THREAD_ROOTS : PROP_THREAD_REPLIES;
+        parent.setProperty(name, remove(getKeys(parent, name), sortKey));
+        cm.update(parent);
+      }
+      // replies on a removed post are not shown in the thread, so they go too.
+      List<Content> removed = Lists.newArrayList(entry);
+      for (int i = 0; i < removed.size(); i++) {
+        Content c = removed.get(i);
+        for (String reply : getKeys(c, PROP_THREAD_REPLIES)) {
+          Content r = cm.get(getEntryPath(messageStore, getPostId(reply)));
+          if (r != null) {
+            removed.add(r);
+          }
+        }
+        cm.delete(c.getPath());
+      }
+      LOG.debug("Removed {} posts from the thread index of {} ", removed.size(), marker);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager#rebuildThreadIndex(java.lang.String,
+   *      java.lang.String)
+   */
+  public void rebuildThreadIndex(String messageStore, String marker)
+      throws StorageClientException, AccessDeniedException {
+    String threadPath = getThreadPath(messageStore, marker);
+    Lock lock = lock(threadPath);
+    try {
+      Session session = repository.loginAdministrative();
+      try {
+        ContentManager cm = session.getContentManager();
+        List<Content> posts = findPosts(cm, messageStore, marker);
+        // oldest first so that the post a reply is on is indexed before the reply.
+        Collections.sort(posts, new Comparator<Content>() {
+          public int compare(Content o1, Content o2) {
+            return getSortKey(o1, (String) o1.getProperty(PROP_SAKAI_ID)).compareTo(
+                getSortKey(o2, (String) o2.getProperty(PROP_SAKAI_ID)));
+          }
+        });
+        for (Content post : posts) {
+          addToIndex(post, cm);
+        }
+        if (!cm.exists(threadPath)) {
+          // nothing to index, mark the discussion as indexed.
+          Content thread = new Content(threadPath, null);
+          thread.setProperty("sling:resourceType", THREAD_INDEX_RT);
+          thread.setProperty(PROP_MARKER, marker);
+          thread.setProperty(PROP_THREAD_ROOTS, new String[0]);
+          cm.update(thread);
+        }
+        LOG.info("Indexed {} posts of discussion {} in {} ",
+            new Object[] { posts.size(), marker, messageStore });
+      } finally {
+        session.logout();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager#getThreadPage(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String, java.lang.String, int, int, boolean)
+   */
+  public ThreadPage getThreadPage(Session session, final String messageStore,
+      String marker, String cursor, int items, final int replies, boolean newestFirst)
+      throws StorageClientException, AccessDeniedException {
+    final ContentManager cm = session.getContentManager();
+    Content thread = cm.get(getThreadPath(messageStore, marker));
+    if (thread == null) {
+      return null;
+    }
+    return page(getKeys(thread, PROP_THREAD_ROOTS), cursor, items, newestFirst,
+        new EntryLoader() {
+          public ThreadIndexEntry load(String sortKey) throws StorageClientException,
+              AccessDeniedException {
+            return loadEntry(cm, messageStore, getPostId(sortKey), new int[] { replies });
+          }
+        });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager#getUnindexedThreadPage(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String, java.lang.String, int, int, boolean)
+   */
+  public ThreadPage getUnindexedThreadPage(Session session, String messageStore,
+      String marker, String cursor, int items, final int replies, boolean newestFirst)
+      throws StorageClientException, AccessDeniedException {
+    // the same tree the index would hold, built in memory from the posts.
+    final Map<String, Content> posts = Maps.newHashMap();
+    for (Content post : findPosts(session.getContentManager(), messageStore, marker)) {
+      String postId = (String) post.getProperty(PROP_SAKAI_ID);
+      if (postId != null) {
+        posts.put(postId, post);
+      }
+    }
+    List<String> roots = Lists.newArrayList();
+    final Map<String, List<String>> replyKeys = Maps.newHashMap();
+    for (Entry<String, Content> e : posts.entrySet()) {
+      String sortKey = getSortKey(e.getValue(), e.getKey());
+      String parentId = (String) e.getValue().getProperty(PROP_REPLY_ON);
+      if (parentId == null) {
+        roots.add(sortKey);
+      } else if (posts.containsKey(parentId)) {
+        List<String> keys = replyKeys.get(parentId);
+        if (keys == null) {
+          keys = Lists.newArrayList();
+          replyKeys.put(parentId, keys);
+        }
+        keys.add(sortKey);
+      }
+    }
+    for (List<String> keys : replyKeys.values()) {
+      Collections.sort(keys);
+    }
+    Collections.sort(roots);
+    return page(roots.toArray(new String[roots.size()]), cursor, items, newestFirst,
+        new EntryLoader() {
+          public ThreadIndexEntry load(String sortKey) {
+            return buildEntry(posts, replyKeys, getPostId(sortKey), 0,
+                new int[] { replies });
+          }
+        });
+  }
+
+  /**
+   * Loads the entry for a sort key.
+   */
+  private interface EntryLoader {
+    ThreadIndexEntry load(String sortKey) throws StorageClientException,
+        AccessDeniedException;
+  }
+
+  /**
+   * Page through the sorted sort keys of the initial posts of a discussion.
+   */
+  private ThreadPage page(String[] roots, String cursor, int items, boolean newestFirst,
+      EntryLoader loader) throws StorageClientException, AccessDeniedException {
+    int step = newestFirst ? -1 : 1;
+    int i;
+    if (cursor == null) {
+      i = newestFirst ? roots.length - 1 : 0;
+    } else {
+      // the cursor need not still be in the index, start next to where it would be.
+      int found = Arrays.binarySearch(roots, cursor);
+      if (found >= 0) {
+        i = found + step;
+      } else {
+        i = newestFirst ? -found - 2 : -found - 1;
+      }
+    }
+    List<ThreadIndexEntry> entries = Lists.newArrayList();
+    String last = null;
+    for (; i >= 0 && i < roots.length && entries.size() < items; i += step) {
+      last = roots[i];
+      ThreadIndexEntry entry = loader.load(last);
+      if (entry != null) {
+        entries.add(entry);
+      }
+    }
+    String nextCursor = (i >= 0 && i < roots.length) ? last : null;
+    return new ThreadPage(entries, roots.length, nextCursor);
+  }
+
+  /**
+   * Find the posts of a discussion that the content manager can read.
+   */
+  private List<Content> findPosts(ContentManager cm, String messageStore, String marker)
+      throws StorageClientException, AccessDeniedException {
+    Map<String, Object> props = Maps.newHashMap();
+    props.put("sling:resourceType", SAKAI_MESSAGE_RT);
+    props.put("sakai:type", "discussion");
+    props.put(PROP_MARKER, marker);
+    List<Content> posts = Lists.newArrayList();
+    for (Content c : cm.find(props)) {
+      if (messageStore.equals(c.getProperty(PROP_SAKAI_MESSAGE_STORE))) {
+        posts.add(c);
+      }
+    }
+    return posts;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager#getThreadEntry(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String, int)
+   */
+  public ThreadIndexEntry getThreadEntry(Session session, String messageStore,
+      String postId, int replies) throws StorageClientException, AccessDeniedException {
+    return loadEntry(session.getContentManager(), messageStore, postId,
+        new int[] { replies });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Removes posts from the thread index when they are deleted.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    String resourceType = (String) event.getProperty("resourceType");
+    if (path == null || (resourceType != null && !SAKAI_MESSAGE_RT.equals(resourceType))) {
+      return;
+    }
+    // posts are stored as <store>inbox/<post id>
+    String box = "/" + BOX_INBOX + "/";
+    int i = path.lastIndexOf(box);
+    if (i < 0 || path.indexOf('/', i + box.length()) >= 0) {
+      return;
+    }
+    String store = path.substring(0, i + 1);
+    String postId = path.substring(i + box.length());
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      unindexPost(store, postId, session);
+    } catch (StorageClientException e) {
+      LOG.warn("Unable to remove {} from the thread index: {} ", path, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOG.warn("Unable to remove {} from the thread index: {} ", path, e.getMessage());
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (StorageClientException e) {
+          LOG.warn(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Build an entry for a post that is not in the index with its replies, depth first,
+   * until the budget of replies is used up, as {@link #loadEntry} does from the index.
+   */
+  private ThreadIndexEntry buildEntry(Map<String, Content> posts,
+      Map<String, List<String>> replyKeys, String postId, int depth, int[] budget) {
+    Content post = posts.get(postId);
+    List<String> keys = replyKeys.get(postId);
+    List<ThreadIndexEntry> replies = Lists.newArrayList();
+    int replyCount = keys == null ? 0 : keys.size();
+    if (keys != null) {
+      for (String replyKey : keys) {
+        if (budget[0] <= 0) {
+          break;
+        }
+        budget[0]--;
+        replies.add(buildEntry(posts, replyKeys, getPostId(replyKey), depth + 1, budget));
+      }
+    }
+    return new ThreadIndexEntry(postId, (String) post.getProperty(PROP_REPLY_ON), depth,
+        getSortKey(post, postId), (String) post.getProperty(PROP_SAKAI_FROM),
+        post.getPath(), replyCount, replies);
+  }
+
+  /**
+   * Load a post from the index with its replies, depth first, until the budget of
+   * replies is used up.
+   */
+  private ThreadIndexEntry loadEntry(ContentManager cm, String messageStore,
+      String postId, int[] budget) throws StorageClientException, AccessDeniedException {
+    Content c = cm.get(getEntryPath(messageStore, postId));
+    if (c == null) {
+      return null;
+    }
+    String[] replyKeys = getKeys(c, PROP_THREAD_REPLIES);
+    List<ThreadIndexEntry> replies = Lists.newArrayList();
+    int replyCount = replyKeys.length;
+    for (String replyKey : replyKeys) {
+      if (budget[0] <= 0) {
+        break;
+      }
+      budget[0]--;
+      ThreadIndexEntry reply = loadEntry(cm, messageStore, getPostId(replyKey), budget);
+      if (reply != null) {
+        replies.add(reply);
+      } else {
+        replyCount--;
+      }
+    }
+    return new ThreadIndexEntry(postId, (String) c.getProperty(PROP_REPLY_ON),
+        getDepth(c), (String) c.getProperty(PROP_THREAD_SORTKEY),
+        (String) c.getProperty(PROP_SAKAI_FROM),
+        (String) c.getProperty(PROP_THREAD_POST_PATH), replyCount, replies);
+  }
+
+  private Lock lock(String path) throws StorageClientException {
+    try {
+      return lockManager.waitForLock(path);
+    } catch (LockTimeoutException e) {
+      throw new StorageClientException("Unable to lock thread index " + path, e);
+    }
+  }
+
+  static String getThreadPath(String messageStore, String marker) {
+    return messageStore + THREAD_INDEX_FOLDER + "/threads/" + marker;
+  }
+
+  static String getEntryPath(String messageStore, String postId) {
+    return messageStore + THREAD_INDEX_FOLDER + "/posts/" + postId;
+  }
+
+  static String getSortKey(Content post, String postId) {
+    Object created = post.getProperty(Content.CREATED_FIELD);
+    long time = created instanceof Long ? (Long) created : System.currentTimeMillis();
+    return String.format("%015d:%s", time, postId);
+  }
+
+  static String getPostId(String sortKey) {
+    return sortKey.substring(sortKey.indexOf(':') + 1);
+  }
+
+  private int getDepth(Content entry) {
+    Object depth = entry.getProperty(PROP_THREAD_DEPTH);
+    return depth instanceof Integer ? (Integer) depth : 0;
+  }
+
+  private String[] getKeys(Content c, String name) {
+    Object keys = c.getProperty(name);
+    if (keys instanceof String[]) {
+      return (String[]) keys;
+    }
+    return new String[0];
+  }
+
+  private String[] insert(String[] keys, String key) {
+    int i = Arrays.binarySearch(keys, key);
+    if (i >= 0) {
+      return keys;
+    }
+    i = -i - 1;
+    String[] inserted = new String[keys.length + 1];
+    System.arraycopy(keys, 0, inserted, 0, i);
+    inserted[i] = key;
+    System.arraycopy(keys, i, inserted, i + 1, keys.length - i);
+    return inserted;
+  }
+
+  private String[] remove(String[] keys, String key) {
+    int i = Arrays.binarySearch(keys, key);
+    if (i < 0) {
+      return keys;
+    }
+    String[] removed = new String[keys.length - 1];
+    System.arraycopy(keys, 0, removed, 0, i);
+    System.arraycopy(keys, i + 1, removed, i, keys.length - i - 1);
+    return removed;
+  }
 }
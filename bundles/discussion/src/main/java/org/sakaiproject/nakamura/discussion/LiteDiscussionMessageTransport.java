@@ -36,6 +36,7 @@ import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
+import org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -89,6 +90,9 @@ public class LiteDiscussionMessageTransport implements LiteMessageTransport {
   @Reference
   protected transient EventAdmin eventAdmin;
 
+  @Reference
+  protected transient LiteDiscussionManager discussionManager;
+
   @org.apache.felix.scr.annotations.Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
@@ -167,6 +171,15 @@ public class LiteDiscussionMessageTransport implements LiteMessageTransport {
           }
           session.getContentManager().update(newMessageNode);
 
+          try {
+            discussionManager.indexPost(newMessageNode, session);
+          } catch (StorageClientException e) {
+            // the post is there, it will be missing from paged views of the thread.
+            LOG.warn("Failed to add {} to the thread index: {} ", toPath, e.getMessage());
+          } catch (AccessDeniedException e) {
+            LOG.warn("Failed to add {} to the thread index: {} ", toPath, e.getMessage());
+          }
+
           try {
             // Send an OSGi event. The value of the selector is the last part of the event
             // topic.
@@ -26,6 +26,7 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.Post;
+import org.sakaiproject.nakamura.api.discussion.PostProfiles;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -52,8 +53,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import javax.jcr.RepositoryException;
-
 /**
  * Formats message node search results
  */
@@ -130,17 +129,16 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
         }
       }
 
-      // The posts are sorted, now return them as json.
+      // The posts are sorted, now return them as json, looking each author up once.
+      PostProfiles profiles = new PostProfiles(presenceService, basicUserInfoService,
+          session.getAuthorizableManager());
       for (String basePostId : basePosts) {
-        allPosts.get(basePostId).outputPostAsJSON((ExtendedJSONWriter) writer,
-            presenceService, basicUserInfoService, session);
+        allPosts.get(basePostId).outputPostAsJSON((ExtendedJSONWriter) writer, profiles);
       }
     } catch (StorageClientException e) {
       throw new RuntimeException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
       throw new RuntimeException(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      throw new RuntimeException(e.getMessage(), e);
     }
   }
 
@@ -19,22 +19,39 @@ package org.sakaiproject.nakamura.discussion;
 
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager;
+import org.sakaiproject.nakamura.api.discussion.ThreadIndexEntry;
+import org.sakaiproject.nakamura.api.discussion.ThreadPage;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 
 import java.io.IOException;
 import java.util.Map;
@@ -109,4 +126,117 @@ public class LiteDiscussionManagerTest {
     assertNotNull(result);
     assertEquals("/messages/msgNodeCorrect", result.getPath());
   }
+
+  @Test
+  public void testThreadIndex() throws Exception {
+    LiteDiscussionManagerImpl manager = new LiteDiscussionManagerImpl();
+    manager.repository = (Repository) new BaseMemoryRepository().getRepository();
+    manager.lockManager = mock(LockManager.class);
+    when(manager.lockManager.waitForLock(isA(String.class))).thenReturn(mock(Lock.class));
+    Session admin = manager.repository.loginAdministrative();
+
+    // a
+    // - b
+    //   - d
+    // - c
+    // e
+    // f
+    String store = "p/site/store/";
+    manager.indexPost(post(store, "a", null), admin);
+    manager.indexPost(post(store, "b", "a"), admin);
+    manager.indexPost(post(store, "c", "a"), admin);
+    manager.indexPost(post(store, "d", "b"), admin);
+    manager.indexPost(post(store, "e", null), admin);
+    manager.indexPost(post(store, "f", null), admin);
+    // a reply on a post that is not in the thread is not shown, so not indexed.
+    manager.indexPost(post(store, "g", "missing"), admin);
+
+    ThreadPage page = manager.getThreadPage(admin, store, "foo", null, 2, 10, true);
+    assertEquals(3, page.getTotal());
+    assertEquals(2, page.getEntries().size());
+    assertEquals("f", page.getEntries().get(0).getPostId());
+    assertEquals("e", page.getEntries().get(1).getPostId());
+    assertNotNull(page.getNextCursor());
+
+    page = manager.getThreadPage(admin, store, "foo", page.getNextCursor(), 2, 10, true);
+    assertEquals(1, page.getEntries().size());
+    assertNull(page.getNextCursor());
+    ThreadIndexEntry a = page.getEntries().get(0);
+    assertEquals("a", a.getPostId());
+    assertEquals(2, a.getReplies().size());
+    assertEquals("b", a.getReplies().get(0).getPostId());
+    assertEquals("d", a.getReplies().get(0).getReplies().get(0).getPostId());
+    assertEquals(2, a.getReplies().get(0).getReplies().get(0).getDepth());
+    assertEquals("c", a.getReplies().get(1).getPostId());
+    assertEquals("admin", a.getAuthor());
+    assertEquals(store + "inbox/a", a.getPath());
+
+    // at most one reply per initial post.
+    a = manager.getThreadEntry(admin, store, "a", 1);
+    assertEquals(1, a.getReplies().size());
+    assertTrue(a.hasMoreReplies());
+    assertTrue(a.getReplies().get(0).hasMoreReplies());
+
+    page = manager.getThreadPage(admin, store, "foo", null, 10, 0, false);
+    assertEquals("a", page.getEntries().get(0).getPostId());
+    assertEquals("f", page.getEntries().get(2).getPostId());
+
+    // deleting a post takes its replies out of the thread.
+    manager.unindexPost(store, "b", admin);
+    a = manager.getThreadEntry(admin, store, "a", 10);
+    assertEquals(1, a.getReplies().size());
+    assertEquals("c", a.getReplies().get(0).getPostId());
+    assertNull(manager.getThreadEntry(admin, store, "d", 10));
+
+    manager.handleEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+        + StoreListener.DELETE_TOPIC, ImmutableMap.of("path", store + "inbox/e")));
+    page = manager.getThreadPage(admin, store, "foo", null, 10, 10, true);
+    assertEquals(2, page.getTotal());
+    assertEquals("f", page.getEntries().get(0).getPostId());
+    assertEquals("a", page.getEntries().get(1).getPostId());
+    assertFalse(page.getEntries().get(1).hasMoreReplies());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testUnindexedThreadPage() throws Exception {
+    String store = "p/site/store/";
+    when(cm.find(isA(Map.class))).thenReturn(
+        ImmutableList.of(post(store, "a", null), post(store, "b", "a"),
+            post(store, "d", "b"), post(store, "g", "missing"),
+            post("p/other/store/", "h", null)));
+    LiteDiscussionManager manager = new LiteDiscussionManagerImpl();
+
+    ThreadPage page = manager.getUnindexedThreadPage(session, store, "foo", null, 10, 10,
+        true);
+    assertEquals(1, page.getTotal());
+    assertNull(page.getNextCursor());
+    ThreadIndexEntry a = page.getEntries().get(0);
+    assertEquals("a", a.getPostId());
+    assertEquals(store + "inbox/a", a.getPath());
+    assertEquals(1, a.getReplies().size());
+    assertEquals("b", a.getReplies().get(0).getPostId());
+    assertEquals("d", a.getReplies().get(0).getReplies().get(0).getPostId());
+    assertEquals(2, a.getReplies().get(0).getReplies().get(0).getDepth());
+
+    page = manager.getUnindexedThreadPage(session, store, "foo", null, 10, 1, true);
+    assertTrue(page.getEntries().get(0).getReplies().get(0).hasMoreReplies());
+
+    // reading a discussion that is not indexed writes nothing.
+    verify(cm, never()).update(any(Content.class));
+  }
+
+  private Content post(String store, String id, String replyOn) {
+    Content post = new Content(store + "inbox/" + id, null);
+    post.setProperty(SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.SAKAI_MESSAGE_RT);
+    post.setProperty("sakai:type", "discussion");
+    post.setProperty(DiscussionConstants.PROP_MARKER, "foo");
+    post.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+    post.setProperty(MessageConstants.PROP_SAKAI_FROM, "admin");
+    post.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, store);
+    if (replyOn != null) {
+      post.setProperty(DiscussionConstants.PROP_REPLY_ON, replyOn);
+    }
+    return post;
+  }
 }
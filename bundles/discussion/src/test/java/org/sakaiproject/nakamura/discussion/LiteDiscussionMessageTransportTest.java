@@ -31,6 +31,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.discussion.LiteDiscussionManager;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.content.Content;
@@ -62,6 +63,8 @@ public class LiteDiscussionMessageTransportTest {
   private EventAdmin eventAdmin;
   @Mock
   private ContentManager cm;
+  @Mock
+  private LiteDiscussionManager discussionManager;
 
   @Before
   public void setUp() throws Exception {
@@ -74,6 +77,7 @@ public class LiteDiscussionMessageTransportTest {
     transport.lockManager = lockManager;
     transport.contentRepository = repository;
     transport.eventAdmin = eventAdmin;
+    transport.discussionManager = discussionManager;
     
     when(adminSession.getContentManager()).thenReturn(cm);
   }
@@ -37,12 +37,24 @@ import javax.activation.MimetypesFileTypeMap;
  */
 public class DiskDocumentResult extends AbstractDocumentResult {
 
+  private static final MimetypesFileTypeMap MIME_TYPES = new MimetypesFileTypeMap();
+
   private File file;
+  private DiskIndex index;
 
   public DiskDocumentResult(File file) {
     this.file = file;
   }
 
+  /**
+   * @param index
+   *          the index to take the properties from, rather than reading them each time.
+   */
+  DiskDocumentResult(File file, DiskIndex index) {
+    this.file = file;
+    this.index = index;
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -74,8 +86,7 @@ public class DiskDocumentResult extends AbstractDocumentResult {
    * @see org.sakaiproject.kernel.api.docproxy.ExternalDocumentResultMetadata#getContentType()
    */
   public String getContentType() {
-    MimetypesFileTypeMap map = new MimetypesFileTypeMap();
-    return map.getContentType(file);
+    return MIME_TYPES.getContentType(file);
   }
 
   /**
@@ -85,10 +96,20 @@ public class DiskDocumentResult extends AbstractDocumentResult {
    * @see org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResultMetadata#getProperties()
    */
   public Map<String, Object> getProperties() throws DocProxyException {
+    if (index != null) {
+      return index.getProperties(file);
+    }
     // We assume that there is a .json file for each file
-    String jsonFile = file.getAbsolutePath() + ".json";
+    return readProperties(new File(file.getAbsolutePath() + ".json"));
+  }
+
+  /**
+   * @param f
+   *          the .json file next to a file.
+   * @return the properties in the file, or an empty map if there is no such file.
+   */
+  static Map<String, Object> readProperties(File f) throws DocProxyException {
     Map<String, Object> props = new HashMap<String, Object>();
-    File f = new File(jsonFile);
     if (f.exists()) {
       // We have some properties..
       try {
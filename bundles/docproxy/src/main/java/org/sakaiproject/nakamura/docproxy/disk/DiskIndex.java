@@ -0,0 +1,332 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.disk;
+
+import org.sakaiproject.nakamura.api.docproxy.DocProxyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in memory index of the files under a mounted directory, and of their .json
+ * properties, so that a search doesn't list the whole tree. The tree is listed in
+ * parallel when the index is built. After that {@link #refresh()} relists only the
+ * directories whose last modified time has changed, which is what happens to a
+ * directory when a file is added to it or removed from it.
+ */
+class DiskIndex {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DiskIndex.class);
+
+  /**
+   * The coarsest last modified time resolution of the file systems we expect. A
+   * directory listed within this long of its last modified time may have changed again
+   * without its time moving, so it is listed again.
+   */
+  private static final long TIME_RESOLUTION = 2000L;
+
+  private final File root;
+  private final String rootPath;
+
+  /**
+   * Every file and directory under the root, by absolute path, in path order.
+   */
+  private final ConcurrentSkipListMap<String, File> files = new ConcurrentSkipListMap<String, File>();
+
+  /**
+   * The last listing of every directory.
+   */
+  private final ConcurrentMap<String, Listing> directories = new ConcurrentHashMap<String, Listing>();
+
+  private final ConcurrentMap<String, CachedProperties> properties = new ConcurrentHashMap<String, CachedProperties>();
+
+  private static class CachedProperties {
+    private final long lastModified;
+    private final long length;
+    private final Map<String, Object> properties;
+
+    CachedProperties(long lastModified, long length, Map<String, Object> properties) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.properties = properties;
+    }
+  }
+
+  private static class Listing {
+    /**
+     * The last modified time of the directory before it was listed.
+     */
+    private final long lastModified;
+    /**
+     * When the directory was listed.
+     */
+    private final long listed;
+    /**
+     * The absolute paths of its children, including those added by
+     * {@link DiskIndex#update(File)} since it was listed.
+     */
+    private final Set<String> children;
+
+    Listing(long lastModified, long listed, Set<String> children) {
+      this.lastModified = lastModified;
+      this.listed = listed;
+      this.children = children;
+    }
+
+    /**
+     * @return true if the directory may have changed since it was listed.
+     */
+    boolean isStale(long lastModified) {
+      return this.lastModified != lastModified
+          || listed - this.lastModified < TIME_RESOLUTION;
+    }
+  }
+
+  DiskIndex(File root) {
+    this.root = root;
+    this.rootPath = root.getAbsolutePath();
+  }
+
+  /**
+   * List the whole tree.
+   *
+   * @param threads
+   *          how many directories to list at once.
+   */
+  void build(int threads) throws InterruptedException {
+    long start = System.currentTimeMillis();
+    final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    final AtomicInteger pending = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(1);
+    try {
+      submit(pool, pending, done, root);
+      done.await();
+    } finally {
+      pool.shutdownNow();
+    }
+    LOGGER.info("Indexed {} files under {} in {}ms", new Object[] { files.size(),
+        rootPath, System.currentTimeMillis() - start });
+  }
+
+  private void submit(final ExecutorService pool, final AtomicInteger pending,
+      final CountDownLatch done, final File dir) {
+    pending.incrementAndGet();
+    pool.execute(new Runnable() {
+      public void run() {
+        try {
+          for (File subdir : list(dir)) {
+            submit(pool, pending, done, subdir);
+          }
+        } catch (RuntimeException e) {
+          LOGGER.warn("Failed to index {} ", dir, e);
+        } finally {
+          if (pending.decrementAndGet() == 0) {
+            done.countDown();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Relist the directories that have changed since they were last listed, and drop
+   * those that have gone.
+   */
+  void refresh() {
+    for (Map.Entry<String, Listing> e : directories.entrySet()) {
+      File dir = new File(e.getKey());
+      if (!dir.isDirectory()) {
+        remove(e.getKey());
+      } else if (e.getValue().isStale(dir.lastModified())) {
+        relist(dir, e.getValue());
+      }
+    }
+  }
+
+  /**
+   * Add a file that has just been written, and any new directories above it.
+   */
+  void update(File file) {
+    if (!file.getAbsolutePath().startsWith(rootPath + File.separator)) {
+      return;
+    }
+    File top = null;
+    for (File f = file; !isRoot(f); f = f.getParentFile()) {
+      if (files.containsKey(f.getAbsolutePath())) {
+        break;
+      }
+      top = f;
+    }
+    if (top == null) {
+      return;
+    }
+    files.put(top.getAbsolutePath(), top);
+    Listing parent = directories.get(top.getParent());
+    if (parent != null) {
+      parent.children.add(top.getAbsolutePath());
+    }
+    if (top.isDirectory()) {
+      scan(top);
+    }
+  }
+
+  /**
+   * @return the files and directories accepted by the filter, in path order.
+   */
+  List<File> search(FilenameFilter filter) {
+    List<File> results = new ArrayList<File>();
+    for (File f : files.values()) {
+      if (filter.accept(f.getParentFile(), f.getName())) {
+        results.add(f);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * @return the properties in the .json file next to the file, read again only if the
+   *         .json file has changed.
+   */
+  Map<String, Object> getProperties(File file) throws DocProxyException {
+    File jsonFile = new File(file.getAbsolutePath() + ".json");
+    String key = jsonFile.getAbsolutePath();
+    long lastModified = jsonFile.lastModified();
+    long length = jsonFile.length();
+    if (lastModified == 0L) {
+      properties.remove(key);
+      return new HashMap<String, Object>();
+    }
+    CachedProperties cached = properties.get(key);
+    if (cached == null || cached.lastModified != lastModified || cached.length != length) {
+      cached = new CachedProperties(lastModified, length,
+          DiskDocumentResult.readProperties(jsonFile));
+      properties.put(key, cached);
+    }
+    return new HashMap<String, Object>(cached.properties);
+  }
+
+  int size() {
+    return files.size();
+  }
+
+  /**
+   * List a directory and everything under it, in this thread.
+   */
+  private void scan(File dir) {
+    for (File subdir : list(dir)) {
+      scan(subdir);
+    }
+  }
+
+  /**
+   * Index the children of a directory.
+   *
+   * @return the child directories.
+   */
+  private List<File> list(File dir) {
+    long lastModified = dir.lastModified();
+    long listed = System.currentTimeMillis();
+    List<File> subdirs = new ArrayList<File>();
+    Set<String> paths = newPathSet();
+    File[] children = dir.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        paths.add(child.getAbsolutePath());
+        files.put(child.getAbsolutePath(), child);
+        if (child.isDirectory()) {
+          subdirs.add(child);
+        }
+      }
+    }
+    directories.put(dir.getAbsolutePath(), new Listing(lastModified, listed, paths));
+    return subdirs;
+  }
+
+  /**
+   * Bring the children of a changed directory up to date. Only the directory itself is
+   * listed again; its subdirectories have listings of their own.
+   */
+  private void relist(File dir, Listing previous) {
+    long lastModified = dir.lastModified();
+    long listed = System.currentTimeMillis();
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Set<String> gone = new HashSet<String>(previous.children);
+    Set<String> paths = newPathSet();
+    for (File child : children) {
+      String path = child.getAbsolutePath();
+      paths.add(path);
+      if (!gone.remove(path)) {
+        files.put(path, child);
+        if (child.isDirectory()) {
+          scan(child);
+        }
+      }
+    }
+    for (String path : gone) {
+      remove(path);
+    }
+    directories.put(dir.getAbsolutePath(), new Listing(lastModified, listed, paths));
+  }
+
+  /**
+   * Drop a file or directory and everything under it.
+   */
+  private void remove(String path) {
+    files.remove(path);
+    directories.remove(path);
+    for (Iterator<String> i = children(path).keySet().iterator(); i.hasNext();) {
+      String child = i.next();
+      directories.remove(child);
+      i.remove();
+    }
+  }
+
+  private static Set<String> newPathSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  }
+
+  private ConcurrentNavigableMap<String, File> children(String dirPath) {
+    String prefix = dirPath + File.separator;
+    return files.subMap(prefix, prefix + Character.MAX_VALUE);
+  }
+
+  private boolean isRoot(File f) {
+    return rootPath.equals(f.getAbsolutePath());
+  }
+}
@@ -59,6 +59,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -86,10 +92,34 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
   @Property(name = "createJCRNodes", description = "Wether or not nodes should be created in JCR for newly uploaded files.", boolValue = false)
   protected boolean createJCRNodes = false;
 
+  @Property(name = "indexThreads", description = "How many directories to list at once when indexing a mounted directory.", intValue = 4)
+  protected int indexThreads = 4;
+
+  @Property(name = "indexRefreshSeconds", description = "How often to look for changes to indexed directories.", intValue = 10)
+  protected int indexRefreshSeconds = 10;
+
+  /**
+   * The index of each mounted directory that has been searched, by absolute path.
+   */
+  private final ConcurrentMap<String, DiskIndex> indexes = new ConcurrentHashMap<String, DiskIndex>();
+
+  private ScheduledExecutorService refresher;
+
   protected void activate(ComponentContext context) {
     @SuppressWarnings("rawtypes")
     Dictionary properties = context.getProperties();
     createJCRNodes = PropertiesUtil.toBoolean(properties.get("createJCRNodes"), false);
+    indexThreads = PropertiesUtil.toInteger(properties.get("indexThreads"), 4);
+    indexRefreshSeconds = PropertiesUtil.toInteger(properties.get("indexRefreshSeconds"),
+        10);
+  }
+
+  protected synchronized void deactivate(ComponentContext context) {
+    if (refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
+    }
+    indexes.clear();
   }
 
   /**
@@ -116,7 +146,7 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
   public ExternalDocumentResultMetadata getDocumentMetadata(Node node, String path)
       throws DocProxyException {
     File f = getFile(node, path);
-    return new DiskDocumentResult(f);
+    return new DiskDocumentResult(f, indexes.get(getRootFile(node).getAbsolutePath()));
   }
 
   /**
@@ -182,32 +212,76 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
     };
 
     List<ExternalDocumentResult> results = new ArrayList<ExternalDocumentResult>();
-    // Get children.
-    getChildren(defaultFile, results, filter);
+    DiskIndex index = getIndex(defaultFile);
+    for (File f : index.search(filter)) {
+      results.add(new DiskDocumentResult(f, index));
+    }
     ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(results.iterator(), results.size());
     return resultSet;
   }
 
   /**
-   * Iterate over all the children of a "file".
+   * Get the index of a mounted directory, building it the first time the directory is
+   * searched. Indexes are kept up to date in the background from then on.
    * 
-   * @param parentFile
-   *          The file to list the children for.
-   * @param results
-   *          The list to add the results in
-   * @param filter
-   *          The filter to match the files against.
+   * @param root
+   *          The mounted directory.
+   * @return The index.
+   * @throws DocProxyException
+   *           When the directory can't be listed.
    */
-  private void getChildren(File file, List<ExternalDocumentResult> results,
-      FilenameFilter filter) {
-    File[] files = file.listFiles();
-    for (File f : files) {
-      if (f.isDirectory()) {
-        getChildren(f, results, filter);
+  protected synchronized DiskIndex getIndex(File root) throws DocProxyException {
+    String key = root.getAbsolutePath();
+    DiskIndex index = indexes.get(key);
+    if (index == null) {
+      if (!root.isDirectory()) {
+        throw new DocProxyException(500, "Failed to mount repo.");
       }
-      if (filter.accept(f.getParentFile(), f.getName())) {
-        results.add(new DiskDocumentResult(f));
+      index = new DiskIndex(root);
+      try {
+        index.build(indexThreads);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new DocProxyException(500, "Interrupted while indexing repo.");
       }
+      indexes.put(key, index);
+      startRefresher();
+    }
+    return index;
+  }
+
+  private void startRefresher() {
+    if (refresher != null || indexRefreshSeconds <= 0) {
+      return;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "DiskProcessor index refresh");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        for (DiskIndex index : indexes.values()) {
+          try {
+            index.refresh();
+          } catch (RuntimeException e) {
+            LOGGER.warn("Failed to refresh disk index", e);
+          }
+        }
+      }
+    }, indexRefreshSeconds, indexRefreshSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Add a file that has just been written to the index of its mounted directory, if it
+   * has one.
+   */
+  private void updateIndex(Node node, File file) throws DocProxyException {
+    DiskIndex index = indexes.get(getRootFile(node).getAbsolutePath());
+    if (index != null) {
+      index.update(file);
     }
   }
 
@@ -227,6 +301,7 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
     // Write the file stream
     if (documentStream != null) {
       File newFile = writeStreamToFile(documentStream, file);
+      updateIndex(node, newFile);
       if (properties == null) {
         properties = new HashMap<String, Object>();
         properties.put(EXTERNAL_ID, newFile.toURI());
@@ -264,6 +339,7 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
         String json = obj.toString();
         ByteArrayInputStream jsonStream = new ByteArrayInputStream(json.getBytes("UTF-8"));
         writeStreamToFile(jsonStream, propertiesFile);
+        updateIndex(node, propertiesFile);
       } catch (UnsupportedEncodingException e) {
         throw new DocProxyException(500, "Unable to save properties.");
       } catch (JSONException e) {
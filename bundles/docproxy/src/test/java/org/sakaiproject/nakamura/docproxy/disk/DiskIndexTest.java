@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.disk;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check that the index sees the tree, and follows changes to it.
+ */
+public class DiskIndexTest {
+
+  private static final FilenameFilter TXT = new FilenameFilter() {
+    public boolean accept(File dir, String name) {
+      return name.endsWith(".txt");
+    }
+  };
+
+  private File root;
+  private DiskIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    root = new File("target/diskindex").getAbsoluteFile();
+    FileUtils.deleteDirectory(root);
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 4; j++) {
+        write(new File(root, "d" + i + "/s" + j + "/f.txt"), "x");
+      }
+      write(new File(root, "d" + i + "/g.txt"), "y");
+    }
+    index = new DiskIndex(root);
+    index.build(3);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(root);
+  }
+
+  @Test
+  public void testBuild() {
+    // 5 top directories, each with a file and 4 directories holding a file
+    Assert.assertEquals(5 * 10, index.size());
+    List<File> txt = index.search(TXT);
+    Assert.assertEquals(25, txt.size());
+    Assert.assertEquals(new File(root, "d0/g.txt").getAbsolutePath(), txt.get(0)
+        .getAbsolutePath());
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    write(new File(root, "d1/s9/new.txt"), "z");
+    FileUtils.deleteDirectory(new File(root, "d2"));
+    FileUtils.forceDelete(new File(root, "d3/g.txt"));
+    touch(new File(root, "d1"));
+    touch(new File(root, "d3"));
+    index.refresh();
+    List<File> txt = index.search(TXT);
+    Assert.assertEquals(25 + 1 - 5 - 1, txt.size());
+    Assert.assertTrue(txt.contains(new File(root, "d1/s9/new.txt")));
+    Assert.assertFalse(txt.contains(new File(root, "d3/g.txt")));
+  }
+
+  @Test
+  public void testRefreshWithinTimeResolution() throws Exception {
+    // the tree was listed straight after it was written, so a change that leaves the
+    // last modified time where it was is still seen.
+    File d0 = new File(root, "d0");
+    long lastModified = d0.lastModified();
+    write(new File(d0, "h.txt"), "h");
+    d0.setLastModified(lastModified);
+    index.refresh();
+    Assert.assertTrue(index.search(TXT).contains(new File(d0, "h.txt")));
+  }
+
+  @Test
+  public void testRefreshAfterUpdate() throws Exception {
+    File written = new File(root, "d4/w.txt");
+    write(written, "w");
+    index.update(written);
+    FileUtils.forceDelete(written);
+    touch(new File(root, "d4"));
+    index.refresh();
+    Assert.assertFalse(index.search(TXT).contains(written));
+  }
+
+  @Test
+  public void testUpdate() throws Exception {
+    File written = new File(root, "d4/new/deeper/w.txt");
+    write(written, "w");
+    index.update(written);
+    Assert.assertTrue(index.search(TXT).contains(written));
+    // files outside the root are ignored
+    index.update(new File("target/elsewhere.txt"));
+    Assert.assertEquals(26, index.search(TXT).size());
+  }
+
+  @Test
+  public void testProperties() throws Exception {
+    File file = new File(root, "d0/g.txt");
+    Assert.assertTrue(index.getProperties(file).isEmpty());
+    File json = new File(root, "d0/g.txt.json");
+    write(json, "{\"foo\":\"bar\"}");
+    Map<String, Object> props = index.getProperties(file);
+    Assert.assertEquals("bar", props.get("foo"));
+    write(json, "{\"foo\":\"bar2\",\"n\":1}");
+    json.setLastModified(json.lastModified() + 5000);
+    Assert.assertEquals("bar2", index.getProperties(file).get("foo"));
+  }
+
+  private void write(File f, String content) throws IOException {
+    FileUtils.writeStringToFile(f, content, "UTF-8");
+  }
+
+  private void touch(File dir) {
+    dir.setLastModified(dir.lastModified() + 5000);
+  }
+}
@@ -17,12 +17,12 @@
  */
 package org.sakaiproject.nakamura.api.files;
 
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_COMMENT_COUNT;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.REQUIRED_MIXIN;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.RT_SAKAI_LINK;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_LINK;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
 
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.jackrabbit.JcrConstants;
@@ -325,6 +325,42 @@ public class FileUtils {
     }
   }
 
+  /**
+   * Writes all the properties for a linked node, with the file it links to already
+   * loaded.
+   *
+   * @param content
+   * @param linkedContent
+   *          the content at the path in the link, or null if it has gone or cannot be
+   *          read.
+   * @param session
+   * @param writer
+   * @param objectInProgress
+   * @throws StorageClientException
+   * @throws JSONException
+   */
+  public static void writeLinkNode(Content content, Content linkedContent,
+      org.sakaiproject.nakamura.api.lite.Session session, JSONWriter writer, boolean objectInProgress)
+          throws StorageClientException, JSONException {
+
+    if (!objectInProgress){
+      writer.object();
+    }
+    ExtendedJSONWriter.writeNodeContentsToWriter(writer, content);
+    writePermissions(content, session, writer);
+    if (content.hasProperty(SAKAI_LINK)) {
+      writer.key("file");
+      if (linkedContent == null) {
+        writer.value(false);
+      } else {
+        writeFileNode(linkedContent, session, writer);
+      }
+    }
+    if (!objectInProgress){
+      writer.endObject();
+    }
+  }
+
   public static void writeLinkNode(Content content,
       org.sakaiproject.nakamura.api.lite.Session session, JSONWriter writer)
           throws StorageClientException, JSONException {
@@ -333,50 +369,33 @@ public class FileUtils {
   }
  
   /**
-   * Writes commentCount of content
+   * Writes commentCount of content. The count is maintained on the content as comments
+   * are added and removed, the session and repository are not used.
    *
-   * @param node
-   * @param session
-   * @param write
-   * @throws RepositoryException
-   * @throws JSONException
+   * @deprecated use {@link #writeCommentCountProperty(Content, JSONWriter)}
    */
+  @Deprecated
   public static void writeCommentCountProperty(Content content,
       org.sakaiproject.nakamura.api.lite.Session session, JSONWriter writer, Repository repository) 
           throws StorageClientException, JSONException {
+    writeCommentCountProperty(content, writer);
+  }
 
+  /**
+   * Writes commentCount of content, 0 if the content has not been counted yet.
+   *
+   * @param content
+   * @param writer
+   * @throws JSONException
+   */
+  public static void writeCommentCountProperty(Content content, JSONWriter writer)
+      throws JSONException {
     int commentCount = 0;
-    String COMMENTCOUNT = "commentCount";
-
-    if(content.hasProperty(COMMENTCOUNT)){
-      commentCount = (Integer)content.getProperty(COMMENTCOUNT);
-    } else {
-      // no commentCount property on Content, then evaluate count and add property
-      Content comments = null;
-      org.sakaiproject.nakamura.api.lite.Session adminSession = null;
-      try {
-        comments = session.getContentManager().get(content.getPath() + "/comments");
-        if (comments!=null){
-          commentCount = Iterables.size(comments.listChildPaths());
-        }
-        content.setProperty(COMMENTCOUNT, commentCount);
-        //save property
-        adminSession = repository.loginAdministrative();
-        ContentManager adminContentManager = adminSession.getContentManager();
-        adminContentManager.update(content);
-      } catch (org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException e) {
-        log.error(e.getMessage(), e);
-      } finally {
-        if (adminSession != null) {
-          try {
-            adminSession.logout();
-          } catch (Exception e) {
-            log.error("Could not logout administrative session.");
-          }
-        }
-      }
+    Object count = content.getProperty(POOLED_CONTENT_COMMENT_COUNT);
+    if (count instanceof Number) {
+      commentCount = ((Number) count).intValue();
     }
-    writer.key(COMMENTCOUNT);
+    writer.key(POOLED_CONTENT_COMMENT_COUNT);
     writer.value(commentCount);
   }
 
@@ -409,6 +428,25 @@ public class FileUtils {
     }
   }
 
+  /**
+   * Writes comments of content, with its comments node already loaded.
+   *
+   * @param comments
+   *          the comments node of the content, or null if it has none or it cannot be
+   *          read.
+   * @param writer
+   * @throws JSONException
+   */
+  public static void writeComments(Content comments, JSONWriter writer)
+      throws JSONException {
+    writer.key("comments");
+    writer.object();
+    if (comments != null) {
+      ExtendedJSONWriter.writeContentTreeToWriter(writer, comments, true, 2);
+    }
+    writer.endObject();
+  }
+
   /**
    * Gives the permissions for this user.
    *
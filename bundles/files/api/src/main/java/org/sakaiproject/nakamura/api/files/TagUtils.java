@@ -203,42 +203,75 @@ public class TagUtils {
   public static void bumpTagCounts(Content nodeTag, String[] tagNames, boolean increase,
       boolean calledByAChild, ContentManager cm) throws StorageClientException,
       AccessDeniedException {
-    // input validation
-    if (nodeTag == null || cm == null) {
-      throw new IllegalArgumentException("Missing a required argument:: nodeTag:" + nodeTag
-          + ", contentManager:" + cm);
-    }
-
-    if (calledByAChild || !TagUtils.alreadyTaggedBelowThisLevel(nodeTag, tagNames, cm)) {
+    for (String path : getTagPathsToCount(nodeTag, tagNames, calledByAChild, cm)) {
+      Content tag = path.equals(nodeTag.getPath()) ? nodeTag : cm.get(path);
       Long tagCount = increase ? 1L : 0L;
-      if (nodeTag.hasProperty(SAKAI_TAG_COUNT)) {
-        tagCount = StorageClientUtils.toLong(nodeTag.getProperty(SAKAI_TAG_COUNT));
+      if (tag.hasProperty(SAKAI_TAG_COUNT)) {
+        tagCount = StorageClientUtils.toLong(tag.getProperty(SAKAI_TAG_COUNT));
         if (increase) {
           tagCount++;
         } else {
           tagCount--;
         }
       }
-      nodeTag.setProperty(SAKAI_TAG_COUNT, tagCount);
-      cm.update(nodeTag);
+      tag.setProperty(SAKAI_TAG_COUNT, tagCount);
+      cm.update(tag);
+    }
+  }
+
+  /**
+   * Find the tags whose count changes when content with <code>tagNames</code> is tagged
+   * with, or untagged from, <code>nodeTag</code>: the tag itself unless the content is
+   * also tagged below it, and each ancestor tag until one is reached that the content is
+   * already tagged at or under through another tag. Only reads, so any session that can
+   * read the tags will do.
+   *
+   * @param nodeTag
+   *          the tag being added or removed.
+   * @param tagNames
+   *          the tags on the content.
+   * @param calledByAChild
+   *          true to count <code>nodeTag</code> whatever is tagged below it.
+   * @param cm
+   * @return the paths of the tags to count, starting at <code>nodeTag</code>.
+   */
+  public static List<String> getTagPathsToCount(Content nodeTag, String[] tagNames,
+      boolean calledByAChild, ContentManager cm) throws StorageClientException,
+      AccessDeniedException {
+    // input validation
+    if (nodeTag == null || cm == null) {
+      throw new IllegalArgumentException("Missing a required argument:: nodeTag:" + nodeTag
+          + ", contentManager:" + cm);
     }
 
-     // if this node's parent is not the root, we keep going up
-    if (!TagUtils.isChildOfRoot(nodeTag)) {
+    List<String> paths = new ArrayList<String>();
+    Content current = nodeTag;
+    boolean byChild = calledByAChild;
+    while (current != null) {
+      if (byChild || !TagUtils.alreadyTaggedBelowThisLevel(current, tagNames, cm)) {
+        paths.add(current.getPath());
+      }
+
+      // if this node's parent is not the root, we keep going up
+      if (TagUtils.isChildOfRoot(current)) {
+        break;
+      }
       List<String> peerTags = new ArrayList<String>();
-      peerTags.addAll(TagUtils.ancestorTags(nodeTag, cm));
-      String parentPath = PathUtils.getParentReference(nodeTag.getPath());
+      peerTags.addAll(TagUtils.ancestorTags(current, cm));
+      String parentPath = PathUtils.getParentReference(current.getPath());
       Iterator<Content> peers = cm.listChildren(parentPath);
       while (peers.hasNext()) {
         Content peer = peers.next();
-        if (TagUtils.isTag(peer) && !nodeTag.getPath().equals(peer.getPath())) {
+        if (TagUtils.isTag(peer) && !current.getPath().equals(peer.getPath())) {
           peerTags.add(String.valueOf(peer.getProperty(SAKAI_TAG_NAME)));
         }
       }
-      if (!TagUtils.alreadyTaggedAtOrAboveThisLevel(tagNames, peerTags)) {
-        Content parentNode = cm.get(parentPath);
-        bumpTagCounts(parentNode, tagNames, increase, true, cm);
+      if (TagUtils.alreadyTaggedAtOrAboveThisLevel(tagNames, peerTags)) {
+        break;
       }
+      current = cm.get(parentPath);
+      byChild = true;
     }
+    return paths;
   }
 }
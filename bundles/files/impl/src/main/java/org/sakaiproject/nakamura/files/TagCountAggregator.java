@@ -0,0 +1,430 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.RT_SAKAI_TAG;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_COUNT;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.files.TagUtils;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Collects changes to tag counts in memory and writes them to the tags periodically, so
+ * that tagging does not write to the tag, and a popular tag is written once per flush
+ * rather than once per request by every tagger at the same time.
+ * </p>
+ * <p>
+ * Changes are held per tag in a concurrent map, so taggers of different tags do not
+ * contend, and taggers of the same tag only contend on one counter.
+ * </p>
+ * <p>
+ * Every server in a cluster adds its changes to a count of its own for each tag, under
+ * {@link #SERVER_COUNTS}, which no other server writes. The count on a tag is the count
+ * it had when it was last recounted, kept under {@link #RECOUNTS}, plus the counts of
+ * every server, and is worked out again from them whenever it is written, so servers
+ * that write a tag at the same time don't lose each other's changes. As counts held in
+ * memory are lost if the server stops, every count can also be recounted from the
+ * search index, which is done periodically.
+ * </p>
+ * <p>
+ * A server gets a new id each time it starts, so before every tag is recounted the
+ * counts of servers no longer in the cluster are removed. The changes they counted are
+ * in the search index, so the recount that follows keeps them.
+ * </p>
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = TagCountAggregator.class)
+public class TagCountAggregator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TagCountAggregator.class);
+
+  @Property(intValue = 10, label = "Flush Interval Seconds", description = "How often changes to tag counts are written to the tags.")
+  protected static final String PROP_FLUSH_INTERVAL = "flush.interval";
+
+  @Property(intValue = 24, label = "Recount Interval Hours", description = "How often every tag is recounted from the search index, 0 to never recount.")
+  protected static final String PROP_RECOUNT_INTERVAL = "recount.interval";
+
+  /**
+   * Marks a counter that has been taken by a flush, adders retry with a new counter.
+   */
+  private static final long TAKEN = Long.MIN_VALUE;
+
+  /**
+   * The count of each server for each tag, at SERVER_COUNTS/serverId/tagPath.
+   */
+  static final String SERVER_COUNTS = "/var/tagcounts/servers";
+
+  /**
+   * The count of each tag when it was last recounted, less the counts the servers had
+   * then, at RECOUNTS/tagPath.
+   */
+  static final String RECOUNTS = "/var/tagcounts/recounts";
+
+  private static final String COUNT = "count";
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
+
+  private final ConcurrentMap<String, AtomicLong> deltas = new ConcurrentHashMap<String, AtomicLong>();
+
+  private ScheduledExecutorService writer;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int flushInterval = PropertiesUtil.toInteger(props.get(PROP_FLUSH_INTERVAL), 10);
+    int recountInterval = PropertiesUtil.toInteger(props.get(PROP_RECOUNT_INTERVAL), 24);
+    writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Tag count writer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    writer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          LOGGER.error("Failed to write tag counts", e);
+        }
+      }
+    }, flushInterval, flushInterval, TimeUnit.SECONDS);
+    if (recountInterval > 0) {
+      writer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            recountAll();
+          } catch (RuntimeException e) {
+            LOGGER.error("Failed to recount tags", e);
+          }
+        }
+      }, recountInterval, recountInterval, TimeUnit.HOURS);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  /**
+   * Record a change to the count of a tag, to be written with the next flush.
+   */
+  public void add(String tagPath, long delta) {
+    for (;;) {
+      AtomicLong counter = deltas.get(tagPath);
+      if (counter == null) {
+        AtomicLong created = new AtomicLong();
+        counter = deltas.putIfAbsent(tagPath, created);
+        if (counter == null) {
+          counter = created;
+        }
+      }
+      long current = counter.get();
+      if (current == TAKEN) {
+        deltas.remove(tagPath, counter);
+      } else if (counter.compareAndSet(current, current + delta)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Write the changes recorded since the last flush to this server's counts, and the
+   * counts of the tags they were made to.
+   */
+  public synchronized void flush() {
+    if (deltas.isEmpty()) {
+      return;
+    }
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      String serverCounts = SERVER_COUNTS + "/" + clusterTrackingService.getCurrentServerId();
+      List<String> servers = null;
+      for (Entry<String, AtomicLong> e : deltas.entrySet()) {
+        long delta = take(e.getKey(), e.getValue());
+        if (delta == 0) {
+          continue;
+        }
+        boolean counted = false;
+        try {
+          Content tag = contentManager.get(e.getKey());
+          if (tag == null) {
+            continue;
+          }
+          if (servers == null) {
+            servers = listServerCounts(contentManager);
+          }
+          Content recounted = contentManager.get(RECOUNTS + tag.getPath());
+          if (recounted == null) {
+            // counted before any server kept its own count.
+            long count = 0;
+            if (tag.hasProperty(SAKAI_TAG_COUNT)) {
+              count = StorageClientUtils.toLong(tag.getProperty(SAKAI_TAG_COUNT));
+            }
+            recounted = writeCount(contentManager, RECOUNTS + tag.getPath(), count
+                - sumServerCounts(contentManager, servers, tag.getPath()));
+          }
+          if (!servers.contains(serverCounts)) {
+            if (!contentManager.exists(serverCounts)) {
+              contentManager.update(new Content(serverCounts, new HashMap<String, Object>()));
+            }
+            servers.add(serverCounts);
+          }
+          // only this server writes its own count, one flush at a time.
+          Content own = contentManager.get(serverCounts + tag.getPath());
+          writeCount(contentManager, serverCounts + tag.getPath(), getCount(own) + delta);
+          counted = true;
+          tag.setProperty(SAKAI_TAG_COUNT, Math.max(0, getCount(recounted)
+              + sumServerCounts(contentManager, servers, tag.getPath())));
+          contentManager.update(tag);
+        } catch (StorageClientException ex) {
+          if (counted) {
+            // the change is in this server's count, so the tag has it when next written.
+            LOGGER.warn("Failed to write count of {}: {}", e.getKey(), ex.getMessage());
+          } else {
+            LOGGER.warn("Failed to write count of {}, will retry: {}", e.getKey(),
+                ex.getMessage());
+            add(e.getKey(), delta);
+          }
+        } catch (AccessDeniedException ex) {
+          LOGGER.warn("Failed to write count of {}: {}", e.getKey(), ex.getMessage());
+        }
+      }
+    } catch (ClientPoolException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getMessage(), e);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * Recount every tag from the search index, after removing the counts of servers that
+   * have stopped.
+   */
+  public synchronized void recountAll() {
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      removeStoppedServerCounts(contentManager);
+      int recounted = 0;
+      for (Content tag : contentManager.find(ImmutableMap.of(SLING_RESOURCE_TYPE_PROPERTY,
+          (Object) RT_SAKAI_TAG))) {
+        if (recount(tag, contentManager)) {
+          recounted++;
+        }
+      }
+      LOGGER.info("Recounted tags, {} counts corrected", recounted);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (SolrServerException e) {
+      LOGGER.error(e.getMessage(), e);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * Set the count of a tag to the number of items in the search index tagged with it or
+   * with any tag below it, and the changes recorded for it that have not been written
+   * yet.
+   *
+   * @return true if the count was corrected.
+   */
+  public synchronized boolean recount(String tagPath) throws StorageClientException,
+      AccessDeniedException, SolrServerException {
+    Session adminSession = repository.loginAdministrative();
+    try {
+      ContentManager contentManager = adminSession.getContentManager();
+      return recount(contentManager.get(tagPath), contentManager);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  private boolean recount(Content tag, ContentManager contentManager)
+      throws StorageClientException, AccessDeniedException, SolrServerException {
+    if (!TagUtils.isTag(tag)) {
+      return false;
+    }
+    String tagName = String.valueOf(tag.getProperty(SAKAI_TAG_NAME));
+    // tagname is the untokenized copy of tag, so names match exactly.
+    String query = "tagname:" + ClientUtils.escapeQueryChars(tagName) + " OR tagname:"
+        + ClientUtils.escapeQueryChars(tagName + "/") + "*";
+    long indexed = solrServerService.getServer()
+        .query(new SolrQuery(query).setRows(0), SolrRequest.METHOD.POST).getResults()
+        .getNumFound();
+    // the next flush adds the server counts to what they are now, so they are taken
+    // off here.
+    writeCount(contentManager, RECOUNTS + tag.getPath(), indexed
+        - sumServerCounts(contentManager, listServerCounts(contentManager), tag.getPath()));
+    long count = indexed;
+    AtomicLong counter = deltas.get(tag.getPath());
+    if (counter != null && counter.get() != TAKEN) {
+      count = Math.max(0, count + counter.get());
+    }
+    if (tag.hasProperty(SAKAI_TAG_COUNT)
+        && StorageClientUtils.toLong(tag.getProperty(SAKAI_TAG_COUNT)) == count) {
+      return false;
+    }
+    tag.setProperty(SAKAI_TAG_COUNT, count);
+    contentManager.update(tag);
+    return true;
+  }
+
+  /**
+   * Remove the counts of every server that is no longer in the cluster.
+   */
+  private void removeStoppedServerCounts(ContentManager contentManager)
+      throws StorageClientException, AccessDeniedException {
+    Set<String> running = new HashSet<String>();
+    running.add(SERVER_COUNTS + "/" + clusterTrackingService.getCurrentServerId());
+    for (ClusterServer server : clusterTrackingService.getAllServers()) {
+      running.add(SERVER_COUNTS + "/" + server.getServerId());
+    }
+    for (String server : listServerCounts(contentManager)) {
+      if (!running.contains(server)) {
+        LOGGER.info("Removing tag counts of stopped server {} ", server);
+        contentManager.delete(server, true);
+      }
+    }
+  }
+
+  /**
+   * @return the paths under which each server that has counted tags keeps its counts.
+   */
+  private List<String> listServerCounts(ContentManager contentManager)
+      throws StorageClientException, AccessDeniedException {
+    List<String> servers = new ArrayList<String>();
+    for (Iterator<String> i = contentManager.listChildPaths(SERVER_COUNTS); i.hasNext();) {
+      servers.add(i.next());
+    }
+    return servers;
+  }
+
+  private long sumServerCounts(ContentManager contentManager, List<String> servers,
+      String tagPath) throws StorageClientException, AccessDeniedException {
+    long sum = 0;
+    for (String server : servers) {
+      sum += getCount(contentManager.get(server + tagPath));
+    }
+    return sum;
+  }
+
+  private long getCount(Content counted) {
+    if (counted == null || !counted.hasProperty(COUNT)) {
+      return 0;
+    }
+    return StorageClientUtils.toLong(counted.getProperty(COUNT));
+  }
+
+  private Content writeCount(ContentManager contentManager, String path, long count)
+      throws StorageClientException, AccessDeniedException {
+    Content counted = contentManager.get(path);
+    if (counted == null) {
+      counted = new Content(path, new HashMap<String, Object>());
+    }
+    counted.setProperty(COUNT, count);
+    contentManager.update(counted);
+    return counted;
+  }
+
+  /**
+   * Take the change held by a counter, so that later changes go to a new counter.
+   */
+  private long take(String tagPath, AtomicLong counter) {
+    long delta = counter.getAndSet(TAKEN);
+    deltas.remove(tagPath, counter);
+    return delta == TAKEN ? 0 : delta;
+  }
+
+  private void logout(Session adminSession) {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error("Could not logout administrative session.");
+      }
+    }
+  }
+}
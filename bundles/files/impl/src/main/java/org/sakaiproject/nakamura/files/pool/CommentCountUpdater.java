@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_COMMENT_COUNT;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_RT;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the commentCount of pooled content up to date as comments are added and
+ * removed, so that rendering content never has to count its comments. Each event queues
+ * a recount of the commented content, recounts of the same content that are still
+ * waiting are done once. Content from before comments were counted this way is counted
+ * once, in the background, the first time the component starts.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = EventHandler.class)
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Maintains the comment counts of pooled content."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }) })
+public class CommentCountUpdater implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CommentCountUpdater.class);
+
+  private static final String COMMENTS = "/comments";
+
+  /**
+   * Created when all existing content has been counted, delete it to count again.
+   */
+  static final String RECONCILED_PATH = "/var/files/commentCountsReconciled";
+
+  @Reference
+  protected Repository repository;
+
+  /**
+   * Content waiting to be recounted.
+   */
+  private final Set<String> pending = new LinkedHashSet<String>();
+
+  private ExecutorService updater;
+
+  private ExecutorService reconciler;
+
+  @Activate
+  protected void activate() {
+    updater = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Comment count updater");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    reconciler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Comment count reconciler");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    reconciler.execute(new Runnable() {
+      public void run() {
+        reconcile();
+      }
+    });
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    reconciler.shutdownNow();
+    updater.shutdownNow();
+    synchronized (pending) {
+      pending.clear();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Queue a recount of the content that a comment was added to or removed from.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    final String contentPath = getCommentedPath((String) event.getProperty("path"));
+    if (contentPath == null) {
+      return;
+    }
+    synchronized (pending) {
+      if (!pending.add(contentPath)) {
+        return;
+      }
+    }
+    try {
+      updater.execute(new Runnable() {
+        public void run() {
+          synchronized (pending) {
+            pending.remove(contentPath);
+          }
+          count(contentPath, false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Not counting comments on {}, shutting down", contentPath);
+    }
+  }
+
+  /**
+   * @return the path of the content a comment, or the comments, at the path belong to,
+   *         or null if the path is not a comment.
+   */
+  static String getCommentedPath(String path) {
+    if (path == null) {
+      return null;
+    }
+    if (path.endsWith(COMMENTS)) {
+      return path.substring(0, path.length() - COMMENTS.length());
+    }
+    int i = path.lastIndexOf('/');
+    if (i > 0 && path.substring(0, i).endsWith(COMMENTS)) {
+      return path.substring(0, i - COMMENTS.length());
+    }
+    return null;
+  }
+
+  /**
+   * Count the comments of every item of pooled content that has not been counted, once.
+   */
+  void reconcile() {
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      if (contentManager.exists(RECONCILED_PATH)) {
+        return;
+      }
+      LOGGER.info("Counting comments on content that has not been counted");
+      int counted = 0;
+      for (Content content : contentManager.find(ImmutableMap.of(
+          SLING_RESOURCE_TYPE_PROPERTY, (Object) POOLED_CONTENT_RT))) {
+        if (Thread.currentThread().isInterrupted()) {
+          LOGGER.info("Stopped counting comments after {} items of content", counted);
+          return;
+        }
+        if (!content.hasProperty(POOLED_CONTENT_COMMENT_COUNT)
+            && count(content.getPath(), true)) {
+          counted++;
+        }
+      }
+      contentManager.update(new Content(RECONCILED_PATH, ImmutableMap.of(
+          "counted", (Object) counted)));
+      LOGGER.info("Counted comments on {} items of content", counted);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getMessage(), e);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * Count the comments on the content and save the count if it has changed. Counts are
+   * done one at a time so that a recount for a new comment always follows any count of
+   * the same content that was already running.
+   *
+   * @param onlyIfMissing
+   *          true to leave content that has been counted alone, and not to touch the
+   *          content when saving the count.
+   * @return true if the count was saved.
+   */
+  synchronized boolean count(String path, boolean onlyIfMissing) {
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      Content content = contentManager.get(path);
+      if (content == null
+          || !POOLED_CONTENT_RT.equals(content.getProperty(SLING_RESOURCE_TYPE_PROPERTY))
+          || (onlyIfMissing && content.hasProperty(POOLED_CONTENT_COMMENT_COUNT))) {
+        return false;
+      }
+      int count = 0;
+      if (contentManager.exists(path + COMMENTS)) {
+        count = Iterators.size(contentManager.listChildPaths(path + COMMENTS));
+      }
+      Object current = content.getProperty(POOLED_CONTENT_COMMENT_COUNT);
+      if (current instanceof Number && ((Number) current).intValue() == count) {
+        return false;
+      }
+      content.setProperty(POOLED_CONTENT_COMMENT_COUNT, count);
+      contentManager.update(content, !onlyIfMissing);
+      return true;
+    } catch (StorageClientException e) {
+      LOGGER.error("Failed to count comments on " + path, e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Failed to count comments on " + path, e);
+    } finally {
+      logout(adminSession);
+    }
+    return false;
+  }
+
+  private void logout(Session adminSession) {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error("Could not logout administrative session.");
+      }
+    }
+  }
+}
@@ -18,10 +18,8 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_MANAGER;
-import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_COMMENT_COUNT;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 
 import org.apache.commons.lang.StringUtils;
@@ -56,6 +54,8 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.api.user.PrincipalSet;
+import org.sakaiproject.nakamura.api.user.PrincipalSetService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.ServletUtils;
 import org.slf4j.Logger;
@@ -64,7 +64,6 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Calendar;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -124,6 +123,8 @@ public class ContentPoolCommentServlet extends SlingAllMethodsServlet implements
   private Repository repository;
   @Reference
   private BasicUserInfoService basicUserInfoService;
+  @Reference
+  private PrincipalSetService principalSetService;
 
   /**
    * Determine if we will accept this request. Had to add this because something is
@@ -152,30 +153,6 @@ public class ContentPoolCommentServlet extends SlingAllMethodsServlet implements
       Content comments = contentManager.get(poolContent.getPath() + "/" + COMMENTS);
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
-      
-      // if there is no commentCount property, then calculate and add 
-      if(!poolContent.hasProperty(POOLED_CONTENT_COMMENT_COUNT)){
-        if (comments!=null){
-          poolContent.setProperty(POOLED_CONTENT_COMMENT_COUNT, Iterables.size(comments.listChildPaths()));
-        } else {
-          poolContent.setProperty(POOLED_CONTENT_COMMENT_COUNT, 0);
-        }
-        
-        Session adminSession = null;
-        try{
-          adminSession = repository.loginAdministrative();
-          ContentManager adminContentManager = adminSession.getContentManager();
-          adminContentManager.update(poolContent, Boolean.FALSE);
-        } finally {
-          if (adminSession != null) {
-            try {
-              adminSession.logout();
-            } catch (Exception e) {
-              LOGGER.error("Could not logout administrative session.");
-            }
-          }         
-        }
-      }
 
       ExtendedJSONWriter w = new ExtendedJSONWriter(response.getWriter());
       w.setTidy(ServletUtils.isTidy(request));
@@ -289,13 +266,7 @@ public class ContentPoolCommentServlet extends SlingAllMethodsServlet implements
         String newNodeName = Long.toString(cal.getTimeInMillis());
         path = path + "/" + newNodeName;
         statusCode = HttpServletResponse.SC_CREATED;
-        
-        // increasing commentCount by 1, for a new comment
-        if(poolContent.hasProperty(POOLED_CONTENT_COMMENT_COUNT)){
-          int commentCount = (Integer)poolContent.getProperty(POOLED_CONTENT_COMMENT_COUNT);
-          poolContent.setProperty(POOLED_CONTENT_COMMENT_COUNT, commentCount+1);
-        }
-        contentManager.update(poolContent);
+        // the commentCount of the content is maintained by the CommentCountUpdater
       }
       ImmutableMap.Builder<String,Object> commentPropertiesBuilder = ImmutableMap.builder();
       commentPropertiesBuilder.put(AUTHOR, user);
@@ -380,12 +351,6 @@ public class ContentPoolCommentServlet extends SlingAllMethodsServlet implements
         return;
       }
       contentManager.delete(path);
-      // decreasing commentCount by 1, when a comment is deleted
-      if(poolItem.hasProperty(POOLED_CONTENT_COMMENT_COUNT) ){
-        Integer commentCount = (Integer)poolItem.getProperty(POOLED_CONTENT_COMMENT_COUNT);
-        if (commentCount > 0) poolItem.setProperty(POOLED_CONTENT_COMMENT_COUNT, commentCount-1);
-        contentManager.update(poolItem);
-      }
       response.setStatus(HttpServletResponse.SC_NO_CONTENT);
     } catch (AccessDeniedException e) {
       LOGGER.warn(e.getMessage(), e);
@@ -427,8 +392,18 @@ public class ContentPoolCommentServlet extends SlingAllMethodsServlet implements
       principals.add(p);
     }
     // indirect
-    for ( Iterator<Group> gi = user.memberOf(authorizableManager); gi.hasNext(); ) {
-      principals.add(gi.next().getId());
+    try {
+      PrincipalSet memberOf = principalSetService.getPrincipals(user.getId(),
+          authorizableManager);
+      if (memberOf != null) {
+        for (String p : memberOf) {
+          principals.add(p);
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to resolve the groups of {} {} ", user.getId(), e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to resolve the groups of {} {} ", user.getId(), e.getMessage());
     }
     if ( managers != null ) {
       for (String m : managers ) {
@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.user.PrincipalSet;
+import org.sakaiproject.nakamura.api.user.PrincipalSetService;
+import org.sakaiproject.nakamura.util.ContentTreeSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the serialized JSON of content trees, keyed by path and last modified time of
+ * the root of the tree. Trees are rendered with the requesting user's session, which
+ * only lists the children the user can read, so each rendering is kept against the
+ * principals of the user it was rendered for. Any change under a cached tree, including
+ * a change to its access control, evicts the tree, so the cached bytes are always those
+ * the serializer would produce. The cache accepts cluster wide invalidations, so a tree
+ * evicted on one server is evicted on all of them.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { ContentTreeJsonCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches serialized content trees and evicts them on content change."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/*" }) })
+public class ContentTreeJsonCache implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ContentTreeJsonCache.class);
+
+  public static final String CACHE_NAME = "content-tree-json";
+
+  @Property(intValue = 262144, label = "Maximum cached size", description = "Serialized trees larger than this number of bytes are not cached.")
+  protected static final String PROP_MAX_ENTRY_SIZE = "max-entry-size";
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  @Reference
+  protected PrincipalSetService principalSetService;
+
+  /**
+   * The most renderings of one tree to keep, for different sets of principals.
+   */
+  static final int MAX_VARIANTS = 32;
+
+  private int maxEntrySize = 262144;
+
+  /**
+   * Counts evictions, so that a tree changed while it was being serialized is not cached.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  public ContentTreeJsonCache() {
+  }
+
+  ContentTreeJsonCache(CacheManagerService cacheManagerService,
+      PrincipalSetService principalSetService) {
+    this.cacheManagerService = cacheManagerService;
+    this.principalSetService = principalSetService;
+  }
+
+  protected void activate(Map<?, ?> props) {
+    maxEntrySize = PropertiesUtil.toInteger(props.get(PROP_MAX_ENTRY_SIZE), 262144);
+  }
+
+  /**
+   * Get the serialized JSON for a content tree, from the cache if it is current.
+   *
+   * @param content
+   *          the root of the tree.
+   * @param maxDepth
+   *          the number of levels of children to include, -1 for all.
+   * @param tidy
+   *          true for indented output.
+   * @param session
+   *          the session the content was read with.
+   * @return the UTF-8 encoded JSON.
+   * @throws JSONException
+   */
+  public byte[] getJson(Content content, int maxDepth, boolean tidy, Session session)
+      throws JSONException {
+    String principals = getPrincipalKey(session);
+    if (principals == null) {
+      return serialize(content, maxDepth, tidy);
+    }
+    String path = content.getPath();
+    Object lastModified = content.getProperty(Content.LASTMODIFIED_FIELD);
+    String variant = principals + ";" + maxDepth + (tidy ? ".tidy" : "");
+    long before = generation.get();
+    Cache<CachedTree> cache = getCache();
+    CachedTree cached = cache.get(path);
+    if (cached != null && cached.isCurrent(lastModified)) {
+      byte[] json = cached.variants.get(variant);
+      if (json != null) {
+        LOGGER.debug("Content tree cache hit {} {} ", path, variant);
+        return json;
+      }
+    } else {
+      cached = null;
+    }
+    byte[] json = serialize(content, maxDepth, tidy);
+    // an eviction while serializing may have been for a child that was read before it
+    // changed, and the root would not show it
+    if (lastModified != null && json.length <= maxEntrySize
+        && generation.get() == before) {
+      if (cached == null) {
+        cached = new CachedTree(lastModified);
+        cache.put(path, cached);
+      }
+      if (cached.variants.size() >= MAX_VARIANTS) {
+        cached.variants.clear();
+      }
+      cached.variants.put(variant, json);
+    }
+    return json;
+  }
+
+  byte[] serialize(Content content, int maxDepth, boolean tidy) throws JSONException {
+    return ContentTreeSerializer.serialize(content, maxDepth, tidy);
+  }
+
+  /**
+   * @return the principals of the user of the session, sorted and joined, or null if
+   *         they cannot be resolved.
+   */
+  private String getPrincipalKey(Session session) {
+    if (session == null) {
+      return null;
+    }
+    try {
+      PrincipalSet principals = principalSetService.getPrincipals(session.getUserId(),
+          session.getAuthorizableManager());
+      return principals == null ? null : principals.join();
+    } catch (StorageClientException e) {
+      LOGGER.warn("Not caching content tree, failed to resolve principals of {} ",
+          session.getUserId());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Not caching content tree, failed to resolve principals of {} ",
+          session.getUserId());
+    }
+    return null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Evict the changed path and every tree that contains it. Every store event is
+   * listened to since changes to access control are published under their own topics.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    generation.incrementAndGet();
+    Cache<CachedTree> cache = getCache();
+    String current = path;
+    while (current != null && current.length() > 0 && !"/".equals(current)) {
+      cache.remove(current);
+      String parent = StorageClientUtils.getParentObjectPath(current);
+      if (current.equals(parent)) {
+        break;
+      }
+      current = parent;
+    }
+  }
+
+  private Cache<CachedTree> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  /**
+   * The serialized forms of one tree, by depth and tidy flag.
+   */
+  static class CachedTree implements Serializable {
+    private static final long serialVersionUID = -2861738401917645273L;
+    private final Object lastModified;
+    private final Map<String, byte[]> variants = new ConcurrentHashMap<String, byte[]>();
+
+    CachedTree(Object lastModified) {
+      this.lastModified = lastModified;
+    }
+
+    boolean isCurrent(Object lastModified) {
+      return this.lastModified.equals(lastModified);
+    }
+  }
+}
@@ -34,10 +34,12 @@ import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.files.FileMigrationService;
+import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.ContentTreeSerializer;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.ServletUtils;
 import org.slf4j.Logger;
@@ -74,6 +76,9 @@ public class GetContentPoolServlet extends SlingSafeMethodsServlet implements Op
   @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
   protected FileMigrationService migrationService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected ContentTreeJsonCache contentTreeJsonCache;
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -102,14 +107,16 @@ public class GetContentPoolServlet extends SlingSafeMethodsServlet implements Op
 
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
-    ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
-    writer.setTidy(ServletUtils.isTidy(request));
+    boolean tidy = ServletUtils.isTidy(request);
     try {
       Content content = resource.adaptTo(Content.class);
       ContentManager contentManager = resource.adaptTo(ContentManager.class);
       if ( content != null ) {
-        writeContentResponse(recursion, writer, content, contentManager);
+        writeContentResponse(recursion, tidy, response, content, contentManager,
+            resource.adaptTo(Session.class));
       } else {
+        ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
+        writer.setTidy(tidy);
         Node node = resource.adaptTo(Node.class);
         ExtendedJSONWriter.writeNodeTreeToWriter(writer, node, recursion);
       }
@@ -126,9 +133,22 @@ public class GetContentPoolServlet extends SlingSafeMethodsServlet implements Op
     }
   }
 
-  private void writeContentResponse(int recursion, ExtendedJSONWriter writer, Content content, ContentManager contentManager) throws Exception {
+  private void writeContentResponse(int recursion, boolean tidy,
+      SlingHttpServletResponse response, Content content, ContentManager contentManager,
+      Session session) throws Exception {
     Content contentToWrite = migrateFileContent(content, contentManager);
-    ExtendedJSONWriter.writeContentTreeToWriter(writer, contentToWrite, false,  recursion);
+    if (contentToWrite == null) {
+      return;
+    }
+    ContentTreeJsonCache cache = contentTreeJsonCache;
+    byte[] json;
+    if (cache != null) {
+      json = cache.getJson(contentToWrite, recursion, tidy, session);
+    } else {
+      json = ContentTreeSerializer.serialize(contentToWrite, recursion, tidy);
+    }
+    response.setContentLength(json.length);
+    response.getOutputStream().write(json);
   }
 
   private Content migrateFileContent(Content content, ContentManager contentManager) throws StorageClientException, AccessDeniedException {
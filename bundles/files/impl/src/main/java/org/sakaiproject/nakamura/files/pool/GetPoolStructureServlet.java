@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.files.pool;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -29,12 +32,13 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.http.usercontent.ServerProtectionVeto;
+import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.ContentTreeSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,6 +60,9 @@ public class GetPoolStructureServlet extends SlingSafeMethodsServlet implements
   private static final Logger LOGGER = LoggerFactory
       .getLogger(GetPoolStructureServlet.class);
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected ContentTreeJsonCache contentTreeJsonCache;
+
 
   public void doDelegateGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
@@ -88,8 +95,16 @@ public class GetPoolStructureServlet extends SlingSafeMethodsServlet implements
             LOGGER.debug("Getting Resource Path {} No Body", resourcePath);
             response.setContentType("application/json");
             response.setCharacterEncoding("UTF-8");
-            ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
-            ExtendedJSONWriter.writeContentTreeToWriter(writer, resourceContent, false, 0);
+            ContentTreeJsonCache cache = contentTreeJsonCache;
+            byte[] json;
+            if (cache != null) {
+              json = cache.getJson(resourceContent, 0, false,
+                  resource.adaptTo(Session.class));
+            } else {
+              json = ContentTreeSerializer.serialize(resourceContent, 0, false);
+            }
+            response.setContentLength(json.length);
+            response.getOutputStream().write(json);
           }
         } else {
           response.sendError(HttpServletResponse.SC_NOT_FOUND);
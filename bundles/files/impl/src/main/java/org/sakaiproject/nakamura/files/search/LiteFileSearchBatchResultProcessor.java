@@ -30,17 +30,16 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.files.FileUtils;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
-import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.HydratedResult;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.ResultHydrator;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -50,8 +49,12 @@ import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.RepositoryException;
@@ -73,9 +76,6 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
 
   @Reference
   private ProfileService profileService;
-  
-  @Reference
-  private Repository repository;
 
   public LiteFileSearchBatchResultProcessor(SolrSearchServiceFactory searchServiceFactory, ProfileService profileService) {
     this.searchServiceFactory = searchServiceFactory;
@@ -129,34 +129,47 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
     try {
       javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
       final Session session = StorageClientUtils.adaptToSession(jcrSession);
-      while (iterator.hasNext()) {
-        final Result result = iterator.next();
-        uniquePaths.add(result.getPath());
-        try {
-          if ("authorizable".equals(result.getFirstValue("resourceType"))) {
-            AuthorizableManager authManager = session.getAuthorizableManager();
-            Authorizable auth = authManager.findAuthorizable((String) result.getFirstValue("id"));
-            if (auth != null) {
-              write.object();
-              ValueMap map = profileService.getProfileMap(auth, jcrSession);
-              ExtendedJSONWriter.writeValueMapInternals(write, map);
-              write.endObject();
-            }
-          } else {
-            String contentPath = result.getPath();
-            final Content content = session.getContentManager().get(contentPath);
-            if (content != null) {
-              handleContent(content, session, write, depth);
-            } else {
-              LOGGER.debug("Found null content item while writing results [{}]", contentPath);
-            }
+      final ResultHydrator hydrator = ResultHydrator.forRequest(request, session);
+      final List<HydratedResult> rows = hydrator.hydrate(iterator, Long.MAX_VALUE);
+
+      // load everything else the page writes before writing any of it
+      List<String> related = new ArrayList<String>();
+      List<Authorizable> authorizables = new ArrayList<Authorizable>();
+      for (HydratedResult row : rows) {
+        Content content = row.getContent();
+        if (content != null) {
+          related.add(content.getPath() + "/comments");
+          if (FilesConstants.RT_SAKAI_LINK.equals(content.getProperty(SLING_RESOURCE_TYPE_PROPERTY))) {
+            related.add((String) content.getProperty(FilesConstants.SAKAI_LINK));
+          }
+        } else if (row.getAuthorizable() != null) {
+          authorizables.add(row.getAuthorizable());
+        }
+      }
+      hydrator.loadContent(related);
+      Map<String, ValueMap> profiles = Collections.emptyMap();
+      if (!authorizables.isEmpty()) {
+        profiles = profileService.getProfileMaps(authorizables, jcrSession);
+      }
+
+      for (HydratedResult row : rows) {
+        uniquePaths.add(row.getPath());
+        if (row.isAuthorizable()) {
+          ValueMap map = row.getAuthorizable() == null ? null : profiles.get(row
+              .getAuthorizable().getId());
+          if (map != null) {
+            write.object();
+            ExtendedJSONWriter.writeValueMapInternals(write, map);
+            write.endObject();
           }
-        } catch (AccessDeniedException e) {
-          // do nothing
-        } catch (RepositoryException e) {
-          throw new JSONException(e);
+        } else if (row.getContent() != null) {
+          handleContent(row.getContent(), hydrator, session, write, depth);
+        } else {
+          LOGGER.debug("Found null content item while writing results [{}]", row.getPath());
         }
       }
+    } catch (RepositoryException e) {
+      throw new JSONException(e);
     } catch (StorageClientException e) {
       throw new JSONException(e);
     }
@@ -177,16 +190,28 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
   protected void handleContent(final Content content, final Session session,
       final JSONWriter write, final int depth) throws JSONException,
       StorageClientException {
+    handleContent(content, new ResultHydrator(session), session, write, depth);
+  }
+
+  /**
+   * Give a JSON representation of the content, using what the hydrator has loaded for
+   * the comments and the file of a link.
+   */
+  protected void handleContent(final Content content, final ResultHydrator hydrator,
+      final Session session, final JSONWriter write, final int depth)
+      throws JSONException, StorageClientException {
 
     write.object();
     final String type = (String) content.getProperty(SLING_RESOURCE_TYPE_PROPERTY);
     if (FilesConstants.RT_SAKAI_LINK.equals(type)) {
-      FileUtils.writeLinkNode(content, session, write, true);
+      FileUtils.writeLinkNode(content, hydrator.getContent((String) content
+          .getProperty(FilesConstants.SAKAI_LINK)), session, write, true);
     } else {
       FileUtils.writeFileNode(content, session, write, depth, true);
     }
-    FileUtils.writeComments(content, session, write);
-    FileUtils.writeCommentCountProperty(content, session, write, repository);
+    Content comments = hydrator.getContent(content.getPath() + "/comments");
+    FileUtils.writeComments(comments, write);
+    FileUtils.writeCommentCountProperty(content, write);
     write.endObject();
   }
 
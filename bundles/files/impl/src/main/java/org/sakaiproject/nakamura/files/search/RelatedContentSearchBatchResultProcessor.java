@@ -28,10 +28,9 @@ import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.ResultHydrator;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -117,7 +116,7 @@ public class RelatedContentSearchBatchResultProcessor extends
 
         if (i != null) {
 
-          final ContentManager contentManager = session.getContentManager();
+          final ResultHydrator hydrator = ResultHydrator.forRequest(request, session);
           while (i.hasNext() && uniquePathsProcessed.size() <= VOLUME) {
             final Result result = i.next();
             final String path = (String) result.getFirstValue("path");
@@ -125,9 +124,9 @@ public class RelatedContentSearchBatchResultProcessor extends
               // we have already painted this result
               continue;
             }
-            final Content content = contentManager.get(path);
+            final Content content = hydrator.getContent(path);
             if (content != null) {
-              super.handleContent(content, session, write, 0);
+              super.handleContent(content, hydrator, session, write, 0);
               uniquePathsProcessed.add(path);
             } else {
               // fail quietly in this edge case
@@ -141,10 +140,6 @@ public class RelatedContentSearchBatchResultProcessor extends
           }
         }
 
-      } catch (AccessDeniedException e) {
-        // quietly swallow access denied
-        LOG.debug(e.getLocalizedMessage(), e);
-
       } catch (SolrSearchException e) {
         LOGGER.error(e.getMessage(), e);
         throw new IllegalStateException(e);
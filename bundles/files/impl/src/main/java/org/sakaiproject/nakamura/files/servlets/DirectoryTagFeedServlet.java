@@ -17,9 +17,9 @@
  */
 package org.sakaiproject.nakamura.files.servlets;
 
-import static org.sakaiproject.nakamura.api.files.FilesConstants.RT_SAKAI_TAG;
-
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -29,9 +29,12 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.GroupParams;
+import org.apache.solr.common.util.NamedList;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -42,12 +45,16 @@ import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.SearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.ResultHydrator;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -59,9 +66,12 @@ import org.sakaiproject.nakamura.util.ServletUtils;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -112,7 +122,14 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
   protected transient Repository sparseRepository;
   
   @Reference
-  private ProfileService profileService;
+  protected transient ProfileService profileService;
+
+  private static final String TAGS_BASE = "/tags/";
+
+  /**
+   * The number of tagged items looked at for each branch, to find one with a description.
+   */
+  private static final int SAMPLES_PER_BRANCH = 5;
 
   /**
    * {@inheritDoc}
@@ -154,14 +171,33 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
       Content directory = directoryResource.adaptTo(Content.class);
       if (directory != null) {
         ContentManager cm = directoryResource.adaptTo(ContentManager.class);
-        Iterator<Content> children = cm.listChildren(directoryResource.getPath());
-        while (children.hasNext()) {
-          Content child = children.next();
-          write.key(PathUtils.lastElement(child.getPath()));
+        List<Content> branches = Lists.newArrayList(cm.listChildren(directoryResource
+            .getPath()));
+        Map<String, Result> samples = getSampleForEachBranch(request, branches);
+
+        // load every sample before writing any of them
+        Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+            .adaptTo(javax.jcr.Session.class));
+        List<String> samplePaths = new ArrayList<String>();
+        for (Result sample : samples.values()) {
+          samplePaths.add(sample.getPath());
+        }
+        ResultHydrator.forRequest(request, session).loadContent(samplePaths);
+
+        final SolrSearchBatchResultProcessor rp = new LiteFileSearchBatchResultProcessor(
+            solrSearchServiceFactory, profileService);
+        for (Content branch : branches) {
+          write.key(PathUtils.lastElement(branch.getPath()));
           write.object();
-          ExtendedJSONWriter.writeNodeContentsToWriter(write, child);
+          ExtendedJSONWriter.writeNodeContentsToWriter(write, branch);
           write.key("content");
-          writeOneTaggedItemForTags(request, getTagsForDirectoryBranch(child, cm, request), write);
+          Result sample = samples.get(branch.getPath());
+          if (sample != null) {
+            rp.writeResults(request, write, Iterators.singletonIterator(sample));
+          } else {
+            // write an empty result
+            write.object().endObject();
+          }
           write.endObject();
         }
       }
@@ -171,95 +207,112 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
     }
   }
 
-  private List<String> getTagsForDirectoryBranch(Content branch, ContentManager cm,
-      SlingHttpServletRequest request) throws SolrSearchException {
-    String queryString = "path:" + ClientUtils.escapeQueryChars(branch.getPath())
-        + " AND resourceType:" + ClientUtils.escapeQueryChars(RT_SAKAI_TAG);
-    ArrayList<String> rv = new ArrayList<String>();
+  /**
+   * Pick a sample of the pooled content tagged in each branch of the directory, with a
+   * single query grouped by branch.
+   *
+   * @return the sample for each branch that has tagged content, by path of the branch.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, Result> getSampleForEachBranch(SlingHttpServletRequest request,
+      List<Content> branches) throws SolrSearchException {
+    Map<String, Result> samples = new HashMap<String, Result>();
 
-    Query solrQuery = new Query(queryString, ImmutableMap.<String, Object>of());
-    SolrSearchResultSet rs = solrSearchServiceFactory.getSearchResultSet(request, solrQuery);
-    Iterator<Result> results = rs.getResultSetIterator();
-    while (results.hasNext()) {
-      Result result = results.next();
-      rv.add(String.valueOf(result.getFirstValue("tagname")));
+    // BL120 KERN-1617 Need to include Content tagged with tag uuid
+    Map<String, String> groupQueries = new LinkedHashMap<String, String>();
+    for (Content branch : branches) {
+      String tagName = getTagName(branch);
+      if (tagName != null) {
+        // content tagged with the branch or any tag below it, matched on the
+        // untokenized copy of the tag names
+        groupQueries.put(getGroupQuery(tagName), branch.getPath());
+      }
     }
-
-    return rv;
-  }
-
-  private void writeOneTaggedItemForTags(SlingHttpServletRequest request,
-      List<String> tags, JSONWriter write) throws JSONException, SolrSearchException {
-    if (tags == null || tags.size() == 0) {
-      write.object().endObject();
-      return;
+    if (groupQueries.isEmpty()) {
+      return samples;
     }
 
-    // BL120 KERN-1617 Need to include Content tagged with tag uuid
-    final StringBuilder sb = new StringBuilder();
-    sb.append("tag:(");
-    String sep = "";
-    for (String tag : tags) {
-      sb.append(sep).append(ClientUtils.escapeQueryChars(tag));
-      sep = " ";
-    }
-    sb.append(") AND resourceType:").append(ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT));
     final int random = (int) (Math.random() * 10000);
     String sortRandom = "random_" + String.valueOf(random) + " asc";
-    final String queryString = sb.toString();
-    Query solrQuery = new Query(queryString, ImmutableMap.of("sort", (Object) sortRandom));
-    final SolrSearchBatchResultProcessor rp = new LiteFileSearchBatchResultProcessor(
-        solrSearchServiceFactory, profileService);
-    final SolrSearchResultSet srs = rp.getSearchResultSet(request, solrQuery);
-    if (srs.getResultSetIterator().hasNext()) {
-      rp.writeResults(request, write, selectOneResult(srs.getResultSetIterator()));
-    } else {
-      // write an empty result
-      write.object().endObject();
-    }
-  }
+    Map<String, Object> options = ImmutableMap.<String, Object> of(GroupParams.GROUP,
+        "true", GroupParams.GROUP_QUERY, Lists.newArrayList(groupQueries.keySet()),
+        GroupParams.GROUP_LIMIT, SAMPLES_PER_BRANCH, "sort", sortRandom);
+    Query solrQuery = new Query("resourceType:"
+        + ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT), options);
+    SolrSearchResultSet rs = solrSearchServiceFactory.getSearchResultSet(request, solrQuery);
 
-  private Iterator<Result> selectOneResult(Iterator<Result> resultSetIterator) {
-    Result bestResult = null;
-    while(resultSetIterator.hasNext()) {
-      Result result = resultSetIterator.next();
-      bestResult = result;
-      if (isBest(result)) {
-        break;
+    NamedList<Object> grouped = (NamedList<Object>) ((SolrQueryResponseWrapper) rs)
+        .getQueryResponse().getResponse().get("grouped");
+    if (grouped != null) {
+      for (Entry<String, String> groupQuery : groupQueries.entrySet()) {
+        NamedList<Object> group = (NamedList<Object>) grouped.get(groupQuery.getKey());
+        if (group != null) {
+          Result sample = selectOneResult((SolrDocumentList) group.get("doclist"));
+          if (sample != null) {
+            samples.put(groupQuery.getValue(), sample);
+          }
+        }
       }
     }
-    
-    final Result finalResult = bestResult;
-    
-    return new Iterator<Result>() {
-      boolean hasBeenRetrieved = false;
+    return samples;
+  }
 
-      public boolean hasNext() {
-        return !hasBeenRetrieved;
-      }
+  private String getGroupQuery(String tagName) {
+    return "tagname:" + ClientUtils.escapeQueryChars(tagName) + " OR tagname:"
+        + ClientUtils.escapeQueryChars(tagName + "/") + "*";
+  }
 
-      public Result next() {
-        if (hasBeenRetrieved) {
-          throw new NoSuchElementException();
-        } else {
-          hasBeenRetrieved = true;
-          return finalResult;
-        }
-      }
+  /**
+   * @return the name content in the branch is tagged with, or null if the branch is not a
+   *         tag.
+   */
+  private String getTagName(Content branch) {
+    if (branch.hasProperty(FilesConstants.SAKAI_TAG_NAME)) {
+      return String.valueOf(branch.getProperty(FilesConstants.SAKAI_TAG_NAME));
+    }
+    if (branch.getPath().startsWith(TAGS_BASE)) {
+      return branch.getPath().substring(TAGS_BASE.length());
+    }
+    return null;
+  }
 
-      public void remove() {
-        if (hasBeenRetrieved) {
-          throw new NoSuchElementException();
-        } else {
-          hasBeenRetrieved = true;
+  private Result selectOneResult(SolrDocumentList documents) {
+    Result bestResult = null;
+    if (documents != null) {
+      for (SolrDocument document : documents) {
+        bestResult = new DocumentResult(document);
+        if (isBest(bestResult)) {
+          break;
         }
       }
-
-    };
+    }
+    return bestResult;
   }
 
   private boolean isBest(Result result) {
     return (result.getFirstValue("description") != null );
   }
 
+  /**
+   * A hit in a group of a grouped query.
+   */
+  private static class DocumentResult implements Result {
+    private final SolrDocument document;
+
+    DocumentResult(SolrDocument document) {
+      this.document = document;
+    }
+
+    public String getPath() {
+      return (String) document.getFirstValue("path");
+    }
+
+    public Map<String, Collection<Object>> getProperties() {
+      return document.getFieldValuesMap();
+    }
+
+    public Object getFirstValue(String name) {
+      return document.getFirstValue(name);
+    }
+  }
 }
@@ -49,7 +49,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.files.TagUtils;
-import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -66,6 +65,7 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.AbstractSparsePostOperation;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperation;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.files.TagCountAggregator;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.sakaiproject.nakamura.util.osgi.EventUtils;
 import org.slf4j.Logger;
@@ -111,6 +111,9 @@ public class SparseTagOperation extends AbstractSparsePostOperation {
   @Reference
   protected transient EventAdmin eventAdmin;
 
+  @Reference
+  protected transient TagCountAggregator tagCountAggregator;
+
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseTagOperation.class);
 
   private static final String TAGS_BASE = "/tags/";
@@ -263,7 +266,7 @@ public class SparseTagOperation extends AbstractSparsePostOperation {
 
     updateAuthorizable(session, content, tagResources, addedTags);
 
-    updateCounts(request, session, user, content, addedTags);
+    updateCounts(request, contentManager, user, content, addedTags);
   }
 
   /**
@@ -354,45 +357,34 @@ public class SparseTagOperation extends AbstractSparsePostOperation {
   }
 
   /**
-   * Update tag counts and send events for tags that were used.
+   * Record the changes to tag counts and send events for tags that were used. The counts
+   * are written to the tags later by the {@link TagCountAggregator}.
    *
    * @param request
-   * @param session
+   * @param contentManager
    * @param user
    * @param content
    * @param addedTags
-   * @throws ClientPoolException
    * @throws StorageClientException
    * @throws AccessDeniedException
    */
-  private void updateCounts(SlingHttpServletRequest request, Session session,
-      String user, Content content, List<Content> addedTags) throws ClientPoolException,
-      StorageClientException, AccessDeniedException {
-    Session adminSession = null;
-    try {
-      adminSession = session.getRepository().loginAdministrative();
-      ContentManager cm = adminSession.getContentManager();
-      for (Content addedTag : addedTags) {
-        Content adminTag = cm.get(addedTag.getPath());
-        String[] tagNames = PropertiesUtil.toStringArray(content.getProperty(SAKAI_TAGS));
-        TagUtils.bumpTagCounts(adminTag, tagNames, true, false, cm);
-
-        // Send an OSGi event.
-        String tagName = String.valueOf(addedTag.getProperty(SAKAI_TAG_NAME));
-        Dictionary<String, String> properties = new Hashtable<String, String>();
-        properties.put(UserConstants.EVENT_PROP_USERID, user);
-        properties.put("tag-name", tagName);
-        EventUtils.sendOsgiEvent(request.getResource(), properties, TOPIC_FILES_TAG,
-            eventAdmin);
-      }
-    } finally {
-      if (adminSession != null) {
-        try {
-          adminSession.logout();
-        } catch (ClientPoolException e) {
-          // noop; nothing to do
-        }
+  private void updateCounts(SlingHttpServletRequest request, ContentManager contentManager,
+      String user, Content content, List<Content> addedTags)
+      throws StorageClientException, AccessDeniedException {
+    String[] tagNames = PropertiesUtil.toStringArray(content.getProperty(SAKAI_TAGS));
+    for (Content addedTag : addedTags) {
+      for (String tagPath : TagUtils.getTagPathsToCount(addedTag, tagNames, false,
+          contentManager)) {
+        tagCountAggregator.add(tagPath, 1);
       }
+
+      // Send an OSGi event.
+      String tagName = String.valueOf(addedTag.getProperty(SAKAI_TAG_NAME));
+      Dictionary<String, String> properties = new Hashtable<String, String>();
+      properties.put(UserConstants.EVENT_PROP_USERID, user);
+      properties.put("tag-name", tagName);
+      EventUtils.sendOsgiEvent(request.getResource(), properties, TOPIC_FILES_TAG,
+          eventAdmin);
     }
   }
 }
@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.RT_SAKAI_TAG;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_COUNT;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TagCountAggregatorTest {
+
+  private Repository repository;
+  private Session session;
+  private ContentManager contentManager;
+  private SolrServerService solrServerService;
+  private SolrServer solrServer;
+  private TagCountAggregator aggregator;
+
+  @Before
+  public void before() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content("/tags/course", ImmutableMap.of(SAKAI_TAG_NAME,
+        (Object) "course", "sling:resourceType", RT_SAKAI_TAG, SAKAI_TAG_COUNT, 5L)));
+
+    solrServerService = mock(SolrServerService.class);
+    solrServer = mock(SolrServer.class);
+    when(solrServerService.getServer()).thenReturn(solrServer);
+
+    aggregator = createAggregator("server0");
+  }
+
+  private TagCountAggregator createAggregator(String serverId) {
+    TagCountAggregator tagCountAggregator = new TagCountAggregator();
+    tagCountAggregator.repository = repository;
+    tagCountAggregator.solrServerService = solrServerService;
+    tagCountAggregator.clusterTrackingService = mock(ClusterTrackingService.class);
+    when(tagCountAggregator.clusterTrackingService.getCurrentServerId()).thenReturn(
+        serverId);
+    // long intervals so only the test writes
+    tagCountAggregator.activate(ImmutableMap.of(TagCountAggregator.PROP_FLUSH_INTERVAL,
+        3600, TagCountAggregator.PROP_RECOUNT_INTERVAL, 0));
+    return tagCountAggregator;
+  }
+
+  @After
+  public void after() throws Exception {
+    aggregator.deactivate();
+    session.logout();
+  }
+
+  @Test
+  public void testConcurrentTaggersAllCounted() throws Exception {
+    List<Thread> taggers = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      Thread tagger = new Thread() {
+        public void run() {
+          for (int j = 0; j < 500; j++) {
+            aggregator.add("/tags/course", 1);
+            if (j % 100 == 0) {
+              aggregator.flush();
+            }
+          }
+        }
+      };
+      taggers.add(tagger);
+      tagger.start();
+    }
+    for (Thread tagger : taggers) {
+      tagger.join();
+    }
+    aggregator.add("/tags/course", -3);
+    aggregator.flush();
+
+    Assert.assertEquals(5L + 8 * 500 - 3, count());
+  }
+
+  @Test
+  public void testNothingWrittenUntilFlush() throws Exception {
+    aggregator.add("/tags/course", 1);
+    Assert.assertEquals(5L, count());
+    aggregator.flush();
+    Assert.assertEquals(6L, count());
+  }
+
+  @Test
+  public void testServersKeepEachOthersChanges() throws Exception {
+    TagCountAggregator other = createAggregator("server1");
+    try {
+      aggregator.add("/tags/course", 2);
+      other.add("/tags/course", 3);
+      aggregator.flush();
+      other.flush();
+      Assert.assertEquals(10L, count());
+      other.add("/tags/course", -1);
+      other.flush();
+      aggregator.add("/tags/course", 1);
+      aggregator.flush();
+      Assert.assertEquals(10L, count());
+    } finally {
+      other.deactivate();
+    }
+  }
+
+  @Test
+  public void testRecountFromIndex() throws Exception {
+    SolrDocumentList results = mockIndex(42);
+
+    aggregator.add("/tags/course", 2);
+    aggregator.flush();
+    // changes not written yet are added to the count from the index
+    aggregator.add("/tags/course", 1);
+    Assert.assertTrue(aggregator.recount("/tags/course"));
+    Assert.assertEquals(43L, count());
+    aggregator.flush();
+    Assert.assertEquals(43L, count());
+    results.setNumFound(43);
+    Assert.assertFalse(aggregator.recount("/tags/course"));
+    ArgumentCaptor<SolrQuery> query = ArgumentCaptor.forClass(SolrQuery.class);
+    verify(solrServer, Mockito.atLeastOnce()).query(query.capture(),
+        Matchers.<SolrRequest.METHOD> any());
+    // the exact name field, not the tokenized one
+    String q = query.getValue().getQuery();
+    Assert.assertTrue(q, q.startsWith("tagname:course OR tagname:course"));
+    Assert.assertTrue(q, q.endsWith("/*"));
+  }
+
+  @Test
+  public void testCountsOfStoppedServersRemoved() throws Exception {
+    mockIndex(7);
+    aggregator.add("/tags/course", 2);
+    aggregator.flush();
+    Assert.assertEquals(7L, count());
+    Assert.assertTrue(contentManager.exists(TagCountAggregator.SERVER_COUNTS + "/server0"));
+
+    // the server restarts with a new id, the old id is no longer in the cluster
+    TagCountAggregator restarted = createAggregator("server0-restarted");
+    try {
+      restarted.recountAll();
+      Assert.assertFalse(contentManager.exists(TagCountAggregator.SERVER_COUNTS
+          + "/server0"));
+      restarted.recount("/tags/course");
+      Assert.assertEquals(7L, count());
+      restarted.add("/tags/course", 1);
+      restarted.flush();
+      Assert.assertEquals(8L, count());
+    } finally {
+      restarted.deactivate();
+    }
+  }
+
+  private SolrDocumentList mockIndex(long numFound) throws Exception {
+    SolrDocumentList results = new SolrDocumentList();
+    results.setNumFound(numFound);
+    QueryResponse response = mock(QueryResponse.class);
+    when(response.getResults()).thenReturn(results);
+    when(solrServer.query(any(SolrQuery.class), Matchers.<SolrRequest.METHOD> any()))
+        .thenReturn(response);
+    return results;
+  }
+
+  private long count() throws Exception {
+    return StorageClientUtils.toLong(contentManager.get("/tags/course").getProperty(
+        SAKAI_TAG_COUNT));
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_COMMENT_COUNT;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_RT;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Hashtable;
+
+public class CommentCountUpdaterTest {
+
+  private Session session;
+  private ContentManager contentManager;
+  private CommentCountUpdater updater;
+
+  @Before
+  public void before() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content(CommentCountUpdater.RECONCILED_PATH, null));
+    contentManager.update(new Content("abc123", ImmutableMap.of("sling:resourceType",
+        (Object) POOLED_CONTENT_RT)));
+    contentManager.update(new Content("abc123/comments", null));
+    contentManager.update(new Content("abc123/comments/1", ImmutableMap.of("comment",
+        (Object) "first")));
+    contentManager.update(new Content("abc123/comments/2", ImmutableMap.of("comment",
+        (Object) "second")));
+    updater = new CommentCountUpdater();
+    updater.repository = repository;
+    updater.activate();
+  }
+
+  @After
+  public void after() throws Exception {
+    updater.deactivate();
+    session.logout();
+  }
+
+  @Test
+  public void testCommentedPath() {
+    Assert.assertEquals("abc123", CommentCountUpdater.getCommentedPath("abc123/comments/1"));
+    Assert.assertEquals("abc123", CommentCountUpdater.getCommentedPath("abc123/comments"));
+    Assert.assertNull(CommentCountUpdater.getCommentedPath("abc123"));
+    Assert.assertNull(CommentCountUpdater.getCommentedPath("abc123/comments/1/reply"));
+    Assert.assertNull(CommentCountUpdater.getCommentedPath(null));
+  }
+
+  @Test
+  public void testCountFollowsComments() throws Exception {
+    contentManager.update(new Content("abc123/comments/3", ImmutableMap.of("comment",
+        (Object) "third")));
+    updater.handleEvent(event("ADDED", "abc123/comments/3"));
+    waitForCount(3);
+
+    contentManager.delete("abc123/comments/1");
+    updater.handleEvent(event("DELETE", "abc123/comments/1"));
+    waitForCount(2);
+  }
+
+  @Test
+  public void testLegacyContentCountedOnce() throws Exception {
+    Assert.assertTrue(updater.count("abc123", true));
+    Assert.assertEquals(2, contentManager.get("abc123").getProperty(
+        POOLED_CONTENT_COMMENT_COUNT));
+    Assert.assertFalse(updater.count("abc123", true));
+  }
+
+  @Test
+  public void testOnlyPooledContentCounted() throws Exception {
+    contentManager.update(new Content("a:alice/public", null));
+    contentManager.update(new Content("a:alice/public/comments/1", ImmutableMap.of(
+        "comment", (Object) "hi")));
+    Assert.assertFalse(updater.count("a:alice/public", false));
+    Assert.assertFalse(contentManager.get("a:alice/public").hasProperty(
+        POOLED_CONTENT_COMMENT_COUNT));
+  }
+
+  private Event event(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    return new Event("org/sakaiproject/nakamura/lite/content/" + topic, properties);
+  }
+
+  private void waitForCount(int count) throws Exception {
+    Object current = null;
+    for (int i = 0; i < 200; i++) {
+      current = contentManager.get("abc123").getProperty(POOLED_CONTENT_COMMENT_COUNT);
+      if (Integer.valueOf(count).equals(current)) {
+        break;
+      }
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(count, current);
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.commons.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.user.PrincipalSet;
+import org.sakaiproject.nakamura.api.user.PrincipalSetService;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Collections;
+import java.util.Hashtable;
+
+public class ContentTreeJsonCacheTest {
+
+  private ContentTreeJsonCache contentTreeJsonCache;
+  private Cache<Object> cache;
+  private CacheManagerService cacheManagerService;
+  private PrincipalSetService principalSetService;
+  private Session session;
+  private Session otherSession;
+
+  @Before
+  public void before() throws Exception {
+    cacheManagerService = mock(CacheManagerService.class);
+    cache = new MapCacheImpl<Object>(ContentTreeJsonCache.CACHE_NAME, CacheScope.INSTANCE);
+    when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenReturn(
+        cache);
+    principalSetService = mock(PrincipalSetService.class);
+    when(principalSetService.getPrincipals(eq("suzy"), any(AuthorizableManager.class)))
+        .thenReturn(new PrincipalSet("suzy", Collections.singleton("group1")));
+    when(principalSetService.getPrincipals(eq("aaron"), any(AuthorizableManager.class)))
+        .thenReturn(new PrincipalSet("aaron", Collections.<String> emptySet()));
+    session = mockSession("suzy");
+    otherSession = mockSession("aaron");
+    contentTreeJsonCache = new ContentTreeJsonCache(cacheManagerService,
+        principalSetService);
+    contentTreeJsonCache.activate(new Hashtable<String, Object>());
+  }
+
+  @Test
+  public void testCachedUntilChanged() throws Exception {
+    Content content = new Content("abc123", ImmutableMap.of("title", (Object) "Doc",
+        Content.LASTMODIFIED_FIELD, 1000L));
+    byte[] json = contentTreeJsonCache.getJson(content, 0, false, session);
+    Assert.assertTrue(new String(json, "UTF-8").contains("\"title\":\"Doc\""));
+    Assert.assertSame(json, contentTreeJsonCache.getJson(content, 0, false, session));
+    Assert.assertNotSame(json, contentTreeJsonCache.getJson(content, 0, true, session));
+
+    // a change to the root is seen through the last modified time.
+    Content modified = new Content("abc123", ImmutableMap.of("title", (Object) "Doc2",
+        Content.LASTMODIFIED_FIELD, 2000L));
+    Assert.assertTrue(new String(contentTreeJsonCache.getJson(modified, 0, false, session),
+        "UTF-8").contains("\"title\":\"Doc2\""));
+
+    // a change to a child evicts the tree.
+    Assert.assertTrue(cache.containsKey("abc123"));
+    contentTreeJsonCache.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        new Hashtable<String, Object>(ImmutableMap.of("path", (Object) "abc123/id1234/page"))));
+    Assert.assertFalse(cache.containsKey("abc123"));
+  }
+
+  @Test
+  public void testCachedPerPrincipals() throws Exception {
+    Content content = new Content("abc123", ImmutableMap.of("title", (Object) "Doc",
+        Content.LASTMODIFIED_FIELD, 1000L));
+    byte[] json = contentTreeJsonCache.getJson(content, 0, false, session);
+    Assert.assertSame(json, contentTreeJsonCache.getJson(content, 0, false, session));
+    // a user with other principals may see other children, so gets its own rendering.
+    byte[] other = contentTreeJsonCache.getJson(content, 0, false, otherSession);
+    Assert.assertNotSame(json, other);
+    Assert.assertSame(other, contentTreeJsonCache.getJson(content, 0, false, otherSession));
+  }
+
+  @Test
+  public void testEvictedOnAclChange() throws Exception {
+    Content content = new Content("abc123", ImmutableMap.of("title", (Object) "Doc",
+        Content.LASTMODIFIED_FIELD, 1000L));
+    contentTreeJsonCache.getJson(content, 1, false, session);
+    Assert.assertTrue(cache.containsKey("abc123"));
+    contentTreeJsonCache.handleEvent(new Event("org/sakaiproject/nakamura/lite/CO/UPDATED",
+        new Hashtable<String, Object>(ImmutableMap.of("path", (Object) "abc123/id1234"))));
+    Assert.assertFalse(cache.containsKey("abc123"));
+  }
+
+  @Test
+  public void testNotCachedWhenEvictedWhileSerializing() throws Exception {
+    final Event childUpdated = new Event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        new Hashtable<String, Object>(ImmutableMap.of("path", (Object) "abc123/id1234")));
+    ContentTreeJsonCache racingCache = new ContentTreeJsonCache(cacheManagerService,
+        principalSetService) {
+      @Override
+      byte[] serialize(Content content, int maxDepth, boolean tidy) throws JSONException {
+        byte[] json = super.serialize(content, maxDepth, tidy);
+        // the child changes after it was read, before the tree is cached
+        handleEvent(childUpdated);
+        return json;
+      }
+    };
+    racingCache.activate(new Hashtable<String, Object>());
+    Content content = new Content("abc123", ImmutableMap.of("title", (Object) "Doc",
+        Content.LASTMODIFIED_FIELD, 1000L));
+    racingCache.getJson(content, 1, false, session);
+    Assert.assertFalse(cache.containsKey("abc123"));
+
+    // with no change while serializing, the tree is cached
+    contentTreeJsonCache.getJson(content, 1, false, session);
+    Assert.assertTrue(cache.containsKey("abc123"));
+  }
+
+  private Session mockSession(String userId) {
+    Session session = mock(Session.class);
+    when(session.getUserId()).thenReturn(userId);
+    return session;
+  }
+}
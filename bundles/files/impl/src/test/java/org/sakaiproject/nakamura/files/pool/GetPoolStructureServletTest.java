@@ -198,9 +198,15 @@ public class GetPoolStructureServletTest {
     Mockito.when(contentManager.hasBody("23423423423/123456", null)).thenReturn(false);
     Mockito.when(contentManager.get("23423423423/123456")).thenReturn(bodyContent);
     
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    PrintWriter printWriter = new PrintWriter(outputStream);
-    Mockito.when(response.getWriter()).thenReturn(printWriter);
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+
+      @Override
+      public void write(int arg0) throws IOException {
+        outputStream.write(arg0);
+      }
+    };
+    Mockito.when(response.getOutputStream()).thenReturn(servletOutputStream);
     
     
     getPoolStructureServlet.init(servletConfig);
@@ -209,6 +215,7 @@ public class GetPoolStructureServletTest {
     // 200 didnt set the response code.
     ArgumentCaptor<Integer> responseCode = ArgumentCaptor.forClass(Integer.class);
     Mockito.verify(response,Mockito.never()).sendError(responseCode.capture());
+    Assert.assertTrue(outputStream.toString("UTF-8").contains("\"something\":\"else\""));
   }
 
 }
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+public class LiteFileSearchBatchResultProcessorTest {
+
+  private ContentManager contentManager;
+  private SlingHttpServletRequest request;
+  private LiteFileSearchBatchResultProcessor processor;
+
+  @Before
+  public void before() throws Exception {
+    Session adminSession = new BaseMemoryRepository().getRepository().loginAdministrative();
+    ContentManager adminContentManager = adminSession.getContentManager();
+    adminContentManager.update(new Content("p/file", ImmutableMap.<String, Object> of(
+        "sling:resourceType", FilesConstants.POOLED_CONTENT_RT, "description", "Cells",
+        FilesConstants.POOLED_CONTENT_COMMENT_COUNT, 1)));
+    adminContentManager.update(new Content("p/file/comments", ImmutableMap
+        .<String, Object> of("sling:resourceType", "sakai/comments")));
+    adminContentManager.update(new Content("p/file/comments/c1", ImmutableMap
+        .<String, Object> of("comment", "Nice")));
+    adminContentManager.update(new Content("p/link", ImmutableMap.<String, Object> of(
+        "sling:resourceType", FilesConstants.RT_SAKAI_LINK, FilesConstants.SAKAI_LINK,
+        "p/file")));
+
+    // count what is read through the session the results are written with.
+    contentManager = Mockito.spy(adminContentManager);
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAccessControlManager()).thenReturn(
+        adminSession.getAccessControlManager());
+    when(session.getUserId()).thenReturn(adminSession.getUserId());
+    javax.jcr.Session jcrSession = mock(javax.jcr.Session.class, Mockito.withSettings()
+        .extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    ResourceResolver resolver = mock(ResourceResolver.class);
+    when(resolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    request = mock(SlingHttpServletRequest.class);
+    when(request.getResourceResolver()).thenReturn(resolver);
+
+    processor = new LiteFileSearchBatchResultProcessor(
+        mock(SolrSearchServiceFactory.class), mock(ProfileService.class));
+  }
+
+  @Test
+  public void testLinksAndCommentsWrittenFromPreloadedRows() throws Exception {
+    StringWriter output = new StringWriter();
+    JSONWriter writer = new JSONWriter(output);
+    writer.array();
+    processor.writeResults(request, writer, Arrays.asList(result("p/file"),
+        result("p/link"), result("p/gone")).iterator());
+    writer.endArray();
+
+    JSONArray rows = new JSONArray(output.toString());
+    Assert.assertEquals(2, rows.length());
+    JSONObject file = rows.getJSONObject(0);
+    Assert.assertEquals("Cells", file.getString("description"));
+    Assert.assertEquals(1, file.getInt(FilesConstants.POOLED_CONTENT_COMMENT_COUNT));
+    Assert.assertEquals("Nice", file.getJSONObject("comments").getJSONObject("c1")
+        .getString("comment"));
+    JSONObject link = rows.getJSONObject(1);
+    Assert.assertEquals("p/file", link.getString(FilesConstants.SAKAI_LINK));
+    Assert.assertEquals("Cells", link.getJSONObject("file").getString("description"));
+    Assert.assertEquals(0, link.getJSONObject("comments").length());
+
+    // the file is both a hit and the target of the link, and is read once.
+    verify(contentManager, times(1)).get("p/file");
+    verify(contentManager, times(1)).get("p/link");
+    verify(contentManager, times(1)).get("p/gone");
+    verify(contentManager, times(1)).get("p/file/comments");
+    verify(contentManager, times(1)).get("p/link/comments");
+  }
+
+  private Result result(String path) {
+    Result result = mock(Result.class);
+    when(result.getPath()).thenReturn(path);
+    return result;
+  }
+}
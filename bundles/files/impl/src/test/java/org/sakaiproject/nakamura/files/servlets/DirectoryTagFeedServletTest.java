@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.servlets;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.GroupParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+public class DirectoryTagFeedServletTest {
+
+  private DirectoryTagFeedServlet servlet;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private StringWriter output;
+  private SolrSearchServiceFactory solrSearchServiceFactory;
+  private NamedList<Object> grouped;
+
+  @Before
+  public void setUp() throws Exception {
+    Session session = new BaseMemoryRepository().getRepository().loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content("/tags/directory", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/directory")));
+    contentManager.update(new Content("/tags/directory/science", ImmutableMap.of(
+        FilesConstants.SAKAI_TAG_NAME, (Object) "directory/science")));
+    contentManager.update(new Content("/tags/directory/art", ImmutableMap.of(
+        "sling:resourceType", (Object) FilesConstants.RT_SAKAI_TAG)));
+    contentManager.update(new Content("abc", ImmutableMap.of("sling:resourceType",
+        (Object) FilesConstants.POOLED_CONTENT_RT, "description", "Cells")));
+
+    request = mock(SlingHttpServletRequest.class);
+    RequestPathInfo pathInfo = mock(RequestPathInfo.class);
+    when(pathInfo.getSelectors()).thenReturn(new String[] { "tagged" });
+    when(request.getRequestPathInfo()).thenReturn(pathInfo);
+    Resource resource = mock(Resource.class);
+    when(resource.getPath()).thenReturn("/tags/directory");
+    when(resource.adaptTo(Content.class)).thenReturn(contentManager.get("/tags/directory"));
+    when(resource.adaptTo(ContentManager.class)).thenReturn(contentManager);
+    when(request.getResource()).thenReturn(resource);
+    javax.jcr.Session jcrSession = mock(javax.jcr.Session.class, Mockito.withSettings()
+        .extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    ResourceResolver resolver = mock(ResourceResolver.class);
+    when(resolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    when(request.getResourceResolver()).thenReturn(resolver);
+
+    response = mock(SlingHttpServletResponse.class);
+    output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+
+    // a group.query response has a doclist for each query and no groups
+    grouped = new NamedList<Object>();
+    NamedList<Object> solrResponse = new NamedList<Object>();
+    solrResponse.add("grouped", grouped);
+    QueryResponse queryResponse = mock(QueryResponse.class);
+    when(queryResponse.getResponse()).thenReturn(solrResponse);
+    SolrSearchResultSet rs = mock(SolrSearchResultSet.class, Mockito.withSettings()
+        .extraInterfaces(SolrQueryResponseWrapper.class));
+    when(((SolrQueryResponseWrapper) rs).getQueryResponse()).thenReturn(queryResponse);
+    solrSearchServiceFactory = mock(SolrSearchServiceFactory.class);
+    when(solrSearchServiceFactory.getSearchResultSet(eq(request), any(Query.class)))
+        .thenReturn(rs);
+
+    servlet = new DirectoryTagFeedServlet();
+    servlet.solrSearchServiceFactory = solrSearchServiceFactory;
+    servlet.profileService = mock(ProfileService.class);
+  }
+
+  @Test
+  public void testOneSampleForEachBranch() throws Exception {
+    String science = groupQuery("directory/science");
+    String art = groupQuery("directory/art");
+    SolrDocument cells = new SolrDocument();
+    cells.addField("path", "abc");
+    cells.addField("description", "Cells");
+    grouped.add(science, group(cells));
+    grouped.add(art, group());
+
+    servlet.doGet(request, response);
+    verify(response, never()).sendError(anyInt(), anyString());
+
+    ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+    verify(solrSearchServiceFactory).getSearchResultSet(eq(request), query.capture());
+    Assert.assertEquals("true", query.getValue().getOptions().get(GroupParams.GROUP));
+    List<?> groupQueries = (List<?>) query.getValue().getOptions().get(
+        GroupParams.GROUP_QUERY);
+    Assert.assertEquals(2, groupQueries.size());
+    Assert.assertTrue(groupQueries.contains(science));
+    Assert.assertTrue(groupQueries.contains(art));
+
+    JSONObject feed = new JSONObject(output.toString());
+    Assert.assertEquals("Cells", feed.getJSONObject("science").getJSONObject("content")
+        .getString("description"));
+    Assert.assertEquals("directory/science", feed.getJSONObject("science").getString(
+        FilesConstants.SAKAI_TAG_NAME));
+    Assert.assertEquals(0, feed.getJSONObject("art").getJSONObject("content").length());
+  }
+
+  private String groupQuery(String tagName) {
+    return "tagname:" + ClientUtils.escapeQueryChars(tagName) + " OR tagname:"
+        + ClientUtils.escapeQueryChars(tagName + "/") + "*";
+  }
+
+  private NamedList<Object> group(SolrDocument... documents) {
+    SolrDocumentList doclist = new SolrDocumentList();
+    for (SolrDocument document : documents) {
+      doclist.add(document);
+    }
+    doclist.setNumFound(documents.length);
+    NamedList<Object> group = new NamedList<Object>();
+    group.add("matches", documents.length);
+    group.add("doclist", doclist);
+    return group;
+  }
+}
@@ -22,6 +22,7 @@ import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAGS;
@@ -51,6 +52,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.files.TagCountAggregator;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 
 import java.util.Arrays;
@@ -118,6 +120,7 @@ public class SparseTagOperationTest {
 
     operation = new SparseTagOperation();
     operation.eventAdmin = mock(EventAdmin.class);
+    operation.tagCountAggregator = mock(TagCountAggregator.class);
     resolver = mock(ResourceResolver.class);
     jcrSession = mock(javax.jcr.Session.class, withSettings().extraInterfaces(SessionAdaptable.class));
     request = mock(SlingHttpServletRequest.class);
@@ -193,6 +196,8 @@ public class SparseTagOperationTest {
 
       Arrays.sort(tags);
       assertTrue (Arrays.binarySearch(tags, "foo") > -1);
+
+      verify(operation.tagCountAggregator).add("/tags/foo", 1);
   }
 
 
@@ -233,6 +238,11 @@ public class SparseTagOperationTest {
     assertEquals ("foo", grandParent.getProperty(SAKAI_TAG_NAME));
     assertEquals ("sakai/tag", grandParent.getProperty(SLING_RESOURCE_TYPE_PROPERTY));
 
+    // the new tag is counted on itself and on each of its ancestors
+    verify(operation.tagCountAggregator).add("/tags/foo/bar/baz", 1);
+    verify(operation.tagCountAggregator).add("/tags/foo/bar", 1);
+    verify(operation.tagCountAggregator).add("/tags/foo", 1);
+
   }
 
     @Test
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * Finds the number of concurrent requests a category can take from the latency of the
+ * requests it lets through. A short and a long moving average of latency are kept; while
+ * recent latency stays close to the long term average the limit grows, by about the
+ * square root of the limit, and as recent latency rises above it the limit is cut in
+ * proportion, by at most half. Not thread safe, the {@link QoSControl} guards it.
+ */
+class AdaptiveLimit {
+
+  private static final double SHORT_ALPHA = 0.1;
+  private static final double LONG_ALPHA = 0.01;
+  private static final double SMOOTHING = 0.2;
+
+  /**
+   * How much slower than the long term average recent requests may get before the limit
+   * starts to come down.
+   */
+  private static final double TOLERANCE = 1.5;
+
+  private final boolean adaptive;
+  private final int minLimit;
+  private final int maxLimit;
+  private double limit;
+  private double shortLatency;
+  private double longLatency;
+
+  AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, boolean adaptive) {
+    this.adaptive = adaptive;
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+  }
+
+  int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * @return the recent average latency in ns, or 0 if nothing has been measured.
+   */
+  double getLatency() {
+    return shortLatency;
+  }
+
+  /**
+   * @return the long term average latency in ns, or 0 if nothing has been measured.
+   */
+  double getBaseLatency() {
+    return longLatency;
+  }
+
+  /**
+   * @param latency how long a request took, in ns.
+   * @param inFlight how many requests were being processed when it finished, including it.
+   */
+  void update(long latency, int inFlight) {
+    if (latency <= 0) {
+      return;
+    }
+    if (shortLatency == 0) {
+      shortLatency = latency;
+      longLatency = latency;
+      return;
+    }
+    shortLatency += SHORT_ALPHA * (latency - shortLatency);
+    longLatency += LONG_ALPHA * (latency - longLatency);
+    if (!adaptive) {
+      return;
+    }
+    if (longLatency > 2 * shortLatency) {
+      // recovering from a slow period, let the long term average catch up.
+      longLatency *= 0.95;
+    }
+    if (inFlight < limit / 2) {
+      // the limit is not what is holding requests back, so latency says nothing about it.
+      return;
+    }
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+    double newLimit = limit * gradient + Math.sqrt(limit);
+    limit = Math.min(maxLimit, Math.max(minLimit, limit * (1 - SMOOTHING) + newLimit
+        * SMOOTHING));
+  }
+}
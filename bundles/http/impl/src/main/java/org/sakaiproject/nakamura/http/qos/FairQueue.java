@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Queues waiting requests per user and takes them from each user in turn, so one user
+ * with many requests queued only gets their share of the places that free up. Not
+ * thread safe, the {@link QoSControl} guards it.
+ */
+class FairQueue {
+
+  private final Map<String, LinkedList<QoSWaiter>> byUser = new HashMap<String, LinkedList<QoSWaiter>>();
+  private final LinkedList<String> turns = new LinkedList<String>();
+  private int size;
+
+  void add(QoSWaiter waiter) {
+    LinkedList<QoSWaiter> waiters = byUser.get(waiter.user);
+    if (waiters == null) {
+      waiters = new LinkedList<QoSWaiter>();
+      byUser.put(waiter.user, waiters);
+      turns.addLast(waiter.user);
+    }
+    waiters.addLast(waiter);
+    size++;
+  }
+
+  /**
+   * @return the oldest waiter of the user whose turn it is, or null if the queue is
+   *         empty.
+   */
+  QoSWaiter poll() {
+    if (turns.isEmpty()) {
+      return null;
+    }
+    String user = turns.removeFirst();
+    LinkedList<QoSWaiter> waiters = byUser.get(user);
+    QoSWaiter waiter = waiters.removeFirst();
+    if (waiters.isEmpty()) {
+      byUser.remove(user);
+    } else {
+      turns.addLast(user);
+    }
+    size--;
+    return waiter;
+  }
+
+  boolean remove(QoSWaiter waiter) {
+    LinkedList<QoSWaiter> waiters = byUser.get(waiter.user);
+    if (waiters == null || !waiters.remove(waiter)) {
+      return false;
+    }
+    if (waiters.isEmpty()) {
+      byUser.remove(waiter.user);
+      turns.remove(waiter.user);
+    }
+    size--;
+    return true;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of users with requests waiting.
+   */
+  int users() {
+    return byUser.size();
+  }
+}
@@ -17,42 +17,211 @@
  */
 package org.sakaiproject.nakamura.http.qos;
 
-import org.mortbay.util.ajax.Continuation;
-
-import java.util.Queue;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.ServletRequest;
 
+/**
+ * The state of one QoS category: how many requests it is letting through, as found by
+ * an {@link AdaptiveLimit}, and the requests waiting for a place, queued fairly between
+ * users. A finishing request hands its place straight on to the next waiter, so waiters
+ * are not overtaken by requests arriving later.
+ */
 public class QoSControl {
 
-  private Semaphore semaphore;
-  private int priority;
-  private Queue<Continuation>[] priorityQueue;
-  private long timeout;
+  private final String name;
+  private final int priority;
+  private final long timeout;
+  private final int maxQueue;
+  private final AdaptiveLimit limit;
+  private final FairQueue queue = new FairQueue();
+  private int inFlight;
 
-  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
-      long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+  private long accepted;
+  private long queued;
+  private long shed;
+  private long timedOut;
+
+  /**
+   * @param name the pathSpec of the category, or default.
+   * @param nRequests the number of concurrent requests to start with.
+   * @param maxRequests the most concurrent requests the limit may grow to.
+   * @param adaptive false to keep the limit at nRequests.
+   * @param maxQueue the most requests that may wait.
+   */
+  public QoSControl(String name, int nRequests, int maxRequests, boolean adaptive,
+      int maxQueue, int priority, long timeout) {
+    this.name = name;
+    this.limit = new AdaptiveLimit(nRequests, 1, maxRequests, adaptive);
+    this.maxQueue = maxQueue;
     this.priority = priority;
-    this.priorityQueue = priorityQueue.clone();
     this.timeout = timeout;
   }
 
-  public Semaphore getSemaphore() {
-    return semaphore;
+  public String getName() {
+    return name;
   }
 
   public int getPriority(ServletRequest request) {
     return priority;
   }
 
-  public Queue<Continuation>[] getPriorityQueue() {
-    return priorityQueue;
-  }
-
   public long getTimeout() {
     return timeout;
   }
 
+  /**
+   * Take a place if one is free and nobody is waiting for it.
+   *
+   * @param waitMs how long to wait for a place, in ms.
+   */
+  public synchronized boolean tryAcquire(long waitMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + waitMs;
+    long remaining = waitMs;
+    while (!queue.isEmpty() || inFlight >= limit.getLimit()) {
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    inFlight++;
+    accepted++;
+    return true;
+  }
+
+  /**
+   * Take a place regardless of the limit, for a request that was let through before and
+   * is being dispatched again.
+   */
+  public synchronized void acquire() {
+    inFlight++;
+  }
+
+  /**
+   * Queue a request until a place is handed to it.
+   *
+   * @return false if the request should be shed instead: the queue is full, or the wait
+   *         expected from how fast the category is getting through its requests is
+   *         longer than a request may wait.
+   */
+  public synchronized boolean queue(QoSWaiter waiter) {
+    if (queue.size() >= maxQueue || (timeout > 0 && estimateWait() > timeout)) {
+      shed++;
+      return false;
+    }
+    queue.add(waiter);
+    queued++;
+    return true;
+  }
+
+  /**
+   * Take a queued request out of the queue once it has been resumed or has timed out.
+   *
+   * @return true if a place was handed to the request while it waited.
+   */
+  public synchronized boolean dequeue(QoSWaiter waiter) {
+    if (waiter.granted) {
+      return true;
+    }
+    if (queue.remove(waiter)) {
+      timedOut++;
+    }
+    return false;
+  }
+
+  /**
+   * Give up a place, handing it to the next waiter if the limit allows.
+   *
+   * @param latency how long the request took in ns, or -1 if it did not finish normally.
+   */
+  public void release(long latency) {
+    QoSWaiter next = null;
+    synchronized (this) {
+      if (latency > 0) {
+        limit.update(latency, inFlight);
+      }
+      if (!queue.isEmpty() && inFlight <= limit.getLimit()) {
+        next = queue.poll();
+        next.granted = true;
+        accepted++;
+      } else {
+        inFlight--;
+        notifyAll();
+      }
+    }
+    if (next != null) {
+      next.continuation.resume();
+    }
+  }
+
+  /**
+   * @return how long, in ms, a request queued now is expected to wait.
+   */
+  public synchronized long estimateWait() {
+    return (long) ((queue.size() + 1) * limit.getLatency() / 1000000.0 / Math.max(1,
+        limit.getLimit()));
+  }
+
+  /**
+   * Resume everything waiting, so that nothing is left suspended when the filter goes.
+   */
+  public void resumeAll() {
+    List<QoSWaiter> waiters = new ArrayList<QoSWaiter>();
+    synchronized (this) {
+      for (QoSWaiter waiter = queue.poll(); waiter != null; waiter = queue.poll()) {
+        waiters.add(waiter);
+      }
+    }
+    for (QoSWaiter waiter : waiters) {
+      waiter.continuation.resume();
+    }
+  }
+
+  public synchronized int getLimit() {
+    return limit.getLimit();
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized int getQueued() {
+    return queue.size();
+  }
+
+  public synchronized int getQueuedUsers() {
+    return queue.users();
+  }
+
+  /**
+   * @return the recent average latency in ms.
+   */
+  public synchronized double getLatency() {
+    return limit.getLatency() / 1000000.0;
+  }
+
+  /**
+   * @return the long term average latency in ms.
+   */
+  public synchronized double getBaseLatency() {
+    return limit.getBaseLatency() / 1000000.0;
+  }
+
+  public synchronized long getAcceptedCount() {
+    return accepted;
+  }
+
+  public synchronized long getQueuedCount() {
+    return queued;
+  }
+
+  public synchronized long getShedCount() {
+    return shed;
+  }
+
+  public synchronized long getTimedOutCount() {
+    return timedOut;
+  }
 }
@@ -25,6 +25,7 @@ import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.mortbay.util.ajax.Continuation;
 import org.mortbay.util.ajax.ContinuationSupport;
@@ -33,11 +34,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -45,18 +48,22 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. Pending requests are prioritiezed into queue, taken out of the queue based on priority and time of entry. If the request does not match any Quality of Service Configuration, the default configuration will be used.
+ * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. If the request does not match any Quality of Service Configuration, the default configuration will be used.
+ * The number of concurrent requests in each category starts at the configured limit and then follows the latency of the requests let through, growing while latency holds steady and shrinking as it rises.
+ * Pending requests are suspended and queued per category, and taken out of the queue from each user in turn. Requests that could not be let through before their timeout, judging by how quickly the category is getting through its queue, are turned away at once with a 503 and a Retry-After header.
  * Configuration is via the
  */
 @Component(immediate = true, metatype = true)
+@Service(value = QoSStatus.class)
 @Properties(value = {
     @Property(name = "service.description", value = "Nakamura Quality of Service Filter"),
     @Property(name = "service.vendor", value = "The Sakai Foundation") })
-public class QoSFilter implements Filter {
+public class QoSFilter implements Filter, QoSStatus {
 
 
   /**
@@ -85,22 +92,43 @@ public class QoSFilter implements Filter {
   @Property(intValue=2)
   private static final String QOS_DEFAULT_PRIORITY_CONF = "qos.default.priority";
   /**
-   * The maximum priority queue number (default , 0 is the lowest priority)
+   * The maximum priority number (default , 0 is the lowest priority)
    */
   @Property(intValue=2)
   private static final String QOS_MAX_PRIORITY_CONF = "qos.priority";
+  /**
+   * If true, the limit of each category follows the latency of its requests, otherwise the configured limits are fixed.
+   */
+  @Property(boolValue=true)
+  private static final String QOS_ADAPTIVE_CONF = "qos.adaptive";
+  /**
+   * How many times its configured limit a category may grow to, where the category does not say.
+   */
+  @Property(intValue=4)
+  private static final String QOS_MAX_LIMIT_FACTOR_CONF = "qos.maxLimitFactor";
+  /**
+   * The most requests that may wait in each category.
+   */
+  @Property(intValue=200)
+  private static final String QOS_MAX_QUEUE_CONF = "qos.maxQueue";
+  /**
+   * The cookie that tells users apart for fair queuing, before they have been authenticated. Requests without it are told apart by address.
+   */
+  @Property(value="sakai-trusted-authentication")
+  private static final String QOS_USER_COOKIE_CONF = "qos.userCookie";
   /**
    * The default timeout to be used on suspended requests (default 60000, 60s)
    */
   @Property(longValue=60000L)
   private static final String QOS_TIMEOUT_CONFIG = "qos.timeout";
   /**
-   * List of categories, formatted as pathSpec;maxrequests;priority;timeout
+   * List of categories, formatted as pathSpec;maxrequests;priority;timeout;maxlimit
    * pathSpec is of the form method:firstPathElement
    * method is * or a HTTP method in lower case (get,post,etc)
-   * maxrequests is the maximum number of concurrent requests
-   * priority is the queue the request is put into if suspended (0 is the lowest) (optional)
+   * maxrequests is the number of concurrent requests to start with
+   * priority is the priority of the category (0 is the lowest), used to resume the higher categories first when the filter is deactivated (optional)
    * timeout is the time (ms) the request will wait if suspended. (optional)
+   * maxlimit is the most concurrent requests the category may grow to. (optional)
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
@@ -112,8 +140,8 @@ public class QoSFilter implements Filter {
 
   private long waitMs;
 
+  private String userCookie;
 
-  private Queue<Continuation>[] priorityQueue;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
 
@@ -127,6 +155,7 @@ public class QoSFilter implements Filter {
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
       throws IOException, ServletException {
     boolean accepted = false;
+    boolean completed = false;
     QoSToken qoSToken  = getQoSControl(request);
     try {
       if (request.getAttribute(suspendedAttributeName) == null) {
@@ -134,22 +163,29 @@ public class QoSFilter implements Filter {
         if (accepted) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
         } else {
-          LOGGER.debug("Suspending request");
-          request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
+          request.setAttribute(suspendedAttributeName, Boolean.TRUE);
+          // queue before suspending, suspending may not return.
+          if (!qoSToken.queue(continuation)) {
+            shed(qoSToken, response);
+            return;
+          }
+          LOGGER.debug("Suspending request");
           continuation.suspend(qoSToken.getSuspendTime());
-          qoSToken.queue(continuation);
-          return;
+          // a waiting continuation returns here rather than being dispatched again.
+          request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+          accepted = qoSToken.dequeue();
+          if (!accepted) {
+            accepted = qoSToken.acquire(waitMs);
+          }
         }
       } else {
         Boolean suspended = (Boolean) request.getAttribute(suspendedAttributeName);
 
         if (suspended.booleanValue()) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
-          if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE) {
-            qoSToken.acquire();
-            accepted = true;
-          } else {
+          accepted = qoSToken.dequeue();
+          if (!accepted) {
             // Timeout! try 1 more time.
             accepted = qoSToken.acquire(waitMs);
           }
@@ -162,10 +198,9 @@ public class QoSFilter implements Filter {
 
       if (accepted) {
         chain.doFilter(request, response);
+        completed = true;
       } else {
-        LOGGER.warn("QoS filter rejecting request");
-        ((HttpServletResponse) response)
-            .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        shed(qoSToken, response);
       }
     } catch (InterruptedException e) {
       LOGGER.warn("QoS", e);
@@ -173,11 +208,18 @@ public class QoSFilter implements Filter {
           .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     } finally {
       if (accepted) {
-        qoSToken.release();
+        qoSToken.release(completed);
       }
     }
   }
 
+  private void shed(QoSToken qoSToken, ServletResponse response) throws IOException {
+    LOGGER.warn("QoS filter rejecting request");
+    HttpServletResponse hresponse = (HttpServletResponse) response;
+    hresponse.setHeader("Retry-After", String.valueOf(qoSToken.getRetryAfter()));
+    hresponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
   private QoSToken getQoSControl(ServletRequest request) {
     QoSToken control = (QoSToken) request.getAttribute(QoSToken.CONTROL_ATTR);
     if  ( control != null ) {
@@ -200,11 +242,40 @@ public class QoSFilter implements Filter {
     if ( qoSControl == null ) {
       qoSControl =  defaultQoSControl;
     }
-    QoSToken qoSToken = new QoSTokenImpl(qoSControl, request);
+    QoSToken qoSToken = new QoSTokenImpl(qoSControl, request, getUser(hrequest));
     request.setAttribute(QoSToken.CONTROL_ATTR, qoSToken);
     return qoSToken;
   }
 
+  /**
+   * @return who the request is from, as near as can be told before authentication.
+   */
+  private String getUser(HttpServletRequest request) {
+    if (request.getRemoteUser() != null) {
+      return request.getRemoteUser();
+    }
+    Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (cookie.getName().equals(userCookie)) {
+          return "cookie:" + cookie.getValue();
+        }
+      }
+    }
+    return "address:" + request.getRemoteAddr();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatus#getQoSControls()
+   */
+  public List<QoSControl> getQoSControls() {
+    List<QoSControl> controls = new ArrayList<QoSControl>(qoSControMap.values());
+    if (defaultQoSControl != null) {
+      controls.add(defaultQoSControl);
+    }
+    return controls;
+  }
 
   /**
    * @param componentContext
@@ -218,25 +289,23 @@ public class QoSFilter implements Filter {
 
     long defaultTimeout = PropertiesUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
     int maxPriorityNumber = PropertiesUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
-    for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
-    }
+    boolean adaptive = PropertiesUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONF), true);
+    int maxLimitFactor = Math.max(1, PropertiesUtil.toInteger(properties.get(QOS_MAX_LIMIT_FACTOR_CONF), 4));
+    int maxQueue = PropertiesUtil.toInteger(properties.get(QOS_MAX_QUEUE_CONF), 200);
+    userCookie = PropertiesUtil.toString(properties.get(QOS_USER_COOKIE_CONF), "sakai-trusted-authentication");
 
-    // path, max requests, priority, timeout
+    // path, max requests, priority, timeout, max limit
     qoSControMap.clear();
     String[] qosLocations = PropertiesUtil.toStringArray(properties.get(QOS_CATEGORIES_CONFIG));
     if ( qosLocations != null ) {
       for ( String qosLocation : qosLocations ) {
         String[] settings = StringUtils.split(qosLocation,";");
-        if ( settings != null ) {
-          if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
-          } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
-          } else if ( settings.length > 1 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
-          }
+        if ( settings != null && settings.length > 1 ) {
+          int limit = Integer.parseInt(settings[1]);
+          int priority = ( settings.length > 2 ) ? Integer.parseInt(settings[2]) : maxPriorityNumber;
+          long timeout = ( settings.length > 3 ) ? Long.parseLong(settings[3]) : defaultTimeout;
+          int maxLimit = ( settings.length > 4 ) ? Integer.parseInt(settings[4]) : limit * maxLimitFactor;
+          qoSControMap.put(settings[0], new QoSControl(settings[0], limit, maxLimit, adaptive, maxQueue, priority, timeout));
         }
       }
     }
@@ -247,7 +316,7 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = PropertiesUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = PropertiesUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = new QoSControl("default", qosDefaultLimit, qosDefaultLimit * maxLimitFactor, adaptive, maxQueue, qosDefaultPriority, qosDefaultTimeout);
 
     int filterPriority = PropertiesUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -258,13 +327,15 @@ public class QoSFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
-    // resume any continuations held by the filter
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
+    // resume any continuations held by the filter, highest priority first
+    List<QoSControl> controls = getQoSControls();
+    Collections.sort(controls, new Comparator<QoSControl>() {
+      public int compare(QoSControl o1, QoSControl o2) {
+        return o2.getPriority(null) - o1.getPriority(null);
       }
+    });
+    for (QoSControl control : controls) {
+      control.resumeAll();
     }
   }
 
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Reports the live state of each QoS category: the concurrency limit it has found, and
+ * the requests in flight and waiting.
+ * </p>
+ * <h4>Methods</h4>
+ * <ul>
+ * <li>GET /system/qos.json, as admin</li>
+ * </ul>
+ * <h4>Example Response</h4>
+ * <code>
+ * <pre>
+ * [{
+ * &quot;name&quot;: &quot;get:var&quot;,
+ * &quot;limit&quot;: 14,
+ * &quot;inFlight&quot;: 14,
+ * &quot;queued&quot;: 6,
+ * &quot;queuedUsers&quot;: 2,
+ * &quot;latency&quot;: 85.2,
+ * &quot;baseLatency&quot;: 60.7,
+ * &quot;estimatedWait&quot;: 42,
+ * &quot;accepted&quot;: 102934,
+ * &quot;queuedTotal&quot;: 2044,
+ * &quot;shed&quot;: 12,
+ * &quot;timedOut&quot;: 3
+ * }]
+ * </pre>
+ * </code>
+ */
+@SlingServlet(paths = "/system/qos", methods = "GET", extensions = "json")
+public class QoSStatusServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = 4205870163916389172L;
+
+  @Reference
+  protected QoSStatus qoSStatus;
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!User.ADMIN_USER.equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONWriter writer = new JSONWriter(response.getWriter());
+      writer.array();
+      for (QoSControl control : qoSStatus.getQoSControls()) {
+        writer.object();
+        writer.key("name").value(control.getName());
+        writer.key("limit").value(control.getLimit());
+        writer.key("inFlight").value(control.getInFlight());
+        writer.key("queued").value(control.getQueued());
+        writer.key("queuedUsers").value(control.getQueuedUsers());
+        writer.key("latency").value(control.getLatency());
+        writer.key("baseLatency").value(control.getBaseLatency());
+        writer.key("estimatedWait").value(control.estimateWait());
+        writer.key("accepted").value(control.getAcceptedCount());
+        writer.key("queuedTotal").value(control.getQueuedCount());
+        writer.key("shed").value(control.getShedCount());
+        writer.key("timedOut").value(control.getTimedOutCount());
+        writer.endObject();
+      }
+      writer.endArray();
+    } catch (JSONException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+}
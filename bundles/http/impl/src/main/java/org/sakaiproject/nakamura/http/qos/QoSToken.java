@@ -36,8 +36,9 @@ public interface QoSToken {
 
   /**
    * Perform any necessary release operations to release any semaphores, or otherwise, that were aquired. This method should also notify other requests that are suspended waiting on resources.
+   * @param completed true if the request was processed normally, so that how long it took says something about the load on the server.
    */
-  void release();
+  void release(boolean completed);
 
   /**
    * @return the max time in ms that this request should be suspended.
@@ -53,15 +54,26 @@ public interface QoSToken {
   boolean acquire(long waitMs) throws InterruptedException;
 
   /**
-   * Acquire already acquired semaphore.
-   * @throws InterruptedException
+   * Acquire a semaphore for a request that was let through before and is being dispatched again, without waiting.
    */
-  void acquire() throws InterruptedException;
+  void acquire();
 
   /**
    * Queue a continuation pending more resources
    * @param continuation
+   * @return false if the request should be turned away instead of waiting.
+   */
+  boolean queue(Continuation continuation);
+
+  /**
+   * Leave the queue, once the continuation has been resumed or has timed out.
+   * @return true if resources were handed to this request while it was queued, so that it may continue.
+   */
+  boolean dequeue();
+
+  /**
+   * @return how many seconds a client that is turned away should wait before trying again.
    */
-  void queue(Continuation continuation);
+  long getRetryAfter();
 
 }
@@ -19,19 +19,22 @@ package org.sakaiproject.nakamura.http.qos;
 
 import org.mortbay.util.ajax.Continuation;
 
-import java.util.Queue;
-import java.util.concurrent.TimeUnit;
-
 import javax.servlet.ServletRequest;
 
 public class QoSTokenImpl implements QoSToken {
 
   private QoSControl qoSControl;
-  private int priority;
+  private String user;
+  private QoSWaiter waiter;
+  private long started;
 
-  public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
+  /**
+   * @param user who the request is from, as far as can be told before authentication;
+   *          queued requests are shared out fairly between users.
+   */
+  public QoSTokenImpl(QoSControl qoSControl, ServletRequest request, String user) {
     this.qoSControl = qoSControl;
-    priority = qoSControl.getPriority(request);
+    this.user = user;
   }
 
 
@@ -39,32 +42,46 @@ public class QoSTokenImpl implements QoSToken {
     return this;
   }
 
-  public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
-      }
-    }
-    qoSControl.getSemaphore().release();
+  public void release(boolean completed) {
+    qoSControl.release(completed ? System.nanoTime() - started : -1L);
   }
 
   public long getSuspendTime() {
     return qoSControl.getTimeout();
   }
 
-  public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+  public boolean queue(Continuation continuation) {
+    waiter = new QoSWaiter(user, continuation);
+    return qoSControl.queue(waiter);
+  }
+
+  public boolean dequeue() {
+    if (waiter == null) {
+      return false;
+    }
+    boolean granted = qoSControl.dequeue(waiter);
+    waiter = null;
+    if (granted) {
+      started = System.nanoTime();
+    }
+    return granted;
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    boolean acquired = qoSControl.tryAcquire(waitMs);
+    if (acquired) {
+      started = System.nanoTime();
+    }
+    return acquired;
+  }
+
+  public void acquire() {
+    qoSControl.acquire();
+    started = System.nanoTime();
   }
 
-  public void acquire() throws InterruptedException {
-    qoSControl.getSemaphore().acquire();
+  public long getRetryAfter() {
+    return Math.max(1L, (qoSControl.estimateWait() + 999L) / 1000L);
   }
 
 }
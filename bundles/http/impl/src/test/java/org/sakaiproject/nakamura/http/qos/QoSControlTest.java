@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mortbay.util.ajax.Continuation;
+
+public class QoSControlTest {
+
+  private static final long MS = 1000000L;
+
+  @Test
+  public void testQueuedFairlyBetweenUsers() throws Exception {
+    QoSControl control = new QoSControl("test", 1, 1, false, 10, 0, 60000);
+    assertTrue(control.tryAcquire(0));
+    assertFalse(control.tryAcquire(0));
+
+    Continuation a1 = Mockito.mock(Continuation.class);
+    Continuation a2 = Mockito.mock(Continuation.class);
+    Continuation a3 = Mockito.mock(Continuation.class);
+    Continuation b1 = Mockito.mock(Continuation.class);
+    QoSWaiter[] waiters = new QoSWaiter[] { new QoSWaiter("a", a1), new QoSWaiter("a", a2),
+        new QoSWaiter("a", a3), new QoSWaiter("b", b1) };
+    for (QoSWaiter waiter : waiters) {
+      assertTrue(control.queue(waiter));
+    }
+    assertEquals(4, control.getQueued());
+    assertEquals(2, control.getQueuedUsers());
+
+    for (int i = 0; i < 4; i++) {
+      control.release(MS);
+    }
+    InOrder inOrder = Mockito.inOrder(a1, b1, a2, a3);
+    inOrder.verify(a1).resume();
+    inOrder.verify(b1).resume();
+    inOrder.verify(a2).resume();
+    inOrder.verify(a3).resume();
+    for (QoSWaiter waiter : waiters) {
+      assertTrue(control.dequeue(waiter));
+    }
+    // the place was handed on each time, so the last one still holds it.
+    assertEquals(1, control.getInFlight());
+    control.release(MS);
+    assertEquals(0, control.getInFlight());
+  }
+
+  @Test
+  public void testNotOvertakenByNewRequests() throws Exception {
+    QoSControl control = new QoSControl("test", 1, 1, false, 10, 0, 60000);
+    assertTrue(control.tryAcquire(0));
+    QoSWaiter waiter = new QoSWaiter("a", Mockito.mock(Continuation.class));
+    assertTrue(control.queue(waiter));
+    control.release(MS);
+    assertFalse(control.tryAcquire(0));
+    assertTrue(control.dequeue(waiter));
+  }
+
+  @Test
+  public void testTimedOut() throws Exception {
+    QoSControl control = new QoSControl("test", 1, 1, false, 10, 0, 60000);
+    assertTrue(control.tryAcquire(0));
+    QoSWaiter waiter = new QoSWaiter("a", Mockito.mock(Continuation.class));
+    assertTrue(control.queue(waiter));
+    assertFalse(control.dequeue(waiter));
+    assertEquals(0, control.getQueued());
+    assertEquals(1, control.getTimedOutCount());
+    control.release(MS);
+    assertTrue(control.tryAcquire(0));
+  }
+
+  @Test
+  public void testShedWhenFull() throws Exception {
+    QoSControl control = new QoSControl("test", 1, 1, false, 1, 0, 60000);
+    assertTrue(control.tryAcquire(0));
+    assertTrue(control.queue(new QoSWaiter("a", Mockito.mock(Continuation.class))));
+    assertFalse(control.queue(new QoSWaiter("b", Mockito.mock(Continuation.class))));
+    assertEquals(1, control.getShedCount());
+  }
+
+  @Test
+  public void testShedWhenTheWaitIsTooLong() throws Exception {
+    QoSControl control = new QoSControl("test", 1, 1, false, 100, 0, 1000);
+    assertTrue(control.tryAcquire(0));
+    // requests take 400ms, so the third in the queue would wait longer than 1s.
+    control.release(400 * MS);
+    assertTrue(control.tryAcquire(0));
+    assertTrue(control.queue(new QoSWaiter("a", Mockito.mock(Continuation.class))));
+    assertTrue(control.queue(new QoSWaiter("b", Mockito.mock(Continuation.class))));
+    assertFalse(control.queue(new QoSWaiter("c", Mockito.mock(Continuation.class))));
+    assertTrue(control.estimateWait() > 1000);
+  }
+
+  @Test
+  public void testLimitFollowsLatency() throws Exception {
+    QoSControl control = new QoSControl("test", 10, 40, true, 100, 0, 60000);
+    saturate(control, 200, 10 * MS);
+    int grown = control.getLimit();
+    assertTrue("limit grew to " + grown, grown > 10);
+
+    saturate(control, 50, 50 * MS);
+    int shrunk = control.getLimit();
+    assertTrue("limit shrank to " + shrunk, shrunk < grown);
+  }
+
+  @Test
+  public void testFixedLimit() throws Exception {
+    QoSControl control = new QoSControl("test", 10, 40, false, 100, 0, 60000);
+    saturate(control, 200, 10 * MS);
+    assertEquals(10, control.getLimit());
+  }
+
+  /**
+   * Keep every place taken while requests finish with the given latency.
+   */
+  private void saturate(QoSControl control, int requests, long latency)
+      throws InterruptedException {
+    while (control.tryAcquire(0)) {
+    }
+    for (int i = 0; i < requests; i++) {
+      control.release(latency);
+      while (control.tryAcquire(0)) {
+      }
+    }
+  }
+}
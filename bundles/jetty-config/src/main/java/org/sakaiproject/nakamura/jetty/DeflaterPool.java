@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps Deflaters for reuse, since each one holds native memory that is only freed when
+ * it is ended or finalized.
+ */
+public class DeflaterPool {
+
+  private final int level;
+  private final int maxSize;
+  private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * @param level the compression level of the Deflaters, 1 (fastest) to 9 (smallest).
+   * @param maxSize how many idle Deflaters to keep.
+   */
+  public DeflaterPool(int level, int maxSize) {
+    this.level = level;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return a Deflater with no zlib header or trailer, as gzip needs.
+   */
+  public Deflater get() {
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      return new Deflater(level, true);
+    }
+    size.decrementAndGet();
+    return deflater;
+  }
+
+  public void release(Deflater deflater) {
+    deflater.reset();
+    if (size.incrementAndGet() <= maxSize) {
+      deflaters.offer(deflater);
+    } else {
+      size.decrementAndGet();
+      deflater.end();
+    }
+  }
+
+  /**
+   * End all the idle Deflaters.
+   */
+  public void clear() {
+    for (Deflater deflater = deflaters.poll(); deflater != null; deflater = deflaters.poll()) {
+      size.decrementAndGet();
+      deflater.end();
+    }
+  }
+}
@@ -44,6 +44,7 @@ import java.io.UnsupportedEncodingException;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.FilterChain;
@@ -81,6 +82,13 @@ import javax.servlet.http.HttpServletResponseWrapper;
  * <code>excludedAgents</code> is set to a comma separated list of user agents, then these
  * agents will be excluded from gzip content.
  * </p>
+ * <p>
+ * Responses are compressed at <code>gzipLevel</code> with pooled Deflaters. GET requests
+ * under the comma separated <code>staticPaths</code> are compressed once at
+ * <code>staticGzipLevel</code> and served from a cache of up to
+ * <code>staticCacheSize</code> bytes, revalidated against the last modified time of the
+ * resource. Setting <code>staticCacheSize</code> to 0 turns the cache off.
+ * </p>
  * 
  * @author gregw
  * 
@@ -91,6 +99,14 @@ public class GzipFilter extends UserAgentFilter {
   protected int _bufferSize = 8192;
   protected int _minGzipSize = 0;
   protected Set<String> _excluded;
+  protected int _gzipLevel = 1;
+  protected int _staticGzipLevel = 9;
+  protected String[] _staticPaths = new String[] { "/dev/", "/devwidgets/" };
+  protected long _staticCacheSize = 16L * 1024L * 1024L;
+  protected int _staticMaxEntrySize = 1024 * 1024;
+  protected int _deflaterPoolSize = 32;
+  protected DeflaterPool _deflaters;
+  protected StaticGzipCache _staticCache;
 
   @Override
   public void init(FilterConfig filterConfig) throws ServletException {
@@ -121,10 +137,53 @@ public class GzipFilter extends UserAgentFilter {
         _excluded.add(tok.nextToken());
       }
     }
+
+    tmp = filterConfig.getInitParameter("gzipLevel");
+    if (tmp != null) {
+      _gzipLevel = Integer.parseInt(tmp);
+    }
+    tmp = filterConfig.getInitParameter("staticGzipLevel");
+    if (tmp != null) {
+      _staticGzipLevel = Integer.parseInt(tmp);
+    }
+    tmp = filterConfig.getInitParameter("staticPaths");
+    if (tmp != null) {
+      Set<String> paths = new HashSet<String>();
+      StringTokenizer tok = new StringTokenizer(tmp, ",", false);
+      while (tok.hasMoreTokens()) {
+        paths.add(tok.nextToken().trim());
+      }
+      _staticPaths = paths.toArray(new String[paths.size()]);
+    }
+    tmp = filterConfig.getInitParameter("staticCacheSize");
+    if (tmp != null) {
+      _staticCacheSize = Long.parseLong(tmp);
+    }
+    tmp = filterConfig.getInitParameter("staticMaxEntrySize");
+    if (tmp != null) {
+      _staticMaxEntrySize = Integer.parseInt(tmp);
+    }
+    tmp = filterConfig.getInitParameter("deflaterPoolSize");
+    if (tmp != null) {
+      _deflaterPoolSize = Integer.parseInt(tmp);
+    }
+
+    _deflaters = new DeflaterPool(_gzipLevel, _deflaterPoolSize);
+    if (_staticCacheSize > 0 && _staticPaths.length > 0) {
+      _staticCache = new StaticGzipCache(_staticCacheSize, _staticGzipLevel);
+    } else {
+      _staticCache = null;
+    }
   }
 
   @Override
   public void destroy() {
+    if (_staticCache != null) {
+      _staticCache.clear();
+    }
+    if (_deflaters != null) {
+      _deflaters.clear();
+    }
   }
 
   @Override
@@ -151,7 +210,11 @@ public class GzipFilter extends UserAgentFilter {
 
       boolean exceptional = true;
       try {
-        super.doFilter(request, wrappedResponse, chain);
+        if (isStaticCacheable(request)) {
+          doStaticFilter(request, response, wrappedResponse, chain);
+        } else {
+          super.doFilter(request, wrappedResponse, chain);
+        }
         exceptional = false;
       } catch (RuntimeException e) {
         request.setAttribute("GzipFilter", Boolean.FALSE);
@@ -172,6 +235,121 @@ public class GzipFilter extends UserAgentFilter {
     }
   }
 
+  /**
+   * @return true if the request is for a whole static resource that may be served from
+   *         the static cache.
+   */
+  protected boolean isStaticCacheable(HttpServletRequest request) {
+    if (_staticCache == null || !"GET".equals(request.getMethod())
+        || request.getQueryString() != null || request.getHeader("Range") != null
+        || request.getAttribute("javax.servlet.include.request_uri") != null) {
+      return false;
+    }
+    String uri = request.getRequestURI();
+    for (String path : _staticPaths) {
+      if (uri.startsWith(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Serve a static resource from the cache if the servlet says the held copy is current,
+   * otherwise compress and hold what the servlet sends, or send it on through the normal
+   * gzip path if it can't be held.
+   */
+  protected void doStaticFilter(HttpServletRequest request, HttpServletResponse response,
+      GZIPResponseWrapper wrappedResponse, FilterChain chain) throws IOException,
+      ServletException {
+    String path = request.getRequestURI();
+    StaticGzipCache.Entry entry = _staticCache.get(path);
+    HttpServletRequest downstream = entry == null ? request : new RevalidatingRequest(
+        request, entry.getLastModified());
+    StaticCaptureResponse capture = new StaticCaptureResponse(wrappedResponse,
+        _staticMaxEntrySize);
+    super.doFilter(downstream, capture, chain);
+    if (capture.isPassedThrough()) {
+      // an error, a redirect or a body too big to hold, none of which the held copy is
+      if (entry != null) {
+        _staticCache.remove(path);
+      }
+      return;
+    }
+    capture.flushWriter();
+    int status = capture.getStatus();
+    if (entry != null && status == HttpServletResponse.SC_NOT_MODIFIED) {
+      sendStatic(request, response, entry);
+      return;
+    }
+    if (status == HttpServletResponse.SC_OK && capture.getLastModified() > 0
+        && capture.getContentEncoding() == null && capture.getCount() > 0
+        && capture.getCount() >= _minGzipSize && isGzipMimeType(capture.getContentType())) {
+      entry = _staticCache.put(path, capture.getContentType(), capture.getLastModified(),
+          capture.getBuf(), capture.getCount());
+      sendStatic(request, response, entry);
+      return;
+    }
+    if (entry != null) {
+      _staticCache.remove(path);
+    }
+    capture.replay();
+  }
+
+  private void sendStatic(HttpServletRequest request, HttpServletResponse response,
+      StaticGzipCache.Entry entry) throws IOException {
+    response.setHeader("Vary", "Accept-Encoding");
+    response.setHeader("ETag", entry.getEtag());
+    response.setDateHeader("Last-Modified", entry.getLastModified());
+    if (entry.getContentType() != null) {
+      response.setContentType(entry.getContentType());
+    }
+    if (isNotModified(request, entry)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setHeader("Content-Encoding", "gzip");
+    byte[] gzipped = entry.getGzipped();
+    response.setContentLength(gzipped.length);
+    response.getOutputStream().write(gzipped);
+  }
+
+  private boolean isNotModified(HttpServletRequest request, StaticGzipCache.Entry entry) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      String etag = entry.getEtag();
+      StringTokenizer tok = new StringTokenizer(ifNoneMatch, ",", false);
+      while (tok.hasMoreTokens()) {
+        String tag = tok.nextToken().trim();
+        if ("*".equals(tag) || etag.equals(tag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    try {
+      long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      return ifModifiedSince >= 0
+          && entry.getLastModified() / 1000 <= ifModifiedSince / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private boolean isGzipMimeType(String ct) {
+    if (ct != null) {
+      int colon = ct.indexOf(';');
+      if (colon > 0) {
+        ct = ct.substring(0, colon);
+      }
+    }
+    if (_mimeTypes == null) {
+      return !"application/gzip".equalsIgnoreCase(ct);
+    }
+    return ct != null && _mimeTypes.contains(StringUtil.asciiToLowerCase(ct));
+  }
+
   protected GZIPResponseWrapper newGZIPResponseWrapper(HttpServletRequest request,
       HttpServletResponse response) {
     return new GZIPResponseWrapper(request, response);
@@ -423,7 +601,8 @@ public class GzipFilter extends UserAgentFilter {
     protected GzipStream newGzipStream(HttpServletRequest request,
         HttpServletResponse response, long contentLength, int bufferSize, int minGzipSize)
         throws IOException {
-      return new GzipStream(request, response, contentLength, bufferSize, minGzipSize);
+      return new GzipStream(request, response, contentLength, bufferSize, minGzipSize,
+          _deflaters);
     }
   }
 
@@ -432,7 +611,8 @@ public class GzipFilter extends UserAgentFilter {
     protected HttpServletResponse _response;
     protected OutputStream _out;
     protected ByteArrayOutputStream2 _bOut;
-    protected GZIPOutputStream _gzOut;
+    protected DeflaterOutputStream _gzOut;
+    protected DeflaterPool _deflaters;
     protected boolean _closed;
     protected int _bufferSize;
     protected int _minGzipSize;
@@ -450,6 +630,13 @@ public class GzipFilter extends UserAgentFilter {
       // doGzip();
     }
 
+    public GzipStream(HttpServletRequest request, HttpServletResponse response,
+        long contentLength, int bufferSize, int minGzipSize, DeflaterPool deflaters)
+        throws IOException {
+      this(request, response, contentLength, bufferSize, minGzipSize);
+      _deflaters = deflaters;
+    }
+
     public void resetBuffer() {
       _closed = false;
       _out = null;
@@ -457,6 +644,9 @@ public class GzipFilter extends UserAgentFilter {
       if (_gzOut != null && !_response.isCommitted()) {
         _response.setHeader("Content-Encoding", null);
       }
+      if (_gzOut instanceof PooledGzipOutputStream) {
+        ((PooledGzipOutputStream) _gzOut).release();
+      }
       _gzOut = null;
     }
 
@@ -542,6 +732,7 @@ public class GzipFilter extends UserAgentFilter {
     protected boolean setContentEncodingGzip() {
       LOGGER.debug("Encoding as GZip content");
       _response.setHeader("Content-Encoding", "gzip");
+      _response.addHeader("Vary", "Accept-Encoding");
       return _response.containsHeader("Content-Encoding");
     }
 
@@ -552,7 +743,12 @@ public class GzipFilter extends UserAgentFilter {
         }
 
         if (setContentEncodingGzip()) {
-          _out = _gzOut = new GZIPOutputStream(_response.getOutputStream(), _bufferSize);
+          if (_deflaters == null) {
+            _out = _gzOut = new GZIPOutputStream(_response.getOutputStream(), _bufferSize);
+          } else {
+            _out = _gzOut = new PooledGzipOutputStream(_response.getOutputStream(),
+                _deflaters, _bufferSize);
+          }
 
           if (_bOut != null) {
             _out.write(_bOut.getBuf(), 0, _bOut.getCount());
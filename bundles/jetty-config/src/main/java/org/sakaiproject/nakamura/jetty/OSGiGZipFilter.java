@@ -57,6 +57,12 @@ import javax.servlet.ServletResponse;
   @Property(name="userAgent", value="SEE SOURCE FOR CORRECT VALUE"),
   @Property(name="mimeTypes", value="text/html,text/plain,text/css,text/javascript,text/xml,application/xml,application/xhtml+xml,application/rss+xml,application/javascript,application/x-javascript,application/json"), 
   @Property(name="excludedAgents", value=""),
+  @Property(name="gzipLevel", intValue=1),
+  @Property(name="deflaterPoolSize", intValue=32),
+  @Property(name="staticPaths", value="/dev/,/devwidgets/"),
+  @Property(name="staticGzipLevel", intValue=9),
+  @Property(name="staticCacheSize", longValue=16777216),
+  @Property(name="staticMaxEntrySize", intValue=1048576),
   @Property(name="enabled", boolValue=false)
   // don't include a "pattern" property because we want to control whether the service is registered during activation
 })
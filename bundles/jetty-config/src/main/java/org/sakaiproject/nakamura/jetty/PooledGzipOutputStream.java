@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the gzip format with a Deflater taken from a {@link DeflaterPool}, which
+ * {@link java.util.zip.GZIPOutputStream} does not allow. The Deflater goes back to the
+ * pool when the stream is closed or released.
+ */
+public class PooledGzipOutputStream extends DeflaterOutputStream {
+
+  private static final byte[] HEADER = new byte[] { (byte) 0x1f, (byte) 0x8b,
+      8, 0, 0, 0, 0, 0, 0, 0 };
+
+  private final DeflaterPool pool;
+  private final CRC32 crc = new CRC32();
+  private boolean finished;
+  private boolean released;
+
+  public PooledGzipOutputStream(OutputStream out, DeflaterPool pool, int bufferSize)
+      throws IOException {
+    super(out, pool.get(), bufferSize);
+    this.pool = pool;
+    out.write(HEADER);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    super.write(b, off, len);
+    crc.update(b, off, len);
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if (!finished) {
+      finished = true;
+      super.finish();
+      writeInt((int) crc.getValue());
+      writeInt(def.getTotalIn());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Give the Deflater back without finishing the stream, when the output is abandoned.
+   */
+  public void release() {
+    if (!released) {
+      released = true;
+      pool.release(def);
+    }
+  }
+
+  private void writeInt(int i) throws IOException {
+    out.write(i & 0xff);
+    out.write((i >> 8) & 0xff);
+    out.write((i >> 16) & 0xff);
+    out.write((i >> 24) & 0xff);
+  }
+}
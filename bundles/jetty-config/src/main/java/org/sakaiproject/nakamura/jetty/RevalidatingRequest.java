@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Asks for a static resource only if it has changed since the copy held in the
+ * {@link StaticGzipCache}, in place of whatever the client asked for, so that a 304 from
+ * the servlet means the held copy can be served.
+ */
+class RevalidatingRequest extends HttpServletRequestWrapper {
+
+  private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+  private static final String IF_NONE_MATCH = "If-None-Match";
+
+  private final long lastModified;
+
+  RevalidatingRequest(HttpServletRequest request, long lastModified) {
+    super(request);
+    this.lastModified = lastModified;
+  }
+
+  @Override
+  public long getDateHeader(String name) {
+    if (IF_MODIFIED_SINCE.equalsIgnoreCase(name)) {
+      return lastModified;
+    }
+    if (IF_NONE_MATCH.equalsIgnoreCase(name)) {
+      return -1;
+    }
+    return super.getDateHeader(name);
+  }
+
+  @Override
+  public String getHeader(String name) {
+    if (IF_MODIFIED_SINCE.equalsIgnoreCase(name)) {
+      return formatDate();
+    }
+    if (IF_NONE_MATCH.equalsIgnoreCase(name)) {
+      return null;
+    }
+    return super.getHeader(name);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Enumeration getHeaders(String name) {
+    if (IF_MODIFIED_SINCE.equalsIgnoreCase(name)) {
+      return Collections.enumeration(Collections.singletonList(formatDate()));
+    }
+    if (IF_NONE_MATCH.equalsIgnoreCase(name)) {
+      return Collections.enumeration(Collections.emptyList());
+    }
+    return super.getHeaders(name);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Enumeration getHeaderNames() {
+    List<String> names = new ArrayList<String>();
+    for (Enumeration e = super.getHeaderNames(); e.hasMoreElements();) {
+      String name = (String) e.nextElement();
+      if (!IF_MODIFIED_SINCE.equalsIgnoreCase(name) && !IF_NONE_MATCH.equalsIgnoreCase(name)) {
+        names.add(name);
+      }
+    }
+    names.add(IF_MODIFIED_SINCE);
+    return Collections.enumeration(names);
+  }
+
+  private String formatDate() {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+        Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(new Date(lastModified));
+  }
+}
@@ -0,0 +1,290 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import org.mortbay.util.ByteArrayOutputStream2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Holds back the status and body of a static response so that the filter can decide
+ * whether to serve it from the {@link StaticGzipCache}. Headers go straight through. A
+ * body larger than the largest entry, an error or a redirect is passed straight through
+ * as well.
+ */
+class StaticCaptureResponse extends HttpServletResponseWrapper {
+
+  private final int maxSize;
+  private int status = SC_OK;
+  private String statusMessage;
+  private long lastModified = -1;
+  private String contentEncoding;
+  private ByteArrayOutputStream2 buffer;
+  private OutputStream out;
+  private ServletOutputStream stream;
+  private PrintWriter writer;
+  private boolean passedThrough;
+
+  StaticCaptureResponse(HttpServletResponse response, int maxSize) {
+    super(response);
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return true if the response has already gone to the wrapped response.
+   */
+  boolean isPassedThrough() {
+    return passedThrough;
+  }
+
+  int getStatus() {
+    return status;
+  }
+
+  long getLastModified() {
+    return lastModified;
+  }
+
+  String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  byte[] getBuf() {
+    return buffer == null ? new byte[0] : buffer.getBuf();
+  }
+
+  int getCount() {
+    return buffer == null ? 0 : buffer.getCount();
+  }
+
+  /**
+   * Flush anything written through the writer into the buffer.
+   */
+  void flushWriter() {
+    if (writer != null) {
+      writer.flush();
+    }
+  }
+
+  /**
+   * Send the held back response to the wrapped response as it was written.
+   */
+  void replay() throws IOException {
+    flushWriter();
+    passThrough();
+  }
+
+  @Override
+  public void setStatus(int sc) {
+    status = sc;
+    statusMessage = null;
+    if (passedThrough) {
+      super.setStatus(sc);
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  @Override
+  public void setStatus(int sc, String sm) {
+    status = sc;
+    statusMessage = sm;
+    if (passedThrough) {
+      super.setStatus(sc, sm);
+    }
+  }
+
+  @Override
+  public void sendError(int sc) throws IOException {
+    discard();
+    super.sendError(sc);
+  }
+
+  @Override
+  public void sendError(int sc, String msg) throws IOException {
+    discard();
+    super.sendError(sc, msg);
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    discard();
+    super.sendRedirect(location);
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+    if ("last-modified".equalsIgnoreCase(name)) {
+      lastModified = date;
+    }
+    super.setDateHeader(name, date);
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    if ("last-modified".equalsIgnoreCase(name)) {
+      lastModified = date;
+    }
+    super.addDateHeader(name, date);
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    recordHeader(name, value);
+    super.setHeader(name, value);
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    recordHeader(name, value);
+    super.addHeader(name, value);
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (passedThrough) {
+      super.flushBuffer();
+    } else {
+      flushWriter();
+    }
+  }
+
+  @Override
+  public void resetBuffer() {
+    if (passedThrough) {
+      super.resetBuffer();
+    } else if (buffer != null) {
+      buffer.reset();
+    }
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    if (!passedThrough) {
+      status = SC_OK;
+      statusMessage = null;
+      lastModified = -1;
+      contentEncoding = null;
+      if (buffer != null) {
+        buffer.reset();
+      }
+    }
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (writer != null) {
+      throw new IllegalStateException("getWriter() called");
+    }
+    return getStream();
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      if (stream != null) {
+        throw new IllegalStateException("getOutputStream() called");
+      }
+      String encoding = getCharacterEncoding();
+      OutputStream s = getStream();
+      writer = encoding == null ? new PrintWriter(s) : new PrintWriter(
+          new OutputStreamWriter(s, encoding));
+    }
+    return writer;
+  }
+
+  private ServletOutputStream getStream() {
+    if (stream == null) {
+      stream = new ServletOutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          checkOut(1);
+          out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          checkOut(len);
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          if (passedThrough) {
+            out.flush();
+          }
+        }
+      };
+    }
+    return stream;
+  }
+
+  private void checkOut(int length) throws IOException {
+    if (out == null) {
+      if (passedThrough) {
+        out = super.getOutputStream();
+      } else {
+        out = buffer = new ByteArrayOutputStream2(Math.min(8192, maxSize + 1));
+      }
+    }
+    if (!passedThrough && buffer.getCount() + length > maxSize) {
+      passThrough();
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private void passThrough() throws IOException {
+    if (!passedThrough) {
+      passedThrough = true;
+      if (statusMessage == null) {
+        super.setStatus(status);
+      } else {
+        super.setStatus(status, statusMessage);
+      }
+      if (buffer != null) {
+        out = super.getOutputStream();
+        out.write(buffer.getBuf(), 0, buffer.getCount());
+        buffer = null;
+      }
+    }
+  }
+
+  /**
+   * Drop anything held back, the response is going to be replaced.
+   */
+  private void discard() {
+    passedThrough = true;
+    buffer = null;
+    out = null;
+  }
+
+  private void recordHeader(String name, String value) {
+    if ("content-encoding".equalsIgnoreCase(name)) {
+      contentEncoding = value;
+    } else if ("last-modified".equalsIgnoreCase(name)) {
+      lastModified = -1;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Holds the gzipped form of static resources, keyed by path and checked against the
+ * last modified time of the resource, so that the same files are compressed once rather
+ * than on every request. The least recently used entries are dropped to keep within a
+ * budget of compressed bytes.
+ */
+public class StaticGzipCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StaticGzipCache.class);
+
+  public static class Entry {
+    private final String contentType;
+    private final long lastModified;
+    private final byte[] gzipped;
+    private final String etag;
+
+    Entry(String contentType, long lastModified, byte[] gzipped, String etag) {
+      this.contentType = contentType;
+      this.lastModified = lastModified;
+      this.gzipped = gzipped;
+      this.etag = etag;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public byte[] getGzipped() {
+      return gzipped;
+    }
+
+    /**
+     * @return a strong ETag for the gzipped form, including the quotes.
+     */
+    public String getEtag() {
+      return etag;
+    }
+  }
+
+  private final long maxBytes;
+  private final DeflaterPool deflaters;
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f,
+      true);
+  private long bytes;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param maxBytes the most compressed bytes to hold.
+   * @param level the compression level, normally the highest since it is only paid once.
+   */
+  public StaticGzipCache(long maxBytes, int level) {
+    this.maxBytes = maxBytes;
+    this.deflaters = new DeflaterPool(level, 2);
+  }
+
+  /**
+   * @return the entry for the path, which may be out of date, or null.
+   */
+  public synchronized Entry get(String path) {
+    Entry entry = entries.get(path);
+    if (entry == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return entry;
+  }
+
+  /**
+   * Compress and hold a resource.
+   *
+   * @return the new entry, which will not be held if it is too big for the budget.
+   */
+  public Entry put(String path, String contentType, long lastModified, byte[] content,
+      int length) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length / 3 + 64);
+    PooledGzipOutputStream gzip = new PooledGzipOutputStream(out, deflaters, 8192);
+    gzip.write(content, 0, length);
+    gzip.close();
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, length);
+    Entry entry = new Entry(contentType, lastModified, out.toByteArray(), "\""
+        + Long.toHexString(crc.getValue()) + "-" + Long.toHexString(lastModified)
+        + "-gzip\"");
+    synchronized (this) {
+      Entry old = entries.remove(path);
+      if (old != null) {
+        bytes -= old.gzipped.length;
+      }
+      if (entry.gzipped.length <= maxBytes) {
+        entries.put(path, entry);
+        bytes += entry.gzipped.length;
+        for (Iterator<Entry> i = entries.values().iterator(); bytes > maxBytes
+            && i.hasNext();) {
+          bytes -= i.next().gzipped.length;
+          i.remove();
+        }
+      }
+      LOGGER.debug("Compressed {} from {} to {} bytes, holding {} bytes for {} paths",
+          new Object[] { path, length, entry.gzipped.length, bytes, entries.size() });
+    }
+    return entry;
+  }
+
+  public synchronized void remove(String path) {
+    Entry old = entries.remove(path);
+    if (old != null) {
+      bytes -= old.gzipped.length;
+    }
+  }
+
+  public synchronized void clear() {
+    LOGGER.info("Static gzip cache held {} bytes for {} paths, {} hits, {} misses",
+        new Object[] { bytes, entries.size(), hits, misses });
+    entries.clear();
+    bytes = 0;
+    deflaters.clear();
+  }
+}
@@ -0,0 +1,264 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class GzipFilterTest {
+
+  private static final String PATH = "/dev/lib/app.js";
+
+  private GzipFilter filter;
+  private StaticServlet servlet;
+  private Map<String, String> initParameters;
+
+  @Before
+  public void before() throws Exception {
+    initParameters = new HashMap<String, String>();
+    servlet = new StaticServlet(1000000L, body('a', 4000));
+  }
+
+  @Test
+  public void testRevalidatedCopyServed() throws Exception {
+    init();
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    HttpServletResponse response = get(null, first);
+    Assert.assertEquals(1, servlet.served);
+    Assert.assertEquals(servlet.body, gunzip(first.toByteArray()));
+    verifyReplay(response, first.size());
+
+    // the servlet is asked whether the held copy is current, and says it is
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    response = get(null, second);
+    Assert.assertEquals(servlet.lastModified, servlet.ifModifiedSince);
+    Assert.assertEquals(1, servlet.served);
+    Assert.assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+    verifyReplay(response, second.size());
+  }
+
+  @Test
+  public void testChangedResourceReplacesEntry() throws Exception {
+    init();
+    get(null, new ByteArrayOutputStream());
+
+    servlet.lastModified = 2000000L;
+    servlet.body = body('b', 4000);
+    ByteArrayOutputStream changed = new ByteArrayOutputStream();
+    get(null, changed);
+    Assert.assertEquals(1000000L, servlet.ifModifiedSince);
+    Assert.assertEquals(2, servlet.served);
+    Assert.assertEquals(servlet.body, gunzip(changed.toByteArray()));
+
+    // the new copy is the one revalidated and served
+    ByteArrayOutputStream again = new ByteArrayOutputStream();
+    get(null, again);
+    Assert.assertEquals(2000000L, servlet.ifModifiedSince);
+    Assert.assertEquals(2, servlet.served);
+    Assert.assertEquals(servlet.body, gunzip(again.toByteArray()));
+  }
+
+  @Test
+  public void testLargeBodyPassedThrough() throws Exception {
+    initParameters.put("staticMaxEntrySize", "1024");
+    init();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = get(null, out);
+    // sent on through the normal path, which the mock response does not gzip
+    Assert.assertEquals(servlet.body, new String(out.toByteArray(), "UTF-8"));
+    verify(response, never()).setHeader(Matchers.eq("ETag"), Matchers.anyString());
+
+    get(null, new ByteArrayOutputStream());
+    Assert.assertEquals(-1L, servlet.ifModifiedSince);
+    Assert.assertEquals(2, servlet.served);
+  }
+
+  @Test
+  public void testErrorNotCached() throws Exception {
+    init();
+    get(null, new ByteArrayOutputStream());
+
+    servlet.error = HttpServletResponse.SC_NOT_FOUND;
+    HttpServletResponse response = get(null, new ByteArrayOutputStream());
+    verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+    verify(response, never()).setHeader(Matchers.eq("ETag"), Matchers.anyString());
+
+    // the held copy was dropped, so nothing is revalidated
+    get(null, new ByteArrayOutputStream());
+    Assert.assertEquals(-1L, servlet.ifModifiedSince);
+  }
+
+  @Test
+  public void testRedirectNotCached() throws Exception {
+    init();
+    servlet.redirect = "/dev/lib/other.js";
+    HttpServletResponse response = get(null, new ByteArrayOutputStream());
+    verify(response).sendRedirect("/dev/lib/other.js");
+    verify(response, never()).setHeader(Matchers.eq("ETag"), Matchers.anyString());
+
+    servlet.redirect = null;
+    get(null, new ByteArrayOutputStream());
+    Assert.assertEquals(-1L, servlet.ifModifiedSince);
+  }
+
+  @Test
+  public void testIfNoneMatch() throws Exception {
+    init();
+    HttpServletResponse response = get(null, new ByteArrayOutputStream());
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(Matchers.eq("ETag"), etag.capture());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    response = get(etag.getValue(), out);
+    // the client's tag is not passed to the servlet, which is asked about the held copy
+    Assert.assertEquals(servlet.lastModified, servlet.ifModifiedSince);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response, never()).setContentLength(Matchers.anyInt());
+    Assert.assertEquals(0, out.size());
+
+    out = new ByteArrayOutputStream();
+    get("\"other\"", out);
+    Assert.assertEquals(servlet.body, gunzip(out.toByteArray()));
+  }
+
+  private void init() throws ServletException {
+    FilterConfig filterConfig = mock(FilterConfig.class);
+    when(filterConfig.getInitParameter(Matchers.anyString())).thenAnswer(
+        new Answer<String>() {
+          public String answer(InvocationOnMock invocation) {
+            return initParameters.get(invocation.getArguments()[0]);
+          }
+        });
+    filter = new GzipFilter();
+    filter.init(filterConfig);
+  }
+
+  private HttpServletResponse get(String ifNoneMatch, final ByteArrayOutputStream out)
+      throws IOException, ServletException {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getRequestURI()).thenReturn(PATH);
+    when(request.getHeader("accept-encoding")).thenReturn("gzip, deflate");
+    when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getContentType()).thenReturn("text/javascript");
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+    });
+    filter.doFilter(request, response, servlet);
+    return response;
+  }
+
+  private void verifyReplay(HttpServletResponse response, int length) {
+    verify(response).setStatus(HttpServletResponse.SC_OK);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("Vary", "Accept-Encoding");
+    verify(response).setContentLength(length);
+  }
+
+  private static String body(char c, int length) {
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static String gunzip(byte[] gzipped) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    return new String(out.toByteArray(), "UTF-8");
+  }
+
+  /**
+   * Serves one resource the way the default servlet does, honouring If-Modified-Since.
+   */
+  private static class StaticServlet implements FilterChain {
+    private long lastModified;
+    private String body;
+    private int error;
+    private String redirect;
+    private long ifModifiedSince;
+    private int served;
+
+    StaticServlet(long lastModified, String body) {
+      this.lastModified = lastModified;
+      this.body = body;
+    }
+
+    public void doFilter(ServletRequest req, ServletResponse res) throws IOException,
+        ServletException {
+      HttpServletRequest request = (HttpServletRequest) req;
+      HttpServletResponse response = (HttpServletResponse) res;
+      ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      if (error > 0) {
+        response.sendError(error);
+        return;
+      }
+      if (redirect != null) {
+        response.sendRedirect(redirect);
+        return;
+      }
+      if (ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      response.setContentType("text/javascript");
+      response.setDateHeader("Last-Modified", lastModified);
+      response.getOutputStream().write(body.getBytes("UTF-8"));
+      served++;
+    }
+  }
+}
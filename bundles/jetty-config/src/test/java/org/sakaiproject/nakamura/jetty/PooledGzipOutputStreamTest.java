@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class PooledGzipOutputStreamTest {
+
+  /**
+   * Records the Deflaters handed out and given back.
+   */
+  private static class RecordingPool extends DeflaterPool {
+    private final List<Deflater> taken = new ArrayList<Deflater>();
+    private final List<Deflater> released = new ArrayList<Deflater>();
+
+    RecordingPool() {
+      super(1, 2);
+    }
+
+    @Override
+    public Deflater get() {
+      Deflater deflater = super.get();
+      taken.add(deflater);
+      return deflater;
+    }
+
+    @Override
+    public void release(Deflater deflater) {
+      released.add(deflater);
+      super.release(deflater);
+    }
+  }
+
+  @Test
+  public void testReleasedOnClose() throws Exception {
+    RecordingPool pool = new RecordingPool();
+    byte[] content = "some static content, some static content".getBytes("UTF-8");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PooledGzipOutputStream gzip = new PooledGzipOutputStream(out, pool, 512);
+    gzip.write(content, 0, content.length);
+    gzip.close();
+    Assert.assertEquals(pool.taken, pool.released);
+    Assert.assertTrue(Arrays.equals(content, gunzip(out.toByteArray())));
+
+    // the released Deflater is reused, and still writes valid gzip
+    out = new ByteArrayOutputStream();
+    gzip = new PooledGzipOutputStream(out, pool, 512);
+    Assert.assertSame(pool.taken.get(0), pool.taken.get(1));
+    gzip.write(content, 0, content.length);
+    gzip.close();
+    Assert.assertTrue(Arrays.equals(content, gunzip(out.toByteArray())));
+  }
+
+  @Test
+  public void testReleasedWhenWriteFails() throws Exception {
+    RecordingPool pool = new RecordingPool();
+    PooledGzipOutputStream gzip = new PooledGzipOutputStream(new FailingOutputStream(64),
+        pool, 64);
+    byte[] content = new byte[4096];
+    new Random(42).nextBytes(content);
+    try {
+      gzip.write(content, 0, content.length);
+      gzip.close();
+      Assert.fail("The output should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      gzip.close();
+    } catch (IOException e) {
+      // the output is still failing
+    }
+    Assert.assertEquals(1, pool.released.size());
+    Assert.assertEquals(pool.taken, pool.released);
+  }
+
+  @Test
+  public void testReleasedOnceWhenAbandoned() throws Exception {
+    RecordingPool pool = new RecordingPool();
+    PooledGzipOutputStream gzip = new PooledGzipOutputStream(new ByteArrayOutputStream(),
+        pool, 512);
+    gzip.write(new byte[] { 1, 2, 3 }, 0, 3);
+    gzip.release();
+    gzip.release();
+    Assert.assertEquals(1, pool.released.size());
+  }
+
+  @Test
+  public void testPoolKeepsAtMostMaxSize() throws Exception {
+    DeflaterPool pool = new DeflaterPool(1, 1);
+    Deflater first = pool.get();
+    Deflater second = pool.get();
+    Assert.assertNotSame(first, second);
+    pool.release(first);
+    pool.release(second);
+    Assert.assertSame(first, pool.get());
+    Assert.assertNotSame(second, pool.get());
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Accepts a number of bytes, then fails, as a client that has gone away.
+   */
+  private static class FailingOutputStream extends OutputStream {
+    private int remaining;
+
+    FailingOutputStream(int remaining) {
+      this.remaining = remaining;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (remaining-- <= 0) {
+        throw new IOException("Connection reset");
+      }
+    }
+  }
+}
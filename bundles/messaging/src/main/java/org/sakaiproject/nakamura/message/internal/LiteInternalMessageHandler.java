@@ -19,7 +19,9 @@ package org.sakaiproject.nakamura.message.internal;
 
 import com.google.common.collect.ImmutableMap;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -28,6 +30,7 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -59,7 +62,19 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery. Needs to be
@@ -75,6 +90,16 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   private static final Logger LOG = LoggerFactory.getLogger(LiteInternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
 
+  @Property(intValue = 4)
+  static final String FANOUT_THREADS = "fanout.threads";
+
+  /**
+   * How many recipients are delivered to by one task. Messages to no more recipients
+   * than this are delivered by the thread that handles the event.
+   */
+  @Property(intValue = 100)
+  static final String FANOUT_BATCH_SIZE = "fanout.batch.size";
+
   @Reference
   protected transient Repository slingRepository;
 
@@ -89,14 +114,54 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  private int batchSize = 100;
+
+  private ThreadPoolExecutor deliveryPool;
+
   /**
    * Default constructor
    */
   public LiteInternalMessageHandler() {
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    int threads = Math.max(1, PropertiesUtil.toInteger(properties.get(FANOUT_THREADS), 4));
+    batchSize = Math.max(1, PropertiesUtil.toInteger(properties.get(FANOUT_BATCH_SIZE), 100));
+    // when the queue is full the event thread delivers the batch itself, which holds
+    // back further fan out until the pool has caught up.
+    deliveryPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 64), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Internal message delivery");
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (deliveryPool != null) {
+      deliveryPool.shutdown();
+      try {
+        if (!deliveryPool.awaitTermination(30, TimeUnit.SECONDS)) {
+          LOG.warn("Messages still being delivered on shutdown, some may not arrive ");
+          deliveryPool.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        deliveryPool.shutdownNow();
+      }
+      deliveryPool = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
+   *
+   * Groups are expanded once into the set of recipients, and the inbox copy of the
+   * message is built once. Large recipient sets are delivered to in batches by a pool
+   * of threads, so that this returns once the batches have been handed over.
    * 
    * @see org.sakaiproject.nakamura.api.message.LiteMessageTransport#send(org.sakaiproject.nakamura.api.message.MessageRoutes,
    *      org.osgi.service.event.Event, Content)
@@ -107,19 +172,34 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
 
       session = slingRepository.loginAdministrative();
 
-      // recipients keeps track of who have already received the message, to avoid
-      // duplicate messages
-      List<String> recipients = new ArrayList<String>();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
-      for (MessageRoute route : routes) {
-        if (LiteMessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
-          String recipient = route.getRcpt();
-          LOG.info("Started handling a message for delivery to {} ", recipient );
-          // the path were we want to save messages in.
-          String messageId = (String) originalMessage
-              .getProperty(MessageConstants.PROP_SAKAI_ID);
-          sendHelper(recipients, recipient, originalMessage, session, messageId,
-              authorizableManager);
+      List<String> recipients = expandRecipients(routes, session.getAuthorizableManager());
+      if (recipients.isEmpty()) {
+        return;
+      }
+      // the path were we want to save messages in.
+      final String messageId = (String) originalMessage
+          .getProperty(MessageConstants.PROP_SAKAI_ID);
+      final Content message = originalMessage;
+      final Map<String, Object> inboxProperties = getInboxProperties(originalMessage);
+      ThreadPoolExecutor pool = deliveryPool;
+      if (pool == null || recipients.size() <= batchSize) {
+        deliver(recipients, message, messageId, inboxProperties, session);
+        return;
+      }
+      LOG.info("Delivering {} to {} recipients in batches of {} ", new Object[] {
+          originalMessage.getPath(), recipients.size(), batchSize });
+      for (int i = 0; i < recipients.size(); i += batchSize) {
+        final List<String> batch = new ArrayList<String>(recipients.subList(i,
+            Math.min(recipients.size(), i + batchSize)));
+        try {
+          pool.execute(new Runnable() {
+            public void run() {
+              deliverBatch(batch, message, messageId, inboxProperties);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          // the pool has been shut down under us.
+          deliver(batch, message, messageId, inboxProperties, session);
         }
       }
     } catch (AccessDeniedException e) {
@@ -139,66 +219,133 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }
   }
 
-  private void sendHelper(List<String> recipients, String recipient,
-      Content originalMessage, Session session, String messageId,
-      AuthorizableManager authManager) {
-    try {
-      ContentManager contentManager = session.getContentManager();
+  /**
+   * Expand the internal routes into the users and stores to deliver to, each once. Groups
+   * are expanded to their members, which allows for groups to be in groups.
+   */
+  private List<String> expandRecipients(MessageRoutes routes,
+      AuthorizableManager authManager) throws AccessDeniedException,
+      StorageClientException {
+    Set<String> seen = new HashSet<String>();
+    Set<String> recipients = new LinkedHashSet<String>();
+    LinkedList<String> toExpand = new LinkedList<String>();
+    for (MessageRoute route : routes) {
+      if (LiteMessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        LOG.info("Started handling a message for delivery to {} ", route.getRcpt());
+        toExpand.add(route.getRcpt());
+      }
+    }
+    while (!toExpand.isEmpty()) {
+      String recipient = toExpand.removeFirst();
+      // seen prevents infinite recursion in cyclic group references
+      if (!seen.add(recipient)) {
+        continue;
+      }
       Authorizable au = authManager.findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
-        Group group = (Group) au;
-        recipients.add(recipient); // prevent infinite recursion in cyclic group references
+      if (au instanceof Group) {
         // user must be in the group directly to send a message:
-        for (String memberName : group.getMembers()) {
-          if (!recipients.contains(memberName)) {
-            // call back to itself: this allows for groups to be in groups and future
-            // extensions
-            sendHelper(recipients, memberName, originalMessage, session, messageId,
-                authManager);
-          }
+        for (String memberName : ((Group) au).getMembers()) {
+          toExpand.add(memberName);
         }
       } else {
-        // only send a message to a user who hasn't already received one:
-        if (!recipients.contains(recipient)) {
+        recipients.add(recipient);
+      }
+    }
+    return new ArrayList<String>(recipients);
+  }
 
-          String messageStorePath = messagingService.getFullPathToStore(recipient, session);
-          if (messageStorePath.endsWith("/")) {
-            messageStorePath = messageStorePath.substring(0, messageStorePath.length() - 1);
-          }
-          boolean forPublicOrEveryone = hasEveryoneOrPublicPermission(messageStorePath, contentManager);
-
-          if ( forPublicOrEveryone || messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
-            String toPath = messagingService.getFullPathToMessage(recipient, messageId,
-                session);
-            
-            
-  
-            try {
-              lockManager.waitForLock(toPath);
-            } catch (LockTimeoutException e1) {
-              throw new MessagingException("Unable to lock destination message store");
-            }
-            
-            ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
-            // Copy the content into the user his folder.
-            contentManager.update(
-                new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
-                    .build()));
-            contentManager.copy(originalMessage.getPath(), toPath, true);
-            Content message = contentManager.get(toPath);
-            LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
-  
-            // Add some extra properties on the just created node.
-            message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-            message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
-            contentManager.update(message);
-          } else {
-            LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
+  /**
+   * @return the properties of the message as it is delivered to an inbox, less the
+   *         message store which differs by recipient.
+   */
+  private Map<String, Object> getInboxProperties(Content originalMessage) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    for (Entry<String, Object> e : originalMessage.getProperties().entrySet()) {
+      String k = e.getKey();
+      if (!(k.startsWith("_") || k.startsWith(":"))) {
+        properties.put(k, e.getValue());
+      }
+    }
+    properties.put(MessageConstants.PROP_SAKAI_READ, false);
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    properties.put(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+    return properties;
+  }
+
+  private void deliverBatch(List<String> batch, Content originalMessage, String messageId,
+      Map<String, Object> inboxProperties) {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative();
+      deliver(batch, originalMessage, messageId, inboxProperties, session);
+    } catch (ClientPoolException e) {
+      LOG.error(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOG.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOG.error(e.getMessage(), e);
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOG.error("Failed to logout session. {} ", e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void deliver(List<String> recipients, Content originalMessage,
+      String messageId, Map<String, Object> inboxProperties, Session session) {
+    // a message with a body has to have the body copied, anything else is written whole
+    boolean hasBody = originalMessage.hasProperty(Content.LENGTH_FIELD);
+    for (String recipient : recipients) {
+      deliver(recipient, originalMessage, messageId, inboxProperties, hasBody, session);
+    }
+  }
+
+  private void deliver(String recipient, Content originalMessage, String messageId,
+      Map<String, Object> inboxProperties, boolean hasBody, Session session) {
+    try {
+      ContentManager contentManager = session.getContentManager();
+      String messageStorePath = messagingService.getFullPathToStore(recipient, session);
+      String fullStorePath = messageStorePath;
+      if (messageStorePath.endsWith("/")) {
+        messageStorePath = messageStorePath.substring(0, messageStorePath.length() - 1);
+      }
+      boolean forPublicOrEveryone = hasEveryoneOrPublicPermission(messageStorePath, contentManager);
+
+      if ( forPublicOrEveryone || messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
+        String toPath = messagingService.getFullPathToMessage(recipient, messageId,
+            session);
+
+        try {
+          lockManager.waitForLock(toPath);
+        } catch (LockTimeoutException e1) {
+          throw new MessagingException("Unable to lock destination message store");
+        }
+
+        String boxPath = toPath.substring(0, toPath.lastIndexOf("/"));
+        if (!contentManager.exists(boxPath)) {
+          contentManager.update(new Content(boxPath, ImmutableMap.<String, Object> of()));
+        }
+        if (hasBody) {
+          // Copy the content into the user his folder.
+          contentManager.copy(originalMessage.getPath(), toPath, true);
+          Content message = contentManager.get(toPath);
+          for (Entry<String, Object> e : inboxProperties.entrySet()) {
+            message.setProperty(e.getKey(), e.getValue());
           }
-          recipients.add(recipient);
+          message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, fullStorePath);
+          contentManager.update(message);
+        } else {
+          Map<String, Object> properties = new HashMap<String, Object>(inboxProperties);
+          properties.put(MessageConstants.PROP_SAKAI_MESSAGE_STORE, fullStorePath);
+          contentManager.update(new Content(toPath, properties));
         }
+        LOG.debug("Message delivered at {} from {} ", toPath, originalMessage.getPath());
+      } else {
+        LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
       }
     } catch (AccessDeniedException e) {
       LOG.error(e.getMessage(), e);
@@ -206,6 +353,8 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
       LOG.error(e.getMessage(), e);
     } catch (IOException e) {
       LOG.error(e.getMessage(), e);
+    } catch (MessagingException e) {
+      LOG.error(e.getMessage(), e);
     } finally {
       lockManager.clearLocks();
     }
@@ -18,14 +18,24 @@
 package org.sakaiproject.nakamura.message.internal;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
@@ -40,8 +50,11 @@ import org.sakaiproject.nakamura.api.message.MessageRoutes;
 import org.sakaiproject.nakamura.message.listener.LiteMessageRoutesImpl;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -105,6 +118,61 @@ public class LiteInternalMessageHandlerTest {
 
   }
 
+  @Test
+  public void testGroupFanOut() throws Exception {
+    handler.activate(ImmutableMap.<String, Object> of(
+        LiteInternalMessageHandler.FANOUT_THREADS, 2,
+        LiteInternalMessageHandler.FANOUT_BATCH_SIZE, 1));
+    try {
+      Group group = (Group) createAuthorizable(groupName, true);
+      Group subgroup = (Group) createAuthorizable("g_group2", true);
+      // members in both groups, and groups in each other
+      when(group.getMembers()).thenReturn(new String[] { "user1", "user2", "g_group2" });
+      when(subgroup.getMembers()).thenReturn(new String[] { "user2", "user3", groupName });
+      AuthorizableManager am = createAuthManager(null, group, subgroup,
+          createAuthorizable("user1", false), createAuthorizable("user2", false),
+          createAuthorizable("user3", false));
+      when(session.getAuthorizableManager()).thenReturn(am);
+      when(repository.loginAdministrative()).thenReturn(session);
+      when(messagingService.getFullPathToStore(isA(String.class), isA(Session.class)))
+          .thenReturn("/store/");
+      when(
+          messagingService.checkDeliveryAccessOk(isA(String.class), isA(Content.class),
+              isA(Session.class))).thenReturn(true);
+      when(
+          messagingService.getFullPathToMessage(isA(String.class), eq("foo"),
+              isA(Session.class))).thenAnswer(new Answer<String>() {
+        public String answer(InvocationOnMock invocation) throws Throwable {
+          return "/inbox/" + invocation.getArguments()[0] + "/foo";
+        }
+      });
+
+      Content originalMessage = new Content("/outbox/foo", ImmutableMap.<String, Object> of(
+          MessageConstants.PROP_SAKAI_TO, "internal:" + groupName + ",internal:user1",
+          MessageConstants.PROP_SAKAI_ID, "foo", MessageConstants.PROP_SAKAI_BODY, "hi"));
+      handler.send(new LiteMessageRoutesImpl(originalMessage), null, originalMessage);
+
+      // a box and a message for each user
+      ArgumentCaptor<Content> updated = ArgumentCaptor.forClass(Content.class);
+      verify(cm, timeout(5000).times(6)).update(updated.capture());
+      Set<String> delivered = new HashSet<String>();
+      for (Content c : updated.getAllValues()) {
+        if (c.getPath().endsWith("/foo")) {
+          assertTrue(delivered.add(c.getPath()));
+          assertEquals("hi", c.getProperty(MessageConstants.PROP_SAKAI_BODY));
+          assertEquals(MessageConstants.BOX_INBOX, c.getProperty(
+              MessageConstants.PROP_SAKAI_MESSAGEBOX));
+          assertEquals("/store/", c.getProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE));
+        }
+      }
+      assertEquals(ImmutableSet.of("/inbox/user1/foo", "/inbox/user2/foo",
+          "/inbox/user3/foo"), delivered);
+      verify(cm, never()).copy(anyString(), anyString(), anyBoolean());
+    } finally {
+      handler.deactivate();
+    }
+  }
+
   private void testMessage(String path, String newPath, String to) throws Exception {
  // Original message created to send
     Map<String, Object> props = ImmutableMap.of(MessageConstants.PROP_SAKAI_TO,
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.personal;
+
+import java.util.List;
+
+/**
+ * Counts recent activity on groups and content in memory, so that the most active
+ * resources over a window of time can be found without reading back every record kept
+ * by the {@link PersonalTrackingStore}.
+ */
+public interface ActivityAggregator {
+
+  /**
+   * Count one piece of activity.
+   *
+   * @param resourceId the identifier of the group or content that was modified
+   * @param resourceType content | group | user
+   * @param timestamp the time of the activity in ms
+   */
+  void record(String resourceId, String resourceType, long timestamp);
+
+  /**
+   * @param resourceType content | group | user
+   * @param since the start of the window in ms
+   * @return true if activity has been counted for the whole of the window. Counts are
+   *         only held in memory, so a window that starts before the aggregator did cannot
+   *         be answered.
+   */
+  boolean covers(String resourceType, long since);
+
+  /**
+   * @param resourceType content | group | user
+   * @param since the start of the window in ms
+   * @param limit the maximum number of resources to return
+   * @return the most active resources since the given time, most active first. Counts
+   *         are estimates, and the window is widened to the start of the bucket it falls
+   *         in. No access control has been applied.
+   */
+  List<ActivityCount> getMostActive(String resourceType, long since, int limit);
+}
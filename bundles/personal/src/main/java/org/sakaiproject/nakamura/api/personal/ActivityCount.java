@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.personal;
+
+/**
+ * The amount of activity on one resource, as counted by an {@link ActivityAggregator}.
+ */
+public class ActivityCount {
+
+  private final String resourceId;
+  private final long count;
+
+  public ActivityCount(String resourceId, long count) {
+    this.resourceId = resourceId;
+    this.count = count;
+  }
+
+  public String getResourceId() {
+    return resourceId;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return "ActivityCount(" + resourceId + ", " + count + ")";
+  }
+}
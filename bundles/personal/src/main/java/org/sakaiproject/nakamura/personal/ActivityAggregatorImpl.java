@@ -0,0 +1,681 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.personal.ActivityAggregator;
+import org.sakaiproject.nakamura.api.personal.ActivityCount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps activity counts for each resource type in rings of minute, hour and day buckets.
+ * Each bucket holds a {@link SpaceSavingCounter}, so memory is bounded however many
+ * resources are active, and a window is answered from the finest ring that reaches back
+ * far enough.
+ * <p>
+ * Each server counts the activity it sees. The buckets that changed are shared through a
+ * cluster replicated cache, at most once a minute, under keys that end in the id of the
+ * server, in the way the search bundle shares deleted paths. A ranking adds the buckets
+ * of the other servers to the local ones, so it covers the whole cluster, less at most a
+ * minute of activity on the other servers.
+ * </p>
+ * <p>
+ * The day buckets that changed are also kept in storage, under {@link #DAYS_ROOT}, as
+ * they are shared. A server gets a new id when it restarts, so the days kept under the
+ * id of a server that is no longer running are those of a server that has stopped. They
+ * are read once, and added to rankings over days, so windows of days are covered from
+ * when the cluster first started counting rather than from the last restart.
+ * </p>
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = ActivityAggregator.class)
+public class ActivityAggregatorImpl implements ActivityAggregator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityAggregatorImpl.class);
+
+  @Property(intValue = 500)
+  static final String BUCKET_CAPACITY = "bucket.capacity";
+
+  static final String ACTIVITY_CACHE = "activity-aggregator";
+
+  static final long MINUTE = 60L * 1000L;
+  static final long HOUR = 60L * MINUTE;
+  static final long DAY = 24L * HOUR;
+
+  /**
+   * Enough days to answer the longest window the most active feeds accept.
+   */
+  static final int DAYS = 91;
+
+  /**
+   * Where each server keeps its day buckets, at DAYS_ROOT/serverId/resourceType/day.
+   */
+  static final String DAYS_ROOT = "/var/activityaggregator";
+
+  private static final String STARTED = "started";
+
+  private static final String ENTRIES = "entries";
+
+  /**
+   * The least time between looking for servers that have stopped, in ms.
+   */
+  static final long STOPPED_INTERVAL = 10L * MINUTE;
+
+  private final ConcurrentMap<String, ResourceTypeActivity> activity = new ConcurrentHashMap<String, ResourceTypeActivity>();
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile CacheManagerService cacheManagerService;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile ClusterTrackingService clusterTrackingService;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile Repository repository;
+
+  /**
+   * The days counted by servers that have stopped, by resource type and day.
+   */
+  private final ConcurrentMap<String, ConcurrentMap<Long, Map<String, Long>>> stoppedDays = new ConcurrentHashMap<String, ConcurrentMap<Long, Map<String, Long>>>();
+
+  /**
+   * The ids of the stopped servers whose days have been read.
+   */
+  private final Set<String> stoppedServers = new HashSet<String>();
+
+  /**
+   * When the earliest of the stopped servers started counting, in ms.
+   */
+  private volatile long stoppedSince = Long.MAX_VALUE;
+
+  /**
+   * When servers that have stopped were last looked for, in ms.
+   */
+  private long stoppedChecked;
+
+  private int capacity = 500;
+
+  /**
+   * When counting started, in ms.
+   */
+  long started = System.currentTimeMillis();
+
+  /**
+   * The least time between sharing the buckets of a resource type, in ms.
+   */
+  long shareInterval = MINUTE;
+
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    started = System.currentTimeMillis();
+    modified(props);
+    String serverId = getServerId();
+    Cache<Object> cache = getCache();
+    if (serverId != null && cache != null) {
+      cache.put("started@" + serverId, started);
+    }
+  }
+
+  @Modified
+  protected void modified(Map<String, Object> props) {
+    capacity = PropertiesUtil.toInteger(props.get(BUCKET_CAPACITY), 500);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    // share and keep what has changed since the last minute, before it is lost.
+    long now = System.currentTimeMillis();
+    for (Entry<String, ResourceTypeActivity> e : activity.entrySet()) {
+      share(e.getKey(), e.getValue(), now, 0);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.personal.ActivityAggregator#record(java.lang.String, java.lang.String, long)
+   */
+  public void record(String resourceId, String resourceType, long timestamp) {
+    if (resourceId == null || resourceType == null) {
+      return;
+    }
+    ResourceTypeActivity typeActivity = activity.get(resourceType);
+    if (typeActivity == null) {
+      typeActivity = new ResourceTypeActivity(capacity);
+      ResourceTypeActivity existing = activity.putIfAbsent(resourceType, typeActivity);
+      if (existing != null) {
+        typeActivity = existing;
+      }
+    }
+    typeActivity.add(resourceId, timestamp);
+    share(resourceType, typeActivity, System.currentTimeMillis(), shareInterval);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.personal.ActivityAggregator#covers(java.lang.String, long)
+   */
+  public boolean covers(String resourceType, long since) {
+    long now = System.currentTimeMillis();
+    if (since <= now - (DAYS - 1) * DAY) {
+      return false;
+    }
+    if (repository != null && ResourceTypeActivity.getWidth(since, now) == DAY) {
+      // the days counted before this server and the others last started are kept.
+      loadStoppedDays(now);
+      return since >= Math.min(started, stoppedSince);
+    }
+    if (since < started) {
+      return false;
+    }
+    // every other server must have been counting for the whole window too.
+    String serverId = getServerId();
+    Cache<Object> cache = getCache();
+    if (serverId != null && cache != null) {
+      for (String otherId : getOtherServerIds(serverId)) {
+        Object otherStarted = cache.get("started@" + otherId);
+        if (!(otherStarted instanceof Long) || since < (Long) otherStarted) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.personal.ActivityAggregator#getMostActive(java.lang.String, long, int)
+   */
+  public List<ActivityCount> getMostActive(String resourceType, long since, int limit) {
+    long now = System.currentTimeMillis();
+    long width = ResourceTypeActivity.getWidth(since, now);
+    Map<String, long[]> totals = new HashMap<String, long[]>();
+    ResourceTypeActivity typeActivity = activity.get(resourceType);
+    if (typeActivity != null) {
+      share(resourceType, typeActivity, now, shareInterval);
+      typeActivity.collect(width, since, now, totals);
+    }
+    collectShared(resourceType, width, since, now, totals);
+    if (width == DAY) {
+      loadStoppedDays(now);
+      collectStopped(resourceType, since, now, totals);
+    }
+    List<Entry<String, long[]>> ranked = new ArrayList<Entry<String, long[]>>(
+        totals.entrySet());
+    Collections.sort(ranked, new Comparator<Entry<String, long[]>>() {
+      public int compare(Entry<String, long[]> o1, Entry<String, long[]> o2) {
+        long c1 = o1.getValue()[0];
+        long c2 = o2.getValue()[0];
+        if (c1 != c2) {
+          return c1 > c2 ? -1 : 1;
+        }
+        return o1.getKey().compareTo(o2.getKey());
+      }
+    });
+    int n = Math.min(limit, ranked.size());
+    List<ActivityCount> result = new ArrayList<ActivityCount>(n);
+    for (int i = 0; i < n; i++) {
+      Entry<String, long[]> e = ranked.get(i);
+      result.add(new ActivityCount(e.getKey(), e.getValue()[0]));
+    }
+    return result;
+  }
+
+  /**
+   * Share the buckets of a resource type that changed, and keep the days that changed, if
+   * they were not shared within <code>interval</code>.
+   */
+  private void share(String resourceType, ResourceTypeActivity typeActivity, long now,
+      long interval) {
+    String serverId = getServerId();
+    Cache<Object> cache = getCache();
+    Repository repo = repository;
+    if (serverId == null || (cache == null && repo == null)) {
+      return;
+    }
+    Map<String, HashMap<String, Long>> changes = typeActivity.takeChanges(now, interval);
+    if (changes == null) {
+      return;
+    }
+    if (cache != null) {
+      for (Entry<String, HashMap<String, Long>> e : changes.entrySet()) {
+        String key = resourceType + ":" + e.getKey() + "@" + serverId;
+        if (e.getValue() == null) {
+          cache.remove(key);
+        } else {
+          cache.put(key, e.getValue());
+        }
+      }
+    }
+    if (repo != null) {
+      saveDays(repo, serverId, resourceType, changes);
+    }
+  }
+
+  /**
+   * Keep the day buckets that changed, and when this server started counting.
+   */
+  private void saveDays(Repository repo, String serverId, String resourceType,
+      Map<String, HashMap<String, Long>> changes) {
+    String dayKey = DAY + ":";
+    Session adminSession = null;
+    try {
+      adminSession = repo.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      String serverPath = DAYS_ROOT + "/" + serverId;
+      Map<String, Object> server = new HashMap<String, Object>();
+      server.put(STARTED, started);
+      contentManager.update(new Content(serverPath, server));
+      for (Entry<String, HashMap<String, Long>> e : changes.entrySet()) {
+        if (!e.getKey().startsWith(dayKey)) {
+          continue;
+        }
+        String dayPath = serverPath + "/" + resourceType + "/"
+            + e.getKey().substring(dayKey.length());
+        if (e.getValue() != null) {
+          Map<String, Object> day = new HashMap<String, Object>();
+          day.put(ENTRIES, toEntries(e.getValue()));
+          contentManager.update(new Content(dayPath, day));
+        } else if (contentManager.exists(dayPath)) {
+          contentManager.delete(dayPath);
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to keep the activity counts of {}: {}", resourceType,
+          e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to keep the activity counts of {}: {}", resourceType,
+          e.getMessage());
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * Read the days kept by servers that have stopped since they were last looked for,
+   * at most once every {@link #STOPPED_INTERVAL}. A stopped server's days do not change,
+   * so each is read once. Servers with nothing left in the longest window are removed.
+   */
+  private void loadStoppedDays(long now) {
+    Repository repo = repository;
+    String serverId = getServerId();
+    if (repo == null || serverId == null) {
+      return;
+    }
+    synchronized (stoppedServers) {
+      if (stoppedChecked > 0 && now - stoppedChecked < STOPPED_INTERVAL) {
+        return;
+      }
+      stoppedChecked = now;
+      Set<String> running = new HashSet<String>(getOtherServerIds(serverId));
+      running.add(serverId);
+      long oldest = now / DAY - DAYS;
+      Session adminSession = null;
+      try {
+        adminSession = repo.loginAdministrative();
+        ContentManager contentManager = adminSession.getContentManager();
+        for (Iterator<Content> i = contentManager.listChildren(DAYS_ROOT); i.hasNext();) {
+          Content server = i.next();
+          String id = StorageClientUtils.getObjectName(server.getPath());
+          if (running.contains(id) || stoppedServers.contains(id)) {
+            continue;
+          }
+          if (loadServerDays(contentManager, server.getPath(), oldest) < oldest) {
+            LOGGER.debug("Removing the activity counts of {} ", id);
+            contentManager.delete(server.getPath(), true);
+            continue;
+          }
+          stoppedServers.add(id);
+          if (server.hasProperty(STARTED)) {
+            stoppedSince = Math.min(stoppedSince,
+                StorageClientUtils.toLong(server.getProperty(STARTED)));
+          }
+        }
+      } catch (StorageClientException e) {
+        LOGGER.warn("Failed to read the activity counts of stopped servers: {}",
+            e.getMessage());
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Failed to read the activity counts of stopped servers: {}",
+            e.getMessage());
+      } finally {
+        logout(adminSession);
+      }
+    }
+  }
+
+  /**
+   * Add the days a stopped server kept, that are still in the longest window, to the
+   * days of the stopped servers.
+   *
+   * @return the newest day the server kept, or -1 if it kept none.
+   */
+  private long loadServerDays(ContentManager contentManager, String serverPath,
+      long oldest) throws StorageClientException, AccessDeniedException {
+    long newest = -1;
+    for (Iterator<Content> types = contentManager.listChildren(serverPath); types
+        .hasNext();) {
+      String typePath = types.next().getPath();
+      String resourceType = StorageClientUtils.getObjectName(typePath);
+      for (Iterator<Content> days = contentManager.listChildren(typePath); days.hasNext();) {
+        Content day = days.next();
+        long index;
+        try {
+          index = Long.parseLong(StorageClientUtils.getObjectName(day.getPath()));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        newest = Math.max(newest, index);
+        if (index >= oldest) {
+          addStopped(resourceType, index, (String[]) day.getProperty(ENTRIES));
+        }
+      }
+    }
+    return newest;
+  }
+
+  private void addStopped(String resourceType, long index, String[] entries) {
+    ConcurrentMap<Long, Map<String, Long>> days = stoppedDays.get(resourceType);
+    if (days == null) {
+      days = new ConcurrentHashMap<Long, Map<String, Long>>();
+      ConcurrentMap<Long, Map<String, Long>> existing = stoppedDays.putIfAbsent(
+          resourceType, days);
+      if (existing != null) {
+        days = existing;
+      }
+    }
+    // copied on write, so rankings read them without locking.
+    Map<String, Long> day = days.get(index);
+    day = day == null ? new HashMap<String, Long>() : new HashMap<String, Long>(day);
+    for (String entry : StorageClientUtils.nonNullStringArray(entries)) {
+      int separator = entry.lastIndexOf('=');
+      if (separator > 0) {
+        String resourceId = entry.substring(0, separator);
+        long count = Long.parseLong(entry.substring(separator + 1));
+        Long previous = day.get(resourceId);
+        day.put(resourceId, previous == null ? count : previous + count);
+      }
+    }
+    days.put(index, day);
+  }
+
+  /**
+   * Add the days kept by servers that have stopped to the totals.
+   */
+  private void collectStopped(String resourceType, long since, long now,
+      Map<String, long[]> totals) {
+    ConcurrentMap<Long, Map<String, Long>> days = stoppedDays.get(resourceType);
+    if (days == null) {
+      return;
+    }
+    long first = since / DAY;
+    long last = now / DAY;
+    for (Iterator<Entry<Long, Map<String, Long>>> i = days.entrySet().iterator(); i
+        .hasNext();) {
+      Entry<Long, Map<String, Long>> day = i.next();
+      if (day.getKey() <= last - DAYS) {
+        i.remove();
+      } else if (day.getKey() >= first && day.getKey() <= last) {
+        for (Entry<String, Long> e : day.getValue().entrySet()) {
+          long[] total = totals.get(e.getKey());
+          if (total == null) {
+            totals.put(e.getKey(), new long[] { e.getValue() });
+          } else {
+            total[0] += e.getValue();
+          }
+        }
+      }
+    }
+  }
+
+  private static String[] toEntries(Map<String, Long> counts) {
+    String[] entries = new String[counts.size()];
+    int i = 0;
+    for (Entry<String, Long> e : counts.entrySet()) {
+      entries[i++] = e.getKey() + "=" + e.getValue();
+    }
+    return entries;
+  }
+
+  private void logout(Session adminSession) {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error("Could not logout administrative session.");
+      }
+    }
+  }
+
+  /**
+   * Add the buckets the other servers shared to the totals.
+   */
+  @SuppressWarnings("unchecked")
+  private void collectShared(String resourceType, long width, long since, long now,
+      Map<String, long[]> totals) {
+    String serverId = getServerId();
+    Cache<Object> cache = getCache();
+    if (serverId == null || cache == null) {
+      return;
+    }
+    for (String otherId : getOtherServerIds(serverId)) {
+      for (long i = since / width; i <= now / width; i++) {
+        Object shared = cache.get(resourceType + ":" + width + ":" + i + "@" + otherId);
+        if (shared instanceof Map) {
+          for (Entry<String, Long> e : ((Map<String, Long>) shared).entrySet()) {
+            long[] total = totals.get(e.getKey());
+            if (total == null) {
+              totals.put(e.getKey(), new long[] { e.getValue() });
+            } else {
+              total[0] += e.getValue();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private List<String> getOtherServerIds(String serverId) {
+    List<String> serverIds = new ArrayList<String>();
+    ClusterTrackingService tracking = clusterTrackingService;
+    if (tracking != null) {
+      for (ClusterServer server : tracking.getAllServers()) {
+        if (!serverId.equals(server.getServerId())) {
+          serverIds.add(server.getServerId());
+        }
+      }
+    }
+    return serverIds;
+  }
+
+  private String getServerId() {
+    ClusterTrackingService tracking = clusterTrackingService;
+    return tracking == null ? null : tracking.getCurrentServerId();
+  }
+
+  private Cache<Object> getCache() {
+    CacheManagerService cacheManager = cacheManagerService;
+    return cacheManager == null ? null : cacheManager.<Object> getCache(ACTIVITY_CACHE,
+        CacheScope.CLUSTERREPLICATED);
+  }
+
+  /**
+   * The buckets for one resource type. Every piece of activity is counted in each ring.
+   */
+  static class ResourceTypeActivity {
+    private static final int MINUTES = 60;
+    private static final int HOURS = 48;
+
+    private final BucketRing minutes;
+    private final BucketRing hours;
+    private final BucketRing days;
+    private long shared;
+
+    ResourceTypeActivity(int capacity) {
+      minutes = new BucketRing(MINUTE, MINUTES, capacity);
+      hours = new BucketRing(HOUR, HOURS, capacity);
+      days = new BucketRing(DAY, DAYS, capacity);
+    }
+
+    /**
+     * @return the width of the buckets of the finest ring that reaches back to
+     *         <code>since</code>, the same on every server.
+     */
+    static long getWidth(long since, long now) {
+      if (BucketRing.reaches(MINUTE, MINUTES, since, now)) {
+        return MINUTE;
+      } else if (BucketRing.reaches(HOUR, HOURS, since, now)) {
+        return HOUR;
+      }
+      return DAY;
+    }
+
+    synchronized void add(String resourceId, long timestamp) {
+      minutes.add(resourceId, timestamp);
+      hours.add(resourceId, timestamp);
+      days.add(resourceId, timestamp);
+    }
+
+    synchronized void collect(long width, long since, long now, Map<String, long[]> totals) {
+      if (width == MINUTE) {
+        minutes.addTo(since, now, totals);
+      } else if (width == HOUR) {
+        hours.addTo(since, now, totals);
+      } else {
+        days.addTo(since, now, totals);
+      }
+    }
+
+    /**
+     * @return copies of the buckets that changed since they were last taken, and null
+     *         for those that were dropped, by width and index, or null if they were taken
+     *         less than <code>interval</code> ago.
+     */
+    synchronized Map<String, HashMap<String, Long>> takeChanges(long now, long interval) {
+      if (shared > 0 && now - shared < interval) {
+        return null;
+      }
+      shared = now;
+      Map<String, HashMap<String, Long>> changes = new HashMap<String, HashMap<String, Long>>();
+      minutes.takeChanges(changes);
+      hours.takeChanges(changes);
+      days.takeChanges(changes);
+      return changes;
+    }
+  }
+
+  /**
+   * A fixed number of buckets of the same width, reused as time moves on.
+   */
+  static class BucketRing {
+    private final long width;
+    private final int capacity;
+    private final long[] index;
+    private final SpaceSavingCounter[] buckets;
+    private final boolean[] changed;
+    private final List<Long> dropped = new ArrayList<Long>();
+
+    BucketRing(long width, int size, int capacity) {
+      this.width = width;
+      this.capacity = capacity;
+      this.index = new long[size];
+      this.buckets = new SpaceSavingCounter[size];
+      this.changed = new boolean[size];
+      Arrays.fill(index, -1L);
+    }
+
+    void add(String resourceId, long timestamp) {
+      long i = timestamp / width;
+      int slot = (int) (i % index.length);
+      if (index[slot] != i) {
+        if (index[slot] > i) {
+          // older than anything this ring still holds.
+          return;
+        }
+        if (index[slot] >= 0) {
+          dropped.add(index[slot]);
+        }
+        index[slot] = i;
+        buckets[slot] = new SpaceSavingCounter(capacity);
+      }
+      buckets[slot].add(resourceId);
+      changed[slot] = true;
+    }
+
+    static boolean reaches(long width, int size, long since, long now) {
+      return since / width > now / width - size;
+    }
+
+    void addTo(long since, long now, Map<String, long[]> totals) {
+      long first = since / width;
+      long last = now / width;
+      for (int slot = 0; slot < index.length; slot++) {
+        if (index[slot] >= first && index[slot] <= last) {
+          buckets[slot].addTo(totals);
+        }
+      }
+    }
+
+    void takeChanges(Map<String, HashMap<String, Long>> changes) {
+      for (Long i : dropped) {
+        changes.put(width + ":" + i, null);
+      }
+      dropped.clear();
+      for (int slot = 0; slot < index.length; slot++) {
+        if (changed[slot]) {
+          changes.put(width + ":" + index[slot], buckets[slot].toMap());
+          changed[slot] = false;
+        }
+      }
+    }
+  }
+}
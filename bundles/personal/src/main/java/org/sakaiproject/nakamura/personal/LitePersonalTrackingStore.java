@@ -17,10 +17,15 @@
  */
 package org.sakaiproject.nakamura.personal;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -33,19 +38,126 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
-import java.util.UUID;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-@Component(immediate = true)
+/**
+ * Records activity behind the caller's back. Activity is counted in memory per resource,
+ * activity type and time bucket, and written out on an interval: each flush reads and
+ * writes a tracking node once, however much activity it saw, and writes one activity
+ * record per bucket carrying the number of events in its <code>count</code> property.
+ * The number of buckets waiting to be written is bounded; activity for new buckets is
+ * dropped, and counted, while the buffer is full.
+ * <p>
+ * Every server in a cluster writes its own records and its own count on the tracking
+ * node, both named after its server id, so no two servers update the same property.
+ * Readers add them up: the most active feeds add the records they find, and
+ * {@link #getCount(Content)} adds the counts on a tracking node.
+ */
+@Component(immediate = true, metatype = true)
 @Service(value = PersonalTrackingStore.class)
 public class LitePersonalTrackingStore implements PersonalTrackingStore {
 
   private static final Logger LOG = LoggerFactory
       .getLogger(LitePersonalTrackingStore.class);
 
+  @Property(intValue = 10)
+  static final String FLUSH_INTERVAL = "flush.interval";
+
+  @Property(intValue = 60)
+  static final String BUCKET_SIZE = "bucket.size";
+
+  @Property(intValue = 10000)
+  static final String MAX_PENDING = "max.pending";
+
+  /**
+   * Each server counts into its own <code>count@serverId</code> property on the tracking
+   * node. Tracking nodes written before servers kept their own counts have a plain
+   * <code>count</code>.
+   */
+  static final String COUNT = "count";
+
   @Reference
-  private transient Repository repository;
+  protected transient Repository repository;
+
+  @Reference
+  protected transient ClusterTrackingService clusterTrackingService;
+
+  private long bucketMillis = 60000L;
+  private int maxPending = 10000;
+
+  private Map<String, PendingActivity> pending = new HashMap<String, PendingActivity>();
+  private final Object pendingLock = new Object();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+  /**
+   * Flushes are made one at a time, by the scheduler or on deactivation.
+   */
+  private final Object flushLock = new Object();
+
+  private ScheduledExecutorService flusher;
+
+  private final AtomicLong recorded = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong droppedSinceFlush = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    modified(props);
+  }
+
+  @Modified
+  protected void modified(Map<String, Object> props) {
+    int flushInterval = PropertiesUtil.toInteger(props.get(FLUSH_INTERVAL), 10);
+    bucketMillis = 1000L * Math.max(1, PropertiesUtil.toInteger(props.get(BUCKET_SIZE), 60));
+    maxPending = PropertiesUtil.toInteger(props.get(MAX_PENDING), 10000);
+    shutdown();
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Personal tracking store flusher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, flushInterval, Math.max(1, flushInterval), TimeUnit.SECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    shutdown();
+    flush();
+    LOG.info("Recorded {} activities, wrote {} activity records in {} flushes, "
+        + "dropped {} activities, failed to write {} activity records", new Object[] {
+        recorded.get(), written.get(), flushes.get(), dropped.get(), failed.get() });
+  }
+
+  private void shutdown() {
+    if (flusher != null) {
+      flusher.shutdown();
+      try {
+        flusher.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      flusher = null;
+    }
+  }
 
   /**
    * {@inheritDoc}
@@ -55,68 +167,234 @@ public class LitePersonalTrackingStore implements PersonalTrackingStore {
    */
   public void recordActivity(String resourceId, String resourceType, String activityType,
       String userId, Calendar timestamp) {
-    Session session = null;
-    try {
-      session = repository.loginAdministrative();
-      final ContentManager cm = session.getContentManager();
-      final String trackingNodePath = "/activity/" + resourceType + "/" + resourceId;
-      Content trackingNode = cm.get(trackingNodePath);
-      if (trackingNode == null) {
-        trackingNode = new Content(trackingNodePath, new HashMap<String, Object>());
+    if (resourceId == null || resourceType == null) {
+      LOG.debug("Not recording activity on an unknown resource");
+      return;
+    }
+    final long bucket = timestamp.getTimeInMillis() / bucketMillis;
+    final String key = resourceType + "/" + resourceId + "/" + activityType + "/" + bucket;
+    boolean full = false;
+    synchronized (pendingLock) {
+      PendingActivity activity = pending.get(key);
+      if (activity == null) {
+        if (pending.size() >= maxPending) {
+          full = true;
+        } else {
+          activity = new PendingActivity(resourceId, resourceType, activityType, bucket
+              * bucketMillis);
+          pending.put(key, activity);
+        }
       }
-      if (!trackingNode.hasProperty("count")) {
-        trackingNode.setProperty("count", BigDecimal.ZERO);
+      if (activity != null) {
+        activity.add(timestamp);
       }
-      if (!trackingNode.hasProperty("sling:resourceType")) {
-        trackingNode.setProperty("sling:resourceType", "sakai/resource-activity");
+    }
+    if (full) {
+      dropped.incrementAndGet();
+      droppedSinceFlush.incrementAndGet();
+      requestFlush();
+    } else {
+      recorded.incrementAndGet();
+    }
+  }
+
+  /**
+   * Flush as soon as possible, rather than waiting for the interval.
+   */
+  private void requestFlush() {
+    ScheduledExecutorService executor = flusher;
+    if (executor != null && flushRequested.compareAndSet(false, true)) {
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            flush();
+          }
+        });
+      } catch (RuntimeException e) {
+        flushRequested.set(false);
+        LOG.debug("Unable to request a flush: " + e.getMessage());
       }
-      final String generatedNodeName = Base64
-          .encodeBase64URLSafeString(asShorterByteArray(UUID.randomUUID()));
-      final String activityNodePath = trackingNodePath + "/" + generatedNodeName;
-      Content activityNode = null;
-      if (cm.exists(activityNodePath)) {
-        activityNode = cm.get(activityNodePath);
-      } else {
+    }
+  }
+
+  /**
+   * Write everything recorded so far.
+   */
+  void flush() {
+    synchronized (flushLock) {
+      flushRequested.set(false);
+      Map<String, PendingActivity> toWrite;
+      synchronized (pendingLock) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        toWrite = pending;
+        pending = new HashMap<String, PendingActivity>();
+      }
+      Map<String, List<PendingActivity>> byTrackingNode = new HashMap<String, List<PendingActivity>>();
+      for (PendingActivity activity : toWrite.values()) {
+        String trackingNodePath = "/activity/" + activity.resourceType + "/"
+            + activity.resourceId;
+        List<PendingActivity> activities = byTrackingNode.get(trackingNodePath);
+        if (activities == null) {
+          activities = new ArrayList<PendingActivity>();
+          byTrackingNode.put(trackingNodePath, activities);
+        }
+        activities.add(activity);
+      }
+      long start = System.currentTimeMillis();
+      final String serverId = clusterTrackingService.getCurrentServerId();
+      Session session = null;
+      try {
+        session = repository.loginAdministrative();
+        final ContentManager cm = session.getContentManager();
+        for (Map.Entry<String, List<PendingActivity>> e : byTrackingNode.entrySet()) {
+          try {
+            write(cm, serverId, e.getKey(), e.getValue());
+            written.addAndGet(e.getValue().size());
+          } catch (StorageClientException ex) {
+            failed.addAndGet(e.getValue().size());
+            LOG.error(ex.getLocalizedMessage(), ex);
+          } catch (AccessDeniedException ex) {
+            failed.addAndGet(e.getValue().size());
+            LOG.error(ex.getLocalizedMessage(), ex);
+          }
+        }
+      } catch (ClientPoolException e) {
+        failed.addAndGet(toWrite.size());
+        LOG.error(e.getLocalizedMessage(), e);
+      } catch (StorageClientException e) {
+        failed.addAndGet(toWrite.size());
+        LOG.error(e.getLocalizedMessage(), e);
+      } catch (AccessDeniedException e) {
+        failed.addAndGet(toWrite.size());
+        LOG.error(e.getLocalizedMessage(), e);
+      } finally {
+        if (session != null) {
+          try {
+            session.logout();
+          } catch (ClientPoolException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+          }
+        }
+      }
+      flushes.incrementAndGet();
+      LOG.debug("Wrote {} activity records to {} tracking nodes in {} ms", new Object[] {
+          toWrite.size(), byTrackingNode.size(), System.currentTimeMillis() - start });
+      long newlyDropped = droppedSinceFlush.getAndSet(0);
+      if (newlyDropped > 0) {
+        LOG.warn("{} activities have been dropped because more than {} were waiting "
+            + "to be written", newlyDropped, maxPending);
+      }
+    }
+  }
+
+  /**
+   * Write the activities on one tracking node. Only this server writes the records and
+   * count it names, and flushes on this server are made one at a time, so adding to what
+   * was there before loses nothing.
+   */
+  private void write(ContentManager cm, String serverId, String trackingNodePath,
+      List<PendingActivity> activities) throws StorageClientException,
+      AccessDeniedException {
+    Content trackingNode = cm.get(trackingNodePath);
+    if (trackingNode == null) {
+      trackingNode = new Content(trackingNodePath, new HashMap<String, Object>());
+    }
+    if (!trackingNode.hasProperty("sling:resourceType")) {
+      trackingNode.setProperty("sling:resourceType", "sakai/resource-activity");
+    }
+    final String countProperty = COUNT + "@" + serverId;
+    BigDecimal activityCount = BigDecimal.ZERO;
+    if (trackingNode.getProperty(countProperty) instanceof BigDecimal) {
+      activityCount = (BigDecimal) trackingNode.getProperty(countProperty);
+    }
+    for (PendingActivity activity : activities) {
+      // one record per bucket and server, so later flushes into the same bucket add to it.
+      final String activityNodePath = trackingNodePath + "/"
+          + String.valueOf(activity.activityType).toLowerCase() + "-"
+          + Long.toString(activity.bucketStart, 36) + "-" + serverId;
+      Content activityNode = cm.get(activityNodePath);
+      long count = activity.count;
+      if (activityNode == null) {
         activityNode = new Content(activityNodePath, new HashMap<String, Object>());
+      } else {
+        Object previous = activityNode.getProperty("count");
+        if (previous instanceof Number) {
+          count += ((Number) previous).longValue();
+        }
       }
-      BigDecimal activityCount = (BigDecimal) trackingNode.getProperty("count");
       activityNode.setProperty("sling:resourceType", "sakai/resource-update");
-      trackingNode.setProperty("count", activityCount.add(BigDecimal.ONE));
-      activityNode.setProperty("resourceId", resourceId);
-      activityNode.setProperty("resourcetype", resourceType);
-      activityNode.setProperty("activitytype", activityType);
-      activityNode.setProperty("timestamp", timestamp);
-      activityNode.setProperty("userid", userId);
+      activityNode.setProperty("resourceId", activity.resourceId);
+      activityNode.setProperty("resourcetype", activity.resourceType);
+      activityNode.setProperty("activitytype", activity.activityType);
+      activityNode.setProperty("timestamp", activity.timestamp);
+      activityNode.setProperty("count", count);
       cm.update(activityNode);
-      cm.update(trackingNode);
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getLocalizedMessage(), e);
-    } catch (StorageClientException e) {
-      LOG.error(e.getLocalizedMessage(), e);
-    } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          LOG.error(e.getLocalizedMessage(), e);
-          throw new IllegalStateException(e);
-        }
-      }
+      activityCount = activityCount.add(BigDecimal.valueOf(activity.count));
     }
+    trackingNode.setProperty(countProperty, activityCount);
+    cm.update(trackingNode);
+  }
 
+  /**
+   * @return the activity counted on a tracking node by every server.
+   */
+  static BigDecimal getCount(Content trackingNode) {
+    BigDecimal count = BigDecimal.ZERO;
+    for (Map.Entry<String, Object> e : trackingNode.getProperties().entrySet()) {
+      if ((COUNT.equals(e.getKey()) || e.getKey().startsWith(COUNT + "@"))
+          && e.getValue() instanceof BigDecimal) {
+        count = count.add((BigDecimal) e.getValue());
+      }
+    }
+    return count;
   }
 
-  private byte[] asShorterByteArray(UUID uuid) {
+  long getRecorded() {
+    return recorded.get();
+  }
 
-    long msb = uuid.getMostSignificantBits();
-    byte[] buffer = new byte[8];
+  long getDropped() {
+    return dropped.get();
+  }
 
-    for (int i = 0; i < 8; i++) {
-      buffer[i] = (byte) (msb >>> 8 * (7 - i));
-    }
+  long getWritten() {
+    return written.get();
+  }
 
-    return buffer;
+  long getFailed() {
+    return failed.get();
+  }
 
+  long getFlushes() {
+    return flushes.get();
   }
 
+  /**
+   * The activity on one resource in one bucket that has not been written yet.
+   */
+  private static class PendingActivity {
+    private final String resourceId;
+    private final String resourceType;
+    private final String activityType;
+    private final long bucketStart;
+    private long count;
+    private Calendar timestamp;
+
+    PendingActivity(String resourceId, String resourceType, String activityType,
+        long bucketStart) {
+      this.resourceId = resourceId;
+      this.resourceType = resourceType;
+      this.activityType = activityType;
+      this.bucketStart = bucketStart;
+    }
+
+    void add(Calendar timestamp) {
+      count++;
+      if (this.timestamp == null || !timestamp.before(this.timestamp)) {
+        this.timestamp = timestamp;
+      }
+    }
+  }
 }
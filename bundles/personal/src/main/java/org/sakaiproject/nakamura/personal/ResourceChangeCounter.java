@@ -33,6 +33,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.personal.ActivityAggregator;
 import org.sakaiproject.nakamura.api.personal.PersonalTrackingStore;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
@@ -59,6 +60,9 @@ public class ResourceChangeCounter implements EventHandler {
   @Reference
   protected Repository repository;
 
+  @Reference
+  protected ActivityAggregator aggregator;
+
   /**
    * {@inheritDoc}
    * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
@@ -67,6 +71,24 @@ public class ResourceChangeCounter implements EventHandler {
     // be fast
     final String path = (String) event.getProperty("path");
     if (path != null) {
+      // the resource type is usually cached in the event, which is enough to turn most
+      // events away, and to count pooled content, without going to storage.
+      final String eventResourceType = (String) event.getProperty("resourceType");
+      if (eventResourceType != null) {
+        if (!resourceIsOfInterest(eventResourceType)) {
+          return;
+        }
+        if (!path.startsWith("a:")) {
+          try {
+            countThisEvent(event, eventResourceType, null);
+          } catch (StorageClientException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+          } catch (AccessDeniedException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+          }
+          return;
+        }
+      }
       Session adminSession = null;
       try {
         adminSession = repository.loginAdministrative();
@@ -101,6 +123,9 @@ public class ResourceChangeCounter implements EventHandler {
     }
   }
 
+  /**
+   * @param session only needed to tell groups from users, for paths starting a:
+   */
   private void countThisEvent(final Event e, final String eventResourceType,
       final Session session) throws AccessDeniedException, StorageClientException {
 
@@ -124,7 +149,9 @@ public class ResourceChangeCounter implements EventHandler {
         }
       }
     }
-    store.recordActivity(resourceId, resourceType, activityType, userId, Calendar.getInstance());
+    final Calendar timestamp = Calendar.getInstance();
+    store.recordActivity(resourceId, resourceType, activityType, userId, timestamp);
+    aggregator.record(resourceId, resourceType, timestamp.getTimeInMillis());
   }
 
   private boolean resourceIsOfInterest(String resourceType) {
@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Counts the most frequent of a stream of ids in a fixed amount of memory, using the
+ * Space-Saving algorithm. Once full, a new id takes the place of the least counted one
+ * and inherits its count, so the counts of frequent ids are never underestimated and an
+ * id seen more often than 1/capacity of the time is never dropped. Counters are kept in
+ * the Stream-Summary structure, a list of buckets of equal count in ascending order, so
+ * both counting an id and finding the least counted one take constant time. Not thread
+ * safe.
+ */
+class SpaceSavingCounter {
+
+  private final int capacity;
+  private final Map<String, Counter> counters;
+
+  /**
+   * The bucket with the lowest count.
+   */
+  private Bucket smallest;
+
+  SpaceSavingCounter(int capacity) {
+    this.capacity = capacity;
+    this.counters = new HashMap<String, Counter>();
+  }
+
+  void add(String id) {
+    Counter counter = counters.get(id);
+    if (counter != null) {
+      increment(counter);
+      return;
+    }
+    if (counters.size() < capacity) {
+      counter = new Counter(id);
+      counters.put(id, counter);
+      if (smallest == null || smallest.count != 1) {
+        Bucket bucket = new Bucket(1);
+        bucket.next = smallest;
+        if (smallest != null) {
+          smallest.prev = bucket;
+        }
+        smallest = bucket;
+      }
+      smallest.attach(counter);
+      return;
+    }
+    // take over the least counted id.
+    counter = smallest.first;
+    counters.remove(counter.id);
+    counter.id = id;
+    counters.put(id, counter);
+    increment(counter);
+  }
+
+  /**
+   * Move a counter to the bucket one above its own.
+   */
+  private void increment(Counter counter) {
+    Bucket bucket = counter.bucket;
+    long count = bucket.count + 1;
+    Bucket next = bucket.next;
+    if (next == null || next.count != count) {
+      next = new Bucket(count);
+      next.prev = bucket;
+      next.next = bucket.next;
+      if (bucket.next != null) {
+        bucket.next.prev = next;
+      }
+      bucket.next = next;
+    }
+    bucket.detach(counter);
+    next.attach(counter);
+    if (bucket.first == null) {
+      // unlink the empty bucket
+      if (bucket.prev == null) {
+        smallest = bucket.next;
+      } else {
+        bucket.prev.next = bucket.next;
+      }
+      bucket.next.prev = bucket.prev;
+    }
+  }
+
+  /**
+   * Add the counts held here to a running total.
+   */
+  void addTo(Map<String, long[]> totals) {
+    for (Entry<String, Counter> e : counters.entrySet()) {
+      long[] total = totals.get(e.getKey());
+      if (total == null) {
+        totals.put(e.getKey(), new long[] { e.getValue().bucket.count });
+      } else {
+        total[0] += e.getValue().bucket.count;
+      }
+    }
+  }
+
+  /**
+   * @return a copy of the counts, to share with other servers.
+   */
+  HashMap<String, Long> toMap() {
+    HashMap<String, Long> map = new HashMap<String, Long>();
+    for (Entry<String, Counter> e : counters.entrySet()) {
+      map.put(e.getKey(), e.getValue().bucket.count);
+    }
+    return map;
+  }
+
+  int size() {
+    return counters.size();
+  }
+
+  /**
+   * The counters that share a count, in a list ordered by count.
+   */
+  private static final class Bucket {
+    private final long count;
+    private Bucket prev;
+    private Bucket next;
+    private Counter first;
+
+    private Bucket(long count) {
+      this.count = count;
+    }
+
+    private void attach(Counter counter) {
+      counter.bucket = this;
+      counter.prev = null;
+      counter.next = first;
+      if (first != null) {
+        first.prev = counter;
+      }
+      first = counter;
+    }
+
+    private void detach(Counter counter) {
+      if (counter.prev == null) {
+        first = counter.next;
+      } else {
+        counter.prev.next = counter.next;
+      }
+      if (counter.next != null) {
+        counter.next.prev = counter.prev;
+      }
+      counter.prev = null;
+      counter.next = null;
+    }
+  }
+
+  /**
+   * The counter of an id, in the list of counters of its bucket.
+   */
+  private static final class Counter {
+    private String id;
+    private Bucket bucket;
+    private Counter prev;
+    private Counter next;
+
+    private Counter(String id) {
+      this.id = id;
+    }
+  }
+}
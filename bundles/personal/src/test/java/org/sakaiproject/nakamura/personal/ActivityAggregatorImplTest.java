@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.personal.ActivityCount;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ActivityAggregatorImplTest {
+
+  private ActivityAggregatorImpl aggregator;
+  private long now;
+
+  @Before
+  public void before() {
+    aggregator = new ActivityAggregatorImpl();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(ActivityAggregatorImpl.BUCKET_CAPACITY, 10);
+    aggregator.activate(props);
+    now = System.currentTimeMillis();
+    aggregator.started = now - 30 * ActivityAggregatorImpl.DAY;
+  }
+
+  @Test
+  public void testMostActiveFirst() {
+    for (int i = 0; i < 3; i++) {
+      aggregator.record("a", "content", now);
+    }
+    aggregator.record("b", "content", now);
+    aggregator.record("c", "content", now);
+    aggregator.record("c", "content", now);
+    aggregator.record("x", "group", now);
+
+    List<ActivityCount> top = aggregator.getMostActive("content", now - 1000, 2);
+    assertEquals(2, top.size());
+    assertEquals("a", top.get(0).getResourceId());
+    assertEquals(3, top.get(0).getCount());
+    assertEquals("c", top.get(1).getResourceId());
+    assertEquals(2, top.get(1).getCount());
+  }
+
+  @Test
+  public void testWindows() {
+    aggregator.record("old", "content", now - 10 * ActivityAggregatorImpl.DAY);
+    aggregator.record("old", "content", now - 10 * ActivityAggregatorImpl.DAY);
+    aggregator.record("hour", "content", now - 3 * ActivityAggregatorImpl.HOUR);
+    aggregator.record("recent", "content", now - 5 * ActivityAggregatorImpl.MINUTE);
+
+    assertEquals(1, aggregator.getMostActive("content",
+        now - 10 * ActivityAggregatorImpl.MINUTE, 10).size());
+    assertEquals(2, aggregator.getMostActive("content",
+        now - 6 * ActivityAggregatorImpl.HOUR, 10).size());
+    List<ActivityCount> month = aggregator.getMostActive("content",
+        now - 20 * ActivityAggregatorImpl.DAY, 10);
+    assertEquals(3, month.size());
+    assertEquals("old", month.get(0).getResourceId());
+  }
+
+  @Test
+  public void testHeavyHittersKept() {
+    for (int i = 0; i < 1000; i++) {
+      aggregator.record("hot", "content", now);
+      aggregator.record("cold" + i, "content", now);
+    }
+    List<ActivityCount> top = aggregator.getMostActive("content", now - 1000, 1);
+    assertEquals("hot", top.get(0).getResourceId());
+    assertTrue(top.get(0).getCount() >= 1000);
+  }
+
+  @Test
+  public void testClusterWide() {
+    Cache<Object> cache = new MapCacheImpl<Object>(ActivityAggregatorImpl.ACTIVITY_CACHE,
+        CacheScope.CLUSTERREPLICATED);
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(cacheManagerService.getCache(ActivityAggregatorImpl.ACTIVITY_CACHE,
+        CacheScope.CLUSTERREPLICATED)).thenReturn(cache);
+    List<ClusterServer> servers = new ArrayList<ClusterServer>();
+    ActivityAggregatorImpl[] nodes = new ActivityAggregatorImpl[2];
+    for (int i = 0; i < nodes.length; i++) {
+      ClusterServer server = Mockito.mock(ClusterServer.class);
+      Mockito.when(server.getServerId()).thenReturn("server" + i);
+      servers.add(server);
+      ClusterTrackingService clusterTrackingService = Mockito
+          .mock(ClusterTrackingService.class);
+      Mockito.when(clusterTrackingService.getCurrentServerId()).thenReturn("server" + i);
+      Mockito.when(clusterTrackingService.getAllServers()).thenReturn(servers);
+      nodes[i] = new ActivityAggregatorImpl();
+      nodes[i].cacheManagerService = cacheManagerService;
+      nodes[i].clusterTrackingService = clusterTrackingService;
+      nodes[i].activate(new HashMap<String, Object>());
+      nodes[i].started = now - 30 * ActivityAggregatorImpl.DAY;
+      nodes[i].shareInterval = 0;
+      cache.put("started@server" + i, nodes[i].started);
+    }
+
+    nodes[0].record("a", "content", now);
+    nodes[0].record("a", "content", now);
+    nodes[1].record("a", "content", now);
+    nodes[1].record("b", "content", now);
+    nodes[1].record("b", "content", now);
+    nodes[1].record("b", "content", now);
+
+    for (ActivityAggregatorImpl node : nodes) {
+      List<ActivityCount> top = node.getMostActive("content", now - 1000, 10);
+      assertEquals(2, top.size());
+      assertEquals("a", top.get(0).getResourceId());
+      assertEquals(3, top.get(0).getCount());
+      assertEquals("b", top.get(1).getResourceId());
+      assertEquals(3, top.get(1).getCount());
+    }
+    assertTrue(nodes[0].covers("content", now - ActivityAggregatorImpl.DAY));
+    cache.put("started@server1", now);
+    assertFalse(nodes[0].covers("content", now - ActivityAggregatorImpl.DAY));
+  }
+
+  @Test
+  public void testCovers() {
+    assertTrue(aggregator.covers("content", now - ActivityAggregatorImpl.DAY));
+    assertFalse(aggregator.covers("content", now - 60 * ActivityAggregatorImpl.DAY));
+    assertFalse(aggregator.covers("content", now - 120 * ActivityAggregatorImpl.DAY));
+  }
+
+  @Test
+  public void testCoversAfterRestart() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    ActivityAggregatorImpl before = createServer("server0", repository);
+    before.started = now - 30 * ActivityAggregatorImpl.DAY;
+    before.record("old", "content", now - 10 * ActivityAggregatorImpl.DAY);
+    before.record("old", "content", now - 10 * ActivityAggregatorImpl.DAY);
+    before.record("recent", "content", now);
+    before.deactivate();
+
+    // the server restarts with a new id, and nothing counted in memory.
+    ActivityAggregatorImpl after = createServer("server1", repository);
+    assertTrue(after.covers("content", now - 20 * ActivityAggregatorImpl.DAY));
+    assertFalse(after.covers("content", now - 40 * ActivityAggregatorImpl.DAY));
+    after.record("recent", "content", now);
+
+    List<ActivityCount> month = after.getMostActive("content",
+        now - 20 * ActivityAggregatorImpl.DAY, 10);
+    assertEquals(2, month.size());
+    assertEquals("old", month.get(0).getResourceId());
+    assertEquals(2, month.get(0).getCount());
+    assertEquals("recent", month.get(1).getResourceId());
+    assertEquals(2, month.get(1).getCount());
+  }
+
+  private ActivityAggregatorImpl createServer(String serverId, Repository repository) {
+    ClusterServer server = Mockito.mock(ClusterServer.class);
+    Mockito.when(server.getServerId()).thenReturn(serverId);
+    ClusterTrackingService clusterTrackingService = Mockito
+        .mock(ClusterTrackingService.class);
+    Mockito.when(clusterTrackingService.getCurrentServerId()).thenReturn(serverId);
+    Mockito.when(clusterTrackingService.getAllServers()).thenReturn(
+        Collections.singletonList(server));
+    ActivityAggregatorImpl node = new ActivityAggregatorImpl();
+    node.clusterTrackingService = clusterTrackingService;
+    node.repository = repository;
+    node.activate(new HashMap<String, Object>());
+    node.shareInterval = 0;
+    return node;
+  }
+}
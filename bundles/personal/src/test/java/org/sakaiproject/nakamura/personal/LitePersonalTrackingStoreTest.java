@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LitePersonalTrackingStoreTest {
+
+  private Session session;
+  private Repository repository;
+  private LitePersonalTrackingStore store;
+
+  @Before
+  public void before() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    store = createStore("server0");
+  }
+
+  @After
+  public void after() throws Exception {
+    store.deactivate();
+    session.logout();
+  }
+
+  private LitePersonalTrackingStore createStore(String serverId) {
+    LitePersonalTrackingStore trackingStore = new LitePersonalTrackingStore();
+    trackingStore.repository = repository;
+    trackingStore.clusterTrackingService = Mockito.mock(ClusterTrackingService.class);
+    Mockito.when(trackingStore.clusterTrackingService.getCurrentServerId()).thenReturn(
+        serverId);
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LitePersonalTrackingStore.FLUSH_INTERVAL, 3600);
+    props.put(LitePersonalTrackingStore.MAX_PENDING, 3);
+    trackingStore.activate(props);
+    return trackingStore;
+  }
+
+  @Test
+  public void testActivityIsBatched() throws Exception {
+    Calendar now = Calendar.getInstance();
+    for (int i = 0; i < 5; i++) {
+      store.recordActivity("abc", "content", "CHANGE", "user" + i, now);
+    }
+    store.recordActivity("def", "content", "CHANGE", "ieb", now);
+    ContentManager contentManager = session.getContentManager();
+    assertNull(contentManager.get("/activity/content/abc"));
+
+    store.flush();
+    Content tracking = contentManager.get("/activity/content/abc");
+    assertEquals(new BigDecimal(5), LitePersonalTrackingStore.getCount(tracking));
+    int records = 0;
+    for (Content record : tracking.listChildren()) {
+      assertEquals(5L, ((Number) record.getProperty("count")).longValue());
+      records++;
+    }
+    assertEquals(1, records);
+    assertEquals(new BigDecimal(1), LitePersonalTrackingStore.getCount(contentManager
+        .get("/activity/content/def")));
+    assertEquals(2, store.getWritten());
+
+    // later activity in the same bucket adds to the same record.
+    store.recordActivity("abc", "content", "CHANGE", "ieb", now);
+    store.flush();
+    tracking = contentManager.get("/activity/content/abc");
+    assertEquals(new BigDecimal(6), LitePersonalTrackingStore.getCount(tracking));
+    Content record = tracking.listChildren().iterator().next();
+    assertEquals(6L, ((Number) record.getProperty("count")).longValue());
+  }
+
+  @Test
+  public void testServersWriteTheirOwnRecords() throws Exception {
+    LitePersonalTrackingStore other = createStore("server1");
+    try {
+      Calendar now = Calendar.getInstance();
+      store.recordActivity("abc", "content", "CHANGE", "ieb", now);
+      store.recordActivity("abc", "content", "CHANGE", "ieb", now);
+      other.recordActivity("abc", "content", "CHANGE", "zach", now);
+      store.flush();
+      other.flush();
+
+      Content tracking = session.getContentManager().get("/activity/content/abc");
+      assertEquals(new BigDecimal(3), LitePersonalTrackingStore.getCount(tracking));
+      long total = 0;
+      int records = 0;
+      for (Content record : tracking.listChildren()) {
+        total += ((Number) record.getProperty("count")).longValue();
+        records++;
+      }
+      assertEquals(2, records);
+      assertEquals(3L, total);
+    } finally {
+      other.deactivate();
+    }
+  }
+
+  @Test
+  public void testDropWhenFull() throws Exception {
+    Calendar now = Calendar.getInstance();
+    for (int i = 0; i < 5; i++) {
+      store.recordActivity("r" + i, "content", "CHANGE", "ieb", now);
+    }
+    // a full buffer asks for an early flush, which may make room for the last one.
+    assertTrue(store.getDropped() >= 1);
+    assertEquals(5, store.getRecorded() + store.getDropped());
+  }
+}
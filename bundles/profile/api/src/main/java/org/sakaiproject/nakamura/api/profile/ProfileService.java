@@ -26,6 +26,9 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 
+import java.util.Collection;
+import java.util.Map;
+
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
@@ -58,6 +61,21 @@ public interface ProfileService {
       Authorizable authorizable,
       Session session) throws RepositoryException, StorageClientException, AccessDeniedException;
 
+  /**
+   * Gets the profiles of a number of authorizables, eg for the members of a group or the
+   * results of a search. Profiles that the session may not read are left out.
+   *
+   * @param authorizables
+   *          The authorizables whose profiles should be returned.
+   * @param session
+   *          A JCR Session that can be used to access the necessary nodes.
+   * @return A Map of authorizable id to profile, in the order of the authorizables.
+   * @throws RepositoryException
+   * @throws StorageClientException
+   */
+  Map<String, ValueMap> getProfileMaps(Collection<Authorizable> authorizables,
+      Session session) throws RepositoryException, StorageClientException;
+
   ValueMap getProfileMap(Content profileContent, Session session) throws RepositoryException;
 
   ValueMap getProfileMap(
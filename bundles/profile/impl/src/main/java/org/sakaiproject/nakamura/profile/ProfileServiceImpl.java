@@ -37,6 +37,8 @@ import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -47,21 +49,31 @@ import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.profile.ProfileConstants;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 import org.sakaiproject.nakamura.api.resource.lite.LiteJsonImporter;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.api.user.PrincipalSet;
+import org.sakaiproject.nakamura.api.user.PrincipalSetService;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
@@ -75,8 +87,10 @@ import javax.jcr.Session;
  */
 @Component(immediate = true, metatype = true, specVersion="1.1")
 @Service
+@Property(name = "event.topics", propertyPrivate = true, value = {
+    "org/sakaiproject/nakamura/lite/*" })
 @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider")
-public class ProfileServiceImpl implements ProfileService {
+public class ProfileServiceImpl implements ProfileService, EventHandler {
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
@@ -90,16 +104,67 @@ public class ProfileServiceImpl implements ProfileService {
   static final String SCAN_PROVIDER = "should-scan-for-providers";
   private Boolean shouldScanForProviders;
 
+  /**
+   * The name of the cache holding resolved profiles.
+   */
+  static final String RESOLVED_PROFILE_CACHE = "resolved-profile-cache";
+
+  @Property(longValue = 600L, label = "Resolved profile TTL", description = "The maximum number of seconds a resolved profile is cached for. Cached profiles are also dropped when the profile, its access control or the authorizable is modified. 0 disables the cache.")
+  static final String PROFILE_CACHE_TTL = "sakai.profile.cache.ttl";
+  private long profileCacheTtl;
+
+  @Property(longValue = 60L, label = "Default provider TTL", description = "The number of seconds externally provided profile sections are cached for, unless set per provider.")
+  static final String PROVIDER_DEFAULT_TTL = "sakai.profile.provider.ttl.default";
+  private long providerDefaultTtl;
+
+  @Property(value = {}, label = "Provider TTLs", description = "The number of seconds externally provided profile sections are cached for, per provider, as providername=seconds.")
+  static final String PROVIDER_TTLS = "sakai.profile.provider.ttl";
+  private Map<String, Long> providerTtls = new HashMap<String, Long>();
+
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
   @Reference
   private DynamicContentResponseCache responseCache;
 
+  @Reference
+  private CacheManagerService cacheManagerService;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private PrincipalSetService principalSetService;
+
+  public ProfileServiceImpl() {
+  }
+
+  ProfileServiceImpl(BasicUserInfoService basicUserInfoService,
+      CacheManagerService cacheManagerService, PrincipalSetService principalSetService) {
+    this.basicUserInfoService = basicUserInfoService;
+    this.cacheManagerService = cacheManagerService;
+    this.principalSetService = principalSetService;
+  }
+
   @Activate @Modified
   protected void activate(Map<?, ?> props) {
     emailLocation = PropertiesUtil.toString(props.get(EMAIL_LOCATION), null);
     shouldScanForProviders = PropertiesUtil.toBoolean(props.get(SCAN_PROVIDER), false);
+    profileCacheTtl = PropertiesUtil.toLong(props.get(PROFILE_CACHE_TTL), 600L) * 1000L;
+    providerDefaultTtl = PropertiesUtil.toLong(props.get(PROVIDER_DEFAULT_TTL), 60L) * 1000L;
+    Map<String, Long> ttls = new HashMap<String, Long>();
+    for (String ttl : PropertiesUtil.toStringArray(props.get(PROVIDER_TTLS), new String[0])) {
+      int i = ttl.indexOf('=');
+      if (i > 0) {
+        try {
+          ttls.put(ttl.substring(0, i).trim(),
+              Long.parseLong(ttl.substring(i + 1).trim()) * 1000L);
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring invalid provider TTL {} ", ttl);
+        }
+      }
+    }
+    providerTtls = ttls;
+    if (cacheManagerService != null) {
+      getProfileCache().clear();
+    }
   }
 
   public String getEmailLocation() {
@@ -176,21 +241,308 @@ public class ProfileServiceImpl implements ProfileService {
    */
   public ValueMap getProfileMap(Authorizable authorizable, Session session)
       throws RepositoryException, StorageClientException, AccessDeniedException {
-    if (User.ANON_USER.equals(authorizable.getId())) {
-      return new ValueMapDecorator(basicUserInfoService.getProperties(authorizable));
+    return resolveProfiles(Collections.singleton(authorizable), session, false).get(
+        authorizable.getId());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The providers of the profiles are asked for the sections of all the profiles at
+   * once.
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfileMaps(java.util.Collection,
+   *      javax.jcr.Session)
+   */
+  public Map<String, ValueMap> getProfileMaps(Collection<Authorizable> authorizables,
+      Session session) throws RepositoryException, StorageClientException {
+    try {
+      return resolveProfiles(authorizables, session, true);
+    } catch (AccessDeniedException e) {
+      // not thrown when skipping profiles that can't be read
+      throw new RepositoryException(e.getMessage(), e);
     }
-    String profilePath = LitePersonalUtils.getProfilePath(authorizable.getId());
+  }
+
+  /**
+   * Resolve the profiles of a number of authorizables, from the cache where it is
+   * current.
+   *
+   * @param skipDenied
+   *          true to leave out profiles the session may not read, false to throw.
+   * @return the profiles by authorizable id, in the order of the authorizables.
+   */
+  private Map<String, ValueMap> resolveProfiles(Collection<Authorizable> authorizables,
+      Session session, boolean skipDenied) throws RepositoryException,
+      StorageClientException, AccessDeniedException {
     org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
     ContentManager contentManager = sparseSession.getContentManager();
-    ValueMap profileMap = new ValueMapDecorator(new HashMap<String, Object>());
-    
-    if (contentManager.exists(profilePath)) {
-      Content profileContent = contentManager.get(profilePath);
-      profileMap.putAll(getResolvedProfileMap(authorizable, profileContent, session));
+    String viewer = getViewerKey(sparseSession);
+    long now = System.currentTimeMillis();
+
+    Map<String, ValueMap> profiles = new LinkedHashMap<String, ValueMap>();
+    List<PendingProfile> pending = new ArrayList<PendingProfile>();
+    for (Authorizable authorizable : authorizables) {
+      if (authorizable == null || profiles.containsKey(authorizable.getId())) {
+        continue;
+      }
+      if (User.ANON_USER.equals(authorizable.getId())) {
+        profiles.put(authorizable.getId(),
+            new ValueMapDecorator(basicUserInfoService.getProperties(authorizable)));
+        continue;
+      }
+      String profilePath = LitePersonalUtils.getProfilePath(authorizable.getId());
+      Content profileContent = null;
+      try {
+        if (contentManager.exists(profilePath)) {
+          profileContent = contentManager.get(profilePath);
+        }
+      } catch (AccessDeniedException e) {
+        if (!skipDenied) {
+          throw e;
+        }
+        LOG.debug("Unable to read profile of {} {} ", authorizable.getId(), e.getMessage());
+        continue;
+      }
+      if (profileContent == null) {
+        ValueMap profileMap = new ValueMapDecorator(new HashMap<String, Object>());
+        profileMap.putAll(basicUserInfoService.getProperties(authorizable));
+        profiles.put(authorizable.getId(), profileMap);
+      } else {
+        // hold the place of the profile until it is resolved
+        profiles.put(authorizable.getId(), null);
+        pending.add(new PendingProfile(authorizable, profileContent, getResolvedProfile(
+            authorizable, profileContent, viewer, now)));
+      }
+    }
+
+    try {
+      resolveProviders(pending, session, now);
+      for (PendingProfile profile : pending) {
+        ResolvedProfile resolved = profile.resolved;
+        if (resolved.getLocal(viewer) == null) {
+          Map<String, Object> local = new HashMap<String, Object>();
+          handleLocalNode(profile.content, resolved.getProvidedPaths(), local);
+          putAuthorizableId(profile.content, local);
+          resolved.putLocal(viewer, local);
+        }
+        ValueMap profileMap = resolved.toProfileMap(viewer);
+        if (profileMap == null) {
+          // the local trees were dropped by a concurrent provider refresh.
+          profileMap = getResolvedProfileMap(profile.authorizable, profile.content, session);
+        }
+        profileMap.putAll(basicUserInfoService.getProperties(profile.authorizable));
+        profiles.put(profile.authorizable.getId(), profileMap);
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e.getMessage(),e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getMessage(),e);
     }
+    return profiles;
+  }
 
-    profileMap.putAll(basicUserInfoService.getProperties(authorizable));
-    return profileMap;
+  /**
+   * @return the principals of the viewing user, which decide what of a profile the user
+   *         can read, or null if they can't be resolved.
+   */
+  private String getViewerKey(org.sakaiproject.nakamura.api.lite.Session sparseSession) {
+    if (principalSetService == null) {
+      return null;
+    }
+    try {
+      PrincipalSet principals = principalSetService.getPrincipals(
+          sparseSession.getUserId(), sparseSession.getAuthorizableManager());
+      return principals == null ? null : principals.join();
+    } catch (StorageClientException e) {
+      LOG.warn("Failed to resolve principals of {} {} ", sparseSession.getUserId(),
+          e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOG.warn("Failed to resolve principals of {} {} ", sparseSession.getUserId(),
+          e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Get the cached entry for a profile if it is current, or a new entry, which is only
+   * cached if the cache is enabled and the viewer is known.
+   */
+  private ResolvedProfile getResolvedProfile(Authorizable authorizable,
+      Content profileContent, String viewer, long now) {
+    Object profileLastModified = profileContent.getProperty(Content.LASTMODIFIED_FIELD);
+    Object authorizableLastModified = authorizable.getProperty(Authorizable.LASTMODIFIED_FIELD);
+    if (profileCacheTtl <= 0 || cacheManagerService == null || viewer == null) {
+      return new ResolvedProfile(profileContent.getPath(), profileLastModified,
+          authorizableLastModified, now);
+    }
+    Cache<ResolvedProfile> cache = getProfileCache();
+    ResolvedProfile resolved = cache.get(authorizable.getId());
+    if (resolved == null || !resolved.isCurrent(profileLastModified, authorizableLastModified, now)) {
+      resolved = new ResolvedProfile(profileContent.getPath(), profileLastModified,
+          authorizableLastModified, now + profileCacheTtl);
+      cache.put(authorizable.getId(), resolved);
+    }
+    return resolved;
+  }
+
+  /**
+   * Scan the profiles for provided nodes and fetch the sections of every provider that
+   * has not been fetched, or whose sections have expired. Each provider is asked once,
+   * for the sections of all the profiles.
+   */
+  private void resolveProviders(List<PendingProfile> pending, Session jcrSession, long now)
+      throws RepositoryException, InterruptedException, ExecutionException {
+    if (!shouldScanForProviders) {
+      for (PendingProfile profile : pending) {
+        if (profile.resolved.getProvidedPaths() == null) {
+          profile.resolved.setProviders(Collections.<String> emptySet());
+        }
+      }
+      return;
+    }
+    Map<String, List<ProviderSettings>> wanted = new HashMap<String, List<ProviderSettings>>();
+    for (PendingProfile profile : pending) {
+      Set<String> providerNames = profile.resolved.getProviderNames();
+      if (providerNames != null && profile.resolved.expiredProviders(providerNames, now).isEmpty()) {
+        continue;
+      }
+      profile.providers = scanForProviders(profile.content, jcrSession);
+      profile.expired = profile.resolved.expiredProviders(profile.providers.keySet(), now);
+      for (String providerName : profile.expired) {
+        List<ProviderSettings> settings = wanted.get(providerName);
+        if (settings == null) {
+          settings = new ArrayList<ProviderSettings>();
+          wanted.put(providerName, settings);
+        }
+        settings.addAll(profile.providers.get(providerName));
+      }
+    }
+    for (Entry<String, List<ProviderSettings>> w : wanted.entrySet()) {
+      String providerName = w.getKey();
+      ProfileProvider pp = providers.get(providerName);
+      Map<String, Map<String, Object>> sections = new HashMap<String, Map<String, Object>>();
+      if (pp != null) {
+        for (Entry<String, ? extends Future<Map<String, Object>>> e : pp.getProvidedMap(
+            w.getValue()).entrySet()) {
+          sections.put(e.getKey(), e.getValue().get());
+        }
+      }
+      Long ttl = providerTtls.get(providerName);
+      long expires = now + (ttl == null ? providerDefaultTtl : ttl);
+      for (PendingProfile profile : pending) {
+        if (profile.expired != null && profile.expired.contains(providerName)) {
+          profile.resolved.putProvided(providerName,
+              getSections(sections, profile.content.getPath()), expires);
+        }
+      }
+    }
+    for (PendingProfile profile : pending) {
+      if (profile.providers != null) {
+        profile.resolved.setProviders(new HashSet<String>(profile.providers.keySet()));
+      }
+    }
+  }
+
+  /**
+   * @return the sections that belong to the profile at a path.
+   */
+  private Map<String, Map<String, Object>> getSections(
+      Map<String, Map<String, Object>> sections, String profilePath) {
+    Map<String, Map<String, Object>> profileSections = new HashMap<String, Map<String, Object>>();
+    for (Entry<String, Map<String, Object>> e : sections.entrySet()) {
+      if (e.getKey().equals(profilePath) || e.getKey().startsWith(profilePath + "/")) {
+        profileSections.put(e.getKey(), e.getValue());
+      }
+    }
+    return profileSections;
+  }
+
+  /**
+   * A profile being resolved.
+   */
+  private static class PendingProfile {
+    private final Authorizable authorizable;
+    private final Content content;
+    private final ResolvedProfile resolved;
+    private Map<String, List<ProviderSettings>> providers;
+    private Set<String> expired;
+
+    PendingProfile(Authorizable authorizable, Content content, ResolvedProfile resolved) {
+      this.authorizable = authorizable;
+      this.content = content;
+      this.resolved = resolved;
+    }
+  }
+
+  /**
+   * Fills the map with the stored profile, leaving an empty map in place of every node
+   * whose content comes from a provider.
+   */
+  private void handleLocalNode(Content profileContent, Set<String> providedPaths,
+      Map<String, Object> map) {
+    if (providedPaths.contains(profileContent.getPath())) {
+      return;
+    }
+    for ( Entry<String, Object> e : profileContent.getProperties().entrySet()) {
+      String k = e.getKey();
+      if ( !k.startsWith("_") &&  !k.startsWith(":") ) {
+        map.put(k,e.getValue());
+      }
+    }
+    map.put("_path", PathUtils.translateAuthorizablePath(profileContent.getPath()));
+    for (Content childProfile : profileContent.listChildren()) {
+      Map<String, Object> childMap = new HashMap<String, Object>();
+      handleLocalNode(childProfile, providedPaths, childMap);
+      map.put(StorageClientUtils.getObjectName(childProfile.getPath()), childMap);
+    }
+  }
+
+  private void putAuthorizableId(Content profileContent, Map<String, Object> map) {
+    final String resourceType = (String) profileContent
+        .getProperty("sling:resourceType");
+    if (ProfileConstants.USER_PROFILE_RT.equals(resourceType)) {
+      map.put("userid", PathUtils.getAuthorizableId(profileContent.getPath()));
+    } else if (ProfileConstants.GROUP_PROFILE_RT.equals(resourceType)) {
+      map.put("groupid", PathUtils.getAuthorizableId(profileContent.getPath()));
+    }
+  }
+
+  /**
+   * Drop the resolved profile of an authorizable.
+   *
+   * @param authorizableId
+   */
+  private void invalidate(String authorizableId) {
+    if (authorizableId != null && cacheManagerService != null) {
+      getProfileCache().remove(authorizableId);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops resolved profiles when the profile content, its access control or the
+   * authorizable changes. Every store topic is listened to since access control changes
+   * are published under their own topics.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().indexOf("/authorizables/") > 0) {
+      invalidate(path);
+    } else if (path.startsWith("a:") && path.indexOf("/" + LitePersonalUtils.PATH_AUTH_PROFILE) > 0) {
+      // a change to the profile or to its access control
+      invalidate(PathUtils.getAuthorizableId(path));
+    }
+  }
+
+  private Cache<ResolvedProfile> getProfileCache() {
+    return cacheManagerService.getCache(RESOLVED_PROFILE_CACHE, CacheScope.CLUSTERINVALIDATED);
   }
 
   /**
@@ -215,13 +567,7 @@ public class ProfileServiceImpl implements ProfileService {
       // Return it as a ValueMap.
       ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
       handleNode(profileContent, providedNodeData, map);
-      final String resourceType = (String) profileContent
-          .getProperty("sling:resourceType");
-      if (ProfileConstants.USER_PROFILE_RT.equals(resourceType)) {
-        map.put("userid", PathUtils.getAuthorizableId(profileContent.getPath()));
-      } else if (ProfileConstants.GROUP_PROFILE_RT.equals(resourceType)) {
-        map.put("groupid", PathUtils.getAuthorizableId(profileContent.getPath()));
-      }
+      putAuthorizableId(profileContent, map);
       return map;
     } catch (InterruptedException e) {
       throw new RuntimeException(e.getMessage(),e);
@@ -388,6 +734,7 @@ public class ProfileServiceImpl implements ProfileService {
       importer.importContent(contentManager, json, profilePath, replace, replaceProperties,
           removeTree, accessControlManger);
     }
+    invalidate(authorizableId);
   }
 
   private void processBasic(JSONObject basic, Authorizable a)
@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache entry holding the resolved profile of one authorizable. The locally stored part
+ * of the profile is held per set of viewing principals, since the tree is read with the
+ * viewing user's permissions, for at most {@link #MAX_VIEWERS} sets. Sections supplied by external {@link org.sakaiproject.nakamura.api.profile.ProfileProvider}s
+ * are held once per provider, each with its own expiry, and merged into a copy of the
+ * local part on every read.
+ */
+class ResolvedProfile implements Serializable {
+
+  private static final long serialVersionUID = 2795043810327014529L;
+
+  static final int MAX_VIEWERS = 32;
+
+  private final String profilePath;
+  private final Object profileLastModified;
+  private final Object authorizableLastModified;
+  private final long expires;
+
+  /**
+   * The profile tree without externally provided sections, by viewing principals.
+   */
+  private final Map<String, Map<String, Object>> local = new ConcurrentHashMap<String, Map<String, Object>>();
+
+  /**
+   * The paths of nodes whose content comes from a provider, null until the profile has
+   * been scanned for providers.
+   */
+  private volatile Set<String> providedPaths;
+
+  /**
+   * The names of the providers referenced by the profile, null until scanned.
+   */
+  private volatile Set<String> providerNames;
+
+  /**
+   * Externally provided sections, by provider name.
+   */
+  private final Map<String, ProvidedSections> provided = new ConcurrentHashMap<String, ProvidedSections>();
+
+  ResolvedProfile(String profilePath, Object profileLastModified,
+      Object authorizableLastModified, long expires) {
+    this.profilePath = profilePath;
+    this.profileLastModified = profileLastModified;
+    this.authorizableLastModified = authorizableLastModified;
+    this.expires = expires;
+  }
+
+  /**
+   * @return true if this entry was resolved from the same versions of the profile and
+   *         authorizable and has not passed its maximum age.
+   */
+  boolean isCurrent(Object profileLastModified, Object authorizableLastModified, long now) {
+    return now < expires && equal(this.profileLastModified, profileLastModified)
+        && equal(this.authorizableLastModified, authorizableLastModified);
+  }
+
+  Map<String, Object> getLocal(String viewer) {
+    return local.get(viewer);
+  }
+
+  void putLocal(String viewer, Map<String, Object> map) {
+    if (local.size() >= MAX_VIEWERS) {
+      local.clear();
+    }
+    local.put(viewer, map);
+  }
+
+  Set<String> getProvidedPaths() {
+    return providedPaths;
+  }
+
+  /**
+   * @return the names of the providers referenced by the profile, null until scanned.
+   */
+  Set<String> getProviderNames() {
+    return providerNames;
+  }
+
+  /**
+   * Record the providers referenced by the profile. The nodes replaced by provider
+   * sections are taken from the sections fetched so far, if they differ from those the
+   * local trees were built with the local trees are dropped.
+   */
+  void setProviders(Set<String> providerNames) {
+    Set<String> paths = new HashSet<String>();
+    for (Entry<String, ProvidedSections> e : provided.entrySet()) {
+      if (providerNames.contains(e.getKey())) {
+        paths.addAll(e.getValue().data.keySet());
+      } else {
+        provided.remove(e.getKey());
+      }
+    }
+    if (providedPaths != null && !providedPaths.equals(paths)) {
+      local.clear();
+    }
+    this.providedPaths = paths;
+    this.providerNames = providerNames;
+  }
+
+  /**
+   * @return the names of providers whose sections have expired, or have not been fetched.
+   */
+  Set<String> expiredProviders(Set<String> providerNames, long now) {
+    Set<String> expired = new HashSet<String>();
+    for (String name : providerNames) {
+      ProvidedSections sections = provided.get(name);
+      if (sections == null || now >= sections.expires) {
+        expired.add(name);
+      }
+    }
+    return expired;
+  }
+
+  void putProvided(String providerName, Map<String, Map<String, Object>> sections,
+      long expires) {
+    provided.put(providerName, new ProvidedSections(sections, expires));
+  }
+
+  /**
+   * Build a profile map for a viewer, the cached maps are not modified.
+   *
+   * @param viewer
+   *          the viewing user.
+   * @return a new map, or null if nothing is cached for the viewer.
+   */
+  ValueMap toProfileMap(String viewer) {
+    Map<String, Object> map = local.get(viewer);
+    if (map == null) {
+      return null;
+    }
+    ValueMap profileMap = copy(map);
+    for (ProvidedSections sections : provided.values()) {
+      for (Entry<String, Map<String, Object>> section : sections.data.entrySet()) {
+        Map<String, Object> target = locate(profileMap, section.getKey());
+        if (target != null) {
+          target.putAll(section.getValue());
+        }
+      }
+    }
+    return profileMap;
+  }
+
+  /**
+   * Find the map that represents a node of the profile tree.
+   *
+   * @param profileMap
+   *          the root of the profile map.
+   * @param nodePath
+   *          the absolute path of the node.
+   * @return the map or null if the node is not present in the tree.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> locate(Map<String, Object> profileMap, String nodePath) {
+    if (nodePath.equals(profilePath)) {
+      return profileMap;
+    }
+    if (!nodePath.startsWith(profilePath + "/")) {
+      return null;
+    }
+    Map<String, Object> current = profileMap;
+    for (String element : nodePath.substring(profilePath.length() + 1).split("/")) {
+      Object child = current.get(element);
+      if (!(child instanceof Map)) {
+        return null;
+      }
+      current = (Map<String, Object>) child;
+    }
+    return current;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ValueMap copy(Map<String, Object> map) {
+    ValueMap copy = new ValueMapDecorator(new HashMap<String, Object>(map.size()));
+    for (Entry<String, Object> e : map.entrySet()) {
+      Object value = e.getValue();
+      if (value instanceof Map) {
+        copy.put(e.getKey(), copy((Map<String, Object>) value));
+      } else {
+        copy.put(e.getKey(), value);
+      }
+    }
+    return copy;
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * The sections supplied by one provider, by absolute node path.
+   */
+  private static class ProvidedSections implements Serializable {
+    private static final long serialVersionUID = -4301562216372781635L;
+    private final Map<String, Map<String, Object>> data;
+    private final long expires;
+
+    ProvidedSections(Map<String, Map<String, Object>> data, long expires) {
+      this.data = data;
+      this.expires = expires;
+    }
+  }
+}
@@ -17,8 +17,12 @@
  */
 package org.sakaiproject.nakamura.profile;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+
 import junit.framework.Assert;
 
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Test;
@@ -27,11 +31,27 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.profile.ProfileConstants;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
 
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -118,6 +138,78 @@ public class ProfileServiceImplTest {
     */
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testProfileMapsAskProvidersOnce() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    org.sakaiproject.nakamura.api.lite.Session adminSession = repository
+        .loginAdministrative();
+    AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    ContentManager contentManager = adminSession.getContentManager();
+    List<Authorizable> authorizables = new ArrayList<Authorizable>();
+    for (String userId : new String[] { "alice", "bob" }) {
+      authorizableManager.createUser(userId, userId, "password", null);
+      authorizables.add(authorizableManager.findAuthorizable(userId));
+      String profilePath = LitePersonalUtils.getProfilePath(userId);
+      contentManager.update(new Content(profilePath, ImmutableMap.of(
+          "sling:resourceType", (Object) ProfileConstants.USER_PROFILE_RT)));
+      contentManager.update(new Content(profilePath + "/ldap", ImmutableMap.of(
+          "sakai:source", (Object) "external")));
+    }
+
+    Session jcrSession = Mockito.mock(Session.class,
+        Mockito.withSettings().extraInterfaces(SessionAdaptable.class));
+    Mockito.when(((SessionAdaptable) jcrSession).getSession()).thenReturn(adminSession);
+    Node settingsNode = Mockito.mock(Node.class);
+    Property providerProperty = Mockito.mock(Property.class);
+    Mockito.when(providerProperty.getString()).thenReturn("ldap");
+    Mockito.when(settingsNode.hasProperty(ProviderSettings.PROFILE_PROVIDER)).thenReturn(true);
+    Mockito.when(settingsNode.getProperty(ProviderSettings.PROFILE_PROVIDER)).thenReturn(
+        providerProperty);
+    Mockito.when(jcrSession.nodeExists(Mockito.anyString())).thenReturn(true);
+    Mockito.when(jcrSession.getNode(Mockito.anyString())).thenReturn(settingsNode);
+
+    Mockito.when(profileProvider.getProvidedMap(Mockito.anyList())).thenAnswer(
+        new Answer<Map<String, Future<Map<String, Object>>>>() {
+          public Map<String, Future<Map<String, Object>>> answer(InvocationOnMock invocation)
+              throws Throwable {
+            Map<String, Future<Map<String, Object>>> provided = new HashMap<String, Future<Map<String, Object>>>();
+            for (ProviderSettings settings : (List<ProviderSettings>) invocation
+                .getArguments()[0]) {
+              String path = settings.getNode().getPath();
+              provided.put(path, Futures.immediateFuture((Map<String, Object>) ImmutableMap
+                  .of("dept", (Object) path)));
+            }
+            return provided;
+          }
+        });
+
+    BasicUserInfoService basicUserInfoService = Mockito.mock(BasicUserInfoService.class);
+    Mockito.when(basicUserInfoService.getProperties(Mockito.any(Authorizable.class)))
+        .thenReturn(new HashMap<String, Object>());
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(cacheManagerService.getCache(Mockito.anyString(),
+        Mockito.any(CacheScope.class))).thenReturn(
+        new MapCacheImpl<Object>("test", CacheScope.INSTANCE));
+    ProfileServiceImpl ps = new ProfileServiceImpl(basicUserInfoService,
+        cacheManagerService, null);
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ProfileProvider.PROVIDER_NAME, "ldap");
+    ps.bindProfileProvider(profileProvider, properties);
+    ps.activate(ImmutableMap.of(ProfileServiceImpl.SCAN_PROVIDER, true));
+
+    Map<String, ValueMap> profiles = ps.getProfileMaps(authorizables, jcrSession);
+
+    Mockito.verify(profileProvider, Mockito.times(1)).getProvidedMap(Mockito.anyList());
+    Assert.assertEquals(2, profiles.size());
+    for (String userId : new String[] { "alice", "bob" }) {
+      Map<String, Object> ldap = (Map<String, Object>) profiles.get(userId).get("ldap");
+      Assert.assertEquals(LitePersonalUtils.getProfilePath(userId) + "/ldap",
+          ldap.get("dept"));
+    }
+    adminSession.logout();
+  }
+
   /**
    * @return
    */
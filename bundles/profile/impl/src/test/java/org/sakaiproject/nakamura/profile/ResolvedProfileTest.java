@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ */
+public class ResolvedProfileTest {
+
+  private static final String PROFILE = "a:ieb/public/authprofile";
+
+  @Test
+  public void testIsCurrent() {
+    ResolvedProfile resolved = new ResolvedProfile(PROFILE, 10L, 20L, 1000L);
+    Assert.assertTrue(resolved.isCurrent(10L, 20L, 999L));
+    Assert.assertFalse(resolved.isCurrent(10L, 20L, 1000L));
+    Assert.assertFalse(resolved.isCurrent(11L, 20L, 0L));
+    Assert.assertFalse(resolved.isCurrent(10L, null, 0L));
+  }
+
+  @Test
+  public void testMergeProvided() {
+    ResolvedProfile resolved = new ResolvedProfile(PROFILE, 10L, 20L, 1000L);
+    Map<String, Object> local = new HashMap<String, Object>();
+    local.put("name", "ieb");
+    Map<String, Object> basic = new HashMap<String, Object>();
+    basic.put("title", "Dr");
+    local.put("basic", basic);
+    Map<String, Object> ldap = new HashMap<String, Object>();
+    local.put("ldap", ldap);
+    resolved.putLocal("alice", local);
+
+    Map<String, Map<String, Object>> sections = new HashMap<String, Map<String, Object>>();
+    Map<String, Object> section = new HashMap<String, Object>();
+    section.put("dept", "physics");
+    sections.put(PROFILE + "/ldap", section);
+    resolved.putProvided("ldap", sections, 500L);
+    resolved.setProviders(Collections.singleton("ldap"));
+
+    ValueMap map = resolved.toProfileMap("alice");
+    Assert.assertEquals("ieb", map.get("name"));
+    Assert.assertEquals("Dr", ((Map<?, ?>) map.get("basic")).get("title"));
+    Assert.assertEquals("physics", ((Map<?, ?>) map.get("ldap")).get("dept"));
+
+    // the cached local tree is not modified by the merge or by the caller.
+    Assert.assertTrue(ldap.isEmpty());
+    ((Map<?, ?>) map.get("basic")).clear();
+    Assert.assertEquals("Dr", ((Map<?, ?>) resolved.toProfileMap("alice").get("basic"))
+        .get("title"));
+
+    Assert.assertNull(resolved.toProfileMap("bob"));
+  }
+
+  @Test
+  public void testExpiredProviders() {
+    ResolvedProfile resolved = new ResolvedProfile(PROFILE, 10L, 20L, 1000L);
+    Set<String> names = new HashSet<String>();
+    names.add("ldap");
+    names.add("sis");
+    Assert.assertEquals(names, resolved.expiredProviders(names, 0L));
+
+    resolved.putProvided("ldap", new HashMap<String, Map<String, Object>>(), 100L);
+    resolved.putProvided("sis", new HashMap<String, Map<String, Object>>(), 500L);
+    Assert.assertTrue(resolved.expiredProviders(names, 99L).isEmpty());
+    Assert.assertEquals(Collections.singleton("ldap"), resolved.expiredProviders(names, 100L));
+  }
+
+  @Test
+  public void testProvidedPathsChangeDropsLocal() {
+    ResolvedProfile resolved = new ResolvedProfile(PROFILE, 10L, 20L, 1000L);
+    resolved.setProviders(Collections.<String> emptySet());
+    Assert.assertTrue(resolved.getProvidedPaths().isEmpty());
+    resolved.putLocal("alice", new HashMap<String, Object>());
+
+    Map<String, Map<String, Object>> sections = new HashMap<String, Map<String, Object>>();
+    sections.put(PROFILE + "/ldap", new HashMap<String, Object>());
+    resolved.putProvided("ldap", sections, 500L);
+    resolved.setProviders(Collections.singleton("ldap"));
+    Assert.assertEquals(Collections.singleton(PROFILE + "/ldap"), resolved.getProvidedPaths());
+    Assert.assertNull(resolved.getLocal("alice"));
+  }
+
+  @Test
+  public void testViewersBounded() {
+    ResolvedProfile resolved = new ResolvedProfile(PROFILE, 10L, 20L, 1000L);
+    for (int i = 0; i < ResolvedProfile.MAX_VIEWERS; i++) {
+      resolved.putLocal("viewer" + i, new HashMap<String, Object>());
+    }
+    Assert.assertNotNull(resolved.getLocal("viewer0"));
+    resolved.putLocal("another", new HashMap<String, Object>());
+    Assert.assertNull(resolved.getLocal("viewer0"));
+    Assert.assertNotNull(resolved.getLocal("another"));
+  }
+}
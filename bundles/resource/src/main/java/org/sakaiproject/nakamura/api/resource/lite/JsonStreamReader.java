@@ -0,0 +1,415 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.BitSet;
+
+/**
+ * Reads JSON a token at a time so that objects can be walked without holding the whole
+ * document. Values that are read whole are built as the Sling JSON parser would build
+ * them, and the same relaxed syntax is accepted: comments, single quoted strings,
+ * unquoted names and values, '=' or '=>' after names, ';' between members and trailing
+ * separators.
+ */
+class JsonStreamReader {
+
+  private final Reader reader;
+  private final Writer copy;
+  private final char[] buffer = new char[8192];
+  private int pos;
+  private int limit;
+  private long offset;
+
+  /**
+   * For each open object, whether a member has been read, by depth.
+   */
+  private final BitSet started = new BitSet();
+  private int depth;
+
+  JsonStreamReader(Reader reader) {
+    this(reader, null);
+  }
+
+  /**
+   * @param copy
+   *          if not null, receives everything that is read.
+   */
+  JsonStreamReader(Reader reader, Writer copy) {
+    this.reader = reader;
+    this.copy = copy;
+  }
+
+  /**
+   * @return true if the next value is an object.
+   */
+  boolean peekObject() throws IOException, JSONException {
+    return peek() == '{';
+  }
+
+  void beginObject() throws IOException, JSONException {
+    if (nextClean() != '{') {
+      throw syntaxError("A JSONObject text must begin with '{'");
+    }
+    depth++;
+    started.clear(depth);
+  }
+
+  /**
+   * @return the name of the next member of the current object, or null when the end of
+   *         the object has been read.
+   */
+  String nextName() throws IOException, JSONException {
+    int c = nextClean();
+    if (started.get(depth)) {
+      if (c == ',' || c == ';') {
+        c = nextClean();
+      } else if (c != '}') {
+        throw syntaxError("Expected a ',' or '}'");
+      }
+    } else {
+      started.set(depth);
+    }
+    if (c == '}') {
+      depth--;
+      return null;
+    }
+    if (c == -1) {
+      throw syntaxError("A JSONObject text must end with '}'");
+    }
+    back(c);
+    String name = readValue().toString();
+    c = nextClean();
+    if (c == '=') {
+      c = read();
+      if (c != '>') {
+        back(c);
+      }
+    } else if (c != ':') {
+      throw syntaxError("Expected a ':' after a key");
+    }
+    return name;
+  }
+
+  /**
+   * Read the next value whole.
+   *
+   * @return a JSONObject, a JSONArray, a String, a Boolean, a Number, JSONObject.NULL, or
+   *         null for an element left out of an array.
+   */
+  Object readValue() throws IOException, JSONException {
+    int c = peek();
+    switch (c) {
+    case '{':
+      JSONObject object = new JSONObject();
+      beginObject();
+      String key;
+      while ((key = nextName()) != null) {
+        object.put(key, readValue());
+      }
+      return object;
+    case '[':
+      read();
+      JSONArray array = new JSONArray();
+      c = nextClean();
+      if (c == ']') {
+        return array;
+      }
+      back(c);
+      do {
+        if (peek() == ',') {
+          // [1,,2] leaves out an element, as the Sling parser does.
+          array.put((Object) null);
+        } else {
+          array.put(readValue());
+        }
+      } while (readArraySeparator());
+      return array;
+    case '"':
+    case '\'':
+      read();
+      return readString((char) c);
+    default:
+      return readLiteral();
+    }
+  }
+
+  /**
+   * Skip the next value without building it, checking its syntax.
+   */
+  void skipValue() throws IOException, JSONException {
+    int c = peek();
+    if (c == '{') {
+      beginObject();
+      while (nextName() != null) {
+        skipValue();
+      }
+    } else if (c == '[') {
+      read();
+      c = nextClean();
+      if (c == ']') {
+        return;
+      }
+      back(c);
+      do {
+        if (peek() != ',') {
+          skipValue();
+        }
+      } while (readArraySeparator());
+    } else {
+      readValue();
+    }
+  }
+
+  /**
+   * @return true if a separator was read and another element follows, false if the end
+   *         of the array was read.
+   */
+  private boolean readArraySeparator() throws IOException, JSONException {
+    int c = nextClean();
+    if (c == ',' || c == ';') {
+      c = nextClean();
+      if (c == ']') {
+        return false;
+      }
+      back(c);
+      return true;
+    }
+    if (c == ']') {
+      return false;
+    }
+    throw syntaxError("Expected a ',' or ']'");
+  }
+
+  /**
+   * Read the rest of a string, the opening quote having been read.
+   */
+  private String readString(char quote) throws IOException, JSONException {
+    StringBuilder sb = new StringBuilder();
+    for (;;) {
+      int c = read();
+      switch (c) {
+      case -1:
+      case '\n':
+      case '\r':
+        throw syntaxError("Unterminated string");
+      case '\\':
+        c = read();
+        switch (c) {
+        case 'b':
+          sb.append('\b');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 'u':
+          char[] hex = new char[4];
+          for (int i = 0; i < 4; i++) {
+            int h = read();
+            if (h == -1) {
+              throw syntaxError("Unterminated string");
+            }
+            hex[i] = (char) h;
+          }
+          try {
+            sb.append((char) Integer.parseInt(new String(hex), 16));
+          } catch (NumberFormatException e) {
+            throw syntaxError("Illegal escape");
+          }
+          break;
+        case -1:
+          throw syntaxError("Unterminated string");
+        default:
+          sb.append((char) c);
+        }
+        break;
+      default:
+        if (c == quote) {
+          return sb.toString();
+        }
+        sb.append((char) c);
+      }
+    }
+  }
+
+  /**
+   * Read an unquoted value, converted as the Sling parser converts it.
+   */
+  private Object readLiteral() throws IOException, JSONException {
+    StringBuilder sb = new StringBuilder();
+    for (;;) {
+      int c = read();
+      if (c < ' ' || ",:]}/\\\"[{;=#".indexOf(c) >= 0) {
+        back(c);
+        break;
+      }
+      sb.append((char) c);
+    }
+    String s = sb.toString().trim();
+    if (s.length() == 0) {
+      throw syntaxError("Missing value");
+    }
+    if ("true".equalsIgnoreCase(s)) {
+      return Boolean.TRUE;
+    }
+    if ("false".equalsIgnoreCase(s)) {
+      return Boolean.FALSE;
+    }
+    if ("null".equalsIgnoreCase(s)) {
+      return JSONObject.NULL;
+    }
+    char b = s.charAt(0);
+    if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
+      if (b == '0') {
+        if (s.length() > 2 && (s.charAt(1) == 'x' || s.charAt(1) == 'X')) {
+          try {
+            return Integer.valueOf(Integer.parseInt(s.substring(2), 16));
+          } catch (NumberFormatException e) {
+            // not hex
+          }
+        } else {
+          try {
+            return Integer.valueOf(Integer.parseInt(s, 8));
+          } catch (NumberFormatException e) {
+            // not octal
+          }
+        }
+      }
+      try {
+        return Integer.valueOf(s);
+      } catch (NumberFormatException e) {
+        try {
+          return Long.valueOf(s);
+        } catch (NumberFormatException f) {
+          try {
+            return Double.valueOf(s);
+          } catch (NumberFormatException g) {
+            // a string, as the Sling parser does.
+          }
+        }
+      }
+    }
+    return s;
+  }
+
+  /**
+   * @return the next character that is not white space, without consuming it.
+   */
+  private int peek() throws IOException, JSONException {
+    int c = nextClean();
+    if (c == -1) {
+      throw syntaxError("Unexpected end of input");
+    }
+    back(c);
+    return c;
+  }
+
+  /**
+   * @return the next character that is not white space or in a comment, or -1.
+   */
+  private int nextClean() throws IOException, JSONException {
+    for (;;) {
+      int c = read();
+      if (c == '/') {
+        c = read();
+        if (c == '/') {
+          skipLine();
+        } else if (c == '*') {
+          for (;;) {
+            c = read();
+            if (c == -1) {
+              throw syntaxError("Unclosed comment");
+            }
+            if (c == '*') {
+              c = read();
+              if (c == '/') {
+                break;
+              }
+              back(c);
+            }
+          }
+        } else {
+          // a '/' outside a string or comment is never valid.
+          throw syntaxError("Missing value");
+        }
+      } else if (c == '#') {
+        skipLine();
+      } else if (c == -1 || c > ' ') {
+        return c;
+      }
+    }
+  }
+
+  private void skipLine() throws IOException {
+    int c;
+    do {
+      c = read();
+    } while (c != '\n' && c != '\r' && c != -1);
+  }
+
+  private int read() throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    return buffer[pos++];
+  }
+
+  /**
+   * Push back the character last read, which a fill leaves at the start of the buffer.
+   * The end of the input is not pushed back, reading it again gives -1 again.
+   */
+  private void back(int c) {
+    if (c != -1) {
+      pos--;
+    }
+  }
+
+  private boolean fill() throws IOException {
+    offset += limit;
+    pos = 0;
+    limit = 0;
+    int n = reader.read(buffer);
+    if (n <= 0) {
+      return false;
+    }
+    limit = n;
+    if (copy != null) {
+      copy.write(buffer, 0, n);
+    }
+    return true;
+  }
+
+  private JSONException syntaxError(String message) {
+    return new JSONException(message + " at character " + (offset + pos));
+  }
+}
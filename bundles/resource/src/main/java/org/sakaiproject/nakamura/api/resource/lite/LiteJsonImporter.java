@@ -40,18 +40,59 @@ import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 public class LiteJsonImporter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(LiteJsonImporter.class);
+
+  /**
+   * Continue if data exists at the path, required for the other options to matter.
+   */
+  public static final int CONTINUE = 1;
+  /**
+   * Replace existing properties.
+   */
+  public static final int REPLACE_PROPERTIES = 2;
+  /**
+   * Remove the tree at the path before importing.
+   */
+  public static final int REMOVE_TREE = 4;
+  /**
+   * Merge with existing content rather than replacing it.
+   */
+  public static final int MERGE = 8;
+  /**
+   * Update the modified time of the imported content.
+   */
+  public static final int TOUCH = 16;
+  /**
+   * Trust that nothing exists below a node that does not exist, so that new subtrees are
+   * written without reading them first.
+   */
+  public static final int NEW_SUBTREES = 32;
+
+  /**
+   * Number of node writes held before they are flushed by a streaming import.
+   */
+  private static final int WRITE_BATCH_SIZE = 100;
   private static Map<String, Class<?>> TYPES = null;
 
   static {
@@ -133,6 +174,233 @@ public class LiteJsonImporter {
     internalImportContent(contentManager, json, path, !merge, replaceProperties, accessControlManager, withTouch);
   }
 
+  /**
+   * Import JSON read from <code>json</code> to <code>path</code> as
+   * {@link #importContent(ContentManager, JSONObject, String, boolean, boolean, boolean, boolean, AccessControlManager, boolean)}
+   * does, but reading the JSON as it goes rather than parsing it whole first, and
+   * holding at most {@link #WRITE_BATCH_SIZE} node writes at a time, so that the memory
+   * used depends on the depth of the tree and not on its size. The JSON is checked and
+   * spooled to a temporary file before anything is removed or written, so a document that
+   * does not parse changes nothing.
+   *
+   * @param options
+   *          {@link #CONTINUE}, {@link #REPLACE_PROPERTIES}, {@link #REMOVE_TREE},
+   *          {@link #MERGE}, {@link #TOUCH} and {@link #NEW_SUBTREES} or'd together.
+   * @throws IOException
+   *           if the JSON could not be read.
+   */
+  public void importContent(ContentManager contentManager, Reader json, String path,
+      int options, AccessControlManager accessControlManager) throws IOException,
+      JSONException, StorageClientException, AccessDeniedException {
+    if ((options & CONTINUE) == 0 && contentManager.get(path) != null) {
+      LOGGER.debug("continueIfExists=false and path exists, so discontinuing JSON import to {}", path);
+      return;
+    }
+    File spool = File.createTempFile("import", ".json");
+    try {
+      Writer spoolWriter = new OutputStreamWriter(new FileOutputStream(spool), "UTF-8");
+      try {
+        new JsonStreamReader(json, spoolWriter).skipValue();
+      } finally {
+        spoolWriter.close();
+      }
+      if ((options & REMOVE_TREE) != 0) {
+        for ( Iterator<String> i = contentManager.listChildPaths(path); i.hasNext(); ) {
+          String childPath = i.next();
+          LOGGER.debug("Deleting {} ",childPath);
+          contentManager.delete(childPath, true);
+        }
+      }
+      Reader spoolReader = new InputStreamReader(new FileInputStream(spool), "UTF-8");
+      try {
+        WriteBatch batch = new WriteBatch(contentManager, accessControlManager,
+            (options & TOUCH) != 0);
+        streamImportContent(new JsonStreamReader(spoolReader), path, options, false, batch);
+        batch.flush();
+      } finally {
+        spoolReader.close();
+      }
+    } finally {
+      if (!spool.delete()) {
+        LOGGER.warn("Failed to delete import spool file {} ", spool);
+      }
+    }
+  }
+
+  /**
+   * Import one object from the reader. Child objects are imported as they are read and
+   * the node itself is written once all its members have been read, so children are
+   * written before their parents, as {@link #internalImportContent} does.
+   *
+   * @param isNew
+   *          true if the node is known not to exist.
+   */
+  private void streamImportContent(JsonStreamReader reader, String path, int options,
+      boolean isNew, WriteBatch batch) throws IOException, JSONException,
+      StorageClientException, AccessDeniedException {
+    ContentManager contentManager = batch.contentManager;
+    boolean replace = (options & MERGE) == 0;
+    boolean replaceProperties = (options & REPLACE_PROPERTIES) != 0;
+    Content content = null;
+    boolean read = false;
+    if (!isNew && (options & NEW_SUBTREES) != 0) {
+      content = contentManager.get(path);
+      isNew = content == null;
+      read = true;
+    }
+    // the names of children to keep when replacing
+    Set<String> keep = (replace && !isNew) ? new HashSet<String>() : null;
+    Map<String, Object> properties = new HashMap<String, Object>();
+    Map<String, Object> rawValues = new HashMap<String, Object>();
+    Map<String, Object> typeHints = null;
+    List<AclModification> modifications = Lists.newArrayList();
+
+    reader.beginObject();
+    String key;
+    while ((key = reader.nextName()) != null) {
+      if (JcrUtils.isJCRProperty(key)) {
+        reader.skipValue();
+        continue;
+      }
+      String pathKey = getPathElement(key);
+      if (key.endsWith("@Ignore")) {
+        reader.skipValue();
+        if (keep != null) {
+          keep.add(pathKey);
+        }
+      } else if (reader.peekObject()) {
+        if ( key.endsWith("@grant") || key.endsWith("@deny") ) {
+          JSONObject acl = (JSONObject) reader.readValue();
+          int bitmap = getPermissionBitMap(acl.getJSONArray("permission"));
+          Operation op = getOperation(acl.getString("operation"));
+          String aclKey = key.endsWith("@grant") ? AclModification.grantKey(pathKey)
+              : AclModification.denyKey(pathKey);
+          modifications.add(new AclModification(aclKey, bitmap, op));
+        } else if ( key.endsWith("@Delete") ) {
+          reader.skipValue();
+          batch.flush();
+          contentManager.delete(path + "/" + pathKey, true);
+        } else {
+          if (keep != null) {
+            keep.add(pathKey);
+          }
+          streamImportContent(reader, path + "/" + pathKey, options, isNew, batch);
+        }
+      } else {
+        Object obj = reader.readValue();
+        if (key.endsWith("@TypeHint")) {
+          // applied once all the members have been read, the hinted value may follow.
+          if (typeHints == null) {
+            typeHints = new HashMap<String, Object>();
+          }
+          typeHints.put(pathKey, obj);
+        } else if ( key.endsWith("@Delete") ) {
+          properties.put(pathKey, new RemoveProperty());
+        } else if (obj instanceof JSONArray) {
+          // This represents a multivalued property
+          properties.put(pathKey, getArray((JSONArray) obj, getElementType(key)));
+        } else {
+          properties.put(pathKey, getObject(obj, getElementType(key)));
+        }
+        if (key.equals(pathKey)) {
+          rawValues.put(pathKey, obj);
+        }
+      }
+    }
+    if (typeHints != null) {
+      for (Entry<String, Object> hint : typeHints.entrySet()) {
+        String pathKey = hint.getKey();
+        if (rawValues.containsKey(pathKey)) {
+          Object obj = rawValues.get(pathKey);
+          Class<?> typeHint = getElementType(pathKey + "@Type" + hint.getValue());
+          if (obj instanceof JSONArray) {
+            properties.put(pathKey, getArray((JSONArray) obj, typeHint));
+          } else {
+            properties.put(pathKey, getObject(obj, typeHint));
+          }
+        } else {
+          properties.put(pathKey, hint.getValue());
+        }
+      }
+    }
+
+    // delete absent paths if we're replacing content
+    if (keep != null) {
+      for (Iterator<String> childPaths = contentManager.listChildPaths(path); childPaths
+          .hasNext();) {
+        String childPath = childPaths.next();
+        if (!keep.contains(PathUtils.lastElement(childPath))) {
+          contentManager.delete(childPath, true);
+        }
+      }
+    }
+
+    if (!isNew && !read) {
+      content = contentManager.get(path);
+    }
+    if (content == null) {
+      content = new Content(path, properties);
+      LOGGER.debug("Created Node {} {}",path,properties);
+    } else {
+      for (Entry<String, Object> e : properties.entrySet()) {
+        if ( replaceProperties || !content.hasProperty(e.getKey())) {
+          LOGGER.debug("Updated Node {} {} {} ",new Object[]{path,e.getKey(), e.getValue()});
+          content.setProperty(e.getKey(), e.getValue());
+        }
+      }
+    }
+    batch.add(content, replace, modifications);
+  }
+
+  /**
+   * Node writes held until there are enough to flush, with the ACLs to set after each.
+   */
+  private static class WriteBatch {
+    private final ContentManager contentManager;
+    private final AccessControlManager accessControlManager;
+    private final boolean withTouch;
+    private final List<Content> contents = Lists.newArrayList();
+    private final List<Boolean> replaces = Lists.newArrayList();
+    private final List<List<AclModification>> acls = Lists.newArrayList();
+
+    WriteBatch(ContentManager contentManager, AccessControlManager accessControlManager,
+        boolean withTouch) {
+      this.contentManager = contentManager;
+      this.accessControlManager = accessControlManager;
+      this.withTouch = withTouch;
+    }
+
+    void add(Content content, boolean replace, List<AclModification> modifications)
+        throws StorageClientException, AccessDeniedException {
+      contents.add(content);
+      replaces.add(replace);
+      acls.add(modifications);
+      if (contents.size() >= WRITE_BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    void flush() throws StorageClientException, AccessDeniedException {
+      for (int i = 0; i < contents.size(); i++) {
+        Content content = contents.get(i);
+        if (replaces.get(i)) {
+          contentManager.replace(content, withTouch);
+        } else {
+          contentManager.update(content, withTouch);
+        }
+        List<AclModification> modifications = acls.get(i);
+        if (modifications.size() > 0) {
+          accessControlManager.setAcl(Security.ZONE_CONTENT, content.getPath(),
+              modifications.toArray(new AclModification[modifications.size()]));
+        }
+      }
+      LOGGER.debug("Wrote {} nodes", contents.size());
+      contents.clear();
+      replaces.clear();
+      acls.clear();
+    }
+  }
+
   public void importContent(ContentManager contentManager, JSONObject json, String path,
       boolean continueIfExists, boolean replaceProperties, boolean removeTree,
       AccessControlManager accessControlManager) throws JSONException,
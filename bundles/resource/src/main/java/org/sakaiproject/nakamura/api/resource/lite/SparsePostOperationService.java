@@ -63,4 +63,43 @@ public interface SparsePostOperationService {
   public List<Modification> move(Session session, String from, String to, boolean replace,
       boolean keepDestinationHistory) throws StorageClientException, AccessDeniedException;
 
+  /**
+   * Copy a tree of resources as {@link #copy(Session, String, String)} does, but in the
+   * background if the tree is large. Small trees are copied inline.
+   *
+   * @param session
+   * @param from
+   * @param to
+   * @return the status of the copy, done if it was copied inline.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   */
+  public TreeOperationStatus submitCopy(Session session, String from, String to)
+      throws StorageClientException, AccessDeniedException, IOException;
+
+  /**
+   * Move a tree of resources as {@link #move(Session, String, String, boolean, boolean)}
+   * does, but in the background if the tree is large. Small trees are moved inline.
+   *
+   * @param session
+   * @param from
+   * @param to
+   * @param replace
+   * @param keepDestinationHistory
+   * @return the status of the move, done if it was moved inline.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public TreeOperationStatus submitMove(Session session, String from, String to,
+      boolean replace, boolean keepDestinationHistory) throws StorageClientException,
+      AccessDeniedException;
+
+  /**
+   * @param id
+   * @return the status of a submitted copy or move, or null if it is unknown or has
+   *         expired.
+   */
+  public TreeOperationStatus getStatus(String id);
+
 }
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import org.apache.sling.servlets.post.Modification;
+
+import java.util.List;
+
+/**
+ * The progress of a copy or move of a tree of content submitted to the
+ * {@link SparsePostOperationService}. Trees small enough to be done inline are returned
+ * already finished.
+ */
+public interface TreeOperationStatus {
+
+  enum State {
+    QUEUED, COPYING, MOVING, CLEANING, SUCCEEDED, FAILED
+  }
+
+  /**
+   * @return the id to look the operation up with
+   *         {@link SparsePostOperationService#getStatus(String)}.
+   */
+  String getId();
+
+  /**
+   * @return "copy" or "move".
+   */
+  String getOperation();
+
+  String getFrom();
+
+  String getTo();
+
+  /**
+   * @return the user that submitted the operation, the only user allowed to see it apart
+   *         from the admin user.
+   */
+  String getUserId();
+
+  State getState();
+
+  /**
+   * @return true if the operation has either succeeded or failed.
+   */
+  boolean isDone();
+
+  /**
+   * @return the number of nodes in the tree, as far as is known.
+   */
+  int getTotal();
+
+  /**
+   * @return the number of nodes processed by the current state.
+   */
+  int getProcessed();
+
+  /**
+   * @return the time the operation was submitted, in ms.
+   */
+  long getStarted();
+
+  /**
+   * @return the time the operation finished in ms, or 0 if it is not done.
+   */
+  long getFinished();
+
+  /**
+   * @return the reason the operation failed, or null.
+   */
+  String getError();
+
+  /**
+   * @return the modifications made by the operation, empty until it is done.
+   */
+  List<Modification> getModifications();
+}
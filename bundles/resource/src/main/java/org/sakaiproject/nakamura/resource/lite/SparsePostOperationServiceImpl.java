@@ -17,40 +17,125 @@
  */
 package org.sakaiproject.nakamura.resource.lite;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.servlets.post.Modification;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.ActionRecord;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.CopyCleaner;
 import org.sakaiproject.nakamura.api.resource.MoveCleaner;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperationService;
+import org.sakaiproject.nakamura.api.resource.lite.TreeOperationStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Default implementation of the SparsePostOperationService.
  * 
  * @see SparsePostOperationService
  */
-@Component
+@Component(metatype = true)
 @Service
 public class SparsePostOperationServiceImpl implements SparsePostOperationService {
 
   private final static Logger LOGGER = LoggerFactory.getLogger(SparsePostOperationServiceImpl.class);
 
+  /**
+   * Trees with up to this many nodes are copied or moved inline by submitCopy and
+   * submitMove.
+   */
+  @Property(intValue = 500)
+  public static final String INLINE_LIMIT = "sakai.tree.operation.inline.limit";
+
+  /**
+   * Threads copying and cleaning chunks of a tree.
+   */
+  @Property(intValue = 4)
+  public static final String WORKER_THREADS = "sakai.tree.operation.threads";
+
+  /**
+   * Background operations run at the same time, more are queued.
+   */
+  @Property(intValue = 2)
+  public static final String CONCURRENT_OPERATIONS = "sakai.tree.operation.concurrent";
+
+  /**
+   * Background operations waiting to run, more are done inline.
+   */
+  private static final int OPERATION_QUEUE_SIZE = 50;
+
+  /**
+   * Nodes copied or cleaned by one task.
+   */
+  static final int CHUNK_SIZE = 100;
+
+  /**
+   * How long the status of a finished operation is kept.
+   */
+  private static final long STATUS_TTL = 60L * 60L * 1000L;
+
+  /**
+   * Where the status of each background operation is kept, so that it can be read on any
+   * server in the cluster.
+   */
+  static final String STATUS_ROOT = "/var/treeoperation";
+
+  @Reference
+  protected Repository repository;
+
+  private int inlineLimit;
+
+  /**
+   * Runs whole background operations, null until activated, in which case everything is
+   * done inline.
+   */
+  private ExecutorService operationExecutor;
+
+  /**
+   * Runs the chunks of the background operations.
+   */
+  private ExecutorService workerExecutor;
+
+  /**
+   * The operations submitted to this server, also kept under {@link #STATUS_ROOT}.
+   */
+  private final Map<String, TreeOperationJob> jobs = new ConcurrentHashMap<String, TreeOperationJob>();
+
   @Reference(cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE,
       policy = ReferencePolicy.DYNAMIC, referenceInterface = CopyCleaner.class,
       bind = "bindCopyCleaner", unbind = "unbindCopyCleaner")
@@ -146,6 +231,431 @@ public class SparsePostOperationServiceImpl implements SparsePostOperationServic
     return changes;
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.resource.lite.SparsePostOperationService#submitCopy(org.sakaiproject.nakamura.api.lite.Session, java.lang.String, java.lang.String)
+   */
+  public TreeOperationStatus submitCopy(Session session, final String from, final String to)
+      throws StorageClientException, AccessDeniedException, IOException {
+    final TreeOperationJob job = new TreeOperationJob("copy", from, to, session.getUserId());
+    ContentManager contentManager = session.getContentManager();
+    if (operationExecutor == null || !contentManager.exists(from)
+        || contentManager.exists(to) || isSmallTree(contentManager, from)
+        || !submit(job, new Runnable() {
+          public void run() {
+            runCopy(job);
+          }
+        })) {
+      // copy reports the errors.
+      job.succeeded(copy(session, from, to));
+    }
+    return job;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.resource.lite.SparsePostOperationService#submitMove(org.sakaiproject.nakamura.api.lite.Session, java.lang.String, java.lang.String, boolean, boolean)
+   */
+  public TreeOperationStatus submitMove(Session session, String from, String to,
+      final boolean replace, final boolean keepDestinationHistory)
+      throws StorageClientException, AccessDeniedException {
+    final TreeOperationJob job = new TreeOperationJob("move", from, to, session.getUserId());
+    ContentManager contentManager = session.getContentManager();
+    if (operationExecutor == null || !contentManager.exists(from)
+        || (!replace && contentManager.exists(to)) || isSmallTree(contentManager, from)
+        || !submit(job, new Runnable() {
+          public void run() {
+            runMove(job, replace, keepDestinationHistory);
+          }
+        })) {
+      job.succeeded(move(session, from, to, replace, keepDestinationHistory));
+    }
+    return job;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.resource.lite.SparsePostOperationService#getStatus(java.lang.String)
+   */
+  public TreeOperationStatus getStatus(String id) {
+    if (id == null || id.length() == 0 || id.indexOf('/') >= 0) {
+      return null;
+    }
+    TreeOperationJob job = jobs.get(id);
+    if (job != null) {
+      return job;
+    }
+    // submitted to another server.
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      Content status = session.getContentManager().get(STATUS_ROOT + "/" + id);
+      return status == null ? null : new TreeOperationJob(status);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to read the status of {}: {}", id, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to read the status of {}: {}", id, e.getMessage());
+    } finally {
+      logout(session);
+    }
+    return null;
+  }
+
+  /**
+   * @return false if there are too many operations queued already.
+   */
+  private boolean submit(TreeOperationJob job, Runnable operation) {
+    expireJobs();
+    jobs.put(job.getId(), job);
+    store(job);
+    try {
+      operationExecutor.execute(operation);
+      LOGGER.info("Started {} of {} to {} as {} ", new Object[] { job.getOperation(),
+          job.getFrom(), job.getTo(), job.getId() });
+      return true;
+    } catch (RejectedExecutionException e) {
+      jobs.remove(job.getId());
+      removeStored(job.getId());
+      LOGGER.warn("Too many tree operations queued, running {} of {} inline ",
+          job.getOperation(), job.getFrom());
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the tree has no more than the inline limit of nodes, looking no
+   *         further than that.
+   */
+  private boolean isSmallTree(ContentManager contentManager, String path)
+      throws StorageClientException {
+    int count = 0;
+    LinkedList<String> toVisit = new LinkedList<String>();
+    toVisit.add(path);
+    while (!toVisit.isEmpty()) {
+      if (++count > inlineLimit) {
+        return false;
+      }
+      for (Iterator<String> i = contentManager.listChildPaths(toVisit.removeFirst()); i
+          .hasNext();) {
+        toVisit.add(i.next());
+      }
+    }
+    return true;
+  }
+
+  private void runCopy(final TreeOperationJob job) {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative(job.getUserId());
+      ContentManager contentManager = session.getContentManager();
+      // copy a level at a time so that parents exist before their children.
+      List<List<Modification>> levels = new ArrayList<List<Modification>>();
+      List<Modification> level = Collections.singletonList(Modification.onCopied(
+          job.getFrom(), job.getTo()));
+      int total = 0;
+      while (!level.isEmpty()) {
+        levels.add(level);
+        total += level.size();
+        List<Modification> next = new ArrayList<Modification>();
+        for (Modification parent : level) {
+          for (Iterator<String> i = contentManager.listChildPaths(parent.getSource()); i
+              .hasNext();) {
+            String child = i.next();
+            next.add(Modification.onCopied(child, parent.getDestination() + "/"
+                + StorageClientUtils.getObjectName(child)));
+          }
+        }
+        level = next;
+      }
+      job.setTotal(total);
+      job.setState(TreeOperationStatus.State.COPYING);
+      store(job);
+      List<Modification> changes = new ArrayList<Modification>(total);
+      for (List<Modification> copies : levels) {
+        runChunks(job, copies, new ChunkOperation() {
+          public List<Modification> run(List<Modification> chunk, Session session)
+              throws Exception {
+            ContentManager contentManager = session.getContentManager();
+            for (Modification copy : chunk) {
+              contentManager.copy(copy.getSource(), copy.getDestination(), true);
+            }
+            return chunk;
+          }
+        });
+        changes.addAll(copies);
+      }
+      LOGGER.debug("Copied {} items", total);
+      changes.addAll(clean(job, changes, true));
+      job.succeeded(changes);
+      LOGGER.info("Finished copy {} of {} items", job.getId(), total);
+    } catch (Exception e) {
+      LOGGER.warn("Failed to copy " + job.getFrom() + " to " + job.getTo(), e);
+      // the destination did not exist when the copy was submitted.
+      removePartialCopy(session, job);
+      job.failed(e.getMessage());
+    } finally {
+      store(job);
+      logout(session);
+    }
+  }
+
+  /**
+   * Delete what a failed copy managed to copy, so that it can be submitted again.
+   */
+  private void removePartialCopy(Session session, TreeOperationJob job) {
+    if (session == null) {
+      return;
+    }
+    try {
+      ContentManager contentManager = session.getContentManager();
+      if (contentManager.exists(job.getTo())) {
+        contentManager.delete(job.getTo(), true);
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to remove the partial copy at {}: {}", job.getTo(),
+          e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to remove the partial copy at {}: {}", job.getTo(),
+          e.getMessage());
+    }
+  }
+
+  private void runMove(TreeOperationJob job, boolean replace, boolean keepDestinationHistory) {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative(job.getUserId());
+      job.setState(TreeOperationStatus.State.MOVING);
+      store(job);
+      // the content manager moves a whole tree in one call.
+      List<Modification> changes = new ArrayList<Modification>();
+      for (ActionRecord move : session.getContentManager().move(job.getFrom(), job.getTo(),
+          replace, keepDestinationHistory)) {
+        changes.add(Modification.onMoved(move.getFrom(), move.getTo()));
+      }
+      job.setTotal(changes.size());
+      LOGGER.debug("Moved {} items", changes.size());
+      changes.addAll(clean(job, changes, false));
+      job.succeeded(changes);
+      LOGGER.info("Finished move {} of {} items", job.getId(), job.getTotal());
+    } catch (Exception e) {
+      LOGGER.warn("Failed to move " + job.getFrom() + " to " + job.getTo(), e);
+      job.failed(e.getMessage());
+    } finally {
+      store(job);
+      logout(session);
+    }
+  }
+
+  /**
+   * Apply the cleaners to the changes, a chunk at a time.
+   */
+  private List<Modification> clean(TreeOperationJob job, List<Modification> changes,
+      final boolean copy) throws Exception {
+    job.setState(TreeOperationStatus.State.CLEANING);
+    store(job);
+    if (copy ? copyCleaners.isEmpty() : moveCleaners.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return runChunks(job, changes, new ChunkOperation() {
+      public List<Modification> run(List<Modification> chunk, Session session)
+          throws Exception {
+        List<Modification> cleanerChanges = new ArrayList<Modification>();
+        for (Modification modification : chunk) {
+          if (copy) {
+            for (CopyCleaner cleaner : copyCleaners) {
+              addAll(cleanerChanges, cleaner.clean(modification.getSource(),
+                  modification.getDestination(), session));
+            }
+          } else {
+            for (MoveCleaner cleaner : moveCleaners) {
+              addAll(cleanerChanges, cleaner.clean(modification.getSource(),
+                  modification.getDestination(), session));
+            }
+          }
+        }
+        return cleanerChanges;
+      }
+    });
+  }
+
+  private void addAll(List<Modification> changes, List<Modification> mods) {
+    if (mods != null) {
+      changes.addAll(mods);
+    }
+  }
+
+  private interface ChunkOperation {
+    List<Modification> run(List<Modification> chunk, Session session) throws Exception;
+  }
+
+  /**
+   * Run an operation over the modifications in chunks on the worker threads, each chunk
+   * in its own session as the user of the job. If a chunk fails the chunks not yet
+   * started are skipped, and the ones running are waited for, before the failure is
+   * thrown.
+   *
+   * @return what the chunks returned.
+   */
+  private List<Modification> runChunks(final TreeOperationJob job,
+      List<Modification> modifications, final ChunkOperation operation) throws Exception {
+    final AtomicBoolean failed = new AtomicBoolean();
+    List<Future<List<Modification>>> futures = new ArrayList<Future<List<Modification>>>();
+    for (int i = 0; i < modifications.size(); i += CHUNK_SIZE) {
+      final List<Modification> chunk = modifications.subList(i,
+          Math.min(modifications.size(), i + CHUNK_SIZE));
+      futures.add(workerExecutor.submit(new Callable<List<Modification>>() {
+        public List<Modification> call() throws Exception {
+          if (failed.get()) {
+            return Collections.emptyList();
+          }
+          Session session = repository.loginAdministrative(job.getUserId());
+          try {
+            List<Modification> result = operation.run(chunk, session);
+            job.addProcessed(chunk.size());
+            store(job);
+            return result;
+          } finally {
+            logout(session);
+          }
+        }
+      }));
+    }
+    List<Modification> results = new ArrayList<Modification>();
+    try {
+      for (Future<List<Modification>> future : futures) {
+        try {
+          results.addAll(future.get());
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw e;
+        }
+      }
+    } catch (Exception e) {
+      failed.set(true);
+      for (Future<List<Modification>> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException chunkFailure) {
+          // only the first failure is reported.
+        }
+      }
+      throw e;
+    }
+    return results;
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Keep the status of a background operation where any server can read it.
+   */
+  private void store(TreeOperationJob job) {
+    Session session = null;
+    // one at a time, so that a slower thread does not put back an older status.
+    synchronized (job) {
+      try {
+        session = repository.loginAdministrative();
+        session.getContentManager().update(
+            new Content(STATUS_ROOT + "/" + job.getId(), job.toProperties()));
+      } catch (StorageClientException e) {
+        LOGGER.warn("Failed to keep the status of {}: {}", job.getId(), e.getMessage());
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Failed to keep the status of {}: {}", job.getId(), e.getMessage());
+      } finally {
+        logout(session);
+      }
+    }
+  }
+
+  private void removeStored(String id) {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      session.getContentManager().delete(STATUS_ROOT + "/" + id);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to remove the status of {}: {}", id, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to remove the status of {}: {}", id, e.getMessage());
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * Forget the operations that finished more than {@link #STATUS_TTL} ago, on this server
+   * and in the statuses kept by every server.
+   */
+  private void expireJobs() {
+    long expired = System.currentTimeMillis() - STATUS_TTL;
+    for (Iterator<TreeOperationJob> i = jobs.values().iterator(); i.hasNext();) {
+      TreeOperationJob job = i.next();
+      if (job.isDone() && job.getFinished() < expired) {
+        i.remove();
+      }
+    }
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      List<String> expiredPaths = new ArrayList<String>();
+      for (Iterator<Content> i = contentManager.listChildren(STATUS_ROOT); i.hasNext();) {
+        Content status = i.next();
+        TreeOperationJob job = new TreeOperationJob(status);
+        if (job.isDone() && job.getFinished() < expired) {
+          expiredPaths.add(status.getPath());
+        }
+      }
+      for (String path : expiredPaths) {
+        contentManager.delete(path);
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to expire tree operation statuses: {}", e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to expire tree operation statuses: {}", e.getMessage());
+    } finally {
+      logout(session);
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    inlineLimit = PropertiesUtil.toInteger(properties.get(INLINE_LIMIT), 500);
+    int workers = PropertiesUtil.toInteger(properties.get(WORKER_THREADS), 4);
+    int concurrent = PropertiesUtil.toInteger(properties.get(CONCURRENT_OPERATIONS), 2);
+    shutdown();
+    workerExecutor = Executors.newFixedThreadPool(Math.max(1, workers));
+    operationExecutor = new ThreadPoolExecutor(Math.max(1, concurrent),
+        Math.max(1, concurrent), 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(OPERATION_QUEUE_SIZE));
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    shutdown();
+  }
+
+  private void shutdown() {
+    if (operationExecutor != null) {
+      operationExecutor.shutdown();
+      operationExecutor = null;
+    }
+    if (workerExecutor != null) {
+      workerExecutor.shutdown();
+      workerExecutor = null;
+    }
+  }
+
   protected void bindCopyCleaner(CopyCleaner cleaner) {
     copyCleaners.add(cleaner);
   }
@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.resource.lite;
+
+import org.apache.sling.servlets.post.Modification;
+import org.apache.sling.servlets.post.ModificationType;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.resource.lite.TreeOperationStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of one copy or move, updated by the threads doing the work and read by the
+ * status servlet. It is kept in content as it changes, so that it can be read on any
+ * server in the cluster.
+ */
+class TreeOperationJob implements TreeOperationStatus {
+
+  private static final String OPERATION = "operation";
+  private static final String FROM = "from";
+  private static final String TO = "to";
+  private static final String USER_ID = "userId";
+  private static final String STATE = "state";
+  private static final String TOTAL = "total";
+  private static final String PROCESSED = "processed";
+  private static final String STARTED = "started";
+  private static final String FINISHED = "finished";
+  private static final String ERROR = "error";
+  private static final String MODIFICATIONS = "modifications";
+
+  private final String id;
+  private final String operation;
+  private final String from;
+  private final String to;
+  private final String userId;
+  private final long started;
+  private final AtomicInteger processed = new AtomicInteger();
+  private volatile State state = State.QUEUED;
+  private volatile int total;
+  private volatile long finished;
+  private volatile String error;
+  private volatile List<Modification> modifications = Collections.emptyList();
+
+  TreeOperationJob(String operation, String from, String to, String userId) {
+    this.id = UUID.randomUUID().toString();
+    this.operation = operation;
+    this.from = from;
+    this.to = to;
+    this.userId = userId;
+    this.started = System.currentTimeMillis();
+  }
+
+  /**
+   * A job read back from the content it was kept in.
+   */
+  TreeOperationJob(Content content) {
+    this.id = StorageClientUtils.getObjectName(content.getPath());
+    this.operation = (String) content.getProperty(OPERATION);
+    this.from = (String) content.getProperty(FROM);
+    this.to = (String) content.getProperty(TO);
+    this.userId = (String) content.getProperty(USER_ID);
+    this.started = StorageClientUtils.toLong(content.getProperty(STARTED));
+    this.state = State.valueOf((String) content.getProperty(STATE));
+    this.total = StorageClientUtils.toInt(content.getProperty(TOTAL));
+    this.processed.set(StorageClientUtils.toInt(content.getProperty(PROCESSED)));
+    this.finished = StorageClientUtils.toLong(content.getProperty(FINISHED));
+    this.error = (String) content.getProperty(ERROR);
+    List<Modification> stored = new ArrayList<Modification>();
+    for (String modification : StorageClientUtils.nonNullStringArray((String[]) content
+        .getProperty(MODIFICATIONS))) {
+      // type, source and destination, separated by tabs.
+      String[] parts = modification.split("\t", 3);
+      if (parts.length == 3) {
+        stored.add(new Modification(ModificationType.valueOf(parts[0]), parts[1],
+            parts[2].length() == 0 ? null : parts[2]));
+      }
+    }
+    this.modifications = Collections.unmodifiableList(stored);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getFrom() {
+    return from;
+  }
+
+  public String getTo() {
+    return to;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isDone() {
+    return state == State.SUCCEEDED || state == State.FAILED;
+  }
+
+  public int getTotal() {
+    return total;
+  }
+
+  public int getProcessed() {
+    return processed.get();
+  }
+
+  public long getStarted() {
+    return started;
+  }
+
+  public long getFinished() {
+    return finished;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public List<Modification> getModifications() {
+    return modifications;
+  }
+
+  /**
+   * @return the state of the job, to be kept as the content at the path of the job.
+   */
+  Map<String, Object> toProperties() {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(OPERATION, operation);
+    properties.put(FROM, from);
+    properties.put(TO, to);
+    properties.put(USER_ID, userId);
+    properties.put(STATE, state.toString());
+    properties.put(TOTAL, total);
+    properties.put(PROCESSED, processed.get());
+    properties.put(STARTED, started);
+    properties.put(FINISHED, finished);
+    if (error != null) {
+      properties.put(ERROR, error);
+    }
+    List<Modification> done = modifications;
+    String[] stored = new String[done.size()];
+    for (int i = 0; i < stored.length; i++) {
+      Modification modification = done.get(i);
+      stored[i] = modification.getType() + "\t" + modification.getSource() + "\t"
+          + (modification.getDestination() == null ? "" : modification.getDestination());
+    }
+    properties.put(MODIFICATIONS, stored);
+    return properties;
+  }
+
+  void setTotal(int total) {
+    this.total = total;
+  }
+
+  /**
+   * Move to the next state, counting processed nodes from 0 again.
+   */
+  void setState(State state) {
+    processed.set(0);
+    this.state = state;
+  }
+
+  void addProcessed(int n) {
+    processed.addAndGet(n);
+  }
+
+  void succeeded(List<Modification> modifications) {
+    this.modifications = Collections.unmodifiableList(modifications);
+    this.finished = System.currentTimeMillis();
+    this.state = State.SUCCEEDED;
+  }
+
+  void failed(String error) {
+    this.error = error;
+    this.finished = System.currentTimeMillis();
+    this.state = State.FAILED;
+  }
+}
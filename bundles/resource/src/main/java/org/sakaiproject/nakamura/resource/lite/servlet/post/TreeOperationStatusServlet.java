@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.resource.lite.servlet.post;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.HtmlResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperationService;
+import org.sakaiproject.nakamura.api.resource.lite.TreeOperationStatus;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Reports the progress of a copy or move that was too large to be done inside the POST
+ * and is running in the background. The POST answers 202 with the id of the operation.
+ * The status is kept in content, so it can be asked for on any server in the cluster.
+ * </p>
+ * <h4>Methods</h4>
+ * <ul>
+ * <li>GET /system/treeoperation.json?id=&lt;id&gt;</li>
+ * </ul>
+ * <h4>Response</h4>
+ * <dl>
+ * <dt>200</dt>
+ * <dd>The status of the operation.</dd>
+ * <dt>404</dt>
+ * <dd>No such operation for the current user, or it finished more than an hour ago.</dd>
+ * </dl>
+ * <h4>Example Response</h4>
+ * <code>
+ * <pre>
+ * {
+ * &quot;id&quot;: &quot;5f6b...&quot;,
+ * &quot;operation&quot;: &quot;copy&quot;,
+ * &quot;from&quot;: &quot;p/abc&quot;,
+ * &quot;to&quot;: &quot;p/def&quot;,
+ * &quot;state&quot;: &quot;COPYING&quot;,
+ * &quot;total&quot;: 2400,
+ * &quot;processed&quot;: 800,
+ * &quot;started&quot;: 1315330000000,
+ * &quot;done&quot;: false
+ * }
+ * </pre>
+ * </code>
+ */
+@SlingServlet(paths = "/system/treeoperation", methods = "GET", extensions = "json")
+public class TreeOperationStatusServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = -1847046390577212493L;
+
+  public static final String STATUS_PATH = "/system/treeoperation.json";
+
+  public static final String PARAM_ID = "id";
+
+  @Reference
+  protected SparsePostOperationService sparsePostOperationService;
+
+  /**
+   * Mark a POST response as accepted, with where to follow the operation.
+   */
+  public static void accepted(HtmlResponse response, TreeOperationStatus status) {
+    response.setStatus(HttpServletResponse.SC_ACCEPTED, "Running " + status.getOperation()
+        + " in the background");
+    response.setProperty("operationId", status.getId());
+    response.setProperty("statusLocation", STATUS_PATH + "?" + PARAM_ID + "="
+        + status.getId());
+  }
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    TreeOperationStatus status = sparsePostOperationService.getStatus(request
+        .getParameter(PARAM_ID));
+    String user = request.getRemoteUser();
+    if (status == null
+        || !(User.ADMIN_USER.equals(user) || status.getUserId().equals(user))) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
+      writer.object();
+      writer.key("id").value(status.getId());
+      writer.key("operation").value(status.getOperation());
+      writer.key("from").value(status.getFrom());
+      writer.key("to").value(status.getTo());
+      writer.key("state").value(status.getState().toString());
+      writer.key("total").value(status.getTotal());
+      writer.key("processed").value(status.getProcessed());
+      writer.key("started").value(status.getStarted());
+      writer.key("done").value(status.isDone());
+      if (status.isDone()) {
+        writer.key("finished").value(status.getFinished());
+        writer.key("modifications").value(status.getModifications().size());
+      }
+      if (status.getError() != null) {
+        writer.key("error").value(status.getError());
+      }
+      writer.endObject();
+    } catch (JSONException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+}
@@ -30,6 +30,8 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.AbstractSparsePostOperation;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperation;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperationService;
+import org.sakaiproject.nakamura.api.resource.lite.TreeOperationStatus;
+import org.sakaiproject.nakamura.resource.lite.servlet.post.TreeOperationStatusServlet;
 import org.sakaiproject.nakamura.util.PathUtils;
 
 import java.io.IOException;
@@ -63,7 +65,13 @@ public class CopyOperation extends AbstractSparsePostOperation {
       throw new IllegalArgumentException(String.format("Must supply parameter %s to set copy destination.", PROP_DEST));
     }
     
-    changes.addAll(sparsePostOperationService.copy(adaptToSession(request), from, to));
+    TreeOperationStatus status = sparsePostOperationService.submitCopy(
+        adaptToSession(request), from, to);
+    if (status.isDone()) {
+      changes.addAll(status.getModifications());
+    } else {
+      TreeOperationStatusServlet.accepted(response, status);
+    }
   }
 
   /**
@@ -17,13 +17,11 @@
  */
 package org.sakaiproject.nakamura.resource.lite.servlet.post.operations;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.HtmlResponse;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.servlets.post.Modification;
 import org.apache.sling.servlets.post.NodeNameGenerator;
@@ -41,8 +39,11 @@ import org.sakaiproject.nakamura.resource.lite.servlet.post.SparseCreateServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
@@ -102,6 +103,9 @@ public class ImportOperation extends AbstractSparseCreateOperation {
         .getParameter(SlingPostConstants.RP_REPLACE_PROPERTIES));
     final boolean removeTree =  Boolean.parseBoolean(request
         .getParameter(":removeTree"));
+    // :newSubtrees says nothing exists below a node that does not exist, so new parts of
+    // the tree are written without being read first.
+    final boolean newSubtrees = Boolean.parseBoolean(request.getParameter(":newSubtrees"));
 
     String basePath = getItemPath(request);
     if (basePath.endsWith("/")) {
@@ -112,32 +116,51 @@ public class ImportOperation extends AbstractSparseCreateOperation {
     response.setCreateRequest(true);
 
     try {
-      InputStream contentStream = null;
+      // read the content as it is imported rather than parsing it whole first.
+      Reader contentReader = null;
       String content = request.getParameter(SlingPostConstants.RP_CONTENT);
-      if (content == null) {
+      if (content != null) {
+        contentReader = new StringReader(content);
+      } else {
         RequestParameter contentFile = request
             .getRequestParameter(SlingPostConstants.RP_CONTENT_FILE);
         if (contentFile != null) {
-          contentStream = contentFile.getInputStream();
-          content = IOUtils.toString(contentStream, "UTF-8");
+          contentReader = new BufferedReader(new InputStreamReader(
+              contentFile.getInputStream(), "UTF-8"));
         }
       }
 
-      if (content == null) {
+      if (contentReader == null) {
         response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED,
             "Missing content for import");
         return;
       } else {
-        
-        JSONObject json = new JSONObject(content);
-        if ( LOGGER.isDebugEnabled() ) {
-          LOGGER.debug("to {} importing {} ",basePath,json.toString(3));
+        LOGGER.debug("to {} importing {} ", basePath, content);
+        int options = LiteJsonImporter.TOUCH;
+        if (continueIfExists) {
+          options |= LiteJsonImporter.CONTINUE;
+        }
+        if (replaceProperties) {
+          options |= LiteJsonImporter.REPLACE_PROPERTIES;
+        }
+        if (removeTree) {
+          options |= LiteJsonImporter.REMOVE_TREE;
+        }
+        if (merge) {
+          options |= LiteJsonImporter.MERGE;
+        }
+        if (newSubtrees) {
+          options |= LiteJsonImporter.NEW_SUBTREES;
         }
         LiteJsonImporter simpleJsonImporter = new LiteJsonImporter();
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         AccessControlManager accessControlManager = session.getAccessControlManager();
-        simpleJsonImporter.importContent(contentManager, json, basePath, continueIfExists,
-            replaceProperties, removeTree, merge, accessControlManager, true);
+        try {
+          simpleJsonImporter.importContent(contentManager, contentReader, basePath, options,
+              accessControlManager);
+        } finally {
+          contentReader.close();
+        }
           response.setLocation(externalizePath(request, basePath));
           response.setPath(basePath);
           int lastSlashIndex = basePath.lastIndexOf('/');
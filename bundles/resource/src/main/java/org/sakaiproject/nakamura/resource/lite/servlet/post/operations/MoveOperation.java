@@ -31,6 +31,8 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.AbstractSparsePostOperation;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperation;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperationService;
+import org.sakaiproject.nakamura.api.resource.lite.TreeOperationStatus;
+import org.sakaiproject.nakamura.resource.lite.servlet.post.TreeOperationStatusServlet;
 import org.sakaiproject.nakamura.util.PathUtils;
 
 import java.util.List;
@@ -60,8 +62,13 @@ public class MoveOperation extends AbstractSparsePostOperation {
         request.getParameter(KEEP_DEST_HISTORY_PAR), true);
     String from = contentPath;
     String to = PathUtils.toUserContentPath(request.getParameter(DEST_PAR));
-    changes.addAll(sparsePostOperationService.move(adaptToSession(request), from, to, replace,
-        keepDestHistory));
+    TreeOperationStatus status = sparsePostOperationService.submitMove(
+        adaptToSession(request), from, to, replace, keepDestHistory);
+    if (status.isDone()) {
+      changes.addAll(status.getModifications());
+    } else {
+      TreeOperationStatusServlet.accepted(response, status);
+    }
   }
 
 }
@@ -31,8 +31,10 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -40,8 +42,11 @@ import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.math.BigDecimal;
 import java.util.Calendar;
+import java.util.Iterator;
 
 public class LiteJsonImporterTest {
 
@@ -320,4 +325,138 @@ public class LiteJsonImporterTest {
     Assert.assertTrue(awesomeProperty instanceof Boolean);
     Assert.assertEquals(Boolean.TRUE, content.getProperty(beAwesome));
   }
+
+  @Test
+  public void testStreamImportContent() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+
+    for ( String testFile : TEST_FILES ) {
+      JSONObject json = new JSONObject(IOUtils.toString(getClass().getClassLoader().getResourceAsStream(testFile)));
+      liteJsonImporter.importContent(contentManager, json, "tree/" + testFile, true, true, true, accessControlManager);
+      liteJsonImporter.importContent(contentManager, new InputStreamReader(getClass()
+          .getClassLoader().getResourceAsStream(testFile), "UTF-8"), "stream/" + testFile,
+          LiteJsonImporter.CONTINUE | LiteJsonImporter.REPLACE_PROPERTIES
+              | LiteJsonImporter.REMOVE_TREE, accessControlManager);
+      Content tree = contentManager.get("tree/" + testFile);
+      Content stream = contentManager.get("stream/" + testFile);
+      Assert.assertNotNull(stream);
+      for (String key : tree.getProperties().keySet()) {
+        if (!key.startsWith("_")) {
+          Assert.assertTrue(testFile + " " + key, stream.hasProperty(key));
+        }
+      }
+    }
+    session.logout();
+  }
+
+  @Test
+  public void testStreamImportNested() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    contentManager.update(new Content("/p/nested/gone", ImmutableMap.of("x", (Object) "y")));
+    contentManager.update(new Content("/p/nested/kept", ImmutableMap.of("x", (Object) "y")));
+    contentManager.update(new Content("/p/nested/deleted", ImmutableMap.of("x", (Object) "y")));
+
+    String json = "{\"a\":{\"count\":\"10\",\"b\":{\"c\":{\"deep\":\"yes\"}},"
+        + "\"count@TypeHint\":\"Long\"},"
+        + "\"kept@Ignore\":{},"
+        + "\"deleted@Delete\":{},"
+        + "\"ieb@grant\":{\"permission\":[\"read\",\"write\"],\"operation\":\"replace\"},"
+        + "\"list\":[1,2,3],\"title\":\"Nested \\u0041\"}";
+    liteJsonImporter.importContent(contentManager, new StringReader(json), "/p/nested",
+        LiteJsonImporter.CONTINUE | LiteJsonImporter.REPLACE_PROPERTIES,
+        accessControlManager);
+
+    Content nested = contentManager.get("/p/nested");
+    Assert.assertEquals("Nested A", nested.getProperty("title"));
+    Assert.assertArrayEquals(new Integer[] { 1, 2, 3 },
+        (Object[]) nested.getProperty("list"));
+    Assert.assertEquals(10L, contentManager.get("/p/nested/a").getProperty("count"));
+    Assert.assertEquals("yes", contentManager.get("/p/nested/a/b/c").getProperty("deep"));
+    Assert.assertTrue(contentManager.exists("/p/nested/kept"));
+    Assert.assertFalse(contentManager.exists("/p/nested/gone"));
+    Assert.assertFalse(contentManager.exists("/p/nested/deleted"));
+    Assert.assertNotNull(accessControlManager.getAcl(Security.ZONE_CONTENT, "/p/nested")
+        .get(AclModification.grantKey("ieb")));
+    session.logout();
+  }
+
+  @Test
+  public void testStreamImportMergeAndNewSubtrees() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    contentManager.update(new Content("/p/merged/old", ImmutableMap.of("x", (Object) "y")));
+    contentManager.update(new Content("/p/merged", ImmutableMap.of("title", (Object) "Old")));
+
+    String json = "{\"title\":\"New\",\"added\":{\"child\":{\"leaf\":true}}}";
+    liteJsonImporter.importContent(contentManager, new StringReader(json), "/p/merged",
+        LiteJsonImporter.CONTINUE | LiteJsonImporter.MERGE
+            | LiteJsonImporter.NEW_SUBTREES, accessControlManager);
+
+    Assert.assertTrue(contentManager.exists("/p/merged/old"));
+    Assert.assertEquals("Old", contentManager.get("/p/merged").getProperty("title"));
+    Assert.assertEquals(Boolean.TRUE,
+        contentManager.get("/p/merged/added/child").getProperty("leaf"));
+    session.logout();
+  }
+
+  @Test
+  public void testStreamImportSyntaxErrorChangesNothing() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content("/p/intact/child", ImmutableMap.of("x", (Object) "y")));
+    StringBuilder json = new StringBuilder("{");
+    for (int i = 0; i < 300; i++) {
+      json.append("\"n").append(i).append("\":{\"v\":").append(i).append("},");
+    }
+    json.append("\"broken\":{");
+    try {
+      liteJsonImporter.importContent(contentManager, new StringReader(json.toString()),
+          "/p/intact", LiteJsonImporter.CONTINUE | LiteJsonImporter.REMOVE_TREE,
+          session.getAccessControlManager());
+      Assert.fail();
+    } catch (JSONException e) {
+      // expected
+    }
+    Assert.assertTrue(contentManager.exists("/p/intact/child"));
+    Assert.assertFalse(contentManager.exists("/p/intact/n0"));
+    session.logout();
+  }
+
+  @Test
+  public void testStreamReaderAsLenientAsJSONObject() throws Exception {
+    String json = "{ // a comment\n"
+        + " 'title' : 'Single',\n"
+        + " unquoted = \"equals\",\n"
+        + " arrow => plain text;\n"
+        + " # another comment\n"
+        + " /* and another */ \"list\" : [1,,2,],\n"
+        + " \"child\" : { \"a\" : true, },\n"
+        + "}";
+    JSONObject expected = new JSONObject(json);
+    JSONObject actual = (JSONObject) new JsonStreamReader(new StringReader(json)).readValue();
+    Assert.assertEquals(expected.length(), actual.length());
+    for (Iterator<String> keys = expected.keys(); keys.hasNext();) {
+      String key = keys.next();
+      Assert.assertEquals(key, expected.get(key).toString(), actual.get(key).toString());
+    }
+    Assert.assertEquals("plain text", actual.get("arrow"));
+  }
+
+  @Test(expected = JSONException.class)
+  public void testStreamImportSyntaxError() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+    Session session = repository.loginAdministrative();
+    liteJsonImporter.importContent(session.getContentManager(), new StringReader(
+        "{\"a\":{\"b\":\"c\""), "/p/broken", LiteJsonImporter.CONTINUE,
+        session.getAccessControlManager());
+  }
 }
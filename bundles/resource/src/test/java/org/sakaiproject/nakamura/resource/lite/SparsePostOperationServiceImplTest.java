@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.resource.lite;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.servlets.post.Modification;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.resource.CopyCleaner;
+import org.sakaiproject.nakamura.api.resource.lite.TreeOperationStatus;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Verify that large trees are copied and moved in the background.
+ */
+public class SparsePostOperationServiceImplTest {
+
+  private Repository repository;
+  private Session session;
+  private SparsePostOperationServiceImpl service;
+
+  @Before
+  public void before() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content("a/from", ImmutableMap.<String, Object> of("prop", "root")));
+    for (int i = 0; i < 5; i++) {
+      String child = "a/from/c" + i;
+      contentManager.update(new Content(child, ImmutableMap.<String, Object> of("prop", child)));
+      for (int j = 0; j < 3; j++) {
+        contentManager.update(new Content(child + "/g" + j, ImmutableMap.<String, Object> of(
+            "prop", child + j)));
+      }
+    }
+    service = new SparsePostOperationServiceImpl();
+    service.repository = repository;
+    service.modified(ImmutableMap.<String, Object> of(
+        SparsePostOperationServiceImpl.INLINE_LIMIT, 5));
+  }
+
+  @After
+  public void after() throws Exception {
+    service.deactivate();
+    session.logout();
+  }
+
+  @Test
+  public void testBackgroundCopy() throws Exception {
+    CopyCleaner cleaner = Mockito.mock(CopyCleaner.class);
+    Mockito.when(
+        cleaner.clean(Mockito.anyString(), Mockito.anyString(), Mockito.any(Session.class)))
+        .thenReturn(Collections.<Modification> emptyList());
+    service.bindCopyCleaner(cleaner);
+
+    TreeOperationStatus status = service.submitCopy(session, "a/from", "a/to");
+    Assert.assertSame(status, service.getStatus(status.getId()));
+    waitFor(status);
+
+    Assert.assertEquals(TreeOperationStatus.State.SUCCEEDED, status.getState());
+    Assert.assertEquals(21, status.getTotal());
+    Assert.assertEquals(21, status.getModifications().size());
+    ContentManager contentManager = session.getContentManager();
+    Assert.assertEquals("a/from/c4", contentManager.get("a/to/c4").getProperty("prop"));
+    Assert.assertEquals("a/from/c42", contentManager.get("a/to/c4/g2").getProperty("prop"));
+    Mockito.verify(cleaner, Mockito.times(21)).clean(Mockito.anyString(),
+        Mockito.anyString(), Mockito.any(Session.class));
+  }
+
+  @Test
+  public void testBackgroundMove() throws Exception {
+    TreeOperationStatus status = service.submitMove(session, "a/from", "a/moved", false,
+        true);
+    waitFor(status);
+
+    Assert.assertEquals(TreeOperationStatus.State.SUCCEEDED, status.getState());
+    ContentManager contentManager = session.getContentManager();
+    Assert.assertFalse(contentManager.exists("a/from/c1"));
+    Assert.assertTrue(contentManager.exists("a/moved/c1/g1"));
+  }
+
+  @Test
+  public void testSmallTreeInline() throws Exception {
+    TreeOperationStatus status = service.submitCopy(session, "a/from/c0", "a/to0");
+    Assert.assertTrue(status.isDone());
+    Assert.assertNull(service.getStatus(status.getId()));
+    Assert.assertEquals(4, status.getModifications().size());
+    Assert.assertTrue(session.getContentManager().exists("a/to0/g2"));
+  }
+
+  @Test
+  public void testFailureReported() throws Exception {
+    CopyCleaner cleaner = Mockito.mock(CopyCleaner.class);
+    Mockito.when(
+        cleaner.clean(Mockito.anyString(), Mockito.anyString(), Mockito.any(Session.class)))
+        .thenThrow(new IllegalStateException("broken cleaner"));
+    service.bindCopyCleaner(cleaner);
+
+    TreeOperationStatus status = service.submitCopy(session, "a/from", "a/to");
+    waitFor(status);
+
+    Assert.assertEquals(TreeOperationStatus.State.FAILED, status.getState());
+    Assert.assertEquals("broken cleaner", status.getError());
+    List<Modification> modifications = status.getModifications();
+    Assert.assertTrue(modifications.isEmpty());
+    // the cleaner failed after the tree was copied, the partial copy is removed.
+    ContentManager contentManager = session.getContentManager();
+    Assert.assertFalse(contentManager.exists("a/to"));
+    Assert.assertFalse(contentManager.exists("a/to/c4/g2"));
+    Assert.assertTrue(contentManager.exists("a/from/c4/g2"));
+    SparsePostOperationServiceImpl other = createServer();
+    Assert.assertEquals("broken cleaner", waitFor(other, status.getId()).getError());
+    other.deactivate();
+  }
+
+  @Test
+  public void testStatusOnOtherServer() throws Exception {
+    TreeOperationStatus status = service.submitCopy(session, "a/from", "a/to");
+    SparsePostOperationServiceImpl other = createServer();
+    try {
+      TreeOperationStatus polled = other.getStatus(status.getId());
+      Assert.assertNotNull(polled);
+      Assert.assertEquals("copy", polled.getOperation());
+      Assert.assertEquals(session.getUserId(), polled.getUserId());
+      waitFor(status);
+
+      polled = waitFor(other, status.getId());
+      Assert.assertEquals(TreeOperationStatus.State.SUCCEEDED, polled.getState());
+      Assert.assertEquals(21, polled.getTotal());
+      Assert.assertEquals(status.getFinished(), polled.getFinished());
+      Assert.assertEquals(21, polled.getModifications().size());
+      Assert.assertEquals(status.getModifications().get(20).getDestination(), polled
+          .getModifications().get(20).getDestination());
+      Assert.assertNull(other.getStatus("no-such-operation"));
+    } finally {
+      other.deactivate();
+    }
+  }
+
+  /**
+   * Wait for another server to see an operation finish, it is kept just after it is done.
+   */
+  private TreeOperationStatus waitFor(SparsePostOperationServiceImpl server, String id)
+      throws InterruptedException {
+    TreeOperationStatus status = server.getStatus(id);
+    for (int i = 0; i < 200 && !status.isDone(); i++) {
+      Thread.sleep(50);
+      status = server.getStatus(id);
+    }
+    Assert.assertTrue(status.isDone());
+    return status;
+  }
+
+  private SparsePostOperationServiceImpl createServer() {
+    SparsePostOperationServiceImpl server = new SparsePostOperationServiceImpl();
+    server.repository = repository;
+    server.modified(ImmutableMap.<String, Object> of(
+        SparsePostOperationServiceImpl.INLINE_LIMIT, 5));
+    return server;
+  }
+
+  private void waitFor(TreeOperationStatus status) throws InterruptedException {
+    for (int i = 0; i < 200 && !status.isDone(); i++) {
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(status.isDone());
+  }
+}
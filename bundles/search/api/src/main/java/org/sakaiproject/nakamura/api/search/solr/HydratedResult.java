@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+/**
+ * A search hit with what it points at already loaded by a {@link ResultHydrator}.
+ */
+public class HydratedResult {
+
+  private final Result result;
+  private final Content content;
+  private final Authorizable authorizable;
+
+  HydratedResult(Result result, Content content, Authorizable authorizable) {
+    this.result = result;
+    this.content = content;
+    this.authorizable = authorizable;
+  }
+
+  public Result getResult() {
+    return result;
+  }
+
+  public String getPath() {
+    return result.getPath();
+  }
+
+  /**
+   * @return true if the hit is on an authorizable rather than on content.
+   */
+  public boolean isAuthorizable() {
+    return ResultHydrator.isAuthorizable(result);
+  }
+
+  /**
+   * @return the content at the path of the hit, or null if it is a hit on an
+   *         authorizable, or the content has gone or cannot be read.
+   */
+  public Content getContent() {
+    return content;
+  }
+
+  /**
+   * @return the authorizable of a hit on an authorizable, or null if it has gone or
+   *         cannot be read.
+   */
+  public Authorizable getAuthorizable() {
+    return authorizable;
+  }
+}
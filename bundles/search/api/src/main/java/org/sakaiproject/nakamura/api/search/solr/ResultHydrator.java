@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * Loads what a page of search hits points at before any of the page is written, so that
+ * a {@link SolrSearchBatchResultProcessor} writes from rows that are already resolved
+ * rather than going back to the store for each hit as it writes it.
+ * </p>
+ * <p>
+ * Every path and authorizable id is loaded once. Content that has gone or cannot be read
+ * is remembered as missing, so it is not asked for again. Processors collect the related
+ * paths and ids of the whole page (sources, comments, creators) and load them with
+ * {@link #loadContent(Collection)} and {@link #loadAuthorizables(Collection)} before
+ * writing. The hydrator is kept on the request, so that everything that writes results
+ * for a request shares what has been loaded. It is not thread safe, as the session is not.
+ * </p>
+ */
+public class ResultHydrator {
+
+  private static final String REQUEST_ATTRIBUTE = ResultHydrator.class.getName();
+
+  private static final String RESOURCE_TYPE = "resourceType";
+
+  private static final String AUTHORIZABLE_TYPE = "authorizable";
+
+  private final Session session;
+
+  private final Map<String, Content> contents = new HashMap<String, Content>();
+
+  private final Map<String, Authorizable> authorizables = new HashMap<String, Authorizable>();
+
+  private final Set<String> denied = new HashSet<String>();
+
+  private final Set<String> deniedAuthorizables = new HashSet<String>();
+
+  public ResultHydrator(Session session) {
+    this.session = session;
+  }
+
+  /**
+   * @return the hydrator for the request and session, created the first time it is asked
+   *         for.
+   */
+  public static ResultHydrator forRequest(SlingHttpServletRequest request, Session session) {
+    Object existing = request.getAttribute(REQUEST_ATTRIBUTE);
+    if (existing instanceof ResultHydrator
+        && ((ResultHydrator) existing).session == session) {
+      return (ResultHydrator) existing;
+    }
+    ResultHydrator hydrator = new ResultHydrator(session);
+    request.setAttribute(REQUEST_ATTRIBUTE, hydrator);
+    return hydrator;
+  }
+
+  /**
+   * @return true if the hit is on an authorizable, whose id is the path of the hit.
+   */
+  public static boolean isAuthorizable(Result result) {
+    return AUTHORIZABLE_TYPE.equals(result.getFirstValue(RESOURCE_TYPE));
+  }
+
+  /**
+   * Read up to max hits, and load the authorizable of every hit on an authorizable and
+   * the content of every other hit.
+   *
+   * @return the hits in the order they were read.
+   */
+  public List<HydratedResult> hydrate(Iterator<Result> iterator, long max)
+      throws StorageClientException {
+    List<Result> page = new ArrayList<Result>();
+    Set<String> paths = new LinkedHashSet<String>();
+    Set<String> ids = new LinkedHashSet<String>();
+    for (long i = 0; i < max && iterator.hasNext(); i++) {
+      Result result = iterator.next();
+      page.add(result);
+      if (isAuthorizable(result)) {
+        ids.add(result.getPath());
+      } else {
+        paths.add(result.getPath());
+      }
+    }
+    loadAuthorizables(ids);
+    loadContent(paths);
+    List<HydratedResult> rows = new ArrayList<HydratedResult>(page.size());
+    for (Result result : page) {
+      if (isAuthorizable(result)) {
+        rows.add(new HydratedResult(result, null, authorizables.get(result.getPath())));
+      } else {
+        rows.add(new HydratedResult(result, contents.get(result.getPath()), null));
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Load the content at each of the paths that has not been loaded yet.
+   */
+  public void loadContent(Collection<String> paths) throws StorageClientException {
+    ContentManager contentManager = null;
+    for (String path : paths) {
+      if (path == null || contents.containsKey(path)) {
+        continue;
+      }
+      if (contentManager == null) {
+        contentManager = session.getContentManager();
+      }
+      Content content = null;
+      try {
+        content = contentManager.get(path);
+      } catch (AccessDeniedException e) {
+        denied.add(path);
+      }
+      contents.put(path, content);
+    }
+  }
+
+  /**
+   * Load each of the authorizables that has not been loaded yet.
+   */
+  public void loadAuthorizables(Collection<String> ids) throws StorageClientException {
+    AuthorizableManager authorizableManager = null;
+    for (String id : ids) {
+      if (id == null || authorizables.containsKey(id)) {
+        continue;
+      }
+      if (authorizableManager == null) {
+        authorizableManager = session.getAuthorizableManager();
+      }
+      Authorizable authorizable = null;
+      try {
+        authorizable = authorizableManager.findAuthorizable(id);
+      } catch (AccessDeniedException e) {
+        deniedAuthorizables.add(id);
+      }
+      authorizables.put(id, authorizable);
+    }
+  }
+
+  /**
+   * @return the content at the path, loading it if it has not been loaded, or null if
+   *         it does not exist or cannot be read.
+   */
+  public Content getContent(String path) throws StorageClientException {
+    if (path == null) {
+      return null;
+    }
+    if (!contents.containsKey(path)) {
+      loadContent(Collections.singleton(path));
+    }
+    return contents.get(path);
+  }
+
+  /**
+   * @return the authorizable, loading it if it has not been loaded, or null if it does
+   *         not exist or cannot be read.
+   */
+  public Authorizable getAuthorizable(String id) throws StorageClientException {
+    if (id == null) {
+      return null;
+    }
+    if (!authorizables.containsKey(id)) {
+      loadAuthorizables(Collections.singleton(id));
+    }
+    return authorizables.get(id);
+  }
+
+  /**
+   * @return true if the content at the path was loaded and the session may not read it.
+   */
+  public boolean isAccessDenied(String path) {
+    return denied.contains(path);
+  }
+
+  /**
+   * @return true if the authorizable was loaded and the session may not read it.
+   */
+  public boolean isAuthorizableAccessDenied(String id) {
+    return deniedAuthorizables.contains(id);
+  }
+
+  public Session getSession() {
+    return session;
+  }
+}
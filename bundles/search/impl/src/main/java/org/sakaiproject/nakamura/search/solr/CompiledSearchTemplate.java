@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_SEARCHRESPONSEDECORATOR;
+
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+import org.sakaiproject.nakamura.util.JcrUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Everything the {@link SolrSearchServlet} reads from a search template node, read once
+ * with the query and option templates compiled. Processors, providers and decorators are
+ * held by name as they come and go with their bundles.
+ */
+public class CompiledSearchTemplate {
+
+  private final String path;
+  private final String queryType;
+  private final CompiledTemplate queryTemplate;
+  private final String[] propertyProviderNames;
+  private final Map<String, String> defaultValues;
+  /**
+   * Option templates by name, a List of templates for multi valued options.
+   */
+  private final Map<String, Object> options;
+  private final String batchResultProcessorName;
+  private final String resultProcessorName;
+  private final String[] decoratorNames;
+
+  /**
+   * @param node
+   *          the search template node, must have a {@code sakai:query-template}.
+   * @param templateService
+   *          used to compile the query and options.
+   * @throws RepositoryException
+   */
+  CompiledSearchTemplate(Node node, TemplateService templateService)
+      throws RepositoryException {
+    path = node.getPath();
+    if ("sakai/sparse-search".equals(node.getProperty("sling:resourceType").getString())) {
+      queryType = Query.SPARSE;
+    } else {
+      queryType = Query.SOLR;
+    }
+    queryTemplate = templateService.compileTemplate(node.getProperty(SAKAI_QUERY_TEMPLATE)
+        .getString());
+    propertyProviderNames = getStringArrayProp(node, SAKAI_PROPERTY_PROVIDER);
+
+    Map<String, String> defaults = new LinkedHashMap<String, String>();
+    if (node.hasNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)) {
+      PropertyIterator defaultProps = node.getNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)
+          .getProperties();
+      while (defaultProps.hasNext()) {
+        javax.jcr.Property prop = defaultProps.nextProperty();
+        String key = prop.getName();
+        if (!key.startsWith("jcr:") && !prop.isMultiple()) {
+          defaults.put(key, prop.getString());
+        }
+      }
+    }
+    defaultValues = Collections.unmodifiableMap(defaults);
+
+    Map<String, Object> opts = new LinkedHashMap<String, Object>();
+    if (node.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      PropertyIterator queryOptions = node.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS)
+          .getProperties();
+      while (queryOptions.hasNext()) {
+        javax.jcr.Property prop = queryOptions.nextProperty();
+        String key = prop.getName();
+        if (!JcrUtils.isJCRProperty(key)) {
+          if (prop.isMultiple()) {
+            List<CompiledTemplate> templates = new ArrayList<CompiledTemplate>();
+            for (Value val : prop.getValues()) {
+              templates.add(templateService.compileTemplate(val.getString()));
+            }
+            opts.put(key, templates);
+          } else {
+            opts.put(key, templateService.compileTemplate(prop.getString()));
+          }
+        }
+      }
+    }
+    options = Collections.unmodifiableMap(opts);
+
+    String[] batch = getStringArrayProp(node, SAKAI_BATCHRESULTPROCESSOR);
+    batchResultProcessorName = batch == null ? null : batch[0];
+    String[] processor = getStringArrayProp(node, SAKAI_RESULTPROCESSOR);
+    resultProcessorName = processor == null ? null : processor[0];
+    decoratorNames = getStringArrayProp(node, SAKAI_SEARCHRESPONSEDECORATOR);
+  }
+
+  private static String[] getStringArrayProp(Node node, String propName)
+      throws RepositoryException {
+    if (!node.hasProperty(propName)) {
+      return null;
+    }
+    javax.jcr.Property prop = node.getProperty(propName);
+    if (prop.isMultiple()) {
+      Value[] vals = prop.getValues();
+      String[] values = new String[vals.length];
+      for (int i = 0; i < vals.length; i++) {
+        values[i] = vals[i].getString();
+      }
+      return values;
+    }
+    return new String[] { prop.getString() };
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return {@link Query#SOLR} or {@link Query#SPARSE}
+   */
+  public String getQueryType() {
+    return queryType;
+  }
+
+  public CompiledTemplate getQueryTemplate() {
+    return queryTemplate;
+  }
+
+  /**
+   * @return the names of the property providers or null if none are set.
+   */
+  public String[] getPropertyProviderNames() {
+    return propertyProviderNames;
+  }
+
+  /**
+   * @return the single valued, non jcr: properties of sakai:query-template-defaults.
+   */
+  public Map<String, String> getDefaultValues() {
+    return defaultValues;
+  }
+
+  /**
+   * @return the option templates by name, multi valued options as a List of templates.
+   */
+  public Map<String, Object> getOptions() {
+    return options;
+  }
+
+  /**
+   * @return the name of the batch result processor, or null if not set.
+   */
+  public String getBatchResultProcessorName() {
+    return batchResultProcessorName;
+  }
+
+  /**
+   * @return the name of the result processor, or null if not set.
+   */
+  public String getResultProcessorName() {
+    return resultProcessorName;
+  }
+
+  /**
+   * @return the names of the response decorators, or null if not set.
+   */
+  public String[] getDecoratorNames() {
+    return decoratorNames;
+  }
+}
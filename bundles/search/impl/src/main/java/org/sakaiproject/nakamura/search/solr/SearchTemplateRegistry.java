@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds the compiled form of the search templates under /var, by path. A template is
+ * compiled on first use and dropped when anything at, above or below its node changes.
+ */
+@Component(immediate = true)
+@Service(value = { SearchTemplateRegistry.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches compiled search templates."),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }),
+    @Property(name = EventConstants.EVENT_FILTER, value = "(path=" + SEARCH_PATH_PREFIX + "/*)") })
+public class SearchTemplateRegistry implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchTemplateRegistry.class);
+
+  @Reference
+  protected TemplateService templateService;
+
+  private final Map<String, CompiledSearchTemplate> templates = new ConcurrentHashMap<String, CompiledSearchTemplate>();
+
+  /**
+   * Counts invalidations so that a template compiled while its node changed is not kept.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  public SearchTemplateRegistry() {
+  }
+
+  SearchTemplateRegistry(TemplateService templateService) {
+    this.templateService = templateService;
+  }
+
+  /**
+   * @param node
+   *          a search template node.
+   * @return the compiled template, or null if the node has no
+   *         {@code sakai:query-template}.
+   * @throws RepositoryException
+   */
+  public CompiledSearchTemplate getTemplate(Node node) throws RepositoryException {
+    String path = node.getPath();
+    CompiledSearchTemplate template = templates.get(path);
+    if (template == null) {
+      if (!node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+        return null;
+      }
+      LOGGER.debug("Compiling search template {} ", path);
+      long before = generation.get();
+      template = new CompiledSearchTemplate(node, templateService);
+      templates.put(path, template);
+      if (generation.get() != before) {
+        templates.remove(path);
+      }
+    }
+    return template;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the templates at, above or below the changed path. Changes to the defaults or
+   * options nodes arrive with the path of the child, removals of a folder with the path of
+   * the folder.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      return;
+    }
+    generation.incrementAndGet();
+    for (Iterator<String> i = templates.keySet().iterator(); i.hasNext();) {
+      String templatePath = i.next();
+      if (templatePath.equals(path) || templatePath.startsWith(path + "/")
+          || path.startsWith(templatePath + "/")) {
+        i.remove();
+      }
+    }
+  }
+}
@@ -42,9 +42,6 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
@@ -53,13 +50,14 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.user.PrincipalSet;
+import org.sakaiproject.nakamura.api.user.PrincipalSetService;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -94,6 +92,9 @@ public class SolrResultSetFactory implements ResultSetFactory {
   @Reference
   private DeletedPathsService deletedPathsService;
 
+  @Reference
+  private PrincipalSetService principalSetService;
+
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
@@ -213,14 +214,13 @@ public class SolrResultSetFactory implements ResultSetFactory {
     } else {
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
       if (!User.ADMIN_USER.equals(session.getUserId())) {
-        AuthorizableManager am = session.getAuthorizableManager();
-        Authorizable user = am.findAuthorizable(session.getUserId());
-        Set<String> readers = Sets.newHashSet();
-        for (Iterator<Group> gi = user.memberOf(am); gi.hasNext(); ) {
-          readers.add(gi.next().getId());
+        PrincipalSet readers = principalSetService.getPrincipals(session.getUserId(),
+            session.getAuthorizableManager());
+        if (readers != null) {
+          queryOptions.put("readers", readers.join());
+        } else {
+          queryOptions.put("readers", session.getUserId());
         }
-        readers.add(session.getUserId());
-        queryOptions.put("readers", StringUtils.join(readers, ","));
       }
     }
   }
@@ -82,13 +82,18 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
     NamedList<Object> grouped = (NamedList<Object>) response.get("grouped");
     if (grouped.size() > 0) {
       NamedList<Object> groupings = (NamedList<Object>) grouped.getVal(0);
+      List<NamedList<Object>> groups = (List<NamedList<Object>>) groupings.get("groups");
+      if (groups == null) {
+        // group.query, which has one doclist per query rather than groups
+        loadGroupQueryResponse(grouped);
+        return;
+      }
       Integer numFound = (Integer) groupings.get("ngroups");
       if (numFound == null) {
         LOGGER.debug("Grouped query missing ngroups; total will be inaccurate: {}", queryResponse);
         numFound = (Integer) groupings.get("matches");
       }
       responseList.setNumFound(numFound.longValue());
-      List<NamedList<Object>> groups = (List<NamedList<Object>>) groupings.get("groups");
 
       for (NamedList<Object> group : groups) {
         SolrDocumentList docList = (SolrDocumentList) group.get("doclist");
@@ -97,6 +102,20 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
     }
   }
 
+  @SuppressWarnings("unchecked")
+  private void loadGroupQueryResponse(NamedList<Object> grouped) {
+    long numFound = 0;
+    for (int i = 0; i < grouped.size(); i++) {
+      SolrDocumentList docList = (SolrDocumentList) ((NamedList<Object>) grouped.getVal(i))
+          .get("doclist");
+      if (docList != null) {
+        numFound += docList.getNumFound();
+        responseList.addAll(docList);
+      }
+    }
+    responseList.setNumFound(numFound);
+  }
+
 
   @SuppressWarnings("unchecked")
   private void loadMoreLikeThisResponse(NamedList<Object> response) {
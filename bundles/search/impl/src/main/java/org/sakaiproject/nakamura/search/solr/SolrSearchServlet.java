@@ -22,13 +22,6 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.FACE
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON_RESULTS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_SEARCHRESPONSEDECORATOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTAL;
 
@@ -65,9 +58,9 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
-import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.ServletUtils;
 import org.slf4j.Logger;
@@ -83,9 +76,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.jcr.Node;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.Value;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -177,6 +168,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Reference
   private transient TemplateService templateService;
 
+  @Reference
+  private transient SearchTemplateRegistry searchTemplateRegistry;
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -189,11 +183,15 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         return;
       }
       Node node = resource.adaptTo(Node.class);
-      if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+      CompiledSearchTemplate template = null;
+      if (node != null) {
+        template = searchTemplateRegistry.getTemplate(node);
+      }
+      if (template != null) {
         // KERN-1147 Respond better when all parameters haven't been provided for a query
         Query query;
         try {
-          query = processQuery(request, node);
+          query = processQuery(request, template);
         } catch (MissingParameterException e) {
           response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
           return;
@@ -224,9 +222,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         boolean useBatch = false;
         // Get the
         SolrSearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = searchBatchResultProcessorTracker.getByName(node.getProperty(
-              SAKAI_BATCHRESULTPROCESSOR).getString());
+        if (template.getBatchResultProcessorName() != null) {
+          searchBatchProcessor = searchBatchResultProcessorTracker.getByName(template
+              .getBatchResultProcessorName());
           useBatch = true;
           if (searchBatchProcessor == null) {
             searchBatchProcessor = defaultSearchBatchProcessor;
@@ -234,9 +232,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
 
         SolrSearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = searchResultProcessorTracker.getByName(node.getProperty(SAKAI_RESULTPROCESSOR)
-              .getString());
+        if (template.getResultProcessorName() != null) {
+          searchProcessor = searchResultProcessorTracker.getByName(template
+              .getResultProcessorName());
           if (searchProcessor == null) {
             searchProcessor = defaultSearchProcessor;
           }
@@ -295,8 +293,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         write.key(TOTAL);
         write.value(rs.getSize());
 
-        if ( node.hasProperty(SAKAI_SEARCHRESPONSEDECORATOR)) {
-          String[] decoratorNames = getStringArrayProp(node, SAKAI_SEARCHRESPONSEDECORATOR);
+        if ( template.getDecoratorNames() != null) {
+          String[] decoratorNames = template.getDecoratorNames();
           for ( String name : decoratorNames ) {
             SearchResponseDecorator decorator = searchResponseDecoratorTracker.getByName(name);
             if ( decorator != null ) {
@@ -322,41 +320,20 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    *
    * @param request
    *          the request.
-   * @param queryTemplate
-   *          the query template.
-   * @param propertyProviderName
+   * @param template
+   *          the compiled search template.
    * @return A processed query template
    * @throws MissingParameterException
    */
-  protected Query processQuery(SlingHttpServletRequest request, Node queryNode)
+  protected Query processQuery(SlingHttpServletRequest request, CompiledSearchTemplate template)
       throws RepositoryException, MissingParameterException, JSONException {
-    // check the resource type and set the query type appropriately
-    // default to using solr for queries
-    javax.jcr.Property resourceType = queryNode.getProperty("sling:resourceType");
-    String queryType;
-    if ("sakai/sparse-search".equals(resourceType.getString())) {
-      queryType = Query.SPARSE;
-    } else {
-      queryType = Query.SOLR;
-    }
-
-    String[] propertyProviderNames = null;
-    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-      propertyProviderNames = getStringArrayProp(queryNode, SAKAI_PROPERTY_PROVIDER);
-    }
-    PropertyIterator defaultValues = null;
-    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)) {
-      Node defaults = queryNode.getNode(SAKAI_QUERY_TEMPLATE_DEFAULTS);
-      defaultValues = defaults.getProperties();
-    }
-    Map<String, String> propertiesMap = loadProperties(request, propertyProviderNames,
-        defaultValues, queryType);
-
-    String queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    String queryType = template.getQueryType();
+    Map<String, String> propertiesMap = loadProperties(request,
+        template.getPropertyProviderNames(), template.getDefaultValues(), queryType);
 
     // process the query string before checking for missing terms to a) give processors a
     // chance to set things and b) catch any missing terms added by the processors.
-    String queryString = templateService.evaluateTemplate(propertiesMap, queryTemplate);
+    String queryString = template.getQueryTemplate().evaluate(propertiesMap);
 
     // expand home directory references to full path; eg. ~user => a:user
     queryString = SearchUtil.expandHomeDirectory(queryString);
@@ -369,17 +346,11 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
               + StringUtils.join(missingTerms, ", "));
     }
 
-    // collect query options
-    PropertyIterator queryOptions = null;
-    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      Node queryOptionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
-      queryOptions = queryOptionsNode.getProperties();
-    }
-
     // process the options as templates and check for missing params
-    Map<String, Object> options = processOptions(propertiesMap, queryOptions, queryType);
+    Map<String, Object> options = processOptions(propertiesMap, template.getOptions(),
+        queryType);
 
-    return new Query(queryNode.getPath(), queryType, queryString, options);
+    return new Query(template.getPath(), queryType, queryString, options);
   }
 
   /**
@@ -390,34 +361,25 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @throws MissingParameterException
    */
   private Map<String, Object> processOptions(Map<String, String> propertiesMap,
-      PropertyIterator queryOptions, String queryType) throws RepositoryException,
-      MissingParameterException {
+      Map<String, Object> queryOptions, String queryType) throws MissingParameterException {
     Set<String> missingTerms = Sets.newHashSet();
     Map<String, Object> options = Maps.newHashMap();
-    if (queryOptions != null) {
-      while (queryOptions.hasNext()) {
-        javax.jcr.Property prop = queryOptions.nextProperty();
-        String key = prop.getName();
-
-        if (!JcrUtils.isJCRProperty(key)) {
-          if (prop.isMultiple()) {
-            Set<String> processedVals = Sets.newHashSet();
-            Value[] vals = prop.getValues();
-            for (Value val : vals) {
-              String processedVal = processValue(key, val.getString(), propertiesMap,
-                  queryType, missingTerms);
-              processedVals.add(processedVal);
-            }
-            if (!processedVals.isEmpty()) {
-              options.put(key, processedVals);
-            }
-          } else {
-            String val = prop.getString();
-            String processedVal = processValue(key, val, propertiesMap, queryType,
-                missingTerms);
-            options.put(key, processedVal);
-          }
+    for (Entry<String, Object> option : queryOptions.entrySet()) {
+      String key = option.getKey();
+      if (option.getValue() instanceof List<?>) {
+        Set<String> processedVals = Sets.newHashSet();
+        for (Object val : (List<?>) option.getValue()) {
+          String processedVal = processValue(key, (CompiledTemplate) val, propertiesMap,
+              queryType, missingTerms);
+          processedVals.add(processedVal);
+        }
+        if (!processedVals.isEmpty()) {
+          options.put(key, processedVals);
         }
+      } else {
+        String processedVal = processValue(key, (CompiledTemplate) option.getValue(),
+            propertiesMap, queryType, missingTerms);
+        options.put(key, processedVal);
       }
     }
 
@@ -440,10 +402,10 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @param missingTerms
    * @return
    */
-  private String processValue(String key, String val, Map<String, String> propertiesMap,
+  private String processValue(String key, CompiledTemplate val, Map<String, String> propertiesMap,
       String queryType, Set<String> missingTerms) {
-    missingTerms.addAll(templateService.missingTerms(propertiesMap, val));
-    String processedVal = templateService.evaluateTemplate(propertiesMap, val);
+    missingTerms.addAll(val.missingTerms(propertiesMap));
+    String processedVal = val.evaluate(propertiesMap);
     if ("sort".equals(key)) {
       processedVal = SearchUtil.escapeString(processedVal, queryType);
     }
@@ -464,7 +426,7 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @throws RepositoryException
    */
   private Map<String, String> loadProperties(SlingHttpServletRequest request,
-      String[] propertyProviderNames, PropertyIterator defaultProps, String queryType) throws RepositoryException {
+      String[] propertyProviderNames, Map<String, String> defaultProps, String queryType) throws RepositoryException {
     Map<String, String> propertiesMap = new HashMap<String, String>();
 
     // 0. load authorizable (user) information
@@ -475,14 +437,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     propertiesMap.put("_userId", ClientUtils.escapeQueryChars(userId));
 
     // 1. load in properties from the query template node so defaults can be set
-    if (defaultProps != null) {
-      while (defaultProps.hasNext()) {
-        javax.jcr.Property prop = defaultProps.nextProperty();
-        String key = prop.getName();
-        if (!key.startsWith("jcr:") && !propertiesMap.containsKey(key) && !prop.isMultiple()) {
-          String val = prop.getString();
-          propertiesMap.put(key, val);
-        }
+    for (Entry<String, String> prop : defaultProps.entrySet()) {
+      if (!propertiesMap.containsKey(prop.getKey())) {
+        propertiesMap.put(prop.getKey(), prop.getValue());
       }
     }
 
@@ -523,23 +480,6 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     return propertiesMap;
   }
 
-  private String[] getStringArrayProp(Node queryNode, String propName) throws RepositoryException {
-    String[] propertyProviderNames;
-    javax.jcr.Property propProv = queryNode.getProperty(propName);
-    if (propProv.isMultiple()) {
-      Value[] propProvVals = propProv.getValues();
-      propertyProviderNames = new String[propProvVals.length];
-
-      for (int i = 0; i < propProvVals.length; i++) {
-        propertyProviderNames[i] = propProvVals[i].getString();
-      }
-    } else {
-      propertyProviderNames = new String[1];
-      propertyProviderNames[0] = propProv.getString();
-    }
-    return propertyProviderNames;
-  }
-
   private void writeFacetFields(SolrSearchResultSet rs, ExtendedJSONWriter writer) throws JSONException {
     if (rs.getFacetFields() != null) {
       List<FacetField> fields = rs.getFacetFields();
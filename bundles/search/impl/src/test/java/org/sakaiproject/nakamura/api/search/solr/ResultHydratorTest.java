@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ResultHydratorTest {
+
+  private Session session;
+  private ContentManager contentManager;
+  private AuthorizableManager authorizableManager;
+  private Content file;
+  private Authorizable user;
+  private ResultHydrator hydrator;
+
+  @Before
+  public void before() throws Exception {
+    session = mock(Session.class);
+    contentManager = mock(ContentManager.class);
+    authorizableManager = mock(AuthorizableManager.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+
+    file = new Content("file", ImmutableMap.<String, Object> of());
+    when(contentManager.get("file")).thenReturn(file);
+    when(contentManager.get("secret")).thenThrow(
+        new AccessDeniedException(Security.ZONE_CONTENT, "secret", "", "user"));
+    user = mock(Authorizable.class);
+    when(authorizableManager.findAuthorizable("user")).thenReturn(user);
+    when(authorizableManager.findAuthorizable("hidden")).thenThrow(
+        new AccessDeniedException(Security.ZONE_AUTHORIZABLES, "hidden", "", "user"));
+
+    hydrator = new ResultHydrator(session);
+  }
+
+  @Test
+  public void testEachPathReadOnce() throws Exception {
+    hydrator.loadContent(Arrays.asList("file", "gone", "file"));
+    Assert.assertSame(file, hydrator.getContent("file"));
+    Assert.assertNull(hydrator.getContent("gone"));
+    hydrator.loadContent(Arrays.asList("gone", "file", null));
+    Assert.assertSame(file, hydrator.getContent("file"));
+    Assert.assertNull(hydrator.getContent(null));
+
+    verify(contentManager, times(1)).get("file");
+    verify(contentManager, times(1)).get("gone");
+  }
+
+  @Test
+  public void testHydratePage() throws Exception {
+    List<HydratedResult> rows = hydrator.hydrate(Arrays.asList(result("file", null),
+        result("user", "authorizable"), result("file", null), result("gone", null))
+        .iterator(), 3);
+
+    Assert.assertEquals(3, rows.size());
+    Assert.assertSame(file, rows.get(0).getContent());
+    Assert.assertTrue(rows.get(1).isAuthorizable());
+    Assert.assertSame(user, rows.get(1).getAuthorizable());
+    Assert.assertNull(rows.get(1).getContent());
+    Assert.assertSame(file, rows.get(2).getContent());
+    // the page ended before the fourth hit.
+    Assert.assertSame(file, hydrator.getContent("file"));
+    verify(contentManager, times(1)).get("file");
+    verify(contentManager, Mockito.never()).get("gone");
+    verify(authorizableManager, times(1)).findAuthorizable("user");
+  }
+
+  @Test
+  public void testMissingIsNotDenied() throws Exception {
+    Assert.assertNull(hydrator.getContent("gone"));
+    Assert.assertNull(hydrator.getContent("secret"));
+    Assert.assertFalse(hydrator.isAccessDenied("gone"));
+    Assert.assertTrue(hydrator.isAccessDenied("secret"));
+    Assert.assertFalse(hydrator.isAccessDenied("file"));
+
+    // a denied path is not asked for again either.
+    hydrator.loadContent(Arrays.asList("secret"));
+    Assert.assertNull(hydrator.getContent("secret"));
+    verify(contentManager, times(1)).get("secret");
+  }
+
+  @Test
+  public void testAuthorizableAccessDenied() throws Exception {
+    hydrator.loadAuthorizables(Arrays.asList("user", "hidden", "nobody", "user"));
+    Assert.assertSame(user, hydrator.getAuthorizable("user"));
+    Assert.assertNull(hydrator.getAuthorizable("hidden"));
+    Assert.assertNull(hydrator.getAuthorizable("nobody"));
+    Assert.assertTrue(hydrator.isAuthorizableAccessDenied("hidden"));
+    Assert.assertFalse(hydrator.isAuthorizableAccessDenied("nobody"));
+    Assert.assertFalse(hydrator.isAuthorizableAccessDenied("user"));
+    // content and authorizables are told apart.
+    Assert.assertFalse(hydrator.isAccessDenied("hidden"));
+
+    verify(authorizableManager, times(1)).findAuthorizable("user");
+    verify(authorizableManager, times(1)).findAuthorizable("hidden");
+    verify(authorizableManager, times(1)).findAuthorizable("nobody");
+  }
+
+  @Test
+  public void testForRequest() throws Exception {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    ResultHydrator first = ResultHydrator.forRequest(request, session);
+    ArgumentCaptor<Object> kept = ArgumentCaptor.forClass(Object.class);
+    verify(request).setAttribute(Mockito.anyString(), kept.capture());
+    Assert.assertSame(first, kept.getValue());
+    when(request.getAttribute(ResultHydrator.class.getName())).thenReturn(first);
+
+    // the same session shares what has been loaded.
+    Assert.assertSame(first, ResultHydrator.forRequest(request, session));
+    first.getContent("file");
+    ResultHydrator.forRequest(request, session).getContent("file");
+    verify(contentManager, times(1)).get("file");
+
+    // another session may not read what the first could.
+    Session other = mock(Session.class);
+    ResultHydrator second = ResultHydrator.forRequest(request, other);
+    Assert.assertNotSame(first, second);
+    Assert.assertSame(other, second.getSession());
+    verify(request, times(2)).setAttribute(Mockito.anyString(), kept.capture());
+    Assert.assertSame(second, kept.getValue());
+  }
+
+  private Result result(String path, String resourceType) {
+    Result result = mock(Result.class);
+    when(result.getPath()).thenReturn(path);
+    when(result.getFirstValue("resourceType")).thenReturn(resourceType);
+    return result;
+  }
+}
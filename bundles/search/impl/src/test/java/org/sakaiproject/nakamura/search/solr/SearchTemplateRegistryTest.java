@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+
+import java.util.Hashtable;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+
+/**
+ *
+ */
+public class SearchTemplateRegistryTest {
+
+  private static final String PATH = "/var/search/pool/files";
+
+  private TemplateService templateService;
+  private SearchTemplateRegistry registry;
+  private Node node;
+
+  @Before
+  public void setUp() throws Exception {
+    templateService = mock(TemplateService.class);
+    when(templateService.compileTemplate("resourceType:${type}")).thenReturn(
+        mock(CompiledTemplate.class));
+    registry = new SearchTemplateRegistry(templateService);
+
+    node = mock(Node.class);
+    when(node.getPath()).thenReturn(PATH);
+    when(node.hasProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE)).thenReturn(true);
+    Property template = mock(Property.class);
+    when(template.getString()).thenReturn("resourceType:${type}");
+    when(node.getProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE)).thenReturn(template);
+    Property resourceType = mock(Property.class);
+    when(resourceType.getString()).thenReturn("sakai/sparse-search");
+    when(node.getProperty("sling:resourceType")).thenReturn(resourceType);
+  }
+
+  @Test
+  public void testCompiledOnce() throws Exception {
+    CompiledSearchTemplate template = registry.getTemplate(node);
+    assertEquals(PATH, template.getPath());
+    assertEquals(Query.SPARSE, template.getQueryType());
+    assertNull(template.getPropertyProviderNames());
+    assertNull(template.getBatchResultProcessorName());
+    assertEquals(0, template.getOptions().size());
+
+    assertSame(template, registry.getTemplate(node));
+    verify(templateService, times(1)).compileTemplate("resourceType:${type}");
+  }
+
+  @Test
+  public void testNoTemplate() throws Exception {
+    when(node.hasProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE)).thenReturn(false);
+    assertNull(registry.getTemplate(node));
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    CompiledSearchTemplate template = registry.getTemplate(node);
+
+    registry.handleEvent(event("/var/search/pool/other"));
+    assertSame(template, registry.getTemplate(node));
+
+    // a change to the options node
+    registry.handleEvent(event(PATH + "/" + SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS));
+    CompiledSearchTemplate recompiled = registry.getTemplate(node);
+    assertNotSame(template, recompiled);
+
+    // removal of the folder
+    registry.handleEvent(event("/var/search/pool"));
+    assertNotSame(recompiled, registry.getTemplate(node));
+  }
+
+  private Event event(String path) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props);
+  }
+}
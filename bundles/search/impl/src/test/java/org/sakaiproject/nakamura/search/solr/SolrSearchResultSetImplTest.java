@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.util.Iterator;
+
+public class SolrSearchResultSetImplTest {
+
+  @Test
+  public void testGroupQueryResponse() {
+    // group.query gives a doclist for each query, where group.field gives groups
+    NamedList<Object> grouped = new NamedList<Object>();
+    grouped.add("tag:a", groupQuery("a1", "a2"));
+    grouped.add("tag:b", groupQuery());
+    grouped.add("tag:c", groupQuery("c1"));
+    NamedList<Object> response = new NamedList<Object>();
+    response.add("grouped", grouped);
+    QueryResponse queryResponse = mock(QueryResponse.class);
+    when(queryResponse.getResponse()).thenReturn(response);
+
+    SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(queryResponse);
+    Assert.assertEquals(3, rs.getSize());
+    Iterator<Result> results = rs.getResultSetIterator();
+    Assert.assertEquals("a1", results.next().getPath());
+    Assert.assertEquals("a2", results.next().getPath());
+    Assert.assertEquals("c1", results.next().getPath());
+    Assert.assertFalse(results.hasNext());
+  }
+
+  private NamedList<Object> groupQuery(String... paths) {
+    SolrDocumentList doclist = new SolrDocumentList();
+    for (String path : paths) {
+      SolrDocument document = new SolrDocument();
+      document.addField("path", path);
+      doclist.add(document);
+    }
+    doclist.setNumFound(paths.length);
+    NamedList<Object> group = new NamedList<Object>();
+    group.add("matches", paths.length);
+    group.add("doclist", doclist);
+    return group;
+  }
+}
@@ -1,173 +1,552 @@
 package org.apache.jackrabbit.core.security.principal;
 
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A concurrent map bounded by weight that evicts the least recently used entries.
+ * <p>
+ * Entries are held in a single {@link ConcurrentHashMap} so that a get takes no lock.
+ * Recency is kept per segment in linked lists. A get records the entry in a small
+ * buffer of its segment, and the buffer is drained into the lists when it fills, by
+ * whichever thread gets the segment lock, so reads that cannot be recorded are dropped
+ * rather than waited on. Puts, removes and evictions take the segment lock and are
+ * amortized O(1).
+ * </p>
+ * <p>
+ * New entries go into a small window. An entry leaving the window only evicts the least
+ * recently used entries of the rest of the segment if it has been seen at least as
+ * often, going by a small frequency sketch that is halved as it fills. A burst of
+ * one-off keys therefore cannot flush entries that are in use.
+ * </p>
+ *
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-  public class Holder<T> {
-
-    protected long last;
-    protected V value;
-    private K key;
+  /**
+   * The weight of an entry against the maximum weight of the map.
+   */
+  public interface Weigher<K, V> {
+    int weigh(K key, V value);
+  }
 
-    public Holder(K key, V value) {
-      this.key = key;
-      this.value = value;
-      this.last = System.currentTimeMillis();
-    }
+  private static final int DEFAULT_CONCURRENCY = 16;
+  private static final int READ_BUFFER_SIZE = 32;
+  private static final int MAX_SKETCH_WIDTH = 1 << 16;
 
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
-    }
+  private final ConcurrentHashMap<K, Node<K, V>> data;
+  private final List<Segment> segments;
+  private final int segmentMask;
+  private final Weigher<? super K, ? super V> weigher;
+  private final long maxWeight;
 
-    @Override
-    public boolean equals(Object obj) {
-      boolean eq = false;
-      if (obj != null) {
-        try {
-          @SuppressWarnings("unchecked")
-          Holder<T> t = (Holder<T>) obj;
-          eq = value.equals(t.value);
-        } catch (ClassCastException e) {
-          eq = false;
-        }
-      }
-      return eq;
-    }
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
 
-    @Override
-    public int hashCode() {
-      return value.hashCode();
-    }
+  public ConcurrentLRUMap() {
+    this(100);
+  }
 
+  public ConcurrentLRUMap(int size) {
+    this(size, DEFAULT_CONCURRENCY, null);
   }
 
   /**
-   * 
+   * @param maxWeight
+   *          the maximum total weight of the entries.
+   * @param concurrencyLevel
+   *          the number of threads expected to write at once.
+   * @param weigher
+   *          the weight of an entry, or null to weigh each entry as 1.
    */
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
-
-  public ConcurrentLRUMap() {
-  }
-
-  public ConcurrentLRUMap(int size) {
-    maxSize = size;
+  public ConcurrentLRUMap(long maxWeight, int concurrencyLevel,
+      Weigher<? super K, ? super V> weigher) {
+    if (maxWeight < 1) {
+      throw new IllegalArgumentException("maxWeight must be positive, was " + maxWeight);
+    }
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    // each segment must be able to hold a few entries for the recency to mean anything.
+    int n = 1;
+    while (n < concurrencyLevel && n * 8L <= maxWeight) {
+      n <<= 1;
+    }
+    segments = new ArrayList<Segment>(n);
+    long capacity = maxWeight / n;
+    for (int i = 0; i < n; i++) {
+      segments.add(new Segment(i == 0 ? maxWeight - capacity * (n - 1) : capacity));
+    }
+    segmentMask = n - 1;
+    data = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, n);
   }
 
   public int size() {
-    return delegate.size();
+    return data.size();
   }
 
   public boolean isEmpty() {
-    return delegate.isEmpty();
+    return data.isEmpty();
   }
 
   public boolean containsKey(Object key) {
-    return delegate.containsKey(key);
+    return data.containsKey(key);
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
-  }
-
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
-
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
-        }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+    for (Node<K, V> node : data.values()) {
+      if (value == null ? node.value == null : value.equals(node.value)) {
+        return true;
       }
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
+    return false;
+  }
+
+  public V get(Object key) {
+    Node<K, V> node = data.get(key);
+    if (node == null) {
+      misses.incrementAndGet();
       return null;
     }
-    return v.value;
+    hits.incrementAndGet();
+    segmentFor(node.hash).recordRead(node);
+    return node.value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The entry may not be admitted if the map is full and the entry it would replace is
+   * used more often, in which case the map is left as it was.
+   */
+  public V put(K key, V value) {
+    if (key == null) {
+      throw new NullPointerException("Null keys are not supported");
+    }
+    int hash = spread(key.hashCode());
+    return segmentFor(hash).put(key, value, hash);
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
+    if (key == null) {
       return null;
     }
-    return v.value;
+    return segmentFor(spread(key.hashCode())).remove(key);
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
-    for ( java.util.Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
+    for (Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
       put(e.getKey(), e.getValue());
     }
   }
 
   public void clear() {
-    delegate.clear();
+    for (Segment segment : segments) {
+      segment.clear();
+    }
   }
 
+  /**
+   * @return an unmodifiable view of the keys.
+   */
   public Set<K> keySet() {
-    return delegate.keySet();
+    return Collections.unmodifiableSet(data.keySet());
   }
 
+  /**
+   * @return a copy of the values.
+   */
   public Collection<V> values() {
     List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+    for (Node<K, V> node : data.values()) {
+      values.add(node.value);
     }
     return values;
   }
 
+  /**
+   * @return a copy of the entries, setting a value on an entry does not change the map.
+   */
   public Set<Entry<K, V>> entrySet() {
-    Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
-      set.add(new Entry<K, V>() {
+    Set<Entry<K, V>> set = new HashSet<Entry<K, V>>();
+    for (Node<K, V> node : data.values()) {
+      set.add(new SimpleEntry<K, V>(node.key, node.value));
+    }
+    return set;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries evicted to make room for others.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the number of entries that were not admitted as they were used less often
+   *         than the entry they would have replaced.
+   */
+  public long getRejectionCount() {
+    return rejections.get();
+  }
+
+  /**
+   * @return the total weight of the entries.
+   */
+  public long getWeight() {
+    long weight = 0;
+    for (Segment segment : segments) {
+      weight += segment.weight;
+    }
+    return weight;
+  }
+
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentLRUMap[size=" + size() + ", weight=" + getWeight() + "/" + maxWeight
+        + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+        + getEvictionCount() + ", rejections=" + getRejectionCount() + "]";
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments.get((hash >>> 16) & segmentMask);
+  }
+
+  private int weigh(K key, V value) {
+    if (weigher == null) {
+      return 1;
+    }
+    int w = weigher.weigh(key, value);
+    if (w < 0) {
+      throw new IllegalArgumentException("Negative weight " + w + " for " + key);
+    }
+    return w;
+  }
+
+  /**
+   * Spread the bits of a hash code, as the JDK maps do, so that segments and sketch
+   * rows get the high bits too.
+   */
+  private static int spread(int h) {
+    h += (h << 15) ^ 0xffffcd7d;
+    h ^= (h >>> 10);
+    h += (h << 3);
+    h ^= (h >>> 6);
+    h += (h << 2) + (h << 14);
+    return h ^ (h >>> 16);
+  }
+
+  private static final class Node<K, V> {
+    final K key;
+    final V value;
+    final int hash;
+    final int weight;
+    Node<K, V> prev;
+    Node<K, V> next;
+    /** the list the node is in, null once removed, guarded by the segment lock. */
+    NodeList<K, V> list;
+
+    Node(K key, V value, int hash, int weight) {
+      this.key = key;
+      this.value = value;
+      this.hash = hash;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * A list of nodes, least recently used first.
+   */
+  private static final class NodeList<K, V> {
+    final long capacity;
+    Node<K, V> head;
+    Node<K, V> tail;
+    long weight;
 
-        public K getKey() {
-          return e.getKey();
+    NodeList(long capacity) {
+      this.capacity = capacity;
+    }
+
+    void add(Node<K, V> node) {
+      node.prev = tail;
+      node.next = null;
+      if (tail == null) {
+        head = node;
+      } else {
+        tail.next = node;
+      }
+      tail = node;
+      node.list = this;
+      weight += node.weight;
+    }
+
+    void remove(Node<K, V> node) {
+      if (node.prev == null) {
+        head = node.next;
+      } else {
+        node.prev.next = node.next;
+      }
+      if (node.next == null) {
+        tail = node.prev;
+      } else {
+        node.next.prev = node.prev;
+      }
+      node.prev = null;
+      node.next = null;
+      node.list = null;
+      weight -= node.weight;
+    }
+
+    void clear() {
+      for (Node<K, V> node = head; node != null; node = node.next) {
+        node.list = null;
+      }
+      head = null;
+      tail = null;
+      weight = 0;
+    }
+  }
+
+  /**
+   * The keys that hash to a segment are held in a small window, where every new entry
+   * goes, and a main list that an entry leaving the window only gets into if it has been
+   * seen at least as often as the main entry it would evict.
+   */
+  private final class Segment extends ReentrantLock {
+
+    private static final long serialVersionUID = 1L;
+
+    private final NodeList<K, V> window;
+    private final NodeList<K, V> main;
+    private final FrequencySketch sketch;
+    private final AtomicReferenceArray<Node<K, V>> readBuffer =
+        new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+    private final AtomicInteger reads = new AtomicInteger();
+    private volatile long weight;
+
+    Segment(long capacity) {
+      long windowCapacity = Math.max(1, capacity / 10);
+      this.window = new NodeList<K, V>(windowCapacity);
+      this.main = new NodeList<K, V>(capacity - windowCapacity);
+      this.sketch = new FrequencySketch((int) Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    void recordRead(Node<K, V> node) {
+      int i = reads.getAndIncrement();
+      if (i < READ_BUFFER_SIZE) {
+        readBuffer.lazySet(i, node);
+        if (i < READ_BUFFER_SIZE - 1) {
+          return;
         }
+      }
+      if (tryLock()) {
+        try {
+          drainReads();
+        } finally {
+          unlock();
+        }
+      }
+    }
+
+    /**
+     * Move recently read nodes to the tail of their list, with the lock held.
+     */
+    private void drainReads() {
+      int n = Math.min(reads.get(), READ_BUFFER_SIZE);
+      for (int i = 0; i < n; i++) {
+        Node<K, V> node = readBuffer.getAndSet(i, null);
+        if (node != null) {
+          sketch.increment(node.hash);
+          NodeList<K, V> list = node.list;
+          if (list != null) {
+            list.remove(node);
+            list.add(node);
+          }
+        }
+      }
+      reads.set(0);
+    }
 
-        public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
+    V put(K key, V value, int hash) {
+      int w = weigh(key, value);
+      Node<K, V> node = new Node<K, V>(key, value, hash, w);
+      lock();
+      try {
+        drainReads();
+        sketch.increment(hash);
+        Node<K, V> old = data.get(key);
+        if (w > window.capacity + main.capacity) {
+          rejections.incrementAndGet();
+          return old == null ? null : old.value;
+        }
+        NodeList<K, V> list = window;
+        if (old != null) {
+          // a new value for a key that is held stays where the key was.
+          list = old.list;
+          list.remove(old);
         }
+        data.put(key, node);
+        list.add(node);
+        evict();
+        weight = window.weight + main.weight;
+        return old == null ? null : old.value;
+      } finally {
+        unlock();
+      }
+    }
 
-        public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
+    /**
+     * Move entries out of the window until it fits, each into the main list if it is used
+     * at least as often as the entries it would evict from there, then trim the main list.
+     */
+    private void evict() {
+      while (window.weight > window.capacity) {
+        Node<K, V> candidate = window.head;
+        window.remove(candidate);
+        int frequency = sketch.frequency(candidate.hash);
+        boolean admit = true;
+        long needed = main.weight + candidate.weight - main.capacity;
+        for (Node<K, V> victim = main.head; victim != null && needed > 0; victim = victim.next) {
+          if (sketch.frequency(victim.hash) > frequency) {
+            admit = false;
+            break;
           }
-          return h.value;
+          needed -= victim.weight;
+        }
+        if (admit) {
+          main.add(candidate);
+        } else {
+          discard(candidate);
+          rejections.incrementAndGet();
         }
-      });
+      }
+      while (main.weight > main.capacity) {
+        Node<K, V> victim = main.head;
+        main.remove(victim);
+        discard(victim);
+      }
+    }
+
+    private void discard(Node<K, V> node) {
+      data.remove(node.key, node);
+      evictions.incrementAndGet();
+    }
+
+    V remove(Object key) {
+      lock();
+      try {
+        Node<K, V> node = data.remove(key);
+        if (node == null) {
+          return null;
+        }
+        if (node.list != null) {
+          node.list.remove(node);
+        }
+        weight = window.weight + main.weight;
+        return node.value;
+      } finally {
+        unlock();
+      }
+    }
+
+    void clear() {
+      lock();
+      try {
+        for (Node<K, V> node = window.head; node != null; node = node.next) {
+          data.remove(node.key, node);
+        }
+        for (Node<K, V> node = main.head; node != null; node = node.next) {
+          data.remove(node.key, node);
+        }
+        window.clear();
+        main.clear();
+        weight = 0;
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+          readBuffer.set(i, null);
+        }
+        reads.set(0);
+      } finally {
+        unlock();
+      }
     }
-    return set;
   }
 
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
+  /**
+   * A count-min sketch of 4 rows of counters saturating at 15, all halved once the number
+   * of increments reaches 10 times the width so that old popularity fades. Only used
+   * with the segment lock held.
+   */
+  private static final class FrequencySketch {
+    private static final int[] SEEDS = { 0x97cb3127, 0x5bd1e995, 0x27d4eb2f, 0x165667b1 };
+    private final int[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+      int width = 64;
+      while (width < expectedEntries * 4L && width < MAX_SKETCH_WIDTH) {
+        width <<= 1;
+      }
+      counters = new int[SEEDS.length][width];
+      mask = width - 1;
+      sampleSize = width * 10;
+    }
+
+    void increment(int hash) {
+      for (int i = 0; i < SEEDS.length; i++) {
+        int j = index(hash, i);
+        if (counters[i][j] < 15) {
+          counters[i][j]++;
+        }
+      }
+      if (++additions >= sampleSize) {
+        for (int[] row : counters) {
+          for (int j = 0; j < row.length; j++) {
+            row[j] >>>= 1;
+          }
+        }
+        additions /= 2;
+      }
+    }
+
+    int frequency(int hash) {
+      int min = Integer.MAX_VALUE;
+      for (int i = 0; i < SEEDS.length; i++) {
+        min = Math.min(min, counters[i][index(hash, i)]);
+      }
+      return min;
+    }
+
+    private int index(int hash, int i) {
+      int h = hash * SEEDS[i];
+      return (h ^ (h >>> 17)) & mask;
     }
-    v.last = System.currentTimeMillis();
-    return v.value;
   }
 }
@@ -178,17 +178,15 @@ public class SparsePrincipalProvider implements PrincipalProvider {
                     memberIds.add(pid);
                   }
                 }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
                 return true;
               } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
@@ -259,6 +257,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public void close() {
+    LOGGER.debug("Closing with principal cache {} ", cache);
     try {
       session.logout();
     } catch (ClientPoolException e) {
@@ -277,10 +276,10 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    Principal principal = cache.get(principalName);
+    if (principal != null) {
+      return principal;
     }
-    Principal principal = null;
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
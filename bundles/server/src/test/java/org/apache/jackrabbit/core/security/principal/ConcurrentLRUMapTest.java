@@ -0,0 +1,142 @@
+package org.apache.jackrabbit.core.security.principal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ConcurrentLRUMapTest {
+
+  @Test
+  public void testBounded() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100);
+    for (int i = 0; i < 1000; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    assertTrue(map.size() <= 100);
+    assertTrue(map.getWeight() <= 100);
+    assertEquals("v999", map.get("k999"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(3, 1,
+        null);
+    map.put("a", "1");
+    map.put("b", "2");
+    map.put("c", "3");
+    map.put("a", "1");
+    map.put("d", "4");
+    assertFalse(map.containsKey("b"));
+    assertEquals("1", map.get("a"));
+    assertEquals("3", map.get("c"));
+    assertEquals("4", map.get("d"));
+    assertEquals(1, map.getEvictionCount());
+  }
+
+  @Test
+  public void testFrequentEntriesKept() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(20, 1,
+        null);
+    for (int i = 0; i < 10; i++) {
+      map.put("hot" + i, "v");
+    }
+    for (int j = 0; j < 100; j++) {
+      for (int i = 0; i < 10; i++) {
+        map.get("hot" + i);
+      }
+    }
+    // a burst of keys seen once does not displace keys that are in use, even though
+    // more of them are put between uses than the map can hold.
+    for (int i = 0; i < 1000; i++) {
+      map.put("cold" + i, "v");
+      if (i % 50 == 0) {
+        for (int j = 0; j < 10; j++) {
+          map.get("hot" + j);
+        }
+      }
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals("v", map.get("hot" + i));
+    }
+    assertTrue(map.getRejectionCount() > 0);
+  }
+
+  @Test
+  public void testWeight() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10, 1,
+        new ConcurrentLRUMap.Weigher<String, String>() {
+          public int weigh(String key, String value) {
+            return value.length();
+          }
+        });
+    map.put("a", "12345");
+    map.put("b", "1234");
+    assertEquals(9, map.getWeight());
+    map.put("c", "123");
+    assertNull(map.get("a"));
+    assertEquals(7, map.getWeight());
+    // too heavy to hold at all.
+    map.put("d", "12345678901");
+    assertFalse(map.containsKey("d"));
+    map.remove("b");
+    assertEquals(3, map.getWeight());
+  }
+
+  @Test
+  public void testStats() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("a", "1");
+    map.get("a");
+    map.get("a");
+    map.get("b");
+    assertEquals(2, map.getHitCount());
+    assertEquals(1, map.getMissCount());
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertEquals(0, map.getWeight());
+  }
+
+  @Test
+  public void testConcurrent() throws Exception {
+    final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(
+        500);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int t = 0; t < 8; t++) {
+      final int seed = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() {
+          for (int i = 0; i < 20000; i++) {
+            Integer key = (i * 31 + seed) % 2000;
+            Integer value = map.get(key);
+            if (value == null) {
+              map.put(key, key);
+            } else {
+              assertEquals(key, value);
+            }
+            if (i % 100 == 0) {
+              map.remove(key);
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertTrue(map.size() <= 500);
+    assertEquals(map.size(), map.getWeight());
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.solr;
+
+/**
+ * Rebuilds the whole index from storage without going through the indexing queues.
+ * Every content item and authorizable is run through the registered
+ * {@link IndexingHandler}s on a pool of threads and written in large batches, into a
+ * fresh core where the Solr client supports it, which replaces the live core when it is
+ * complete. Changes made while the rebuild runs are replayed into it before the swap.
+ */
+public interface BulkReindexService {
+
+  /**
+   * Start a rebuild in the background.
+   *
+   * @return the status of the new rebuild.
+   * @throws IllegalStateException if a rebuild is already running.
+   */
+  BulkReindexStatus start();
+
+  /**
+   * @return the status of the running or last rebuild, or null if there has not been
+   *         one since the service started.
+   */
+  BulkReindexStatus getStatus();
+
+  /**
+   * Stop the running rebuild, leaving the live index as it was.
+   */
+  void cancel();
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.solr;
+
+/**
+ * The progress of a rebuild started by the {@link BulkReindexService}.
+ */
+public interface BulkReindexStatus {
+
+  enum State {
+    SCANNING, REPLAYING, SWAPPING, SUCCEEDED, FAILED
+  }
+
+  State getState();
+
+  /**
+   * @return true if the rebuild has either succeeded or failed.
+   */
+  boolean isDone();
+
+  /**
+   * @return true if the rebuild is writing into a fresh core that will replace the live
+   *         one, false if it is writing into the live core.
+   */
+  boolean isSideBySide();
+
+  /**
+   * @return the number of rows read from storage.
+   */
+  long getScanned();
+
+  /**
+   * @return the number of rows storage reported it would scan, 0 if not yet known.
+   */
+  long getToScan();
+
+  /**
+   * @return the number of documents written.
+   */
+  long getIndexed();
+
+  /**
+   * @return the number of items that could not be indexed.
+   */
+  long getErrors();
+
+  /**
+   * @return the number of changes made during the rebuild that have been replayed into
+   *         it.
+   */
+  long getReplayed();
+
+  /**
+   * @return the time the rebuild started, in ms.
+   */
+  long getStarted();
+
+  /**
+   * @return the time the rebuild finished in ms, or 0 if it is not done.
+   */
+  long getFinished();
+
+  /**
+   * @return the reason the rebuild failed, or null.
+   */
+  String getError();
+}
@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.api.solr;
 
+import java.util.Collection;
+
 /**
  * Allows registration of IndexHandlers against Topics. Implementations should
  * expect calls on the IndexHandler methods for all types of repository.
@@ -52,4 +54,11 @@ public interface TopicIndexer {
 	 */
 	void removeHandler(String topic, IndexingHandler handler);
 
+	/**
+	 * @param topic
+	 *            the event topic.
+	 * @return the handlers registered for the topic, or null if there are none.
+	 */
+	Collection<IndexingHandler> getTopicHandler(String topic);
+
 }
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import org.sakaiproject.nakamura.api.solr.BulkReindexStatus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one bulk reindex, updated by the threads doing the work.
+ */
+class BulkReindexJob implements BulkReindexStatus {
+
+  private final boolean sideBySide;
+  private final long started;
+  private final AtomicLong scanned = new AtomicLong();
+  private final AtomicLong indexed = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private volatile State state = State.SCANNING;
+  private volatile long toScan;
+  private volatile long finished;
+  private volatile String error;
+  private volatile boolean cancelled;
+
+  BulkReindexJob(boolean sideBySide) {
+    this.sideBySide = sideBySide;
+    this.started = System.currentTimeMillis();
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isDone() {
+    return state == State.SUCCEEDED || state == State.FAILED;
+  }
+
+  public boolean isSideBySide() {
+    return sideBySide;
+  }
+
+  public long getScanned() {
+    return scanned.get();
+  }
+
+  public long getToScan() {
+    return toScan;
+  }
+
+  public long getIndexed() {
+    return indexed.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  public long getReplayed() {
+    return replayed.get();
+  }
+
+  public long getStarted() {
+    return started;
+  }
+
+  public long getFinished() {
+    return finished;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return "state=" + state + " scanned=" + scanned + "/" + toScan + " indexed=" + indexed
+        + " errors=" + errors + " replayed=" + replayed;
+  }
+
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  void cancel() {
+    cancelled = true;
+  }
+
+  void setState(State state) {
+    this.state = state;
+  }
+
+  void setToScan(long toScan) {
+    this.toScan = toScan;
+  }
+
+  void addScanned(long n) {
+    scanned.addAndGet(n);
+  }
+
+  void addIndexed(long n) {
+    indexed.addAndGet(n);
+  }
+
+  void addErrors(long n) {
+    errors.addAndGet(n);
+  }
+
+  void addReplayed(long n) {
+    replayed.addAndGet(n);
+  }
+
+  void succeeded() {
+    this.finished = System.currentTimeMillis();
+    this.state = State.SUCCEEDED;
+  }
+
+  void failed(String error) {
+    this.error = error;
+    this.finished = System.currentTimeMillis();
+    this.state = State.FAILED;
+  }
+}
@@ -0,0 +1,510 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Feedback;
+import org.sakaiproject.nakamura.api.lite.MigrateContentService;
+import org.sakaiproject.nakamura.api.lite.PropertyMigrator;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.solr.BulkReindexService;
+import org.sakaiproject.nakamura.api.solr.BulkReindexStatus;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.solr.SolrClient;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.solr.TopicIndexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilds the index by walking storage rather than replaying a refresh event for every
+ * item through the redo log and the single queue thread. The walk is the dry run row
+ * scan of the {@link MigrateContentService}, which hands every row to this class as a
+ * {@link PropertyMigrator}. Rows are batched and run through the topic handlers on a
+ * pool of threads, and the documents added in one request per batch with no commits
+ * until the end. When the embedded client is in use the documents go into a fresh core
+ * that is swapped in at the end, and the changes made while the rebuild ran are kept
+ * in a journal and replayed into the fresh core first. Otherwise the documents go into
+ * the live core, which then keeps the documents of anything deleted before the rebuild.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { BulkReindexService.class, PropertyMigrator.class, EventHandler.class })
+public class BulkReindexer implements BulkReindexService, PropertyMigrator, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkReindexer.class);
+
+  @Property(value = { "org/sakaiproject/nakamura/lite/*" }, propertyPrivate = true)
+  static final String TOPICS = EventConstants.EVENT_TOPIC;
+
+  private static final int DEFAULT_THREADS = 4;
+  @Property(intValue = DEFAULT_THREADS)
+  static final String PROP_THREADS = "bulk-threads";
+
+  private static final int DEFAULT_BATCH_SIZE = 500;
+  @Property(intValue = DEFAULT_BATCH_SIZE)
+  static final String PROP_BATCH_SIZE = "bulk-batch-size";
+
+  private static final int DEFAULT_JOURNAL_SIZE = 500000;
+  /**
+   * The most changes to keep while a rebuild runs. A rebuild that sees more fails, since
+   * it could not be brought up to date.
+   */
+  @Property(intValue = DEFAULT_JOURNAL_SIZE)
+  static final String PROP_JOURNAL_SIZE = "bulk-journal-size";
+
+  static final String CONTENT_TOPIC = StoreListener.TOPIC_BASE + "content/"
+      + StoreListener.UPDATED_TOPIC;
+  static final String AUTHORIZABLE_TOPIC = StoreListener.TOPIC_BASE + "authorizables/"
+      + StoreListener.UPDATED_TOPIC;
+
+  private static final String PATH_FIELD = "_path";
+  private static final String STRUCTURE_UUID_FIELD = "_:cid";
+  private static final String AUTHORIZABLE_ID_FIELD = "id";
+  private static final String AUTHORIZABLE_TYPE_FIELD = "type";
+
+  @Reference
+  protected TopicIndexer topicIndexer;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  @Reference(target = "(client-name=embedded)")
+  protected SolrClient embeddedClient;
+
+  @Reference
+  protected Repository sparseRepository;
+
+  @Reference
+  protected MigrateContentService migrateContentService;
+
+  private int threads;
+  private int batchSize;
+  private int journalSize;
+
+  private BulkReindexJob job;
+
+  /**
+   * Collects rows while the storage scan runs, null otherwise.
+   */
+  private volatile Scan scan;
+
+  /**
+   * Changes seen while a side by side rebuild runs, by zone and path, latest last.
+   */
+  private final Map<String, Event> journal = Maps.newLinkedHashMap();
+  private volatile boolean journaling;
+  private boolean journalOverflow;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    threads = Math.max(1, Utils.toInt(properties.get(PROP_THREADS), DEFAULT_THREADS));
+    batchSize = Math.max(1,
+        Utils.toInt(properties.get(PROP_BATCH_SIZE), DEFAULT_BATCH_SIZE));
+    journalSize = Utils.toInt(properties.get(PROP_JOURNAL_SIZE), DEFAULT_JOURNAL_SIZE);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    cancel();
+  }
+
+  public synchronized BulkReindexStatus start() {
+    if (job != null && !job.isDone()) {
+      throw new IllegalStateException("A bulk reindex is already running");
+    }
+    final BulkReindexJob newJob = new BulkReindexJob(getSideBySideClient() != null);
+    job = newJob;
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        runJob(newJob);
+      }
+    }, "BulkReindex");
+    thread.setDaemon(true);
+    thread.start();
+    return newJob;
+  }
+
+  public synchronized BulkReindexStatus getStatus() {
+    return job;
+  }
+
+  public synchronized void cancel() {
+    if (job != null && !job.isDone()) {
+      job.cancel();
+    }
+  }
+
+  /**
+   * {@inheritDoc} Hands each row to the running rebuild, never changes it.
+   *
+   * @see org.sakaiproject.nakamura.api.lite.PropertyMigrator#migrate(java.lang.String,
+   *      java.util.Map)
+   */
+  public boolean migrate(String rowID, Map<String, Object> properties) {
+    Scan s = scan;
+    if (s != null) {
+      s.add(properties);
+    }
+    return false;
+  }
+
+  public String[] getDependencies() {
+    return new String[0];
+  }
+
+  public String getName() {
+    return BulkReindexer.class.getName();
+  }
+
+  public Map<String, String> getOptions() {
+    return ImmutableMap.of(PropertyMigrator.OPTION_RUNONCE, "false");
+  }
+
+  /**
+   * Keep changes made while a side by side rebuild runs so they can be replayed into it.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    if (!journaling) {
+      return;
+    }
+    String path = (String) event.getProperty(IndexingHandler.FIELD_PATH);
+    Collection<IndexingHandler> handlers = topicIndexer.getTopicHandler(event.getTopic());
+    if (path == null || handlers == null || handlers.isEmpty()) {
+      return;
+    }
+    String topic = event.getTopic();
+    String key = topic.substring(0, topic.lastIndexOf('/') + 1) + path;
+    synchronized (journal) {
+      if (journal.remove(key) == null && journal.size() >= journalSize) {
+        journalOverflow = true;
+        return;
+      }
+      journal.put(key, event);
+    }
+  }
+
+  private void runJob(BulkReindexJob job) {
+    LOGGER.info("Starting bulk reindex, side by side {} ", job.isSideBySide());
+    EmbeddedSolrClient embedded = job.isSideBySide() ? getSideBySideClient() : null;
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 2),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    boolean swapped = false;
+    try {
+      SolrServer target;
+      if (embedded != null) {
+        target = embedded.openRebuildCore();
+        synchronized (journal) {
+          journal.clear();
+          journalOverflow = false;
+        }
+        journaling = true;
+      } else {
+        target = solrServerService.getUpdateServer();
+      }
+
+      scan = new Scan(job, target, workers);
+      try {
+        migrateContentService.migrate(true, Integer.MAX_VALUE, false, getFeedback(job));
+      } finally {
+        Scan lastScan = scan;
+        scan = null;
+        lastScan.flush();
+      }
+      workers.shutdown();
+      while (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+        LOGGER.info("Bulk reindex waiting for the last batches, {} ", job);
+      }
+      checkCancelled(job);
+
+      if (embedded != null) {
+        job.setState(BulkReindexStatus.State.REPLAYING);
+        while (replay(job, target) > 0) {
+          checkCancelled(job);
+        }
+        job.setState(BulkReindexStatus.State.SWAPPING);
+        target.commit();
+        embedded.swapRebuildCore();
+        swapped = true;
+        // anything seen since the last replay may have gone to the old core, so
+        // send it to the new one.
+        journaling = false;
+        SolrServer live = solrServerService.getUpdateServer();
+        if (replay(job, live) > 0) {
+          live.commit();
+        }
+      } else {
+        target.commit();
+      }
+      job.succeeded();
+      LOGGER.info("Bulk reindex finished in {}s, {} ",
+          (job.getFinished() - job.getStarted()) / 1000, job);
+    } catch (Exception e) {
+      LOGGER.error("Bulk reindex failed, " + job, e);
+      job.failed(e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+    } finally {
+      scan = null;
+      journaling = false;
+      workers.shutdownNow();
+      synchronized (journal) {
+        journal.clear();
+      }
+      if (embedded != null && !swapped) {
+        embedded.discardRebuildCore();
+      }
+    }
+  }
+
+  /**
+   * Replay the changes journaled since the last replay.
+   *
+   * @return the number of changes replayed.
+   */
+  private int replay(BulkReindexJob job, SolrServer target) throws Exception {
+    List<Event> events;
+    synchronized (journal) {
+      if (journalOverflow) {
+        throw new IllegalStateException("More than " + journalSize
+            + " changes were made during the rebuild, it can't be brought up to date");
+      }
+      events = Lists.newArrayList(journal.values());
+      journal.clear();
+    }
+    for (int i = 0; i < events.size(); i += batchSize) {
+      index(job, target, events.subList(i, Math.min(events.size(), i + batchSize)), true);
+    }
+    job.addReplayed(events.size());
+    return events.size();
+  }
+
+  /**
+   * Run a batch of events through the topic handlers and add the documents in one
+   * request.
+   *
+   * @param deletes
+   *          true if the delete queries of the handlers should be run too, which a scan
+   *          doesn't need.
+   */
+  private void index(BulkReindexJob job, SolrServer target, List<Event> events,
+      boolean deletes) throws Exception {
+    RepositorySession repositorySession = getRepositorySession();
+    try {
+      List<SolrInputDocument> docs = Lists.newArrayList();
+      for (Event event : events) {
+        Collection<IndexingHandler> handlers = topicIndexer.getTopicHandler(event
+            .getTopic());
+        if (handlers == null) {
+          continue;
+        }
+        for (IndexingHandler handler : handlers) {
+          try {
+            if (deletes) {
+              Collection<String> deleteQueries = handler.getDeleteQueries(
+                  repositorySession, event);
+              if (deleteQueries != null) {
+                for (String deleteQuery : deleteQueries) {
+                  target.deleteByQuery(deleteQuery);
+                }
+              }
+            }
+            Collection<SolrInputDocument> handlerDocs = handler.getDocuments(
+                repositorySession, event);
+            if (handlerDocs != null) {
+              docs.addAll(handlerDocs);
+            }
+          } catch (Exception e) {
+            job.addErrors(1);
+            LOGGER.warn("{} failed to index {} cause: {} ", new Object[] { handler,
+                event.getProperty(IndexingHandler.FIELD_PATH), e.getMessage() });
+          }
+        }
+      }
+      if (docs.size() > 0) {
+        target.add(docs);
+        job.addIndexed(docs.size());
+      }
+    } finally {
+      repositorySession.logout();
+    }
+  }
+
+  private void checkCancelled(BulkReindexJob job) {
+    if (job.isCancelled()) {
+      throw new IllegalStateException("Cancelled");
+    }
+  }
+
+  /**
+   * @return the embedded client if it is the one in use, null otherwise.
+   */
+  private EmbeddedSolrClient getSideBySideClient() {
+    if (embeddedClient instanceof EmbeddedSolrClient
+        && embeddedClient.getUpdateServer() != null
+        && embeddedClient.getUpdateServer() == solrServerService.getUpdateServer()) {
+      return (EmbeddedSolrClient) embeddedClient;
+    }
+    return null;
+  }
+
+  private Feedback getFeedback(final BulkReindexJob job) {
+    return new Feedback() {
+      public void log(String format, Object... params) {
+        LOGGER.debug(format, params);
+      }
+
+      public void exception(Throwable e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+
+      public void newLogFile(File currentFile) {
+        LOGGER.debug("Storage scan log {} ", currentFile);
+      }
+
+      public void progress(boolean dryRun, long done, long toDo) {
+        job.setToScan(toDo);
+        LOGGER.info("Bulk reindex {} ", job);
+      }
+    };
+  }
+
+  private RepositorySession getRepositorySession() throws Exception {
+    final org.sakaiproject.nakamura.api.lite.Session sparseSession = sparseRepository
+        .loginAdministrative();
+    return new RepositorySession() {
+      @SuppressWarnings("unchecked")
+      public <T> T adaptTo(Class<T> c) {
+        if (c.equals(org.sakaiproject.nakamura.api.lite.Session.class)) {
+          return (T) sparseSession;
+        }
+        return null;
+      }
+
+      public void logout() {
+        try {
+          sparseSession.logout();
+        } catch (Exception e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Turns the rows of the storage scan into batches of update events for the workers.
+   */
+  private class Scan {
+    private final BulkReindexJob job;
+    private final SolrServer target;
+    private final ThreadPoolExecutor workers;
+    private List<Event> batch = Lists.newArrayList();
+
+    Scan(BulkReindexJob job, SolrServer target, ThreadPoolExecutor workers) {
+      this.job = job;
+      this.target = target;
+      this.workers = workers;
+    }
+
+    synchronized void add(Map<String, Object> properties) {
+      if (job.isCancelled()) {
+        return;
+      }
+      job.addScanned(1);
+      Event event = toEvent(properties);
+      if (event != null) {
+        batch.add(event);
+        if (batch.size() >= batchSize) {
+          flush();
+        }
+      }
+    }
+
+    synchronized void flush() {
+      if (batch.isEmpty() || job.isCancelled()) {
+        return;
+      }
+      final List<Event> events = batch;
+      batch = Lists.newArrayList();
+      workers.execute(new Runnable() {
+        public void run() {
+          try {
+            index(job, target, events, false);
+          } catch (Exception e) {
+            job.addErrors(events.size());
+            LOGGER.warn("Failed to index a batch of {} cause: {} ", events.size(),
+                e.getMessage());
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the update event that would have been sent for a content or authorizable
+   *         row, or null for any other row.
+   */
+  static Event toEvent(Map<String, Object> properties) {
+    Dictionary<String, Object> eventProperties = new Hashtable<String, Object>();
+    Object path = properties.get(PATH_FIELD);
+    if (path != null) {
+      if (properties.containsKey(STRUCTURE_UUID_FIELD)) {
+        return null;
+      }
+      eventProperties.put(IndexingHandler.FIELD_PATH, path);
+      Object resourceType = properties.get(SparseIndexingServiceImpl.SLING_RESOURCE_TYPE);
+      if (resourceType != null) {
+        eventProperties.put("resourceType", resourceType);
+      }
+      return new Event(CONTENT_TOPIC, eventProperties);
+    }
+    Object type = properties.get(AUTHORIZABLE_TYPE_FIELD);
+    Object id = properties.get(AUTHORIZABLE_ID_FIELD);
+    if (id != null && ("u".equals(type) || "g".equals(type))) {
+      eventProperties.put(IndexingHandler.FIELD_PATH, id);
+      return new Event(AUTHORIZABLE_TOPIC, eventProperties);
+    }
+    return null;
+  }
+}
@@ -29,6 +29,7 @@ import java.util.Hashtable;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -67,6 +68,18 @@ public class EmbeddedSolrClient implements SolrClient {
 	private static final String LOGGER_KEY = "org.sakaiproject.nakamura.logger";
 	private static final String LOGGER_VAL = "org.apache.solr";
   public static final String NAKAMURA = "nakamura";
+  /**
+   * The name of the core a bulk reindex writes into before it is swapped in.
+   */
+  public static final String REBUILD = "nakamura-rebuild";
+  /**
+   * The live core alternates between these directories, one bulk reindex to the next.
+   */
+  private static final String[] CORE_DIRS = { NAKAMURA, NAKAMURA + "-alt" };
+  /**
+   * Names which of the core directories is live.
+   */
+  private static final String ACTIVE_CORE_FILE = "nakamura.core";
   /**
 	 * According to the doc, this is thread safe and must be shared between all
 	 * threads.
@@ -75,6 +88,11 @@ public class EmbeddedSolrClient implements SolrClient {
 	private String solrHome;
 	private CoreContainer coreContainer;
 	private SolrCore nakamuraCore;
+	private File coreDir;
+	private SolrConfig config;
+	private IndexSchema schema;
+	private SolrCore rebuildCore;
+	private File rebuildCoreDir;
 
 	@Property(value = "solrconfig.xml")
 	private static final String PROP_SOLR_CONFIG = "solrconfig";
@@ -134,7 +152,7 @@ public class EmbeddedSolrClient implements SolrClient {
 
 		System.setProperty("solr.solr.home", solrHome);
 		File solrHomeFile = new File(solrHome);
-		File coreDir = new File(solrHomeFile, NAKAMURA);
+		coreDir = getActiveCoreDir(solrHomeFile);
 		File coreConfigDir = new File(solrHomeFile,"config");
 		ClassLoader contextClassloader = Thread.currentThread()
 				.getContextClassLoader();
@@ -150,9 +168,9 @@ public class EmbeddedSolrClient implements SolrClient {
 			schemaSource = new ClosableInputSource(getSource(schemaLocation, coreConfigDir));
 			LOGGER.info("Configuring with Config {} schema {} ",
 					configLocation, schemaLocation);
-			SolrConfig config = new NakamuraSolrConfig(loader, configLocation,
+			config = new NakamuraSolrConfig(loader, configLocation,
 					configSource);
-			IndexSchema schema = new IndexSchema(config, schemaLocation,
+			schema = new IndexSchema(config, schemaLocation,
 					schemaSource);
 			CoreDescriptor coreDescriptor = new CoreDescriptor(coreContainer,
          NAKAMURA, coreDir.getAbsolutePath() + NAKAMURA);
@@ -173,6 +191,88 @@ public class EmbeddedSolrClient implements SolrClient {
 
 	}
 
+	/**
+	 * Open an empty core alongside the live one for a bulk reindex to write into,
+	 * discarding any left by an earlier reindex that did not finish.
+	 * 
+	 * @return a server that writes to the new core.
+	 */
+	public synchronized SolrServer openRebuildCore() throws IOException {
+		if (!enabled) {
+			throw new IllegalStateException("Embedded Solr is not enabled");
+		}
+		discardRebuildCore();
+		File solrHomeFile = new File(solrHome);
+		rebuildCoreDir = new File(solrHomeFile, CORE_DIRS[0]);
+		if (rebuildCoreDir.equals(coreDir)) {
+			rebuildCoreDir = new File(solrHomeFile, CORE_DIRS[1]);
+		}
+		FileUtils.deleteDirectory(rebuildCoreDir);
+		ClassLoader contextClassloader = Thread.currentThread()
+				.getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(
+				this.getClass().getClassLoader());
+		try {
+			CoreDescriptor coreDescriptor = new CoreDescriptor(coreContainer,
+					REBUILD, rebuildCoreDir.getAbsolutePath());
+			rebuildCore = new SolrCore(REBUILD, rebuildCoreDir.getAbsolutePath(),
+					config, schema, coreDescriptor);
+			coreContainer.register(REBUILD, rebuildCore, false);
+		} finally {
+			Thread.currentThread().setContextClassLoader(contextClassloader);
+		}
+		LOGGER.info("Opened rebuild core in {} ", rebuildCoreDir);
+		return new EmbeddedSolrServer(coreContainer, REBUILD);
+	}
+
+	/**
+	 * Make the rebuild core the live core, and close the old live core. The rebuild core
+	 * should have been committed.
+	 */
+	public synchronized void swapRebuildCore() throws IOException {
+		if (rebuildCore == null) {
+			throw new IllegalStateException("No rebuild core is open");
+		}
+		coreContainer.swap(NAKAMURA, REBUILD);
+		SolrCore oldCore = coreContainer.remove(REBUILD);
+		nakamuraCore = rebuildCore;
+		coreDir = rebuildCoreDir;
+		rebuildCore = null;
+		rebuildCoreDir = null;
+		FileUtils.writeStringToFile(new File(solrHome, ACTIVE_CORE_FILE),
+				coreDir.getName(), "UTF-8");
+		if (oldCore != null) {
+			oldCore.close();
+		}
+		LOGGER.info("Swapped in rebuilt core from {} ", coreDir);
+	}
+
+	/**
+	 * Close the rebuild core without using it.
+	 */
+	public synchronized void discardRebuildCore() {
+		if (rebuildCore != null) {
+			coreContainer.remove(REBUILD);
+			rebuildCore.close();
+			rebuildCore = null;
+			LOGGER.info("Discarded rebuild core in {} ", rebuildCoreDir);
+		}
+	}
+
+	private File getActiveCoreDir(File solrHomeFile) throws IOException {
+		File activeCoreFile = new File(solrHomeFile, ACTIVE_CORE_FILE);
+		if (activeCoreFile.exists()) {
+			String name = FileUtils.readFileToString(activeCoreFile, "UTF-8").trim();
+			for (String coreDirName : CORE_DIRS) {
+				if (coreDirName.equals(name)) {
+					return new File(solrHomeFile, name);
+				}
+			}
+			LOGGER.warn("Ignoring unknown core {} named in {} ", name, activeCoreFile);
+		}
+		return new File(solrHomeFile, NAKAMURA);
+	}
+
 	private void safeClose(ClosableInputSource source) {
 		if (source != null) {
 			try {
@@ -284,6 +384,7 @@ public class EmbeddedSolrClient implements SolrClient {
 		if (!enabled) {
 			return;
 		}
+		discardRebuildCore();
 		nakamuraCore.close();
 		coreContainer.shutdown();
 		enabled = false;
@@ -21,24 +21,22 @@ import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ConcurrentLRUCache;
+import org.apache.solr.common.util.NamedList;
 
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.io.IOException;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.CachingWrapperFilter;
 import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.DocIdSet;
-import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.OpenBitSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -168,6 +166,14 @@ import com.google.common.collect.ImmutableSet;
  * deletions into account anyway, so there's no harm in our filter being willing to accept
  * a document that it will never see in practice.
  * </p>
+ *
+ * <p>
+ * The filter for a new list of readers is built from a {@link PrincipalDocIdSetCache}
+ * holding the documents of each individual principal per segment, so a user who shares
+ * groups with users who have already searched only pays for the principals that are new.
+ * The memory held by that cache is set with the <code>principalCacheBytes</code> init
+ * parameter of the search component.
+ * </p>
  */
 public class NakamuraQueryComponent extends QueryComponent {
 
@@ -177,12 +183,53 @@ public class NakamuraQueryComponent extends QueryComponent {
 
   private final ConcurrentLRUCache<String, Query> filterCache;
 
+  static final String PRINCIPAL_CACHE_BYTES = "principalCacheBytes";
+  static final long DEFAULT_PRINCIPAL_CACHE_BYTES = 64L * 1024L * 1024L;
+
+  private volatile PrincipalDocIdSetCache principalSets;
+
   // used for unit testing because part of the call chain can't be mocked in
   // prepare(ResponseBuilder)
   boolean testing;
 
   public NakamuraQueryComponent() {
     filterCache = new ConcurrentLRUCache<String, Query>(16384, 512);
+    principalSets = new PrincipalDocIdSetCache("readers", DEFAULT_PRINCIPAL_CACHE_BYTES);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.solr.handler.component.SearchComponent#init(org.apache.solr.common.util.NamedList)
+   */
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args) {
+    super.init(args);
+    Object maxBytes = args == null ? null : args.get(PRINCIPAL_CACHE_BYTES);
+    if (maxBytes != null) {
+      principalSets = new PrincipalDocIdSetCache("readers", Long.parseLong(String
+          .valueOf(maxBytes)));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.solr.handler.component.SearchComponent#getStatistics()
+   */
+  @Override
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public NamedList getStatistics() {
+    NamedList stats = super.getStatistics();
+    if (stats == null) {
+      stats = new NamedList();
+    }
+    for (Entry<String, Long> stat : principalSets.getStatistics().entrySet()) {
+      stats.add(stat.getKey(), stat.getValue());
+    }
+    stats.add("readerFilters", filterCache.size());
+    return stats;
   }
 
   private ConstantScoreQuery buildFilterForPrincipals(final String[] principals) {
@@ -191,27 +238,14 @@ public class NakamuraQueryComponent extends QueryComponent {
         long start = System.currentTimeMillis();
 
         IndexReader rdr = context.reader;
-        OpenBitSet bits = new OpenBitSet(rdr.maxDoc());
-
-        for (String principal : principals) {
-          try {
-            DocsEnum td = rdr.termDocsEnum(null, "readers",
-                new BytesRef(principal.trim()));
-
-            if (td == null) {
-              continue;
-            }
-
-            while (td.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-              bits.set(td.docID());
-            }
-
-          } catch (IOException e) {
-            return null;
-          }
+        DocIdSet bits;
+        try {
+          bits = principalSets.getDocIdSet(rdr, principals);
+        } catch (IOException e) {
+          return null;
         }
 
-        LOGGER.info("\n\nBuilding {}-bit filter for segment [{}] took: {} msecs",
+        LOGGER.debug("Building {}-bit filter for segment [{}] took: {} msecs",
             new Object[] { rdr.maxDoc(), rdr, (System.currentTimeMillis() - start) });
 
         return bits;
@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.SortedVIntList;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Caches, per index segment, the documents each individual principal may read. Rare
+ * principals (a user, a small group) are held as a compressed list of doc ids, common ones
+ * (everyone, large groups) as a bit set. The filter for a list of principals is the OR of
+ * the cached sets, so users who share most of their groups share most of the work.
+ *
+ * The cache is bounded by an estimate of the memory held and evicts the least recently
+ * used sets. Segments are held weakly, the sets of a segment that has been merged away
+ * are dropped as soon as the segment is collected.
+ */
+public class PrincipalDocIdSetCache {
+
+  /**
+   * Below this fraction of maxDoc set a principal is held as a compressed list. A
+   * compressed doc id takes between one and two bytes against one bit per document for a
+   * bit set.
+   */
+  private static final int SPARSE_RATIO = 16;
+
+  /**
+   * Estimated bytes held by each entry apart from its doc ids.
+   */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private final String field;
+  private final long maxBytes;
+  private final ReferenceQueue<Object> collectedSegments = new ReferenceQueue<Object>();
+  private final LinkedHashMap<SegmentPrincipal, CachedSet> cache = new LinkedHashMap<SegmentPrincipal, CachedSet>(
+      1024, 0.75f, true);
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param field
+   *          the indexed field holding the principals.
+   * @param maxBytes
+   *          the memory budget for the cached sets.
+   */
+  public PrincipalDocIdSetCache(String field, long maxBytes) {
+    this.field = field;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get the documents in a segment readable by any of a list of principals.
+   *
+   * @param reader
+   *          the reader of a single segment.
+   * @param principals
+   *          the principals.
+   * @return the union of the documents readable by the principals.
+   * @throws IOException
+   */
+  public DocIdSet getDocIdSet(IndexReader reader, String[] principals) throws IOException {
+    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    for (String principal : principals) {
+      DocIdSet set = getDocIdSet(reader, principal.trim());
+      if (set instanceof OpenBitSet) {
+        bits.union((OpenBitSet) set);
+      } else if (set != null) {
+        DocIdSetIterator it = set.iterator();
+        for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+          bits.fastSet(doc);
+        }
+      }
+    }
+    return bits;
+  }
+
+  /**
+   * @return the documents in a segment readable by a principal, null if there are none.
+   * @throws IOException
+   */
+  DocIdSet getDocIdSet(IndexReader reader, String principal) throws IOException {
+    Object coreKey = reader.getCoreCacheKey();
+    SegmentPrincipal key = new SegmentPrincipal(coreKey, principal, null);
+    synchronized (cache) {
+      purgeCollected();
+      CachedSet cached = cache.get(key);
+      if (cached != null) {
+        hits++;
+        return cached.set;
+      }
+      misses++;
+    }
+    // build outside the lock, two threads may build the same set but that is harmless.
+    CachedSet built = build(reader, principal);
+    synchronized (cache) {
+      CachedSet previous = cache.put(new SegmentPrincipal(coreKey, principal,
+          collectedSegments), built);
+      if (previous != null) {
+        bytes -= previous.bytes;
+      }
+      bytes += built.bytes;
+      evict();
+    }
+    return built.set;
+  }
+
+  private CachedSet build(IndexReader reader, String principal) throws IOException {
+    int maxDoc = reader.maxDoc();
+    DocsEnum td = reader.termDocsEnum(null, field, new BytesRef(principal));
+    if (td == null) {
+      return new CachedSet(null, ENTRY_OVERHEAD);
+    }
+    int sparseLimit = maxDoc / SPARSE_RATIO;
+    int[] docs = new int[Math.min(64, Math.max(1, sparseLimit))];
+    int count = 0;
+    OpenBitSet bits = null;
+    for (int doc = td.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = td.nextDoc()) {
+      if (bits != null) {
+        bits.fastSet(doc);
+      } else if (count < sparseLimit) {
+        if (count == docs.length) {
+          docs = Arrays.copyOf(docs, Math.min(sparseLimit, docs.length << 1));
+        }
+        docs[count++] = doc;
+      } else {
+        // too common to be worth compressing, switch to a bit set.
+        bits = new OpenBitSet(maxDoc);
+        for (int i = 0; i < count; i++) {
+          bits.fastSet(docs[i]);
+        }
+        bits.fastSet(doc);
+      }
+    }
+    if (bits != null) {
+      return new CachedSet(bits, ENTRY_OVERHEAD + bits.getNumWords() * 8L);
+    }
+    if (count == 0) {
+      return new CachedSet(null, ENTRY_OVERHEAD);
+    }
+    SortedVIntList list = new SortedVIntList(docs, count);
+    return new CachedSet(list, ENTRY_OVERHEAD + list.getByteSize());
+  }
+
+  /**
+   * Drop the sets of segments that have been collected. Must hold the cache lock.
+   */
+  private void purgeCollected() {
+    if (collectedSegments.poll() == null) {
+      return;
+    }
+    while (collectedSegments.poll() != null) {
+      // drain, the scan below removes every collected entry.
+    }
+    for (Iterator<Entry<SegmentPrincipal, CachedSet>> i = cache.entrySet().iterator(); i
+        .hasNext();) {
+      Entry<SegmentPrincipal, CachedSet> e = i.next();
+      if (e.getKey().get() == null) {
+        bytes -= e.getValue().bytes;
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Evict least recently used sets until within budget. Must hold the cache lock.
+   */
+  private void evict() {
+    for (Iterator<CachedSet> i = cache.values().iterator(); bytes > maxBytes && i.hasNext();) {
+      CachedSet eldest = i.next();
+      bytes -= eldest.bytes;
+      evictions++;
+      i.remove();
+    }
+  }
+
+  /**
+   * @return the cache statistics, by name.
+   */
+  public Map<String, Long> getStatistics() {
+    Map<String, Long> stats = new LinkedHashMap<String, Long>();
+    synchronized (cache) {
+      stats.put("principalSetHits", hits);
+      stats.put("principalSetMisses", misses);
+      stats.put("principalSetEvictions", evictions);
+      stats.put("principalSetSize", (long) cache.size());
+      stats.put("principalSetBytes", bytes);
+    }
+    return stats;
+  }
+
+  /**
+   * A principal within a segment, the segment is held weakly and compared by identity.
+   */
+  private static class SegmentPrincipal extends WeakReference<Object> {
+    private final String principal;
+    private final int hash;
+
+    SegmentPrincipal(Object coreKey, String principal, ReferenceQueue<Object> queue) {
+      super(coreKey, queue);
+      this.principal = principal;
+      this.hash = System.identityHashCode(coreKey) * 31 + principal.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof SegmentPrincipal)) {
+        return false;
+      }
+      SegmentPrincipal other = (SegmentPrincipal) obj;
+      Object coreKey = get();
+      return coreKey != null && coreKey == other.get() && principal.equals(other.principal);
+    }
+  }
+
+  private static class CachedSet {
+    private final DocIdSet set;
+    private final long bytes;
+
+    CachedSet(DocIdSet set, long bytes) {
+      this.set = set;
+      this.bytes = bytes;
+    }
+  }
+}
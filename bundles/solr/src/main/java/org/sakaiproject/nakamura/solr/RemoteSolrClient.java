@@ -19,7 +19,9 @@ package org.sakaiproject.nakamura.solr;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -76,6 +78,26 @@ public class RemoteSolrClient implements SolrClient {
 	@Property(intValue = 10)
 	private static final String PROP_THREAD_COUNT = "indexer.thread.count";
 
+	/**
+	 * Urls of read replicas of the remote server. When set, queries are balanced over the
+	 * replicas and updates still go to remoteurl.
+	 */
+	@Property(value = {}, cardinality = Integer.MAX_VALUE)
+	private static final String PROP_QUERY_REPLICAS = "query.replicas";
+
+	/**
+	 * Percentile of recent query times after which a slow query is also sent to a second
+	 * replica, 0 to disable.
+	 */
+	@Property(intValue = 0)
+	private static final String PROP_HEDGE_PERCENTILE = "query.hedge.percentile";
+
+	/**
+	 * Seconds between checks of replicas that have been taken out of rotation.
+	 */
+	@Property(intValue = 10)
+	private static final String PROP_HEALTH_CHECK_INTERVAL = "query.health.check.interval";
+
 	private static final Logger LOGGER = LoggerFactory.getLogger(RemoteSolrClient.class);
 
 	private ThreadLocal<SolrServer> updateServer = new ThreadLocal<SolrServer>();
@@ -113,6 +135,29 @@ public class RemoteSolrClient implements SolrClient {
 		
 		String url = Utils.toString(properties.get(PROP_SOLR_URL),
 				"http://localhost:8983/solr");
+		SolrServer master = createStreamingServer(url);
+		List<String> replicaUrls = new ArrayList<String>();
+		for (String replicaUrl : Utils.toStringArray(
+				properties.get(PROP_QUERY_REPLICAS), new String[0])) {
+			if (replicaUrl != null && replicaUrl.trim().length() > 0) {
+				replicaUrls.add(replicaUrl.trim());
+			}
+		}
+		if (replicaUrls.isEmpty()) {
+			return master;
+		}
+		SolrServer[] replicas = new SolrServer[replicaUrls.size()];
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i] = createHttpServer(replicaUrls.get(i));
+		}
+		LOGGER.info("Balancing Solr queries over replicas {} ", replicaUrls);
+		return new ReplicaQuerySolrServer(master,
+				replicaUrls.toArray(new String[replicas.length]), replicas,
+				Utils.toInt(properties.get(PROP_HEDGE_PERCENTILE), 0),
+				Utils.toInt(properties.get(PROP_HEALTH_CHECK_INTERVAL), 10));
+	}
+
+	private SolrServer createStreamingServer(String url) throws MalformedURLException {
 		StreamingUpdateSolrServer server = new StreamingUpdateSolrServer(url, Utils.toInt(
 				properties.get(PROP_QUEUE_SIZE), 100), Utils.toInt(
 				properties.get(PROP_THREAD_COUNT), 10));
@@ -150,6 +195,10 @@ public class RemoteSolrClient implements SolrClient {
 		
 		String url = Utils.toString(properties.get(PROP_SOLR_URL),
 				"http://localhost:8983/solr");
+		return createHttpServer(url);
+	}
+
+	private SolrServer createHttpServer(String url) throws MalformedURLException {
 		CommonsHttpSolrServer server = new CommonsHttpSolrServer(url);
 		server.setSoTimeout(Utils.toInt(properties.get(PROP_SO_TIMEOUT),
 				1000)); // socket
@@ -192,6 +241,9 @@ public class RemoteSolrClient implements SolrClient {
 			return;
 		}
 		enabled = false;
+		if ( queryServer instanceof ReplicaQuerySolrServer ) {
+			((ReplicaQuerySolrServer) queryServer).shutdown();
+		}
 		if ( listener != null ) {
 			listener.disabled();
 		}
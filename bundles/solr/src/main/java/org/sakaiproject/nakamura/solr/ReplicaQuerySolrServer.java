@@ -0,0 +1,350 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends queries to a set of read replicas and everything else to the master. Each query
+ * goes to the healthy replica with the fewest requests in flight. A replica that fails
+ * with an IO error is taken out of rotation and the query is retried on the next one,
+ * falling back to the master when none are left. Replicas out of rotation are pinged in
+ * the background and put back once they answer.
+ *
+ * Optionally a query that has not answered within a percentile of recent query times is
+ * sent to a second replica and the first answer is used.
+ */
+public class ReplicaQuerySolrServer extends SolrServer {
+
+  private static final long serialVersionUID = -2284711326018817437L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaQuerySolrServer.class);
+
+  /**
+   * Number of recent query times used to compute the hedge delay.
+   */
+  private static final int LATENCY_SAMPLES = 256;
+
+  /**
+   * No hedging until this many query times have been seen.
+   */
+  private static final int MIN_LATENCY_SAMPLES = 32;
+
+  private final SolrServer master;
+  private final List<Replica> replicas;
+  private final int hedgePercentile;
+  private final long[] latencies = new long[LATENCY_SAMPLES];
+  private int latencyCount;
+  private transient ExecutorService hedgeExecutor;
+  private transient ScheduledExecutorService healthCheck;
+
+  /**
+   * @param master
+   *          receives updates, and queries when no replica is available.
+   * @param replicaUrls
+   *          names of the replicas, for logging.
+   * @param replicaServers
+   *          the replicas, in the same order as the names.
+   * @param hedgePercentile
+   *          the percentile of recent query times after which a query is also sent to a
+   *          second replica, 0 to disable.
+   * @param healthCheckSeconds
+   *          the interval at which replicas out of rotation are checked, 0 to disable.
+   */
+  public ReplicaQuerySolrServer(SolrServer master, String[] replicaUrls,
+      SolrServer[] replicaServers, int hedgePercentile, int healthCheckSeconds) {
+    this.master = master;
+    this.replicas = new ArrayList<Replica>(replicaServers.length);
+    for (int i = 0; i < replicaServers.length; i++) {
+      replicas.add(new Replica(replicaUrls[i], replicaServers[i]));
+    }
+    this.hedgePercentile = Math.max(0, Math.min(99, hedgePercentile));
+    if (this.hedgePercentile > 0 && replicas.size() > 1) {
+      hedgeExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory(
+          "solr-hedged-query"));
+    }
+    if (healthCheckSeconds > 0) {
+      healthCheck = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+          "solr-replica-health"));
+      healthCheck.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          checkReplicas();
+        }
+      }, healthCheckSeconds, healthCheckSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.solr.client.solrj.SolrServer#request(org.apache.solr.client.solrj.SolrRequest)
+   */
+  @Override
+  public NamedList<Object> request(final SolrRequest request) throws SolrServerException,
+      IOException {
+    String path = request.getPath();
+    if (path != null && path.startsWith("/update")) {
+      return master.request(request);
+    }
+    long start = System.currentTimeMillis();
+    NamedList<Object> response;
+    if (hedgeExecutor != null) {
+      response = hedgedRequest(request);
+    } else {
+      response = failoverRequest(request, null);
+    }
+    recordLatency(System.currentTimeMillis() - start);
+    return response;
+  }
+
+  /**
+   * Try the healthy replicas in order of load, then the master.
+   */
+  private NamedList<Object> failoverRequest(SolrRequest request, Replica exclude)
+      throws SolrServerException, IOException {
+    Replica replica = select(exclude);
+    while (replica != null) {
+      try {
+        return replica.request(request);
+      } catch (SolrServerException e) {
+        markDown(replica, e);
+      } catch (IOException e) {
+        markDown(replica, e);
+      }
+      replica = select(exclude);
+    }
+    return master.request(request);
+  }
+
+  /**
+   * Send to the least loaded replica, and to a second one if the first has not answered
+   * by the hedge delay. The first successful answer wins.
+   */
+  private NamedList<Object> hedgedRequest(final SolrRequest request)
+      throws SolrServerException, IOException {
+    final Replica primary = select(null);
+    if (primary == null) {
+      return master.request(request);
+    }
+    long delay = getHedgeDelay();
+    if (delay < 0) {
+      return failoverRequest(request, null);
+    }
+    CompletionService<NamedList<Object>> completion = new ExecutorCompletionService<NamedList<Object>>(
+        hedgeExecutor);
+    List<Future<NamedList<Object>>> futures = new ArrayList<Future<NamedList<Object>>>(2);
+    try {
+      futures.add(completion.submit(replicaCall(primary, request)));
+      Future<NamedList<Object>> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+      int pending = 1;
+      if (done == null) {
+        Replica secondary = select(primary);
+        if (secondary != null) {
+          LOGGER.debug("Hedging query to {} after {} ms", secondary.name, delay);
+          futures.add(completion.submit(replicaCall(secondary, request)));
+          pending++;
+        }
+      }
+      while (pending > 0) {
+        if (done == null) {
+          done = completion.take();
+        }
+        pending--;
+        try {
+          return done.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof RuntimeException) {
+            // a query error, the next replica would fail the same way.
+            throw (RuntimeException) e.getCause();
+          }
+          LOGGER.debug("Replica query failed {} ", e.getCause().getMessage());
+        }
+        done = null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrServerException(e);
+    } finally {
+      for (Future<NamedList<Object>> f : futures) {
+        f.cancel(true);
+      }
+    }
+    // both failed and have been marked down, carry on with whatever is left.
+    return failoverRequest(request, null);
+  }
+
+  private Callable<NamedList<Object>> replicaCall(final Replica replica,
+      final SolrRequest request) {
+    return new Callable<NamedList<Object>>() {
+      public NamedList<Object> call() throws Exception {
+        try {
+          return replica.request(request);
+        } catch (SolrServerException e) {
+          markDown(replica, e);
+          throw e;
+        } catch (IOException e) {
+          markDown(replica, e);
+          throw e;
+        }
+      }
+    };
+  }
+
+  /**
+   * @return the healthy replica with the fewest requests in flight, or null.
+   */
+  Replica select(Replica exclude) {
+    Replica best = null;
+    int bestLoad = Integer.MAX_VALUE;
+    for (Replica replica : replicas) {
+      if (replica.healthy && replica != exclude) {
+        int load = replica.outstanding.get();
+        if (load < bestLoad) {
+          best = replica;
+          bestLoad = load;
+        }
+      }
+    }
+    return best;
+  }
+
+  private void markDown(Replica replica, Exception e) {
+    if (replica.healthy) {
+      LOGGER.warn("Taking Solr replica {} out of rotation: {} ", replica.name, e.getMessage());
+      replica.healthy = false;
+    }
+  }
+
+  /**
+   * Ping the replicas that are out of rotation and put back those that answer.
+   */
+  void checkReplicas() {
+    for (Replica replica : replicas) {
+      if (!replica.healthy) {
+        try {
+          replica.server.ping();
+          replica.healthy = true;
+          LOGGER.info("Solr replica {} is back in rotation ", replica.name);
+        } catch (Exception e) {
+          LOGGER.debug("Solr replica {} still down {} ", replica.name, e.getMessage());
+        }
+      }
+    }
+  }
+
+  private synchronized void recordLatency(long millis) {
+    latencies[latencyCount % LATENCY_SAMPLES] = millis;
+    latencyCount++;
+  }
+
+  /**
+   * @return the configured percentile of recent query times, or -1 when there are not
+   *         yet enough samples.
+   */
+  synchronized long getHedgeDelay() {
+    int n = Math.min(latencyCount, LATENCY_SAMPLES);
+    if (n < MIN_LATENCY_SAMPLES) {
+      return -1;
+    }
+    long[] sorted = Arrays.copyOf(latencies, n);
+    Arrays.sort(sorted);
+    return Math.max(1, sorted[(n * hedgePercentile) / 100]);
+  }
+
+  /**
+   * @return the number of replicas in rotation.
+   */
+  public int getHealthyReplicaCount() {
+    int healthy = 0;
+    for (Replica replica : replicas) {
+      if (replica.healthy) {
+        healthy++;
+      }
+    }
+    return healthy;
+  }
+
+  /**
+   * Stop the background threads.
+   */
+  public void shutdown() {
+    if (healthCheck != null) {
+      healthCheck.shutdownNow();
+    }
+    if (hedgeExecutor != null) {
+      hedgeExecutor.shutdownNow();
+    }
+  }
+
+  static class Replica {
+    private final String name;
+    private final SolrServer server;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile boolean healthy = true;
+
+    Replica(String name, SolrServer server) {
+      this.name = name;
+      this.server = server;
+    }
+
+    NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+      outstanding.incrementAndGet();
+      try {
+        return server.request(request);
+      } finally {
+        outstanding.decrementAndGet();
+      }
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String name) {
+      this.name = name;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Feedback;
+import org.sakaiproject.nakamura.api.lite.MigrateContentService;
+import org.sakaiproject.nakamura.api.solr.BulkReindexStatus;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.solr.SolrClient;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.solr.TopicIndexer;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Collection;
+import java.util.Collections;
+
+public class BulkReindexerTest {
+
+  private BulkReindexer reindexer;
+  private SolrServer server;
+
+  @Before
+  public void before() throws Exception {
+    reindexer = new BulkReindexer();
+    server = Mockito.mock(SolrServer.class);
+    reindexer.solrServerService = Mockito.mock(SolrServerService.class);
+    Mockito.when(reindexer.solrServerService.getUpdateServer()).thenReturn(server);
+    reindexer.embeddedClient = Mockito.mock(SolrClient.class);
+    reindexer.sparseRepository = new BaseMemoryRepository().getRepository();
+
+    IndexingHandler handler = Mockito.mock(IndexingHandler.class);
+    Mockito.when(
+        handler.getDocuments(Mockito.any(RepositorySession.class), Mockito.any(Event.class)))
+        .thenAnswer(new Answer<Collection<SolrInputDocument>>() {
+          public Collection<SolrInputDocument> answer(InvocationOnMock invocation) {
+            Event event = (Event) invocation.getArguments()[1];
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.setField("id", event.getProperty(IndexingHandler.FIELD_PATH));
+            return Collections.singletonList(doc);
+          }
+        });
+    reindexer.topicIndexer = Mockito.mock(TopicIndexer.class);
+    Mockito.when(reindexer.topicIndexer.getTopicHandler(Mockito.anyString())).thenReturn(
+        Collections.singletonList(handler));
+
+    reindexer.migrateContentService = Mockito.mock(MigrateContentService.class);
+    Mockito.doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        for (int i = 0; i < 25; i++) {
+          assertFalse(reindexer.migrate("c" + i, ImmutableMap.<String, Object> of(
+              "_path", "a/c" + i, "sling:resourceType", "sakai/test")));
+          reindexer.migrate("s" + i, ImmutableMap.<String, Object> of("_path", "a/c" + i,
+              "_:cid", "c" + i));
+        }
+        reindexer.migrate("u1", ImmutableMap.<String, Object> of("id", "user1", "type", "u"));
+        reindexer.migrate("acl", ImmutableMap.<String, Object> of("user1@g", 3));
+        ((Feedback) invocation.getArguments()[3]).progress(true, 52, 52);
+        return null;
+      }
+    }).when(reindexer.migrateContentService).migrate(Mockito.anyBoolean(), Mockito.anyInt(),
+        Mockito.anyBoolean(), Mockito.any(Feedback.class));
+
+    reindexer.activate(ImmutableMap.<String, Object> of(BulkReindexer.PROP_THREADS, 2,
+        BulkReindexer.PROP_BATCH_SIZE, 10));
+  }
+
+  @Test
+  public void testToEvent() {
+    Event event = BulkReindexer.toEvent(ImmutableMap.<String, Object> of("_path", "p/x",
+        "sling:resourceType", "sakai/pooled-content"));
+    assertEquals(BulkReindexer.CONTENT_TOPIC, event.getTopic());
+    assertEquals("p/x", event.getProperty(IndexingHandler.FIELD_PATH));
+    assertEquals("sakai/pooled-content", event.getProperty("resourceType"));
+
+    event = BulkReindexer.toEvent(ImmutableMap.<String, Object> of("id", "g-1", "type", "g"));
+    assertEquals(BulkReindexer.AUTHORIZABLE_TOPIC, event.getTopic());
+    assertEquals("g-1", event.getProperty(IndexingHandler.FIELD_PATH));
+
+    assertNull(BulkReindexer.toEvent(ImmutableMap.<String, Object> of("_path", "p/x",
+        "_:cid", "x")));
+    assertNull(BulkReindexer.toEvent(ImmutableMap.<String, Object> of("g-1@g", 1)));
+  }
+
+  @Test
+  public void testReindexIntoLiveCore() throws Exception {
+    BulkReindexStatus status = reindexer.start();
+    assertFalse(status.isSideBySide());
+    for (int i = 0; i < 200 && !status.isDone(); i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(BulkReindexStatus.State.SUCCEEDED, status.getState());
+    assertEquals(52, status.getScanned());
+    assertEquals(52, status.getToScan());
+    assertEquals(26, status.getIndexed());
+    assertEquals(0, status.getErrors());
+    // 25 content items and a user, in batches of 10
+    Mockito.verify(server, Mockito.times(3)).add(
+        Mockito.anyCollectionOf(SolrInputDocument.class));
+    Mockito.verify(server).commit();
+    Mockito.verify(server, Mockito.never()).deleteByQuery(Mockito.anyString());
+
+    // rows seen outside a rebuild are ignored
+    assertFalse(reindexer.migrate("x", ImmutableMap.<String, Object> of("_path", "a/x")));
+    assertSame(status, reindexer.getStatus());
+  }
+}
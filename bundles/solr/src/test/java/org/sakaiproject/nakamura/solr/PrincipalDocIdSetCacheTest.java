@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class PrincipalDocIdSetCacheTest {
+
+  private static final int MAX_DOC = 1000;
+
+  private IndexReader reader;
+  private Map<String, int[]> postings;
+
+  @Before
+  public void setUp() throws Exception {
+    postings = new HashMap<String, int[]>();
+    postings.put("user1", new int[] { 1, 5 });
+    postings.put("group1", new int[] { 5, 7, 900 });
+    int[] everyone = new int[500];
+    for (int i = 0; i < everyone.length; i++) {
+      everyone[i] = i * 2;
+    }
+    postings.put("everyone", everyone);
+
+    reader = mock(IndexReader.class);
+    when(reader.maxDoc()).thenReturn(MAX_DOC);
+    when(reader.getCoreCacheKey()).thenReturn(new Object());
+    when(reader.termDocsEnum(any(Bits.class), eq("readers"), any(BytesRef.class)))
+        .thenAnswer(new Answer<DocsEnum>() {
+          public DocsEnum answer(InvocationOnMock invocation) throws Throwable {
+            String term = ((BytesRef) invocation.getArguments()[2]).utf8ToString();
+            int[] docs = postings.get(term);
+            return docs == null ? null : docsEnum(docs);
+          }
+        });
+  }
+
+  private DocsEnum docsEnum(int[] docs) throws Exception {
+    DocsEnum td = mock(DocsEnum.class);
+    Integer[] rest = new Integer[docs.length];
+    for (int i = 1; i < docs.length; i++) {
+      rest[i - 1] = docs[i];
+    }
+    rest[docs.length - 1] = DocIdSetIterator.NO_MORE_DOCS;
+    when(td.nextDoc()).thenReturn(docs[0], rest);
+    return td;
+  }
+
+  @Test
+  public void testUnion() throws Exception {
+    PrincipalDocIdSetCache cache = new PrincipalDocIdSetCache("readers", 1024 * 1024);
+    OpenBitSet bits = (OpenBitSet) cache.getDocIdSet(reader, new String[] { "user1",
+        " group1", "nobody" });
+    assertEquals(4, bits.cardinality());
+    assertTrue(bits.get(1));
+    assertTrue(bits.get(5));
+    assertTrue(bits.get(7));
+    assertTrue(bits.get(900));
+
+    bits = (OpenBitSet) cache.getDocIdSet(reader, new String[] { "user1", "everyone" });
+    assertEquals(501, bits.cardinality());
+
+    // the common principal is held dense, the rare ones compressed.
+    assertTrue(cache.getDocIdSet(reader, "everyone") instanceof OpenBitSet);
+    assertTrue(!(cache.getDocIdSet(reader, "user1") instanceof OpenBitSet));
+  }
+
+  @Test
+  public void testCached() throws Exception {
+    PrincipalDocIdSetCache cache = new PrincipalDocIdSetCache("readers", 1024 * 1024);
+    cache.getDocIdSet(reader, new String[] { "user1", "group1" });
+    cache.getDocIdSet(reader, new String[] { "user2", "group1" });
+    verify(reader, times(1)).termDocsEnum(null, "readers", new BytesRef("group1"));
+    Map<String, Long> stats = cache.getStatistics();
+    assertEquals(Long.valueOf(1), stats.get("principalSetHits"));
+    assertEquals(Long.valueOf(3), stats.get("principalSetMisses"));
+    assertEquals(Long.valueOf(3), stats.get("principalSetSize"));
+  }
+
+  @Test
+  public void testEvictedWithinBudget() throws Exception {
+    // room for the small sets only
+    PrincipalDocIdSetCache cache = new PrincipalDocIdSetCache("readers", 400);
+    cache.getDocIdSet(reader, new String[] { "user1", "group1" });
+    cache.getDocIdSet(reader, new String[] { "everyone" });
+    Map<String, Long> stats = cache.getStatistics();
+    assertTrue(stats.get("principalSetBytes") <= 400);
+    assertTrue(stats.get("principalSetEvictions") > 0);
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ReplicaQuerySolrServerTest {
+
+  private SolrServer master;
+  private SolrServer replica1;
+  private SolrServer replica2;
+  private ReplicaQuerySolrServer server;
+  private NamedList<Object> masterResponse = new NamedList<Object>();
+  private NamedList<Object> replica1Response = new NamedList<Object>();
+  private NamedList<Object> replica2Response = new NamedList<Object>();
+
+  @Before
+  public void setUp() throws Exception {
+    master = mock(SolrServer.class);
+    replica1 = mock(SolrServer.class);
+    replica2 = mock(SolrServer.class);
+    when(master.request(any(SolrRequest.class))).thenReturn(masterResponse);
+    when(replica1.request(any(SolrRequest.class))).thenReturn(replica1Response);
+    when(replica2.request(any(SolrRequest.class))).thenReturn(replica2Response);
+    server = new ReplicaQuerySolrServer(master, new String[] { "replica1", "replica2" },
+        new SolrServer[] { replica1, replica2 }, 0, 0);
+  }
+
+  @After
+  public void tearDown() {
+    server.shutdown();
+  }
+
+  @Test
+  public void testUpdatesGoToMaster() throws Exception {
+    UpdateRequest update = new UpdateRequest();
+    assertSame(masterResponse, server.request(update));
+    verify(replica1, never()).request(any(SolrRequest.class));
+    verify(replica2, never()).request(any(SolrRequest.class));
+  }
+
+  @Test
+  public void testQueriesGoToReplicas() throws Exception {
+    QueryRequest query = new QueryRequest(new SolrQuery("*:*"));
+    NamedList<Object> response = server.request(query);
+    verify(master, never()).request(any(SolrRequest.class));
+    assertEquals(true, response == replica1Response || response == replica2Response);
+  }
+
+  @Test
+  public void testFailoverAndFailback() throws Exception {
+    QueryRequest query = new QueryRequest(new SolrQuery("*:*"));
+    when(replica1.request(any(SolrRequest.class))).thenThrow(
+        new SolrServerException("down"));
+    assertSame(replica2Response, server.request(query));
+    assertEquals(1, server.getHealthyReplicaCount());
+
+    // out of rotation, so not tried again
+    assertSame(replica2Response, server.request(query));
+    verify(replica1, times(1)).request(any(SolrRequest.class));
+
+    // the ping fails, still out
+    when(replica1.ping()).thenThrow(new SolrServerException("still down"));
+    server.checkReplicas();
+    assertEquals(1, server.getHealthyReplicaCount());
+
+    // the ping answers, back in rotation
+    when(replica1.ping()).thenReturn(null);
+    server.checkReplicas();
+    assertEquals(2, server.getHealthyReplicaCount());
+  }
+
+  @Test
+  public void testFailbackFromMaster() throws Exception {
+    QueryRequest query = new QueryRequest(new SolrQuery("*:*"));
+    SolrServer healthy = mock(SolrServer.class);
+    ReplicaQuerySolrServer failback = new ReplicaQuerySolrServer(master, new String[] {
+        "replica" }, new SolrServer[] { healthy }, 0, 0);
+    when(healthy.request(any(SolrRequest.class))).thenThrow(new SolrServerException("down"))
+        .thenReturn(replica1Response);
+    assertSame(masterResponse, failback.request(query));
+    assertEquals(0, failback.getHealthyReplicaCount());
+    failback.checkReplicas();
+    assertEquals(1, failback.getHealthyReplicaCount());
+    assertSame(replica1Response, failback.request(query));
+  }
+
+  @Test
+  public void testAllReplicasDown() throws Exception {
+    QueryRequest query = new QueryRequest(new SolrQuery("*:*"));
+    when(replica1.request(any(SolrRequest.class))).thenThrow(
+        new SolrServerException("down"));
+    when(replica2.request(any(SolrRequest.class))).thenThrow(
+        new SolrServerException("down"));
+    assertSame(masterResponse, server.request(query));
+    assertEquals(0, server.getHealthyReplicaCount());
+  }
+
+  @Test
+  public void testHedgeDelayNeedsSamples() throws Exception {
+    ReplicaQuerySolrServer hedged = new ReplicaQuerySolrServer(master, new String[] {
+        "replica1", "replica2" }, new SolrServer[] { replica1, replica2 }, 95, 0);
+    try {
+      QueryRequest query = new QueryRequest(new SolrQuery("*:*"));
+      assertEquals(-1, hedged.getHedgeDelay());
+      for (int i = 0; i < 40; i++) {
+        hedged.request(query);
+      }
+      assertEquals(true, hedged.getHedgeDelay() > 0);
+      verify(master, never()).request(any(SolrRequest.class));
+    } finally {
+      hedged.shutdown();
+    }
+  }
+}
@@ -54,6 +54,11 @@ public class SparseIndexingServiceImplTest {
       topics.remove(topic);
     }
 
+    @Override
+    public Collection<IndexingHandler> getTopicHandler(String topic) {
+      return null;
+    }
+
     public void assertContents(String correctTopics[]) throws Exception {
       if (correctTopics == null || correctTopics.length == 0) {
         assertTrue(topics.isEmpty());
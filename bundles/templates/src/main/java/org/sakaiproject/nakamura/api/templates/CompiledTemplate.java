@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.templates;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A template that has been parsed once by {@link TemplateService#compileTemplate(String)}
+ * and can be evaluated many times. Implementations are thread safe.
+ */
+public interface CompiledTemplate {
+
+  /**
+   * @return the source of the template.
+   */
+  String getTemplate();
+
+  /**
+   * @return the keys of the ${param} markers in the template, in order of appearance.
+   */
+  Collection<String> getTerms();
+
+  /**
+   * Equivalent to {@link TemplateService#missingTerms(Map, String)} for the source of this
+   * template, without rescanning it.
+   *
+   * @param parameters Parameters to verify with
+   * @return Collection of keys that were not resolvable.
+   */
+  Collection<String> missingTerms(Map<String, ? extends Object> parameters);
+
+  /**
+   * Equivalent to {@link TemplateService#evaluateTemplate(Map, String)} for the source of
+   * this template.
+   *
+   * @param parameters the values to replace the variable markers with.
+   * @return the evaluated template.
+   */
+  String evaluate(Map<String, ? extends Object> parameters);
+}
@@ -55,4 +55,13 @@ public interface TemplateService {
    */
   Collection<String> missingTerms(Map<String, ? extends Object> parameters,
       String template);
+
+  /**
+   * Parse a template once so that it can be evaluated repeatedly without parsing or
+   * scanning the source again.
+   *
+   * @param template Template to compile
+   * @return the compiled template.
+   */
+  CompiledTemplate compileTemplate(String template);
 }
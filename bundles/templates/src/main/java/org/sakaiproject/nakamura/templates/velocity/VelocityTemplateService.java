@@ -24,8 +24,14 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.InternalContextAdapterImpl;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
 import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
 import org.sakaiproject.nakamura.api.templates.TemplateNodeSource;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
 import org.slf4j.Logger;
@@ -39,6 +45,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -52,7 +59,9 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
   private static final Logger LOGGER = LoggerFactory
       .getLogger(VelocityTemplateService.class);
 
-  private VelocityEngine velocityEngine;
+  private static final String LOG_TAG = "templateprocessing";
+
+  private RuntimeInstance runtime;
 
   @Reference
   protected Repository repository;
@@ -62,36 +71,73 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
   }
 
   public String evaluateTemplate(Map<String, ? extends Object> parameters, Reader templateReader) {
+    return render(parse(templateReader), parameters);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Templates that only contain ${param} markers, which covers nearly all search
+   * templates, are split into text and markers and evaluated by concatenation. Anything
+   * else is parsed once into a Velocity node tree.
+   *
+   * @see org.sakaiproject.nakamura.api.templates.TemplateService#compileTemplate(java.lang.String)
+   */
+  public CompiledTemplate compileTemplate(String template) {
+    List<String> terms = new ArrayList<String>(missingTerms(template));
+    List<String> segments = SimpleTemplate.split(template);
+    if (segments != null) {
+      return new SimpleTemplate(template, segments, terms);
+    }
+    return new VelocityTemplate(template, parse(new StringReader(template)), terms);
+  }
+
+  private SimpleNode parse(Reader templateReader) {
+    try {
+      SimpleNode nodeTree = runtime.parse(templateReader, LOG_TAG);
+      nodeTree.init(new InternalContextAdapterImpl(new VelocityContext()), runtime);
+      return nodeTree;
+    } catch (ParseException e) {
+      throw new ParseErrorException(e.getMessage());
+    }
+  }
+
+  private String render(SimpleNode nodeTree, Map<String, ? extends Object> parameters) {
     Map<String, String> sanitizedParameters = sanitize(parameters);
-    VelocityContext context = new VelocityContext(sanitizedParameters);
+    InternalContextAdapterImpl context = new InternalContextAdapterImpl(
+        new VelocityContext(sanitizedParameters));
     // combine template with parameter map
     StringWriter templateWriter = new StringWriter();
+    context.pushCurrentTemplateName(LOG_TAG);
     try {
-      velocityEngine.evaluate(context, templateWriter, "templateprocessing",
-          templateReader);
+      nodeTree.render(context, templateWriter);
     } catch (IOException e) {
       LOGGER.error(e.getMessage(), e);
+    } finally {
+      context.popCurrentTemplateName();
     }
     return templateWriter.toString();
   }
 
-  private Map<String,String> sanitize(Map<String, ? extends Object> parameters) {
+  private static Map<String,String> sanitize(Map<String, ? extends Object> parameters) {
     Map<String,String> rv = new HashMap<String,String>();
     for (Entry<String, ? extends Object> param : parameters.entrySet()) {
-      Object value = param.getValue();
-      String key = param.getKey();
-      if (value instanceof RequestParameter) {
-        rv.put(key, String.valueOf((RequestParameter) value));
-      } else if (value instanceof String[]) {
-        String[] values = (String[])value;
-        rv.put(key, values[0]);
-      } else {
-        rv.put(key, String.valueOf(value));
-      }
+      rv.put(param.getKey(), sanitizeValue(param.getValue()));
     }
     return rv;
   }
 
+  private static String sanitizeValue(Object value) {
+    if (value instanceof RequestParameter) {
+      return String.valueOf((RequestParameter) value);
+    } else if (value instanceof String[]) {
+      String[] values = (String[])value;
+      return values[0];
+    } else {
+      return String.valueOf(value);
+    }
+  }
+
   public Collection<String> missingTerms(String template) {
     if (template == null || StringUtils.isBlank(template)) {
       return Collections.emptyList();
@@ -139,21 +185,161 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
   }
 
   protected void activate(ComponentContext ctx) throws Exception {
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+    // the runtime rather than a VelocityEngine so that templates can be parsed once and
+    // rendered many times.
+    runtime = new RuntimeInstance();
+    runtime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, "jcr");
-    velocityEngine.setProperty("jcr.resource.loader.class",
+    runtime.setProperty(RuntimeConstants.RESOURCE_LOADER, "jcr");
+    runtime.setProperty("jcr.resource.loader.class",
         JcrResourceLoader.class.getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty("jcr.resource.loader.resourceSource", this);
-    velocityEngine.setExtendedProperties(configuration);
-    velocityEngine.init();
+    runtime.setConfiguration(configuration);
+    runtime.init();
   }
 
   public Node getNode() {
     // Velocity calls this, but it doesn't seem to make a difference in practice
     return null;
   }
+
+  /**
+   * Base of the compiled templates, the term list is computed once at compile time.
+   */
+  private abstract static class AbstractCompiledTemplate implements CompiledTemplate {
+    private final String template;
+    private final List<String> terms;
+
+    AbstractCompiledTemplate(String template, List<String> terms) {
+      this.template = template;
+      this.terms = Collections.unmodifiableList(terms);
+    }
+
+    public String getTemplate() {
+      return template;
+    }
+
+    public Collection<String> getTerms() {
+      return terms;
+    }
+
+    public Collection<String> missingTerms(Map<String, ? extends Object> parameters) {
+      if (terms.isEmpty()) {
+        return Collections.emptyList();
+      }
+      Collection<String> missingTerms = new ArrayList<String>();
+      for (String term : terms) {
+        if (parameters.get(term) == null) {
+          missingTerms.add(term);
+        }
+      }
+      return missingTerms;
+    }
+  }
+
+  /**
+   * A template made of text and ${param} markers only. Evaluates the same as Velocity
+   * would: a marker with no value is left in place.
+   */
+  static class SimpleTemplate extends AbstractCompiledTemplate {
+    /**
+     * Alternating text and marker names, starting with text.
+     */
+    private final String[] segments;
+
+    SimpleTemplate(String template, List<String> segments, List<String> terms) {
+      super(template, terms);
+      this.segments = segments.toArray(new String[segments.size()]);
+    }
+
+    /**
+     * Split a template into alternating text and marker names.
+     *
+     * @return the segments or null if the template uses any Velocity syntax other than
+     *         ${param}.
+     */
+    static List<String> split(String template) {
+      List<String> segments = new ArrayList<String>();
+      int len = template.length();
+      int start = 0;
+      for (int i = 0; i < len; i++) {
+        char c = template.charAt(i);
+        if (c == '#' || (c == '\\' && i + 1 < len && (template.charAt(i + 1) == '$'))) {
+          // directives, comments and escapes are left to Velocity.
+          return null;
+        }
+        if (c == '$') {
+          if (i + 1 >= len || template.charAt(i + 1) != '{') {
+            return null;
+          }
+          int end = template.indexOf('}', i + 2);
+          if (end < 0 || !isIdentifier(template, i + 2, end)) {
+            return null;
+          }
+          segments.add(template.substring(start, i));
+          segments.add(template.substring(i + 2, end));
+          i = end;
+          start = end + 1;
+        }
+      }
+      segments.add(template.substring(start));
+      return segments;
+    }
+
+    /**
+     * @return true if the range is a plain Velocity identifier, no method or property
+     *         references.
+     */
+    private static boolean isIdentifier(String s, int start, int end) {
+      if (start >= end || !isAsciiLetter(s.charAt(start))) {
+        return false;
+      }
+      for (int i = start + 1; i < end; i++) {
+        char c = s.charAt(i);
+        if (!isAsciiLetter(c) && !(c >= '0' && c <= '9') && c != '_' && c != '-') {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean isAsciiLetter(char c) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    public String evaluate(Map<String, ? extends Object> parameters) {
+      if (segments.length == 1) {
+        return segments[0];
+      }
+      StringBuilder sb = new StringBuilder(getTemplate().length() + 32);
+      for (int i = 0; i < segments.length; i++) {
+        if (i % 2 == 0) {
+          sb.append(segments[i]);
+        } else if (parameters.containsKey(segments[i])) {
+          sb.append(sanitizeValue(parameters.get(segments[i])));
+        } else {
+          sb.append("${").append(segments[i]).append('}');
+        }
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * A template held as a parsed Velocity node tree.
+   */
+  private class VelocityTemplate extends AbstractCompiledTemplate {
+    private final SimpleNode nodeTree;
+
+    VelocityTemplate(String template, SimpleNode nodeTree, List<String> terms) {
+      super(template, terms);
+      this.nodeTree = nodeTree;
+    }
+
+    public String evaluate(Map<String, ? extends Object> parameters) {
+      return render(nodeTree, parameters);
+    }
+  }
 }
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Verify that templates compiled to the fast path evaluate exactly as Velocity does.
+ */
+public class VelocityTemplateServiceTest {
+
+  private VelocityTemplateService service;
+  private Map<String, Object> parameters;
+
+  @Before
+  public void before() throws Exception {
+    service = new VelocityTemplateService();
+    service.activate(null);
+    parameters = new HashMap<String, Object>();
+    parameters.put("q", "cells");
+    parameters.put("type", "sakai/pooled-content");
+    parameters.put("page-size", 10);
+    parameters.put("tags", new String[] { "biology", "chemistry" });
+  }
+
+  @Test
+  public void testBracedReferences() {
+    assertLikeVelocity("${q}", true);
+    assertLikeVelocity("q:${q} AND type:${type}", true);
+    assertLikeVelocity("${page-size}", true);
+    assertLikeVelocity("tag:${tags}", true);
+    assertLikeVelocity("no references at all", true);
+    assertLikeVelocity("", true);
+  }
+
+  @Test
+  public void testMissingKey() {
+    assertLikeVelocity("q:${missing}", true);
+    assertLikeVelocity("${q} ${missing} ${type}", true);
+    assertEquals(Arrays.asList("missing"), service.compileTemplate("q:${missing}")
+        .missingTerms(parameters));
+  }
+
+  @Test
+  public void testAdjacentReferences() {
+    assertLikeVelocity("${q}${type}", true);
+    assertLikeVelocity("${q}${missing}${q}", true);
+    assertLikeVelocity("{${q}}", true);
+  }
+
+  @Test
+  public void testShorthandReferences() {
+    assertLikeVelocity("$q", false);
+    assertLikeVelocity("q:$q AND type:${type}", false);
+    assertLikeVelocity("$missing", false);
+  }
+
+  @Test
+  public void testLiteralDollar() {
+    assertLikeVelocity("costs $ 5", false);
+    assertLikeVelocity("5$", false);
+    assertLikeVelocity("${q}$", false);
+  }
+
+  @Test
+  public void testVelocitySyntax() {
+    assertLikeVelocity("\\${q}", false);
+    assertLikeVelocity("#if($q)yes#else no#end", false);
+    assertLikeVelocity("${q} ## comment", false);
+    assertLikeVelocity("${q.length()}", false);
+    assertLikeVelocity("$!{missing}", false);
+  }
+
+  /**
+   * Compile the template, check which way it was compiled, and that it evaluates as
+   * Velocity does.
+   */
+  private void assertLikeVelocity(String template, boolean fast) {
+    CompiledTemplate compiled = service.compileTemplate(template);
+    if (fast) {
+      assertTrue(template, compiled instanceof VelocityTemplateService.SimpleTemplate);
+    } else {
+      assertFalse(template, compiled instanceof VelocityTemplateService.SimpleTemplate);
+    }
+    assertEquals(template, service.evaluateTemplate(parameters, template), compiled
+        .evaluate(parameters));
+    // evaluated again, as compiled templates are shared.
+    assertEquals(template, service.evaluateTemplate(parameters, template), compiled
+        .evaluate(parameters));
+  }
+}
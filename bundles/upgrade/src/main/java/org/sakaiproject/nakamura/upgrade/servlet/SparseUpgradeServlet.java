@@ -19,6 +19,8 @@
 package org.sakaiproject.nakamura.upgrade.servlet;
 
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -38,6 +40,8 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.solr.BulkReindexService;
+import org.sakaiproject.nakamura.api.solr.BulkReindexStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,7 +71,10 @@ import javax.servlet.http.HttpServletResponse;
                         @ServiceParameter(name = "limit", description = "If dryRun is true, then process up to this many rows; no effect if " +
                                 "dryRun is false. Default=Integer.MAX_VALUE (2147483647)."),
                         @ServiceParameter(name = "reindexAll", description = "If true, then reindex every row whether it's changed or not. " +
-                                "This will also force reindexing of every row in Solr. Makes the upgrade take longer. Default=false.")
+                                "This will also force reindexing of every row in Solr. Makes the upgrade take longer. Default=false."),
+                        @ServiceParameter(name = "bulkReindex", description = "If true, reindex Solr by scanning storage into a " +
+                                "fresh index that replaces the live one when it is complete, rather than sending every item through " +
+                                "the indexing queue. Progress is written to the response until the rebuild is done. Default=false.")
                 },
                 response = {
                         @ServiceResponse(code = 200, description = "Success, the upgrade ran with no issues."),
@@ -89,6 +96,9 @@ public class SparseUpgradeServlet extends SlingAllMethodsServlet {
   @Reference
   private ContentReloaderService reloaderService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private BulkReindexService bulkReindexService;
+
   @Override
   protected void doPost(SlingHttpServletRequest request, final SlingHttpServletResponse response) throws ServletException, IOException {
     try {
@@ -105,6 +115,7 @@ public class SparseUpgradeServlet extends SlingAllMethodsServlet {
       // collect our parameters
       boolean dryRun = true;
       boolean reindexAll = false;
+      boolean bulkReindex = false;
       Integer limit = Integer.MAX_VALUE;
 
       RequestParameter dryRunParam = request.getRequestParameter("dryRun");
@@ -115,6 +126,10 @@ public class SparseUpgradeServlet extends SlingAllMethodsServlet {
       if (reindexAllParam != null) {
         reindexAll = Boolean.valueOf(reindexAllParam.getString());
       }
+      RequestParameter bulkReindexParam = request.getRequestParameter("bulkReindex");
+      if (bulkReindexParam != null) {
+        bulkReindex = Boolean.valueOf(bulkReindexParam.getString());
+      }
       RequestParameter limitParam = request.getRequestParameter("limit");
       if (limitParam != null) {
         limit = Integer.parseInt(limitParam.getString());
@@ -142,7 +157,12 @@ public class SparseUpgradeServlet extends SlingAllMethodsServlet {
         msg = "Reindexing all content and authorizables in Solr...";
         writeToResponse(msg, response);
         LOGGER.info(msg);
-        reindexSolr(request);
+        BulkReindexService bulkReindexer = this.bulkReindexService;
+        if (bulkReindex && bulkReindexer != null) {
+          bulkReindexSolr(bulkReindexer, response);
+        } else {
+          reindexSolr(request);
+        }
       }
 
     } catch (Exception e) {
@@ -181,6 +201,23 @@ public class SparseUpgradeServlet extends SlingAllMethodsServlet {
     session.getAuthorizableManager().triggerRefreshAll();
   }
 
+  private void bulkReindexSolr(BulkReindexService bulkReindexer,
+      SlingHttpServletResponse response) throws InterruptedException {
+    BulkReindexStatus status = bulkReindexer.start();
+    while (!status.isDone()) {
+      Thread.sleep(10000L);
+      writeToResponse("Bulk reindex " + status.getState() + ": scanned " + status.getScanned()
+          + " of " + status.getToScan() + " rows, indexed " + status.getIndexed()
+          + " documents, " + status.getErrors() + " errors, replayed "
+          + status.getReplayed() + " changes", response);
+    }
+    if (status.getState() == BulkReindexStatus.State.FAILED) {
+      writeToResponse("Bulk reindex failed: " + status.getError(), response);
+    } else {
+      writeToResponse("Bulk reindex complete", response);
+    }
+  }
+
   static void writeToResponse(String msg, SlingHttpServletResponse response) {
     try {
       response.getWriter().write(msg + "\n");
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.user;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * An immutable, sorted set of principal ids: an authorizable and every group it is a
+ * member of, directly or indirectly. Ids are interned since the same group ids appear in
+ * the sets of many users.
+ */
+public final class PrincipalSet implements Serializable, Iterable<String> {
+
+  private static final long serialVersionUID = -6870124153024713457L;
+
+  private final String owner;
+  private final String[] principals;
+  private final int hash;
+  private transient volatile String joined;
+
+  /**
+   * @param owner
+   *          the id of the authorizable the set belongs to, included in the set.
+   * @param groups
+   *          the ids of the groups the authorizable is a member of.
+   */
+  public PrincipalSet(String owner, Collection<String> groups) {
+    TreeSet<String> sorted = new TreeSet<String>(groups);
+    sorted.add(owner);
+    this.owner = owner.intern();
+    this.principals = new String[sorted.size()];
+    int i = 0;
+    for (String principal : sorted) {
+      principals[i++] = principal.intern();
+    }
+    this.hash = Arrays.hashCode(principals);
+  }
+
+  /**
+   * @return the id of the authorizable the set belongs to.
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  public boolean contains(String principal) {
+    return principal != null && Arrays.binarySearch(principals, principal) >= 0;
+  }
+
+  public int size() {
+    return principals.length;
+  }
+
+  /**
+   * @return a copy of the principals, sorted.
+   */
+  public String[] toArray() {
+    return principals.clone();
+  }
+
+  /**
+   * @return the principals, sorted and separated by commas.
+   */
+  public String join() {
+    String s = joined;
+    if (s == null) {
+      StringBuilder sb = new StringBuilder(principals.length * 16);
+      for (String principal : principals) {
+        if (sb.length() > 0) {
+          sb.append(',');
+        }
+        sb.append(principal);
+      }
+      s = sb.toString();
+      joined = s;
+    }
+    return s;
+  }
+
+  public Iterator<String> iterator() {
+    return Collections.unmodifiableList(Arrays.asList(principals)).iterator();
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof PrincipalSet)) {
+      return false;
+    }
+    PrincipalSet other = (PrincipalSet) obj;
+    return hash == other.hash && Arrays.equals(principals, other.principals);
+  }
+
+  @Override
+  public String toString() {
+    return owner + Arrays.toString(principals);
+  }
+}
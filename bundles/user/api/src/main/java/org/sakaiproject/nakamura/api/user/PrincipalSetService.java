@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.user;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+
+/**
+ * Resolves the transitive group membership of authorizables, caching the result until
+ * the authorizable or one of its groups changes.
+ */
+public interface PrincipalSetService {
+
+  /**
+   * Get the principals of an authorizable: its own id and the ids of every group it is a
+   * member of, directly or indirectly.
+   *
+   * @param authorizableId
+   *          the authorizable.
+   * @param authorizableManager
+   *          used to resolve the membership when it is not cached.
+   * @return the principals, or null if the authorizable does not exist.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  PrincipalSet getPrincipals(String authorizableId, AuthorizableManager authorizableManager)
+      throws StorageClientException, AccessDeniedException;
+
+}
@@ -26,6 +26,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 
+import java.util.List;
 import java.util.Set;
 
 
@@ -48,6 +49,18 @@ public interface CountProvider {
    * @throws StorageClientException
    */
   public void update(Authorizable authorizable, Session session) throws AccessDeniedException, StorageClientException;
+
+  /**
+   * get total counts for group memberships, contacts and content items of a batch of
+   * authorizables and save them, counting the whole batch at once rather than one
+   * authorizable at a time.
+   * @param authorizables the authorizables, may be modified by the update operation.
+   * @param session
+   * @return the number of authorizables saved.
+   * @throws AccessDeniedException
+   * @throws StorageClientException
+   */
+  public int update(List<Authorizable> authorizables, Session session) throws AccessDeniedException, StorageClientException;
   
  /**
   * 
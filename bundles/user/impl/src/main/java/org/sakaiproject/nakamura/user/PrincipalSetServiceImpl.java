@@ -0,0 +1,279 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user;
+
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.TOPIC_BASE;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.UPDATED_TOPIC;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.user.PrincipalSet;
+import org.sakaiproject.nakamura.api.user.PrincipalSetService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the transitive membership of authorizables. A change to an authorizable drops
+ * its own set and every cached set that contains it, which covers users added to or
+ * removed from a group, since both the group and the member are updated, and changes to
+ * nested groups, since sets are transitive. The owners of the cached sets are indexed by
+ * member so that a change only touches the sets that contain the changed authorizable,
+ * and sets expire after a time so that a missed event is not kept forever. The cache may
+ * evict a set without telling us, so a set is unindexed when its owner is resolved again,
+ * and the index is swept once a TTL for sets that are no longer cached.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { PrincipalSetService.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches the transitive group membership of authorizables."),
+    @Property(name = "event.topics", value = {
+        TOPIC_BASE + "authorizables/" + UPDATED_TOPIC,
+        TOPIC_BASE + "authorizables/" + DELETE_TOPIC }) })
+public class PrincipalSetServiceImpl implements PrincipalSetService, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PrincipalSetServiceImpl.class);
+
+  static final String PRINCIPAL_SET_CACHE = "principal-set-cache";
+
+  @Property(longValue = 600L, label = "Principal set TTL", description = "The maximum number of seconds the group membership of an authorizable is cached for.")
+  static final String PRINCIPAL_SET_TTL = "sakai.principalset.ttl";
+
+  /**
+   * Sets resolved within this many ms are not swept, as a set is indexed just before it is
+   * cached.
+   */
+  static final long PRUNE_GRACE = 60000L;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  /**
+   * Counts invalidations so that a set resolved while the membership changed is not kept.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * The owners of the cached sets, by the principals in those sets.
+   */
+  final ConcurrentMap<String, Set<String>> owners = new ConcurrentHashMap<String, Set<String>>();
+
+  /**
+   * The set each owner is indexed by in owners.
+   */
+  private final ConcurrentMap<String, CachedPrincipalSet> indexed = new ConcurrentHashMap<String, CachedPrincipalSet>();
+
+  /**
+   * When the index is next swept for sets that are no longer cached, in ms.
+   */
+  private final AtomicLong nextPrune = new AtomicLong();
+
+  private long ttl = 600000L;
+
+  public PrincipalSetServiceImpl() {
+  }
+
+  PrincipalSetServiceImpl(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    ttl = PropertiesUtil.toLong(properties.get(PRINCIPAL_SET_TTL), 600L) * 1000L;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.user.PrincipalSetService#getPrincipals(java.lang.String,
+   *      org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager)
+   */
+  public PrincipalSet getPrincipals(String authorizableId,
+      AuthorizableManager authorizableManager) throws StorageClientException,
+      AccessDeniedException {
+    Cache<CachedPrincipalSet> cache = getCache();
+    long now = System.currentTimeMillis();
+    CachedPrincipalSet cached = cache.get(authorizableId);
+    if (cached != null) {
+      if (cached.expires > now) {
+        return cached.principals;
+      }
+      invalidate(cache, authorizableId);
+    }
+    prune(now);
+    long before = generation.get();
+    Authorizable authorizable = authorizableManager.findAuthorizable(authorizableId);
+    if (authorizable == null) {
+      return null;
+    }
+    List<String> groups = new ArrayList<String>();
+    for (Iterator<Group> gi = authorizable.memberOf(authorizableManager); gi.hasNext();) {
+      groups.add(gi.next().getId());
+    }
+    PrincipalSet principals = new PrincipalSet(authorizableId, groups);
+    CachedPrincipalSet resolved = new CachedPrincipalSet(principals, now, now + ttl);
+    // index before caching, so an event that arrives in between finds the set.
+    index(resolved);
+    if (generation.get() == before) {
+      cache.put(authorizableId, resolved);
+    } else {
+      unindex(resolved);
+    }
+    LOGGER.debug("Resolved principals {} ", principals);
+    return principals;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String id = (String) event.getProperty("path");
+    if (id == null) {
+      return;
+    }
+    generation.incrementAndGet();
+    Cache<CachedPrincipalSet> cache = getCache();
+    invalidate(cache, id);
+    Set<String> containing = owners.remove(id);
+    if (containing != null) {
+      for (String owner : containing) {
+        invalidate(cache, owner);
+      }
+    }
+  }
+
+  private void invalidate(Cache<CachedPrincipalSet> cache, String owner) {
+    cache.remove(owner);
+    // the set indexed rather than the one cached, which may have been evicted.
+    CachedPrincipalSet set = indexed.remove(owner);
+    if (set != null) {
+      removeOwner(set.principals);
+    }
+  }
+
+  /**
+   * Unindex the sets that are no longer cached, at most once a TTL.
+   */
+  void prune(long now) {
+    long next = nextPrune.get();
+    if (now < next || !nextPrune.compareAndSet(next, now + ttl)) {
+      return;
+    }
+    Cache<CachedPrincipalSet> cache = getCache();
+    for (CachedPrincipalSet set : indexed.values()) {
+      if (set.resolved < now - PRUNE_GRACE && cache.get(set.principals.getOwner()) != set) {
+        unindex(set);
+      }
+    }
+  }
+
+  private void index(CachedPrincipalSet set) {
+    PrincipalSet principals = set.principals;
+    String owner = principals.getOwner();
+    CachedPrincipalSet previous = indexed.put(owner, set);
+    if (previous != null) {
+      // replaced, or evicted from the cache without being invalidated.
+      removeOwner(previous.principals);
+    }
+    for (String principal : principals) {
+      while (true) {
+        Set<String> containing = owners.get(principal);
+        if (containing == null) {
+          containing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+          Set<String> existing = owners.putIfAbsent(principal, containing);
+          if (existing != null) {
+            containing = existing;
+          }
+        }
+        containing.add(owner);
+        // retry if the set was dropped as empty while adding to it.
+        if (owners.get(principal) == containing) {
+          break;
+        }
+      }
+    }
+  }
+
+  private void unindex(CachedPrincipalSet set) {
+    if (indexed.remove(set.principals.getOwner(), set)) {
+      removeOwner(set.principals);
+    }
+  }
+
+  private void removeOwner(PrincipalSet principals) {
+    String owner = principals.getOwner();
+    for (String principal : principals) {
+      Set<String> containing = owners.get(principal);
+      if (containing != null) {
+        containing.remove(owner);
+        if (containing.isEmpty()) {
+          owners.remove(principal, containing);
+        }
+      }
+    }
+  }
+
+  private Cache<CachedPrincipalSet> getCache() {
+    return cacheManagerService.getCache(PRINCIPAL_SET_CACHE, CacheScope.INSTANCE);
+  }
+
+  /**
+   * A cached set with the times it was resolved and expires at.
+   */
+  private static final class CachedPrincipalSet {
+    private final PrincipalSet principals;
+    private final long resolved;
+    private final long expires;
+
+    private CachedPrincipalSet(PrincipalSet principals, long resolved, long expires) {
+      this.principals = principals;
+      this.resolved = resolved;
+      this.expires = expires;
+    }
+  }
+}
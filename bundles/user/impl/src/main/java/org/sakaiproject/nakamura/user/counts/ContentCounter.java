@@ -17,7 +17,9 @@
  */
 package org.sakaiproject.nakamura.user.counts;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -42,51 +44,128 @@ import com.google.common.collect.Lists;
 public class ContentCounter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ContentCounter.class);
-  private static final String QUERY_TMPL = "(resourceType:sakai\\/pooled-content OR category:collection) AND ((manager:(%1$s) OR viewer:(%1$s) OR editor:(%1$s))";
+  private static final String CONTENT_QUERY = "resourceType:sakai\\/pooled-content OR category:collection";
+  private static final String READERS_TMPL = "(manager:(%1$s) OR viewer:(%1$s) OR editor:(%1$s))";
   private static final String USER_TMPL = " OR (showalways:true AND (manager:(%1$s) OR viewer:(%1$s) OR editor:(%1$s)))";
 
+  /**
+   * Number of authorizables counted by one faceted query.
+   */
+  private static final int FACET_BATCH_SIZE = 100;
+
   public int countExact(Authorizable au, AuthorizableManager authorizableManager,
       SolrServerService solrSearchService) throws StorageClientException,
       AccessDeniedException {
     if (au != null && !CountProvider.IGNORE_AUTHIDS.contains(au.getId())) {
+      String qs = "(" + CONTENT_QUERY + ") AND (" + getReadersQuery(au) + ")";
+      int count = getCount(qs, solrSearchService);
+      return count + countCollectionMemberships(au, authorizableManager);
+    }
+    return 0;
+  }
 
-      // find docs where the authz is a direct viewer or manager
-      String userID = ClientUtils.escapeQueryChars(au.getId());
-      String qs = String.format(QUERY_TMPL, userID);
-
-      // for users, include indirectly managed or viewed documents whose showalways field is true
-      if (!au.isGroup()) {
-        // pooled-content-manager, pooled-content-viewer
-        List<String> principals = Lists.newArrayList(userID);
-        if (au.getPrincipals() != null) {
-          for (String principal : au.getPrincipals()) {
-            principals.add(ClientUtils.escapeQueryChars(principal));
-          }
+  /**
+   * Count the content of a batch of authorizables with one query per
+   * {@link #FACET_BATCH_SIZE} authorizables, each authorizable being a facet query over
+   * the content.
+   *
+   * @return the count for each authorizable id, authorizables that could not be counted
+   *         are missing.
+   */
+  public Map<String, Integer> countExact(List<Authorizable> authorizables,
+      AuthorizableManager authorizableManager, SolrServerService solrSearchService)
+      throws StorageClientException, AccessDeniedException {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    SolrServer solrServer = solrSearchService.getServer();
+    List<Authorizable> batch = Lists.newArrayList();
+    for (Authorizable au : authorizables) {
+      if (au != null && !CountProvider.IGNORE_AUTHIDS.contains(au.getId())) {
+        batch.add(au);
+        if (batch.size() == FACET_BATCH_SIZE) {
+          facetCounts(batch, solrServer, counts);
+          batch.clear();
         }
-        principals.remove(Group.EVERYONE);
-        String readers = StringUtils.join(principals, " OR ");
-        qs += String.format(USER_TMPL, readers);
       }
+    }
+    if (batch.size() > 0) {
+      facetCounts(batch, solrServer, counts);
+    }
+    for (Authorizable au : authorizables) {
+      Integer count = counts.get(au.getId());
+      if (count != null) {
+        counts.put(au.getId(), count + countCollectionMemberships(au, authorizableManager));
+      }
+    }
+    return counts;
+  }
 
-      qs += ")";
-      int count = getCount(qs, solrSearchService);
+  private void facetCounts(List<Authorizable> batch, SolrServer solrServer,
+      Map<String, Integer> counts) {
+    // a facet query counts each document once, where facets on the manager, viewer and
+    // editor fields would count a document once per field the authorizable appears in.
+    SolrQuery solrQuery = new SolrQuery(CONTENT_QUERY).setRows(0).setFacet(true);
+    for (int i = 0; i < batch.size(); i++) {
+      solrQuery.addFacetQuery("{!key=a" + i + "}" + getReadersQuery(batch.get(i)));
+    }
+    try {
+      QueryResponse response = solrServer.query(solrQuery, SolrRequest.METHOD.POST);
+      Map<String, Integer> facets = response.getFacetQuery();
+      if (facets == null) {
+        return;
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        Integer count = facets.get("a" + i);
+        if (count != null) {
+          counts.put(batch.get(i).getId(), count);
+        }
+      }
+    } catch (SolrServerException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
 
-      // for top level content collections, look up direct memberships
-      // for each direct membership that is to a collection, add 1 to the count.
-      if (AuthorizableUtil.isCollection(au, true)) {
+  /**
+   * @return the query for docs where the authorizable is a direct viewer or manager, and
+   *         for users also docs indirectly managed or viewed whose showalways field is
+   *         true.
+   */
+  private String getReadersQuery(Authorizable au) {
+    String userID = ClientUtils.escapeQueryChars(au.getId());
+    String qs = String.format(READERS_TMPL, userID);
+    if (!au.isGroup()) {
+      // pooled-content-manager, pooled-content-viewer
+      List<String> principals = Lists.newArrayList(userID);
+      if (au.getPrincipals() != null) {
         for (String principal : au.getPrincipals()) {
-          if (!Group.EVERYONE.equals(principal)) {
-            Authorizable memberAuth = authorizableManager.findAuthorizable(principal);
-            if (AuthorizableUtil.isCollection(memberAuth, false)) {
-              count += 1;
-            }
-          }
+          principals.add(ClientUtils.escapeQueryChars(principal));
         }
       }
+      principals.remove(Group.EVERYONE);
+      String readers = StringUtils.join(principals, " OR ");
+      qs += String.format(USER_TMPL, readers);
+    }
+    return qs;
+  }
 
-      return count;
+  /**
+   * For top level content collections, look up direct memberships and add 1 for each that
+   * is to a collection.
+   */
+  private int countCollectionMemberships(Authorizable au,
+      AuthorizableManager authorizableManager) throws AccessDeniedException,
+      StorageClientException {
+    int count = 0;
+    if (AuthorizableUtil.isCollection(au, true)) {
+      for (String principal : au.getPrincipals()) {
+        if (!Group.EVERYONE.equals(principal)) {
+          Authorizable memberAuth = authorizableManager.findAuthorizable(principal);
+          if (AuthorizableUtil.isCollection(memberAuth, false)) {
+            count += 1;
+          }
+        }
+      }
     }
-    return 0;
+    return count;
   }
 
   /**
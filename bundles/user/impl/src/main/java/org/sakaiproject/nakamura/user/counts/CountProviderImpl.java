@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.user.counts;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -37,7 +38,15 @@ import org.sakaiproject.nakamura.api.user.counts.CountProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.sakaiproject.nakamura.api.user.UserConstants.*;
 
@@ -56,8 +65,18 @@ public class CountProviderImpl implements CountProvider {
   @Property(intValue = 30)
   public static final String UPDATE_INTERVAL_MINUTES = "sakai.countProvider.updateIntervalMinutes";
 
+  @Property(intValue = 4)
+  public static final String UPDATE_THREADS = "sakai.countProvider.updateThreads";
+
   private long updateIntervalMinutes;
 
+  /**
+   * Counts the memberships of a batch in parallel, null when counting in the caller.
+   */
+  private ExecutorService updateExecutor;
+
+  private int updateThreads;
+
   private GroupMembershipCounter groupMembershipCounter = new GroupMembershipCounter();
 
   private ConnectionsCounter contactsCounter = new ConnectionsCounter();
@@ -82,6 +101,111 @@ public class CountProviderImpl implements CountProvider {
 
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Content is counted for the whole batch with faceted Solr queries. Contacts and
+   * memberships are counted in parallel, sharing the lookup of common group members, and
+   * the authorizables are saved once each at the end.
+   *
+   * @see org.sakaiproject.nakamura.api.user.counts.CountProvider#update(java.util.List,
+   *      org.sakaiproject.nakamura.api.lite.Session)
+   */
+  public int update(List<Authorizable> authorizables, Session session)
+      throws AccessDeniedException, StorageClientException {
+    List<Authorizable> batch = new ArrayList<Authorizable>(authorizables.size());
+    for (Authorizable authorizable : authorizables) {
+      if (authorizable != null && !IGNORE_AUTHIDS.contains(authorizable.getId())) {
+        batch.add(authorizable);
+      }
+    }
+    if (batch.isEmpty()) {
+      return 0;
+    }
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Map<String, Integer> contentCounts = contentCounter.countExact(batch,
+        authorizableManager, solrSearchService);
+    Map<String, String[]> resolvedMembers = new ConcurrentHashMap<String, String[]>();
+    ExecutorService executor = updateExecutor;
+    if (executor == null || batch.size() < updateThreads * 2) {
+      updateMemberships(batch, authorizableManager, resolvedMembers);
+    } else {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>(updateThreads);
+      int chunk = (batch.size() + updateThreads - 1) / updateThreads;
+      for (int i = 0; i < batch.size(); i += chunk) {
+        futures.add(executor.submit(new MembershipsUpdate(batch.subList(i,
+            Math.min(batch.size(), i + chunk)), resolvedMembers)));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new StorageClientException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof AccessDeniedException) {
+            throw (AccessDeniedException) e.getCause();
+          }
+          throw new StorageClientException(e.getMessage(), e.getCause());
+        }
+      }
+    }
+
+    int saved = 0;
+    long lastUpdate = System.currentTimeMillis();
+    for (Authorizable authorizable : batch) {
+      Integer contentCount = contentCounts.get(authorizable.getId());
+      if (contentCount != null) {
+        authorizable.setProperty(CONTENT_ITEMS_PROP, contentCount);
+        authorizable.setProperty(COUNTS_LAST_UPDATE_PROP, lastUpdate);
+      } else {
+        // the content count failed, leave the authorizable stale so that it is retried.
+        LOG.debug("No content count for {} ", authorizable.getId());
+      }
+      authorizableManager.updateAuthorizable(authorizable, false);
+      saved++;
+    }
+    return saved;
+  }
+
+  private void updateMemberships(List<Authorizable> batch,
+      AuthorizableManager authorizableManager, Map<String, String[]> resolvedMembers)
+      throws AccessDeniedException, StorageClientException {
+    for (Authorizable authorizable : batch) {
+      if (authorizable instanceof User) {
+        authorizable.setProperty(CONTACTS_PROP, getContactsCount(authorizable, authorizableManager));
+        authorizable.setProperty(GROUP_MEMBERSHIPS_PROP, getGroupsCount(authorizable, authorizableManager));
+      } else if (authorizable instanceof Group) {
+        authorizable.setProperty(GROUP_MEMBERS_PROP, groupMembersCounter.count(
+            (Group) authorizable, authorizableManager, resolvedMembers));
+      }
+    }
+  }
+
+  /**
+   * Counts the memberships of part of a batch in its own session, sessions not being
+   * thread safe. Each authorizable is only modified by the one task.
+   */
+  private class MembershipsUpdate implements Callable<Void> {
+    private final List<Authorizable> batch;
+    private final Map<String, String[]> resolvedMembers;
+
+    MembershipsUpdate(List<Authorizable> batch, Map<String, String[]> resolvedMembers) {
+      this.batch = batch;
+      this.resolvedMembers = resolvedMembers;
+    }
+
+    public Void call() throws Exception {
+      Session session = repository.loginAdministrative();
+      try {
+        updateMemberships(batch, session.getAuthorizableManager(), resolvedMembers);
+      } finally {
+        session.logout();
+      }
+      return null;
+    }
+  }
+
   @Override
   public void updateCountProperty(Authorizable authorizable, String propertyName, Session session)
       throws AccessDeniedException, StorageClientException {
@@ -175,6 +299,23 @@ public class CountProviderImpl implements CountProvider {
   public void modify(Map<String, Object> properties) throws StorageClientException,
       AccessDeniedException {
     updateIntervalMinutes = PropertiesUtil.toLong(properties.get(UPDATE_INTERVAL_MINUTES), 30);
+    updateThreads = PropertiesUtil.toInteger(properties.get(UPDATE_THREADS), 4);
+    shutdownExecutor();
+    if (updateThreads > 1) {
+      updateExecutor = Executors.newFixedThreadPool(updateThreads);
+    }
+  }
+
+  @Deactivate
+  public void deactivate() {
+    shutdownExecutor();
+  }
+
+  private void shutdownExecutor() {
+    if (updateExecutor != null) {
+      updateExecutor.shutdown();
+      updateExecutor = null;
+    }
   }
 
 
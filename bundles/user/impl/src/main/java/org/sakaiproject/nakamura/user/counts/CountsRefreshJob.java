@@ -40,13 +40,30 @@ import org.sakaiproject.nakamura.api.user.counts.CountProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class CountsRefreshJob implements Job {
   private static final Logger LOGGER = LoggerFactory.getLogger(CountsRefreshJob.class);
 
+  /**
+   * Number of authorizables counted together.
+   */
+  private static final int PAGE_SIZE = 100;
+
   Repository sparseRepository;
   SolrServerService solrServerService;
   CountProvider countProvider;
 
+  /**
+   * The job is periodic, do not start a refresh while the last is still going.
+   */
+  private final AtomicBoolean running = new AtomicBoolean();
+  private final AtomicLong totalUpdated = new AtomicLong();
+  private final AtomicLong totalMillis = new AtomicLong();
+
   public CountsRefreshJob(Repository sparseRepository,
       SolrServerService solrServerService, CountProvider countProvider) {
     this.sparseRepository = sparseRepository;
@@ -62,6 +79,36 @@ public class CountsRefreshJob implements Job {
    * @see org.apache.sling.commons.scheduler.Job#execute(org.apache.sling.commons.scheduler.JobContext)
    */
   public void execute(JobContext context) {
+    if (!running.compareAndSet(false, true)) {
+      LOGGER.info("Previous counts refresh is still running, skipping");
+      return;
+    }
+    try {
+      refresh(context);
+    } finally {
+      running.set(false);
+    }
+  }
+
+  /**
+   * Count and save a page of authorizables, logging progress.
+   *
+   * @return the number of authorizables saved.
+   */
+  private int updatePage(List<Authorizable> page, Session adminSession, int seen,
+      int total, long startTicks) throws AccessDeniedException, StorageClientException {
+    if (page.isEmpty()) {
+      return 0;
+    }
+    int count = this.countProvider.update(page, adminSession);
+    page.clear();
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTicks);
+    LOGGER.info("counts refresh progress {}/{}, {} authorizables per second",
+        new Object[] { seen, total, (seen * 1000L) / elapsed });
+    return count;
+  }
+
+  private void refresh(JobContext context) {
     Session adminSession = null;
     Integer batchSize = (Integer) context.getConfiguration().get(
         CountsRefreshScheduler.PROP_UPDATE_BATCH_SIZE);
@@ -77,7 +124,8 @@ public class CountsRefreshJob implements Job {
       StringBuilder querySB = new StringBuilder("+resourceType:authorizable AND -countLastUpdate:[")
                               .append(updateTicks).append(" TO * ]");
       String queryString = querySB.toString();
-      SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize);
+      SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize)
+          .setFields("id");
       QueryResponse response;
       try {
         response = solrServer.query(solrQuery, SolrRequest.METHOD.POST);
@@ -93,13 +141,15 @@ public class CountsRefreshJob implements Job {
               new Object[] { batchSize });
           long startTicks = System.currentTimeMillis();
           int count = 0;
+          int seen = 0;
+          List<Authorizable> page = new ArrayList<Authorizable>(PAGE_SIZE);
           for (SolrDocument solrDocument : results) {
             String authorizableId = (String) solrDocument.getFieldValue("id");
             Authorizable authorizable = authManager.findAuthorizable(authorizableId);
+            seen++;
             if (authorizable != null) {
               if (authorizable.getId() != null) {
-                this.countProvider.update(authorizable, adminSession);
-                count++;              
+                page.add(authorizable);
               } else {
                 LOGGER.debug(
                     "found authorizable with id {} in Solr index but with NULL id in Sparse, not updating", 
@@ -110,10 +160,17 @@ public class CountsRefreshJob implements Job {
                       "found authorizable with id {} in Solr index but couldn't find authorizable in Sparse, not updating",
                       new Object[] { authorizableId });
             }
+            if (page.size() == PAGE_SIZE) {
+              count += updatePage(page, adminSession, seen, results.size(), startTicks);
+            }
           }
+          count += updatePage(page, adminSession, seen, results.size(), startTicks);
           long endTicks = System.currentTimeMillis();
-          LOGGER.info("updated {} authorizables in {} seconds", new Object[] { count,
-              (endTicks - startTicks) / 1000 });
+          totalUpdated.addAndGet(count);
+          totalMillis.addAndGet(endTicks - startTicks);
+          LOGGER.info("updated {} authorizables in {} seconds, {} updated in {} seconds since started",
+              new Object[] { count, (endTicks - startTicks) / 1000, totalUpdated.get(),
+                  totalMillis.get() / 1000 });
         } else {
           LOGGER.info("All authorizables have up to date counts");
         }
@@ -27,7 +27,9 @@ import org.sakaiproject.nakamura.api.user.counts.CountProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class GroupMembersCounter {
@@ -35,55 +37,90 @@ public class GroupMembersCounter {
   private static final Logger LOGGER = LoggerFactory
       .getLogger(GroupMembersCounter.class);
 
+  /**
+   * Resolution of a member that is counted as 1.
+   */
+  private static final String[] COUNTED = new String[0];
+
+  /**
+   * Resolution of a member that no longer exists.
+   */
+  private static final String[] MISSING = new String[0];
+
   /**
    * @param group
    * @return the number of members in this group.
    */
   public int count(Group group, AuthorizableManager authMgr) {
+    return count(group, authMgr, new HashMap<String, String[]>());
+  }
+
+  /**
+   * @param group
+   * @param resolved
+   *          members already looked up, shared between the groups of a batch so that
+   *          common members and pseudo groups are only looked up once. Must be thread
+   *          safe if the batch is counted in parallel.
+   * @return the number of members in this group.
+   */
+  public int count(Group group, AuthorizableManager authMgr, Map<String, String[]> resolved) {
     if ( group != null && !CountProvider.IGNORE_AUTHIDS.contains(group.getId())) {
-      return countMembers(group.getMembers(), authMgr);
+      return countMembers(group.getMembers(), authMgr, new HashSet<String>(), resolved);
     }
     return 0;
   }
 
-  private int countMembers(String[] members, AuthorizableManager authMgr) {
-    return countMembers(members, authMgr, new HashSet<String>());
-  }
-  
-  
   private int countMembers(String[] members, AuthorizableManager authMgr,
-      Set<String> groupsAlreadyProcessed) {
+      Set<String> groupsAlreadyProcessed, Map<String, String[]> resolved) {
     int count = 0;
     for (String member : members) {
-      LOGGER.debug("Checking member: " + member);
-      try {
-        Authorizable auth = authMgr.findAuthorizable(member);
+      LOGGER.debug("Checking member: {}", member);
+      String[] resolution = resolve(member, authMgr, resolved);
+      if (resolution == COUNTED) {
+        // users and non-pseudo groups get counted as 1
+        count++;
+      } else if (resolution == MISSING) {
+        LOGGER.debug("Authorizable is null, member {} likely has been deleted, not counting", member);
+      } else if (resolution != null) {
         // only count the members in a pseudogroup; not the group itself
-		if (auth instanceof Group && Boolean.parseBoolean(String.valueOf(auth.getProperty(UserConstants.PROP_PSEUDO_GROUP)))) {
-          Group group = (Group) auth;
-          LOGGER.debug("Processing pseudoGroup: " + group.getId());
-          if (!groupsAlreadyProcessed.contains(group.getId())) {
-            LOGGER.debug("pseudoGroup: " + group.getId() + "not already processed, counting..");
-            groupsAlreadyProcessed.add(group.getId());
-            count += countMembers(group.getMembers(), authMgr, groupsAlreadyProcessed);
-          } else {
-            LOGGER.debug("pseudoGroup: " + group.getId() + "already processed, not counted again");
-          }
+        if (groupsAlreadyProcessed.add(member)) {
+          LOGGER.debug("pseudoGroup: {} not already processed, counting..", member);
+          count += countMembers(resolution, authMgr, groupsAlreadyProcessed, resolved);
         } else {
-          if (auth != null) {
-            // users and non-pseudo groups get counted as 1
-            LOGGER.debug("Counting member: " + auth.getId());
-            count++;
-          } else {
-            LOGGER.debug("Authorizable is null, member " + member + " likely has been deleted, not counting");
-          }
+          LOGGER.debug("pseudoGroup: {} already processed, not counted again", member);
         }
-      } catch (AccessDeniedException e) {
-        LOGGER.error(e.getMessage(), e);
-      } catch (StorageClientException e) {
-        LOGGER.error(e.getMessage(), e);
       }
     }
     return count;
   }
+
+  /**
+   * @return {@link #COUNTED}, {@link #MISSING}, the members of a pseudo group, or null if
+   *         the member could not be read.
+   */
+  private String[] resolve(String member, AuthorizableManager authMgr,
+      Map<String, String[]> resolved) {
+    String[] resolution = resolved.get(member);
+    if (resolution != null) {
+      return resolution;
+    }
+    try {
+      Authorizable auth = authMgr.findAuthorizable(member);
+      if (auth == null) {
+        resolution = MISSING;
+      } else if (auth instanceof Group
+          && Boolean.parseBoolean(String.valueOf(auth.getProperty(UserConstants.PROP_PSEUDO_GROUP)))) {
+        resolution = ((Group) auth).getMembers();
+      } else {
+        resolution = COUNTED;
+      }
+      resolved.put(member, resolution);
+      return resolution;
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    return null;
+  }
 }
@@ -42,6 +42,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
@@ -50,11 +51,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
@@ -80,7 +83,8 @@ import javax.servlet.http.HttpServletResponse;
         @ServiceSelector(name = "members", description = "Binds to the members selector."),
         @ServiceSelector(name = "managers", description = "Binds to the managers selector."),
         @ServiceSelector(name = "everyone", description = "Binds to the everyone selector (members + managers)."),
-        @ServiceSelector(name = "detailed", description = "Binds to the details selector.")
+        @ServiceSelector(name = "detailed", description = "Binds to the details selector."),
+        @ServiceSelector(name = "profiles", description = "Lists the full profile of each member rather than their basic information. Members whose profile can not be read are listed with their basic information.")
       },
       extensions = @ServiceExtension(name = "json", description = "javascript object notation")
     )
@@ -111,7 +115,10 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
   static final String ITEMS = "items";
   static final String PAGE = "page";
   @Reference
-  private BasicUserInfoService basicUserInfoService;
+  protected BasicUserInfoService basicUserInfoService;
+
+  @Reference
+  protected ProfileService profileService;
 
   /**
    * {@inheritDoc}
@@ -179,20 +186,19 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
       Iterator<Entry<String, Authorizable>> iterator = getInPlaceIterator(request, map,
           items, page);
 
+      List<Authorizable> pageMembers = new ArrayList<Authorizable>();
+      while (iterator.hasNext() && pageMembers.size() < items) {
+        pageMembers.add(iterator.next().getValue());
+      }
+
       // Write the whole lot out.
       writer.array();
-      int i = 0;
-      while (iterator.hasNext() && i < items) {
-        Entry<String, Authorizable> entry = iterator.next();
-        Authorizable au = entry.getValue();
-        ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-        if (profile != null) {
-          writer.valueMap(profile);
-          i++;
-        } /*else {
-          // profile wasn't found.  safe to ignore and not include the group
-          logger.info("Profile not found for " + au.getId());
-        }*/
+      if (selectors.contains("profiles")) {
+        writeProfiles(request, writer, pageMembers);
+      } else {
+        for (Authorizable au : pageMembers) {
+          writer.valueMap(new ValueMapDecorator(basicUserInfoService.getProperties(au)));
+        }
       }
       writer.endArray();
 
@@ -211,15 +217,36 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
       response.sendError(HttpServletResponse.SC_FORBIDDEN,
       "Failed to get members.");
       return;
-    }/* catch (RepositoryException e) {
+    } catch (RepositoryException e) {
       logger.error(e.getMessage(),e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
       "Failed to get members.");
       return;
-    }*/
+    }
 
   }
 
+  /**
+   * Write the full profile of each member. The profiles of the whole page are resolved
+   * together, so that a provider is asked once for every member on the page. A member
+   * whose profile can not be read is written with their basic information, so that the
+   * page still lists every member.
+   */
+  private void writeProfiles(SlingHttpServletRequest request, ExtendedJSONWriter writer,
+      List<Authorizable> members) throws JSONException, RepositoryException,
+      StorageClientException {
+    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(
+        javax.jcr.Session.class);
+    Map<String, ValueMap> profiles = profileService.getProfileMaps(members, jcrSession);
+    for (Authorizable au : members) {
+      ValueMap profile = profiles.get(au.getId());
+      if (profile == null) {
+        profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+      }
+      writer.valueMap(profile);
+    }
+  }
+
   /**
    * @param request
    * @param map
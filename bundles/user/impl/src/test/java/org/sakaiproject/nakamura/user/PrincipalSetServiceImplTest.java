@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.user.PrincipalSet;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+public class PrincipalSetServiceImplTest {
+
+  private AuthorizableManager authorizableManager;
+  private PrincipalSetServiceImpl service;
+  private Cache<Object> cache;
+
+  @Before
+  public void before() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    Session adminSession = repository.loginAdministrative();
+    authorizableManager = adminSession.getAuthorizableManager();
+    assertTrue(authorizableManager.createUser("ieb", "Ian Boston", "password", null));
+    assertTrue(authorizableManager.createGroup("g-outer", "g-outer", null));
+    assertTrue(authorizableManager.createGroup("g-inner", "g-inner", null));
+    Group inner = (Group) authorizableManager.findAuthorizable("g-inner");
+    inner.addMember("ieb");
+    authorizableManager.updateAuthorizable(inner);
+    Group outer = (Group) authorizableManager.findAuthorizable("g-outer");
+    outer.addMember("g-inner");
+    authorizableManager.updateAuthorizable(outer);
+
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    cache = new MapCacheImpl<Object>(PrincipalSetServiceImpl.PRINCIPAL_SET_CACHE,
+        CacheScope.INSTANCE);
+    Mockito.when(
+        cacheManagerService.getCache(PrincipalSetServiceImpl.PRINCIPAL_SET_CACHE,
+            CacheScope.INSTANCE)).thenReturn(cache);
+    service = new PrincipalSetServiceImpl(cacheManagerService);
+  }
+
+  @Test
+  public void testTransitiveMembership() throws Exception {
+    PrincipalSet principals = service.getPrincipals("ieb", authorizableManager);
+    assertEquals("ieb", principals.getOwner());
+    assertTrue(principals.contains("ieb"));
+    assertTrue(principals.contains("g-inner"));
+    assertTrue(principals.contains("g-outer"));
+    String[] sorted = principals.toArray();
+    String[] expected = sorted.clone();
+    Arrays.sort(expected);
+    assertArrayEquals(expected, sorted);
+    assertEquals(principals.size(), principals.join().split(",").length);
+
+    assertNull(service.getPrincipals("nobody", authorizableManager));
+  }
+
+  @Test
+  public void testCachedUntilMembershipChanges() throws Exception {
+    PrincipalSet principals = service.getPrincipals("ieb", authorizableManager);
+    assertSame(principals, service.getPrincipals("ieb", authorizableManager));
+
+    // an unrelated change keeps the set
+    service.handleEvent(event("someoneelse"));
+    assertSame(principals, service.getPrincipals("ieb", authorizableManager));
+
+    // a change to a group the user is indirectly a member of drops it
+    Group outer = (Group) authorizableManager.findAuthorizable("g-outer");
+    outer.removeMember("g-inner");
+    authorizableManager.updateAuthorizable(outer);
+    service.handleEvent(event("g-outer"));
+    PrincipalSet changed = service.getPrincipals("ieb", authorizableManager);
+    assertNotSame(principals, changed);
+    assertFalse(changed.contains("g-outer"));
+  }
+
+  @Test
+  public void testOnlyContainingSetsDropped() throws Exception {
+    assertTrue(authorizableManager.createUser("other", "Other", "password", null));
+    PrincipalSet principals = service.getPrincipals("ieb", authorizableManager);
+    PrincipalSet other = service.getPrincipals("other", authorizableManager);
+
+    service.handleEvent(event("g-inner"));
+    assertNotSame(principals, service.getPrincipals("ieb", authorizableManager));
+    assertSame(other, service.getPrincipals("other", authorizableManager));
+
+    // the set resolved again is indexed again
+    principals = service.getPrincipals("ieb", authorizableManager);
+    service.handleEvent(event("g-outer"));
+    assertNotSame(principals, service.getPrincipals("ieb", authorizableManager));
+  }
+
+  @Test
+  public void testExpires() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(PrincipalSetServiceImpl.PRINCIPAL_SET_TTL, 0L);
+    service.activate(properties);
+    PrincipalSet principals = service.getPrincipals("ieb", authorizableManager);
+    assertNotSame(principals, service.getPrincipals("ieb", authorizableManager));
+  }
+
+  @Test
+  public void testEvictedSetUnindexed() throws Exception {
+    assertTrue(authorizableManager.createUser("other", "Other", "password", null));
+    service.getPrincipals("ieb", authorizableManager);
+    service.getPrincipals("other", authorizableManager);
+    assertTrue(service.owners.get("g-outer").contains("ieb"));
+
+    // evicted by the cache, no event is sent, and swept an hour later.
+    cache.remove("ieb");
+    service.prune(System.currentTimeMillis() + 3600000L);
+    assertNull(service.owners.get("g-outer"));
+    assertNull(service.owners.get("g-inner"));
+    assertNull(service.owners.get("ieb"));
+    assertTrue(service.owners.get("other").contains("other"));
+  }
+
+  @Test
+  public void testReplacedSetUnindexed() throws Exception {
+    service.getPrincipals("ieb", authorizableManager);
+    cache.remove("ieb");
+    // changed while the set was not cached, so no set was invalidated.
+    Group outer = (Group) authorizableManager.findAuthorizable("g-outer");
+    outer.removeMember("g-inner");
+    authorizableManager.updateAuthorizable(outer);
+
+    PrincipalSet principals = service.getPrincipals("ieb", authorizableManager);
+    assertFalse(principals.contains("g-outer"));
+    assertNull(service.owners.get("g-outer"));
+    assertTrue(service.owners.get("g-inner").contains("ieb"));
+  }
+
+  private Event event(String id) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", id);
+    return new Event(StoreListener.TOPIC_BASE + "authorizables/"
+        + StoreListener.UPDATED_TOPIC, props);
+  }
+}
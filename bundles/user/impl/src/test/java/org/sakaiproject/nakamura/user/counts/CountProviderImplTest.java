@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class CountProviderImplTest {
+
+  private Repository repository;
+  private Session adminSession;
+  private CountProviderImpl countProvider;
+  private Map<String, Integer> facets;
+
+  @Before
+  public void before() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    adminSession = repository.loginAdministrative();
+    AuthorizableManager am = adminSession.getAuthorizableManager();
+    for (String user : new String[] { "u1", "u2", "u3" }) {
+      am.createUser(user, user, "password", null);
+    }
+    am.createGroup("g-pseudo", "g-pseudo",
+        ImmutableMap.of(UserConstants.PROP_PSEUDO_GROUP, (Object) "true"));
+    am.createGroup("g-1", "g-1", null);
+    am.createGroup("g-2", "g-2", null);
+    addMembers(am, "g-pseudo", "u1", "u2");
+    addMembers(am, "g-1", "g-pseudo", "u3", "deleted");
+    addMembers(am, "g-2", "g-pseudo");
+
+    facets = new HashMap<String, Integer>();
+    SolrServerService solrServerService = Mockito.mock(SolrServerService.class);
+    SolrServer solrServer = Mockito.mock(SolrServer.class);
+    QueryResponse response = Mockito.mock(QueryResponse.class);
+    Mockito.when(solrServerService.getServer()).thenReturn(solrServer);
+    Mockito.when(
+        solrServer.query(Mockito.any(SolrParams.class), Mockito.eq(SolrRequest.METHOD.POST)))
+        .thenReturn(response);
+    Mockito.when(response.getFacetQuery()).thenReturn(facets);
+
+    countProvider = new CountProviderImpl();
+    countProvider.repository = repository;
+    countProvider.solrSearchService = solrServerService;
+    Map<String, Object> props = ImmutableMap.of(CountProviderImpl.UPDATE_THREADS, (Object) 2);
+    countProvider.modify(props);
+  }
+
+  @After
+  public void after() throws Exception {
+    countProvider.deactivate();
+    adminSession.logout();
+  }
+
+  private void addMembers(AuthorizableManager am, String groupId, String... members)
+      throws Exception {
+    Group group = (Group) am.findAuthorizable(groupId);
+    for (String member : members) {
+      group.addMember(member);
+    }
+    am.updateAuthorizable(group);
+  }
+
+  @Test
+  public void testBatchUpdate() throws Exception {
+    AuthorizableManager am = adminSession.getAuthorizableManager();
+    List<Authorizable> batch = Lists.newArrayList(am.findAuthorizable("u1"),
+        am.findAuthorizable("u2"), am.findAuthorizable("g-1"), am.findAuthorizable("g-2"));
+    facets.put("a0", 1);
+    facets.put("a1", 2);
+    facets.put("a2", 3);
+    facets.put("a3", 4);
+
+    assertEquals(4, countProvider.update(batch, adminSession));
+
+    Session session = repository.loginAdministrative();
+    try {
+      am = session.getAuthorizableManager();
+      Authorizable u1 = am.findAuthorizable("u1");
+      assertEquals(1, u1.getProperty(UserConstants.CONTENT_ITEMS_PROP));
+      assertEquals(0, u1.getProperty(UserConstants.CONTACTS_PROP));
+      assertNotNull(u1.getProperty(UserConstants.GROUP_MEMBERSHIPS_PROP));
+      assertNotNull(u1.getProperty(UserConstants.COUNTS_LAST_UPDATE_PROP));
+      Authorizable g1 = am.findAuthorizable("g-1");
+      assertEquals(3, g1.getProperty(UserConstants.CONTENT_ITEMS_PROP));
+      // the pseudo group members and u3, the deleted member is not counted
+      assertEquals(3, g1.getProperty(UserConstants.GROUP_MEMBERS_PROP));
+      Authorizable g2 = am.findAuthorizable("g-2");
+      assertEquals(4, g2.getProperty(UserConstants.CONTENT_ITEMS_PROP));
+      assertEquals(2, g2.getProperty(UserConstants.GROUP_MEMBERS_PROP));
+    } finally {
+      session.logout();
+    }
+  }
+
+  @Test
+  public void testMissingContentCountLeftStale() throws Exception {
+    AuthorizableManager am = adminSession.getAuthorizableManager();
+    List<Authorizable> batch = Lists.newArrayList(am.findAuthorizable("u3"));
+
+    assertEquals(1, countProvider.update(batch, adminSession));
+
+    Session session = repository.loginAdministrative();
+    try {
+      Authorizable u3 = session.getAuthorizableManager().findAuthorizable("u3");
+      assertFalse(u3.hasProperty(UserConstants.COUNTS_LAST_UPDATE_PROP));
+      assertTrue(u3.hasProperty(UserConstants.GROUP_MEMBERSHIPS_PROP));
+    } finally {
+      session.logout();
+    }
+  }
+}
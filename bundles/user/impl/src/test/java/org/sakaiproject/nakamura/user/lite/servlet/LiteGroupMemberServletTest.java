@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.user.lite.resource.LiteAuthorizableResource;
+import org.sakaiproject.nakamura.user.lite.resource.LiteAuthorizableResourceProvider;
+import org.sakaiproject.nakamura.user.lite.resource.RepositoryHelper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.Map;
+
+public class LiteGroupMemberServletTest {
+
+  @Mock
+  private SlingHttpServletRequest request;
+
+  @Mock
+  private SlingHttpServletResponse response;
+
+  @Mock
+  private ResourceResolver resourceResolver;
+
+  @Mock
+  private RequestPathInfo requestPathInfo;
+
+  @Mock
+  private BasicUserInfoService basicUserInfoService;
+
+  @Mock
+  private ProfileService profileService;
+
+  private javax.jcr.Session jcrSession;
+  private Session session;
+  private StringWriter output;
+  private LiteGroupMemberServlet servlet;
+
+  @Before
+  public void before() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    Repository repository = RepositoryHelper.getRepository(new String[] { "jeff", "joe" },
+        new String[] { "g-course101" });
+    session = repository.loginAdministrative();
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Group group = (Group) authorizableManager.findAuthorizable("g-course101");
+    group.addMember("jeff");
+    group.addMember("joe");
+    authorizableManager.updateAuthorizable(group);
+    group = (Group) authorizableManager.findAuthorizable("g-course101");
+
+    jcrSession = Mockito.mock(javax.jcr.Session.class,
+        Mockito.withSettings().extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(request.getResource()).thenReturn(
+        new LiteAuthorizableResource(group, resourceResolver,
+            LiteAuthorizableResourceProvider.SYSTEM_USER_MANAGER_GROUP_PREFIX
+                + group.getId()));
+    when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
+    output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+
+    when(basicUserInfoService.getProperties(Matchers.any(Authorizable.class))).thenAnswer(
+        new Answer<Map<String, Object>>() {
+          public Map<String, Object> answer(InvocationOnMock invocation) {
+            Authorizable au = (Authorizable) invocation.getArguments()[0];
+            return ImmutableMap.of("userid", (Object) au.getId(), "source", "basic");
+          }
+        });
+
+    servlet = new LiteGroupMemberServlet();
+    servlet.basicUserInfoService = basicUserInfoService;
+    servlet.profileService = profileService;
+  }
+
+  @After
+  public void after() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void testDetailedListsBasicInfo() throws Exception {
+    when(requestPathInfo.getSelectors()).thenReturn(new String[] { "members", "detailed" });
+
+    servlet.doGet(request, response);
+
+    JSONArray members = new JSONArray(output.toString());
+    Assert.assertEquals(2, members.length());
+    for (int i = 0; i < members.length(); i++) {
+      Assert.assertEquals("basic", members.getJSONObject(i).getString("source"));
+    }
+    Mockito.verifyZeroInteractions(profileService);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testProfilesListsUnreadableMembers() throws Exception {
+    when(requestPathInfo.getSelectors()).thenReturn(new String[] { "members", "profiles" });
+    // joe's profile may not be read, so it is left out of the bulk lookup
+    ValueMap jeff = new ValueMapDecorator(ImmutableMap.of("userid", (Object) "jeff",
+        "source", "profile"));
+    when(profileService.getProfileMaps(Matchers.any(Collection.class),
+        Matchers.eq(jcrSession))).thenReturn(ImmutableMap.of("jeff", jeff));
+
+    servlet.doGet(request, response);
+
+    JSONArray members = new JSONArray(output.toString());
+    Assert.assertEquals(2, members.length());
+    Assert.assertEquals("jeff", members.getJSONObject(0).getString("userid"));
+    Assert.assertEquals("profile", members.getJSONObject(0).getString("source"));
+    Assert.assertEquals("joe", members.getJSONObject(1).getString("userid"));
+    Assert.assertEquals("basic", members.getJSONObject(1).getString("source"));
+    Mockito.verify(profileService).getProfileMaps(Matchers.any(Collection.class),
+        Matchers.eq(jcrSession));
+  }
+}
@@ -66,6 +66,9 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
   @Reference
   protected BasicUserInfoService basicUserInfoService;
 
+  @Reference
+  protected VersionSummaryIndex versionSummaryIndex;
+
   /**
    *
    */
@@ -108,11 +111,11 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
       int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
 
-      List<String> versionList = contentManager.getVersionHistory(path);
-      int total = versionList.size();
+      int total = versionSummaryIndex.update(path, contentManager);
       int start = Math.min(offset, total);
       int end = Math.min(start+nitems, total);
-      nitems = end - start;
+      List<Map<String, Object>> versions = versionSummaryIndex.list(path, start, end);
+      nitems = versions.size();
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -131,33 +134,41 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       write.object();
 
       Set<String> users = Sets.newHashSet();
-      for (int j = start; j < end ; j++) {
-        write.key("1."+(versionList.size()-j-1));
+      int j = start;
+      for (Map<String, Object> version : versions) {
+        write.key("1."+(total-j-1));
+        j++;
         write.object();
         write.key("versionId");
-        String versionId = versionList.get(j);
-        write.value(versionId);
-        Content vContent = contentManager.getVersion(path, versionId);
+        write.value(version.get(VersionSummaryIndex.VERSION_ID));
         write.key(Content.CREATED_FIELD);
-        write.value(vContent.getProperty(Content.CREATED_FIELD));
+        write.value(version.get(Content.CREATED_FIELD));
         write.key(Content.LASTMODIFIED_BY_FIELD);
-        write.value(vContent.getProperty(Content.LASTMODIFIED_BY_FIELD));
+        write.value(version.get(Content.LASTMODIFIED_BY_FIELD));
         write.key(Content.VERSION_NUMBER_FIELD);
-        write.value(vContent.getProperty(Content.VERSION_NUMBER_FIELD));
+        write.value(version.get(Content.VERSION_NUMBER_FIELD));
+        if (version.containsKey(Content.LASTMODIFIED_FIELD)) {
+          write.key(Content.LASTMODIFIED_FIELD);
+          write.value(version.get(Content.LASTMODIFIED_FIELD));
+        }
+        if (version.containsKey(Content.LENGTH_FIELD)) {
+          write.key(Content.LENGTH_FIELD);
+          write.value(version.get(Content.LENGTH_FIELD));
+        }
 
-        if (vContent.hasProperty(FilesConstants.POOLED_CONTENT_FILENAME)) {
+        if (version.containsKey(FilesConstants.POOLED_CONTENT_FILENAME)) {
           write.key(FilesConstants.POOLED_CONTENT_FILENAME);
-          write.value(vContent.getProperty(FilesConstants.POOLED_CONTENT_FILENAME));
+          write.value(version.get(FilesConstants.POOLED_CONTENT_FILENAME));
         }
-        if (vContent.hasProperty(FilesConstants.POOLED_CONTENT_CREATED_FOR)) {
+        if (version.containsKey(FilesConstants.POOLED_CONTENT_CREATED_FOR)) {
           write.key(FilesConstants.POOLED_CONTENT_CREATED_FOR);
-          write.value(vContent.getProperty(FilesConstants.POOLED_CONTENT_CREATED_FOR));
+          write.value(version.get(FilesConstants.POOLED_CONTENT_CREATED_FOR));
           // collect users for output after revisions
-          users.add((String) vContent.getProperty(FilesConstants.POOLED_CONTENT_CREATED_FOR));
-        } else {
+          users.add((String) version.get(FilesConstants.POOLED_CONTENT_CREATED_FOR));
+        } else if (version.containsKey(Content.LASTMODIFIED_BY_FIELD)) {
           // collect users for output after revisions
           // POOLED_CONTENT_CREATED_FOR won't exist for pages so we use LASTMODIFIED_BY instead
-          users.add((String) vContent.getProperty(Content.LASTMODIFIED_BY_FIELD));
+          users.add((String) version.get(Content.LASTMODIFIED_BY_FIELD));
         }
         write.endObject();
       }
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 import com.google.common.collect.Maps;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -55,6 +56,9 @@ public class SparseSaveVersionServletHandler extends AbstractAllMethodsServletRe
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseSaveVersionServletHandler.class);
 
+  @Reference
+  protected VersionSummaryIndex versionSummaryIndex;
+
   /**
    * {@inheritDoc}
    * 
@@ -80,6 +84,12 @@ public class SparseSaveVersionServletHandler extends AbstractAllMethodsServletRe
 
       String versionId  = contentManager.saveVersion(content.getPath(), versionMetadata);
       Content savedVersion = contentManager.getVersion(content.getPath(), versionId);
+      try {
+        versionSummaryIndex.update(content.getPath(), contentManager);
+      } catch (StorageClientException e) {
+        // the version will be summarised when the versions are next listed
+        LOGGER.warn("Failed to summarise version {} of {} ", versionId, content.getPath());
+      }
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
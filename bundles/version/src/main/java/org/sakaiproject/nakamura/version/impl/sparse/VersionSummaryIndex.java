@@ -0,0 +1,362 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.TOPIC_BASE;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact summary of the versions of each item of content, so that the versions of
+ * heavily edited content can be listed a page at a time without walking the version
+ * history or loading any version. Each version is summarised when it is saved. Versions
+ * saved some other way are summarised the next time the summary is brought up to date,
+ * by following the history back from the newest version to the newest one summarised.
+ * The summaries are kept, oldest first, in chunks of {@link #CHUNK_SIZE} under
+ * {@link #INDEX_ROOT}, and are removed when the content is deleted.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { VersionSummaryIndex.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Keeps a summary of the versions of content."),
+    @Property(name = "event.topics", value = { TOPIC_BASE + "content/" + DELETE_TOPIC }) })
+public class VersionSummaryIndex implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(VersionSummaryIndex.class);
+
+  static final String INDEX_ROOT = "/var/versionsummary";
+
+  /**
+   * The id of the newest version, on content and on each version the id of the one saved
+   * before it.
+   */
+  static final String PREVIOUS_VERSION_FIELD = Content.PREVIOUS_VERSION_UUID_FIELD;
+
+  static final int CHUNK_SIZE = 100;
+
+  static final String VERSION_ID = "versionId";
+
+  private static final String TOTAL = "total";
+
+  private static final String LATEST = "latest";
+
+  private static final String ENTRIES = "entries";
+
+  private static final String CHUNK = "_chunk";
+
+  /**
+   * The properties of a version kept in its summary.
+   */
+  private static final String[] SUMMARY_FIELDS = new String[] { Content.CREATED_FIELD,
+      Content.LASTMODIFIED_FIELD, Content.LASTMODIFIED_BY_FIELD,
+      Content.VERSION_NUMBER_FIELD, Content.LENGTH_FIELD,
+      FilesConstants.POOLED_CONTENT_FILENAME, FilesConstants.POOLED_CONTENT_CREATED_FOR };
+
+  /**
+   * The number of locks that updates of different content are spread over.
+   */
+  private static final int LOCK_STRIPES = 64;
+
+  @Reference
+  protected Repository repository;
+
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  public VersionSummaryIndex() {
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Summarise any versions of the content that have not been summarised.
+   *
+   * @param contentManager
+   *          the content manager of the user, the versions are read with it.
+   * @return the number of versions of the content.
+   */
+  public int update(String path, ContentManager contentManager)
+      throws StorageClientException, AccessDeniedException {
+    Content content = contentManager.get(path);
+    if (content == null || !content.hasProperty(PREVIOUS_VERSION_FIELD)) {
+      return 0;
+    }
+    String newest = (String) content.getProperty(PREVIOUS_VERSION_FIELD);
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager adminContentManager = adminSession.getContentManager();
+      Content index = adminContentManager.get(getIndexPath(path));
+      if (isLatest(index, newest)) {
+        return StorageClientUtils.toInt(index.getProperty(TOTAL));
+      }
+      synchronized (getLock(path)) {
+        // another request may have caught up while this one waited
+        index = adminContentManager.get(getIndexPath(path));
+        if (isLatest(index, newest)) {
+          return StorageClientUtils.toInt(index.getProperty(TOTAL));
+        }
+        return catchUp(path, newest, index, contentManager, adminContentManager);
+      }
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * Get a page of version summaries, newest first, as brought up to date by the last
+   * {@link #update(String, ContentManager)}.
+   *
+   * @param start
+   *          the number of newer versions to skip.
+   * @param end
+   *          the number of newer versions after which to stop.
+   * @return a map of the summarised properties for each version, with the id of the
+   *         version under {@link #VERSION_ID}.
+   */
+  public List<Map<String, Object>> list(String path, int start, int end)
+      throws StorageClientException, AccessDeniedException {
+    List<Map<String, Object>> page = Lists.newArrayList();
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager adminContentManager = adminSession.getContentManager();
+      String indexPath = getIndexPath(path);
+      Content index = adminContentManager.get(indexPath);
+      if (index == null) {
+        return page;
+      }
+      int total = StorageClientUtils.toInt(index.getProperty(TOTAL));
+      // summaries are stored oldest first
+      int oldest = Math.max(total - end, 0);
+      int newest = total - start - 1;
+      String[] entries = null;
+      int chunk = -1;
+      for (int i = newest; i >= oldest; i--) {
+        if (i / CHUNK_SIZE != chunk) {
+          chunk = i / CHUNK_SIZE;
+          entries = getEntries(adminContentManager, indexPath, chunk);
+        }
+        int offset = i % CHUNK_SIZE;
+        if (offset < entries.length) {
+          page.add(fromEntry(entries[offset]));
+        }
+      }
+    } finally {
+      logout(adminSession);
+    }
+    return page;
+  }
+
+  /**
+   * Remove the version summaries of deleted content, and of anything deleted with it.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null || path.startsWith(INDEX_ROOT)) {
+      return;
+    }
+    try {
+      remove(path);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to remove the version summary of {} {} ", path, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to remove the version summary of {} {} ", path, e.getMessage());
+    }
+  }
+
+  void remove(String path) throws StorageClientException, AccessDeniedException {
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager adminContentManager = adminSession.getContentManager();
+      String indexPath = getIndexPath(path);
+      synchronized (getLock(path)) {
+        if (adminContentManager.exists(indexPath)) {
+          adminContentManager.delete(indexPath, true);
+        }
+      }
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  private Object getLock(String path) {
+    return locks[(path.hashCode() & Integer.MAX_VALUE) % locks.length];
+  }
+
+  private boolean isLatest(Content index, String newest) {
+    return index != null && newest.equals(index.getProperty(LATEST));
+  }
+
+  /**
+   * Summarise the versions saved since the newest one summarised. If that version is not
+   * in the history of the content, the content has been replaced and its versions are
+   * summarised again from the start. If a version cannot be read, nothing is saved, so
+   * the index never claims versions it does not hold.
+   */
+  private int catchUp(String path, String newest, Content index,
+      ContentManager contentManager, ContentManager adminContentManager)
+      throws StorageClientException, AccessDeniedException {
+    String indexPath = getIndexPath(path);
+    String latest = null;
+    int total = 0;
+    if (index != null) {
+      latest = (String) index.getProperty(LATEST);
+      total = StorageClientUtils.toInt(index.getProperty(TOTAL));
+    }
+    List<String> missing = Lists.newArrayList();
+    String versionId = newest;
+    while (versionId != null && !versionId.equals(latest)) {
+      Content version = contentManager.getVersion(path, versionId);
+      if (version == null) {
+        // the summaries could not be joined to those already saved, so leave the index
+        // as it is and try again on the next update
+        LOGGER.debug("Version {} of {} could not be read, not summarising {} versions",
+            new Object[] { versionId, path, missing.size() });
+        return total;
+      }
+      missing.add(toEntry(versionId, version));
+      versionId = (String) version.getProperty(PREVIOUS_VERSION_FIELD);
+    }
+    if (latest != null && versionId == null) {
+      LOGGER.debug("Version summary of {} is not in its history, summarising it again",
+          path);
+      total = 0;
+    }
+    // append oldest first
+    int chunk = total / CHUNK_SIZE;
+    List<String> entries = new ArrayList<String>();
+    String[] saved = getEntries(adminContentManager, indexPath, chunk);
+    entries.addAll(Arrays.asList(saved).subList(0,
+        Math.min(saved.length, total % CHUNK_SIZE)));
+    for (String entry : Lists.reverse(missing)) {
+      entries.add(entry);
+      total++;
+      if (entries.size() == CHUNK_SIZE) {
+        saveEntries(adminContentManager, indexPath, chunk, entries);
+        entries = new ArrayList<String>();
+        chunk++;
+      }
+    }
+    if (!entries.isEmpty()) {
+      saveEntries(adminContentManager, indexPath, chunk, entries);
+    }
+    adminContentManager.update(new Content(indexPath, ImmutableMap.of(TOTAL,
+        (Object) total, LATEST, newest)));
+    return total;
+  }
+
+  private String[] getEntries(ContentManager adminContentManager, String indexPath,
+      int chunk) throws StorageClientException, AccessDeniedException {
+    Content entries = adminContentManager.get(getChunkPath(indexPath, chunk));
+    if (entries == null) {
+      return new String[0];
+    }
+    return StorageClientUtils.nonNullStringArray((String[]) entries.getProperty(ENTRIES));
+  }
+
+  private void saveEntries(ContentManager adminContentManager, String indexPath,
+      int chunk, List<String> entries) throws StorageClientException,
+      AccessDeniedException {
+    adminContentManager.update(new Content(getChunkPath(indexPath, chunk), ImmutableMap
+        .of(ENTRIES, (Object) entries.toArray(new String[entries.size()]))));
+  }
+
+  private String toEntry(String versionId, Content version) {
+    Map<String, Object> properties = version.getProperties();
+    JSONObject entry = new JSONObject();
+    try {
+      entry.put(VERSION_ID, versionId);
+      for (String field : SUMMARY_FIELDS) {
+        if (properties.containsKey(field)) {
+          entry.put(field, properties.get(field));
+        }
+      }
+    } catch (JSONException e) {
+      LOGGER.warn("Failed to summarise version {} of {} ", versionId, version.getPath());
+    }
+    return entry.toString();
+  }
+
+  private Map<String, Object> fromEntry(String entry) {
+    Map<String, Object> summary = new LinkedHashMap<String, Object>();
+    try {
+      JSONObject json = new JSONObject(entry);
+      Iterator<String> keys = json.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        summary.put(key, json.get(key));
+      }
+    } catch (JSONException e) {
+      LOGGER.warn("Unreadable version summary {} ", entry);
+    }
+    return summary;
+  }
+
+  static String getIndexPath(String path) {
+    return StorageClientUtils.newPath(INDEX_ROOT, path);
+  }
+
+  private static String getChunkPath(String indexPath, int chunk) {
+    return StorageClientUtils.newPath(indexPath, CHUNK + chunk);
+  }
+
+  private void logout(Session adminSession) {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error("Could not logout administrative session.");
+      }
+    }
+  }
+}
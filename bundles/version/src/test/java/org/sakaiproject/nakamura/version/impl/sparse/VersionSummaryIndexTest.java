@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.List;
+import java.util.Map;
+
+public class VersionSummaryIndexTest {
+
+  private static final String PATH = "p/versioned";
+
+  private Session session;
+  private ContentManager contentManager;
+  private VersionSummaryIndex index;
+
+  @Before
+  public void before() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content(PATH, ImmutableMap.<String, Object> of("edit", 0)));
+    index = new VersionSummaryIndex();
+    index.repository = repository;
+  }
+
+  @After
+  public void after() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void testUnversioned() throws Exception {
+    Assert.assertEquals(0, index.update(PATH, contentManager));
+    Assert.assertTrue(index.list(PATH, 0, 25).isEmpty());
+  }
+
+  @Test
+  public void testPageNewestFirst() throws Exception {
+    save(VersionSummaryIndex.CHUNK_SIZE + 10);
+
+    List<String> history = contentManager.getVersionHistory(PATH);
+    Assert.assertEquals(history.size(), index.update(PATH, contentManager));
+    assertPage(history, 0, 25);
+    // across the boundary between two chunks
+    assertPage(history, 5, 25);
+    assertPage(history, history.size() - 3, history.size());
+  }
+
+  @Test
+  public void testCatchUp() throws Exception {
+    save(3);
+    Assert.assertEquals(3, index.update(PATH, contentManager));
+
+    // saved without being summarised
+    save(2);
+    List<String> history = contentManager.getVersionHistory(PATH);
+    Assert.assertEquals(5, index.update(PATH, contentManager));
+    assertPage(history, 0, 5);
+  }
+
+  @Test
+  public void testUnreadableVersion() throws Exception {
+    save(3);
+    Assert.assertEquals(3, index.update(PATH, contentManager));
+
+    save(2);
+    List<String> history = contentManager.getVersionHistory(PATH);
+    ContentManager unreadable = Mockito.spy(contentManager);
+    Mockito.doReturn(null).when(unreadable).getVersion(PATH, history.get(1));
+    Assert.assertEquals(3, index.update(PATH, unreadable));
+    Assert.assertEquals(3, index.list(PATH, 0, 25).size());
+
+    // the versions are summarised once they can be read
+    Assert.assertEquals(5, index.update(PATH, contentManager));
+    assertPage(history, 0, 5);
+  }
+
+  @Test
+  public void testRemovedWithContent() throws Exception {
+    save(3);
+    Assert.assertEquals(3, index.update(PATH, contentManager));
+
+    contentManager.delete(PATH);
+    index.handleEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+        + StoreListener.DELETE_TOPIC, ImmutableMap.of("path", PATH)));
+    Assert.assertFalse(contentManager.exists(VersionSummaryIndex.getIndexPath(PATH)));
+    Assert.assertTrue(index.list(PATH, 0, 25).isEmpty());
+  }
+
+  private void save(int versions) throws Exception {
+    for (int i = 0; i < versions; i++) {
+      Content content = contentManager.get(PATH);
+      content.setProperty("edit", i);
+      contentManager.update(content);
+      contentManager.saveVersion(PATH);
+    }
+  }
+
+  private void assertPage(List<String> history, int start, int end) throws Exception {
+    List<Map<String, Object>> page = index.list(PATH, start, end);
+    Assert.assertEquals(end - start, page.size());
+    for (int i = start; i < end; i++) {
+      Assert.assertEquals(history.get(i), page.get(i - start).get(
+          VersionSummaryIndex.VERSION_ID));
+    }
+  }
+}
@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.api.persondirectory;
 
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -35,4 +36,16 @@ public interface PersonProvider {
    *         found.
    */
   Map<String, Object> getProfileSection(Content parameters) throws PersonProviderException;
+
+  /**
+   * Get a particular section of attributes for many people at once, looking them up
+   * together where the store allows it.
+   *
+   * @param parameters
+   *          The section nodes being accessed.
+   * @return The attributes of each section, by the path of the section node. Sections
+   *         whose person could not be identified are left out.
+   */
+  Map<String, Map<String, Object>> getProfileSections(Collection<Content> parameters)
+      throws PersonProviderException;
 }
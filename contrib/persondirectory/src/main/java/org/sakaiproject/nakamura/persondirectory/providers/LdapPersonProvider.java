@@ -27,27 +27,48 @@ import com.novell.ldap.LDAPSearchResults;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.component.ComponentException;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
+import org.sakaiproject.nakamura.api.ldap.LdapUtil;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.jcr.RepositoryException;
 
 /**
- * Person provider implementation that gets its information from an LDAP store.
+ * Person provider implementation that gets its information from an LDAP store. The
+ * attributes of each person are held in memory for a while, so that lists of people can
+ * be shown without a search for each of them.
  */
 @Component(metatype = true, configurationFactory = true, policy = ConfigurationPolicy.REQUIRE)
 @Service
@@ -77,9 +98,65 @@ public class LdapPersonProvider implements PersonProvider {
   protected static final String PROP_ATTRIBUTES_MAP = "sakai.pd.ldap.attributes.map";
   private HashMap<String, String> attrsMap = new HashMap<String, String>();
 
+  /**
+   * The attribute that holds the user id, used to tell which user an entry found by a
+   * bulk search belongs to. When it is not set, it is the attribute the filter pattern
+   * compares with the user id, or uid if that can't be told from the pattern.
+   */
+  @Property(value = "")
+  protected static final String PROP_USERID_ATTRIBUTE = "sakai.pd.ldap.userid.attribute";
+  private String userIdAttribute;
+
+  private static final Pattern FILTER_ATTRIBUTE = Pattern.compile("([\\w.;-]+)\\s*=\\s*\\{\\}");
+
+  /**
+   * How long the attributes of a person are served from memory before they have to be
+   * looked up again.
+   */
+  @Property(intValue = 300)
+  protected static final String PROP_CACHE_TTL = "sakai.pd.ldap.cache.ttl";
+  private long cacheTtl;
+
+  /**
+   * How long before the ttl runs out a person that is asked for is looked up again in
+   * the background, while the attributes already held are served.
+   */
+  @Property(intValue = 60)
+  protected static final String PROP_CACHE_REFRESH_AHEAD = "sakai.pd.ldap.cache.refreshAhead";
+  private long cacheRefreshAhead;
+
+  @Property(intValue = 10000)
+  protected static final String PROP_CACHE_SIZE = "sakai.pd.ldap.cache.size";
+
+  /**
+   * The most people looked up by one search.
+   */
+  @Property(intValue = 50)
+  protected static final String PROP_BULK_SIZE = "sakai.pd.ldap.bulk.size";
+  private int bulkSize;
+
   @Reference
   private LdapConnectionManager connMgr;
 
+  private Map<String, CachedPerson> cache = createCache(10000);
+
+  /**
+   * People waiting to be looked up again in the background.
+   */
+  private final BlockingQueue<String> refreshQueue = new LinkedBlockingQueue<String>();
+  private final ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+  private ExecutorService refresher;
+
+  private static class CachedPerson {
+    private final Map<String, Object> attributes;
+    private final long fetched;
+
+    CachedPerson(Map<String, Object> attributes, long fetched) {
+      this.attributes = attributes;
+      this.fetched = fetched;
+    }
+  }
+
   /**
    * Default constructor.
    */
@@ -99,6 +176,15 @@ public class LdapPersonProvider implements PersonProvider {
   protected void activate(Map<?, ?> props) {
     baseDn = PropertiesUtil.toString(props.get(BASE_DN), "");
     filterPattern = PropertiesUtil.toString(props.get(PROP_FILTER_PATTERN), "");
+    userIdAttribute = PropertiesUtil.toString(props.get(PROP_USERID_ATTRIBUTE), "").trim();
+    if (userIdAttribute.length() == 0) {
+      Matcher m = FILTER_ATTRIBUTE.matcher(filterPattern);
+      userIdAttribute = m.find() ? m.group(1) : "uid";
+    }
+    cacheTtl = PropertiesUtil.toLong(props.get(PROP_CACHE_TTL), 300) * 1000L;
+    cacheRefreshAhead = PropertiesUtil.toLong(props.get(PROP_CACHE_REFRESH_AHEAD), 60) * 1000L;
+    bulkSize = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_BULK_SIZE), 50));
+    cache = createCache(PropertiesUtil.toInteger(props.get(PROP_CACHE_SIZE), 10000));
 
     String[] attributeMapping = PropertiesUtil.toStringArray(props.get(PROP_ATTRIBUTES_MAP));
     if (attributeMapping != null
@@ -122,66 +208,289 @@ public class LdapPersonProvider implements PersonProvider {
       attrsMap = new HashMap<String, String>();
     }
 
-    // create an attribute array for looking things up
-    Set<String> attrKeys = attrsMap.keySet();
-    String[] attrs = new String[attrKeys.size()];
-    attrKeys.toArray(attrs);
+    refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "LDAP person refresh");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
+    }
+    refreshQueue.clear();
+    refreshing.clear();
+    cache.clear();
   }
 
   protected Map<String, String> getAttributesMap() {
     return attrsMap;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Attributes are served from memory while they are younger than the cache ttl, and
+   * looked up again in the background when they are asked for close to the end of it.
+   *
+   * @see org.sakaiproject.nakamura.api.persondirectory.PersonProvider#getProfileSection(org.sakaiproject.nakamura.api.lite.content.Content)
+   */
   public Map<String, Object> getProfileSection(Content parameters)
       throws PersonProviderException {
     try {
-      HashMap<String, Object> person = new HashMap<String, Object>();
-
-      // get the user ID
       String uid = findUserId(parameters);
+      Map<String, Object> person = getCached(uid, System.currentTimeMillis());
+      if (person == null) {
+        person = load(Collections.singletonList(uid)).get(uid);
+      }
+      return new HashMap<String, Object>(person);
+    } catch (LDAPException e) {
+      throw new PersonProviderException(e.getMessage(), e);
+    } catch (RepositoryException e) {
+      throw new PersonProviderException(e.getMessage(), e);
+    }
+  }
 
-      // set the properties
-      String filter = filterPattern.replace("{}", uid);
+  /**
+   * {@inheritDoc}
+   *
+   * People that are not held in memory are looked up together, {@link #PROP_BULK_SIZE}
+   * to a search.
+   *
+   * @see org.sakaiproject.nakamura.api.persondirectory.PersonProvider#getProfileSections(java.util.Collection)
+   */
+  public Map<String, Map<String, Object>> getProfileSections(Collection<Content> parameters)
+      throws PersonProviderException {
+    Map<String, Map<String, Object>> sections = new HashMap<String, Map<String, Object>>();
+    Map<String, String> uids = new HashMap<String, String>();
+    List<String> missing = new ArrayList<String>();
+    long now = System.currentTimeMillis();
+    for (Content content : parameters) {
+      String uid;
+      try {
+        uid = findUserId(content);
+      } catch (RepositoryException e) {
+        throw new PersonProviderException(e.getMessage(), e);
+      } catch (PersonProviderException e) {
+        LOG.debug("No user id on {} ", content.getPath());
+        continue;
+      }
+      uids.put(content.getPath(), uid);
+      Map<String, Object> person = getCached(uid, now);
+      if (person == null) {
+        if (!missing.contains(uid)) {
+          missing.add(uid);
+        }
+      } else {
+        sections.put(content.getPath(), new HashMap<String, Object>(person));
+      }
+    }
+    try {
+      Map<String, Map<String, Object>> loaded = new HashMap<String, Map<String, Object>>();
+      for (int i = 0; i < missing.size(); i += bulkSize) {
+        loaded.putAll(load(missing.subList(i, Math.min(missing.size(), i + bulkSize))));
+      }
+      for (Entry<String, String> e : uids.entrySet()) {
+        Map<String, Object> person = loaded.get(e.getValue());
+        if (person != null) {
+          sections.put(e.getKey(), new HashMap<String, Object>(person));
+        }
+      }
+    } catch (LDAPException e) {
+      throw new PersonProviderException(e.getMessage(), e);
+    }
+    return sections;
+  }
 
-      String[] attributes = attrsMap.keySet().toArray(new String[]{});
+  /**
+   * @return the attributes held for the person, or null if they have to be looked up
+   *         now. Attributes that are close to running out are looked up again in the
+   *         background.
+   */
+  private Map<String, Object> getCached(String uid, long now) {
+    CachedPerson cached = cache.get(uid);
+    if (cached == null) {
+      return null;
+    }
+    long age = now - cached.fetched;
+    if (age >= cacheTtl) {
+      return null;
+    }
+    if (age >= cacheTtl - cacheRefreshAhead) {
+      scheduleRefresh(uid);
+    }
+    return cached.attributes;
+  }
 
-      LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
-          new Object[] { baseDn, filter, attributes });
+  private void scheduleRefresh(String uid) {
+    ExecutorService executor = refresher;
+    if (executor == null || refreshing.putIfAbsent(uid, Boolean.TRUE) != null) {
+      return;
+    }
+    refreshQueue.add(uid);
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          List<String> batch = new ArrayList<String>();
+          refreshQueue.drainTo(batch, bulkSize);
+          if (batch.isEmpty()) {
+            return;
+          }
+          try {
+            load(batch);
+          } catch (LDAPException e) {
+            LOG.warn("Failed to refresh {} from LDAP: {} ", batch, e.getMessage());
+          } finally {
+            for (String refreshed : batch) {
+              refreshing.remove(refreshed);
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refreshQueue.remove(uid);
+      refreshing.remove(uid);
+    }
+  }
 
-      // get a connection bound to the application user
-      LDAPConnection conn = connMgr.getBoundConnection(null, null);
-      LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
-          filter, attributes, false);
-      if (searchResults.hasMore()) {
+  /**
+   * Look people up with one search, and hold on to what was found. People that are not
+   * found are held as having no attributes.
+   *
+   * @return the attributes of each person by user id.
+   */
+  private Map<String, Map<String, Object>> load(List<String> uids) throws LDAPException {
+    Map<String, Map<String, Object>> people = new HashMap<String, Map<String, Object>>();
+    String filter;
+    Set<String> attributeNames = new HashSet<String>(attrsMap.keySet());
+    if (uids.size() == 1) {
+      filter = userFilter(uids.get(0));
+    } else {
+      StringBuilder sb = new StringBuilder("(|");
+      for (String uid : uids) {
+        String userFilter = userFilter(uid);
+        if (userFilter.startsWith("(")) {
+          sb.append(userFilter);
+        } else {
+          sb.append('(').append(userFilter).append(')');
+        }
+      }
+      filter = sb.append(')').toString();
+      attributeNames.add(userIdAttribute);
+    }
+    String[] attributes = attributeNames.toArray(new String[attributeNames.size()]);
+
+    LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
+        new Object[] { baseDn, filter, attributes });
+
+    // get a connection bound to the application user
+    LDAPConnection conn = connMgr.getBoundConnection(null, null);
+    LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+        filter, attributes, false);
+    boolean unmatched = false;
+    while (searchResults.hasMore()) {
+      LDAPEntry entry = searchResults.next();
+      String uid = uids.size() == 1 ? uids.get(0) : matchUserId(entry, uids);
+      if (uid == null) {
+        unmatched = true;
+      } else if (!people.containsKey(uid)) {
+        people.put(uid, toPerson(entry));
+      }
+      if (uids.size() == 1) {
         // pick off the first result returned
-        LDAPEntry entry = searchResults.next();
-
-        // get the attributes from the entry and loop through them
-        LDAPAttributeSet attrs = entry.getAttributeSet();
-        Iterator<?> attrIter = attrs.iterator();
-        while (attrIter.hasNext()) {
-          // get the key and values from the attribute
-          LDAPAttribute attr = (LDAPAttribute) attrIter.next();
-          String name = attr.getName();
-          String[] vals = attr.getStringValueArray();
-
-          // check for an aliased name
-          String mappingName = attrsMap.get(name);
-
-          // add the values under the appropriate key
-          if (vals.length == 1) {
-            person.put(mappingName, vals[0]);
-          } else if (vals.length > 1) {
-            person.put(mappingName, vals);
+        break;
+      }
+    }
+    if (unmatched) {
+      // an entry came back that couldn't be told apart by its user id attribute, so the
+      // people that weren't matched may still be there. Look them up one at a time
+      // rather than holding them as not found.
+      LOG.warn("Entries found by {} have no {} matching a user id", filter,
+          userIdAttribute);
+      for (String uid : uids) {
+        if (!people.containsKey(uid)) {
+          people.putAll(load(Collections.singletonList(uid)));
+        }
+      }
+      return people;
+    }
+
+    long now = System.currentTimeMillis();
+    for (String uid : uids) {
+      Map<String, Object> person = people.get(uid);
+      if (person == null) {
+        person = new HashMap<String, Object>();
+        people.put(uid, person);
+      }
+      cache.put(uid, new CachedPerson(Collections.unmodifiableMap(person), now));
+    }
+    return people;
+  }
+
+  private String userFilter(String uid) {
+    return filterPattern.replace("{}", LdapUtil.escapeLDAPSearchFilter(uid));
+  }
+
+  /**
+   * @return which of the user ids the entry was found for.
+   */
+  private String matchUserId(LDAPEntry entry, List<String> uids) {
+    LDAPAttribute attr = entry.getAttribute(userIdAttribute);
+    if (attr != null) {
+      for (String value : attr.getStringValueArray()) {
+        for (String uid : uids) {
+          if (uid.equalsIgnoreCase(value)) {
+            return uid;
           }
         }
       }
-      return person;
-    } catch (LDAPException e) {
-      throw new PersonProviderException(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      throw new PersonProviderException(e.getMessage(), e);
     }
+    return null;
+  }
+
+  private Map<String, Object> toPerson(LDAPEntry entry) {
+    Map<String, Object> person = new HashMap<String, Object>();
+    // get the attributes from the entry and loop through them
+    LDAPAttributeSet attrs = entry.getAttributeSet();
+    Iterator<?> attrIter = attrs.iterator();
+    while (attrIter.hasNext()) {
+      // get the key and values from the attribute
+      LDAPAttribute attr = (LDAPAttribute) attrIter.next();
+      String name = attr.getName();
+      String[] vals = attr.getStringValueArray();
+
+      // check for an aliased name
+      String mappingName = attrsMap.get(name);
+      if (mappingName == null) {
+        // only asked for to tell the entries of a bulk search apart
+        continue;
+      }
+
+      // add the values under the appropriate key
+      if (vals.length == 1) {
+        person.put(mappingName, vals[0]);
+      } else if (vals.length > 1) {
+        person.put(mappingName, vals);
+      }
+    }
+    return person;
+  }
+
+  private static Map<String, CachedPerson> createCache(final int maxEntries) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, CachedPerson>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedPerson> eldest) {
+        return size() > maxEntries;
+      }
+    });
   }
 
   private String findUserId(Content content) throws RepositoryException, PersonProviderException {
@@ -29,6 +29,7 @@ import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 import org.sakaiproject.nakamura.util.ImmediateFuture;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -58,19 +59,33 @@ public class PersonProfileProviderAdapter implements ProfileProvider {
 
     Map<String, Future<Map<String, Object>>> resultMap = new HashMap<String, Future<Map<String, Object>>>();
 
+    List<Content> nodes = new ArrayList<Content>(list.size());
     for (ProviderSettings s : list) {
-      Content c = s.getNode();
-      try {
-        Map<String, Object> profile = personProvider.getProfileSection(c);
+      nodes.add(s.getNode());
+    }
+    try {
+      Map<String, Map<String, Object>> sections = personProvider.getProfileSections(nodes);
+      for (Content c : nodes) {
+        Map<String, Object> profile = sections.get(c.getPath());
+        if (profile == null) {
+          profile = error("Could not retrieve userid.");
+        }
         resultMap.put(c.getPath(), new ImmediateFuture<Map<String, Object>>(profile));
-      } catch (PersonProviderException e) {
-        Map<String, Object> profileError = new HashMap<String, Object>();
-        profileError.put("error", e.getMessage());
-        resultMap.put(c.getPath(), new ImmediateFuture<Map<String, Object>>(profileError));
+      }
+    } catch (PersonProviderException e) {
+      for (Content c : nodes) {
+        resultMap.put(c.getPath(),
+            new ImmediateFuture<Map<String, Object>>(error(e.getMessage())));
       }
     }
 
     return resultMap;
   }
 
+  private Map<String, Object> error(String message) {
+    Map<String, Object> profileError = new HashMap<String, Object>();
+    profileError.put("error", message);
+    return profileError;
+  }
+
 }
@@ -47,8 +47,10 @@ import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -57,6 +59,8 @@ public class LdapPersonProviderTest {
 
   Content content;
 
+  LDAPConnection connection;
+
   @Before
   public void setUp() {
     content = new Content(null, null);
@@ -238,6 +242,145 @@ public class LdapPersonProviderTest {
     fail("Should bubble up exceptions that are thrown internally.");
   }
 
+  @Test
+  public void testProfileSectionCached() throws Exception {
+    String[] attrMap = new String[] { "firstname => called", "lastname" };
+    LdapPersonProvider provider = setUpForPositiveTest(attrMap);
+    provider.getProfileSection(hasAllProperties(content, "tUser"));
+    Map<String, Object> person = provider.getProfileSection(hasAllProperties(
+        new Content("a:tUser/public/ldap", null), "tUser"));
+    assertEquals("Tester", person.get("called"));
+    Mockito.verify(connection, Mockito.times(1)).search(anyString(), anyInt(),
+        anyString(), any(String[].class), anyBoolean());
+  }
+
+  @Test
+  public void testProfileSectionsInOneSearch() throws Exception {
+    LDAPSearchResults results = mock(LDAPSearchResults.class);
+    LDAPEntry entry1 = entry("user1", "One");
+    LDAPEntry entry2 = entry("USER2", "Two");
+    when(results.hasMore()).thenReturn(true, true, false);
+    when(results.next()).thenReturn(entry2, entry1);
+    connection = mock(LDAPConnection.class);
+    when(
+        connection.search(anyString(), anyInt(), anyString(), any(String[].class),
+            anyBoolean())).thenReturn(results);
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    when(mgr.getBoundConnection(anyString(), anyString())).thenReturn(connection);
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(new String[] { "firstname => called" }));
+
+    List<Content> sections = new ArrayList<Content>();
+    for (String uid : new String[] { "user1", "user2", "user3" }) {
+      sections.add(hasAllProperties(new Content("a:" + uid + "/public/ldap", null), uid));
+    }
+    sections.add(new Content("a:nobody/public/ldap", null));
+    Map<String, Map<String, Object>> people = provider.getProfileSections(sections);
+
+    assertEquals(3, people.size());
+    assertEquals("One", people.get("a:user1/public/ldap").get("called"));
+    assertEquals("Two", people.get("a:user2/public/ldap").get("called"));
+    assertEquals(1, people.get("a:user2/public/ldap").size());
+    assertTrue(people.get("a:user3/public/ldap").isEmpty());
+    Mockito.verify(connection).search(anyString(), anyInt(),
+        Mockito.eq("(|(uid=user1)(uid=user2)(uid=user3))"), any(String[].class),
+        anyBoolean());
+
+    // all held now, including the one that was not found
+    provider.getProfileSections(sections);
+    Mockito.verify(connection, Mockito.times(1)).search(anyString(), anyInt(),
+        anyString(), any(String[].class), anyBoolean());
+  }
+
+  @Test
+  public void testUserIdAttributeFromFilter() throws Exception {
+    LDAPSearchResults results = mock(LDAPSearchResults.class);
+    when(results.hasMore()).thenReturn(true, true, false);
+    when(results.next()).thenReturn(entry("mail", "user2", "Two"),
+        entry("mail", "user1", "One"));
+    connection = mock(LDAPConnection.class);
+    when(
+        connection.search(anyString(), anyInt(), anyString(), any(String[].class),
+            anyBoolean())).thenReturn(results);
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    when(mgr.getBoundConnection(anyString(), anyString())).thenReturn(connection);
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    Map<String, Object> props = buildMap(new String[] { "firstname => called" });
+    props.put(LdapPersonProvider.PROP_FILTER_PATTERN, "(mail={})");
+    provider.activate(props);
+
+    List<Content> sections = new ArrayList<Content>();
+    for (String uid : new String[] { "user1", "user2" }) {
+      sections.add(hasAllProperties(new Content("a:" + uid + "/public/ldap", null), uid));
+    }
+    Map<String, Map<String, Object>> people = provider.getProfileSections(sections);
+    assertEquals("One", people.get("a:user1/public/ldap").get("called"));
+    assertEquals("Two", people.get("a:user2/public/ldap").get("called"));
+  }
+
+  @Test
+  public void testUnmatchedEntriesLookedUpOneByOne() throws Exception {
+    LDAPSearchResults bulk = mock(LDAPSearchResults.class);
+    when(bulk.hasMore()).thenReturn(true, false);
+    when(bulk.next()).thenReturn(entry("cn", "someone", "One"));
+    LDAPSearchResults single = mock(LDAPSearchResults.class);
+    when(single.hasMore()).thenReturn(true, false);
+    when(single.next()).thenReturn(entry("cn", "someone", "One"));
+    connection = mock(LDAPConnection.class);
+    when(
+        connection.search(anyString(), anyInt(), Mockito.eq("(|(uid=user1)(uid=user2))"),
+            any(String[].class), anyBoolean())).thenReturn(bulk);
+    when(
+        connection.search(anyString(), anyInt(), Mockito.eq("uid=user1"),
+            any(String[].class), anyBoolean())).thenReturn(single);
+    when(
+        connection.search(anyString(), anyInt(), Mockito.eq("uid=user2"),
+            any(String[].class), anyBoolean())).thenReturn(
+        mock(LDAPSearchResults.class));
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    when(mgr.getBoundConnection(anyString(), anyString())).thenReturn(connection);
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(new String[] { "firstname => called" }));
+
+    List<Content> sections = new ArrayList<Content>();
+    for (String uid : new String[] { "user1", "user2" }) {
+      sections.add(hasAllProperties(new Content("a:" + uid + "/public/ldap", null), uid));
+    }
+    Map<String, Map<String, Object>> people = provider.getProfileSections(sections);
+    assertEquals("One", people.get("a:user1/public/ldap").get("called"));
+    assertTrue(people.get("a:user2/public/ldap").isEmpty());
+  }
+
+  @Test
+  public void testRefreshAhead() throws Exception {
+    String[] attrMap = new String[] { "firstname => called", "lastname" };
+    LdapPersonProvider provider = setUpForPositiveTest(attrMap);
+    Map<String, Object> props = buildMap(attrMap);
+    props.put(LdapPersonProvider.PROP_CACHE_TTL, 60);
+    props.put(LdapPersonProvider.PROP_CACHE_REFRESH_AHEAD, 60);
+    provider.activate(props);
+    provider.getProfileSection(hasAllProperties(content, "tUser"));
+    // served from memory, and looked up again in the background
+    assertEquals("Tester", provider.getProfileSection(content).get("called"));
+    Mockito.verify(connection, Mockito.timeout(5000).times(2)).search(anyString(),
+        anyInt(), anyString(), any(String[].class), anyBoolean());
+    provider.deactivate();
+  }
+
+  private LDAPEntry entry(String uid, String firstname) {
+    return entry("uid", uid, firstname);
+  }
+
+  private LDAPEntry entry(String idAttribute, String uid, String firstname) {
+    LDAPEntry entry = mock(LDAPEntry.class);
+    LDAPAttributeSet attrSet = new LDAPAttributeSet();
+    attrSet.add(new LDAPAttribute(idAttribute, uid));
+    attrSet.add(new LDAPAttribute("firstname", firstname));
+    when(entry.getAttributeSet()).thenReturn(attrSet);
+    when(entry.getAttribute(idAttribute)).thenReturn(new LDAPAttribute(idAttribute, uid));
+    return entry;
+  }
+
   /**
    * Setup everything needed for a test that follows the most positive path of action.
    *
@@ -245,7 +388,7 @@ public class LdapPersonProviderTest {
    * @throws Exception
    */
   private LdapPersonProvider setUpForPositiveTest(String[] attributeMap) throws Exception {
-    LDAPConnection connection = mock(LDAPConnection.class);
+    connection = mock(LDAPConnection.class);
     LDAPSearchResults results = mock(LDAPSearchResults.class);
     LDAPEntry entry = mock(LDAPEntry.class);
 
@@ -31,6 +31,7 @@ import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -63,7 +64,10 @@ public class PersonProfileProviderAdapterTest {
     String contentPath = "/fake/path";
     when(ps1.getNode()).thenReturn(content);
     when(content.getPath()).thenReturn(contentPath);
-    when(personProvider.getProfileSection(content)).thenReturn(profileSection);
+    Map<String, Map<String, Object>> sections = new HashMap<String, Map<String, Object>>();
+    sections.put(contentPath, profileSection);
+    when(personProvider.getProfileSections(Collections.singletonList(content))).thenReturn(
+        sections);
 
     Map<String, Future<Map<String, Object>>> result = (Map<String, Future<Map<String, Object>>>) pppa.getProvidedMap(list);
     Future<Map<String, Object>> fut = result.get(contentPath);
@@ -82,7 +86,7 @@ public class PersonProfileProviderAdapterTest {
     when(ps1.getNode()).thenReturn(content);
     when(content.getPath()).thenReturn(contentPath);
     String errorMessage = "Mocked error is a mock";
-    when(this.personProvider.getProfileSection(org.mockito.Mockito.any(Content.class)))
+    when(this.personProvider.getProfileSections(org.mockito.Mockito.anyCollectionOf(Content.class)))
         .thenThrow(new PersonProviderException(errorMessage));
 
     @SuppressWarnings("unchecked")
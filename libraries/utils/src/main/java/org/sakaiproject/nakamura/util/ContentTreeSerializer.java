@@ -0,0 +1,316 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Serializes a sparse content tree straight to UTF-8 JSON bytes. Produces the same
+ * structure as
+ * {@link ExtendedJSONWriter#writeContentTreeToWriter(org.apache.sling.commons.json.io.JSONWriter, Content, boolean, int)}
+ * but avoids the generic JSONWriter, escapes through a precomputed table and works in a
+ * per thread buffer so that serializing large trees (eg Sakai Docs with many pages and
+ * widgets) does not allocate per property.
+ */
+public class ContentTreeSerializer {
+
+  /**
+   * Buffers that have grown past this size are not kept for reuse.
+   */
+  private static final int MAX_POOLED_BUFFER = 1024 * 1024;
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  private static final byte[] NULL = "null".getBytes();
+
+  private static final byte[] TRUE = "true".getBytes();
+
+  private static final byte[] FALSE = "false".getBytes();
+
+  /**
+   * Escape sequences for the ASCII range, null where the character is written as is.
+   */
+  private static final byte[][] ESCAPES = new byte[128][];
+  static {
+    for (int c = 0; c < ' '; c++) {
+      ESCAPES[c] = unicodeEscape((char) c);
+    }
+    ESCAPES['"'] = "\\\"".getBytes();
+    ESCAPES['\\'] = "\\\\".getBytes();
+    ESCAPES['\b'] = "\\b".getBytes();
+    ESCAPES['\t'] = "\\t".getBytes();
+    ESCAPES['\n'] = "\\n".getBytes();
+    ESCAPES['\f'] = "\\f".getBytes();
+    ESCAPES['\r'] = "\\r".getBytes();
+  }
+
+  private static final ThreadLocal<Utf8Buffer> BUFFERS = new ThreadLocal<Utf8Buffer>() {
+    @Override
+    protected Utf8Buffer initialValue() {
+      return new Utf8Buffer();
+    }
+  };
+
+  private ContentTreeSerializer() {
+  }
+
+  /**
+   * Serialize a content tree.
+   *
+   * @param content
+   *          the root of the tree, the properties of the root are always written.
+   * @param maxDepth
+   *          the number of levels of children to write, -1 for the whole tree.
+   * @param tidy
+   *          true to indent the output.
+   * @return the UTF-8 encoded JSON.
+   * @throws JSONException
+   */
+  public static byte[] serialize(Content content, int maxDepth, boolean tidy)
+      throws JSONException {
+    Utf8Buffer buffer = BUFFERS.get();
+    try {
+      writeTree(buffer, content, maxDepth, 0, tidy);
+      return buffer.toByteArray();
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Serialize a content tree to a stream.
+   *
+   * @see #serialize(Content, int, boolean)
+   */
+  public static void serialize(Content content, int maxDepth, boolean tidy,
+      OutputStream out) throws JSONException, IOException {
+    Utf8Buffer buffer = BUFFERS.get();
+    try {
+      writeTree(buffer, content, maxDepth, 0, tidy);
+      buffer.writeTo(out);
+    } finally {
+      release(buffer);
+    }
+  }
+
+  private static void release(Utf8Buffer buffer) {
+    if (buffer.capacity() > MAX_POOLED_BUFFER) {
+      BUFFERS.remove();
+    } else {
+      buffer.reset();
+    }
+  }
+
+  private static void writeTree(Utf8Buffer out, Content content, int maxDepth,
+      int currentLevel, boolean tidy) throws JSONException {
+    if (content == null) {
+      return;
+    }
+    boolean first = true;
+    out.write('{');
+    Map<String, Object> props = content.getProperties();
+    for (Entry<String, Object> prop : props.entrySet()) {
+      first = key(out, prop.getKey(), first, currentLevel, tidy);
+      writeValue(out, prop.getValue());
+    }
+    if (maxDepth == -1 || currentLevel < maxDepth) {
+      // take the whole level in one go so that the child listing is not interleaved with
+      // the recursion below.
+      List<Content> children = new ArrayList<Content>();
+      for (Content child : content.listChildren()) {
+        children.add(child);
+      }
+      for (Content child : children) {
+        // Write only the end of the path (KERN-1883)
+        first = key(out, PathUtils.lastElement(child.getPath()), first, currentLevel, tidy);
+        writeTree(out, child, maxDepth, currentLevel + 1, tidy);
+      }
+    }
+    if (tidy && !first) {
+      newLine(out, currentLevel);
+    }
+    out.write('}');
+  }
+
+  private static boolean key(Utf8Buffer out, String key, boolean first, int level,
+      boolean tidy) {
+    if (!first) {
+      out.write(',');
+    }
+    if (tidy) {
+      newLine(out, level + 1);
+    }
+    writeString(out, key);
+    out.write(':');
+    if (tidy) {
+      out.write(' ');
+    }
+    return false;
+  }
+
+  private static void newLine(Utf8Buffer out, int level) {
+    out.write('\n');
+    for (int i = 0; i < level; i++) {
+      out.write(' ');
+      out.write(' ');
+    }
+  }
+
+  private static void writeValue(Utf8Buffer out, Object value) throws JSONException {
+    if (value instanceof Object[]) {
+      out.write('[');
+      boolean first = true;
+      for (Object o : (Object[]) value) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        writeScalar(out, o);
+      }
+      out.write(']');
+    } else {
+      writeScalar(out, value);
+    }
+  }
+
+  private static void writeScalar(Utf8Buffer out, Object value) throws JSONException {
+    if (value == null) {
+      out.write(NULL);
+    } else if (value instanceof Boolean) {
+      out.write(((Boolean) value).booleanValue() ? TRUE : FALSE);
+    } else if (value instanceof Long || value instanceof Integer) {
+      out.writeAscii(value.toString());
+    } else if (value instanceof Number) {
+      out.writeAscii(JSONObject.numberToString((Number) value));
+    } else if (value instanceof Calendar) {
+      writeString(out, DateUtils.iso8601((Calendar) value));
+    } else {
+      writeString(out, String.valueOf(PathUtils.translateAuthorizablePath(value)));
+    }
+  }
+
+  /**
+   * Write a quoted, escaped string, escaping the same characters as
+   * {@link JSONObject#quote(String)}.
+   */
+  private static void writeString(Utf8Buffer out, String s) {
+    out.write('"');
+    int len = s.length();
+    char prev = 0;
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c < 128) {
+        byte[] escape = ESCAPES[c];
+        if (escape != null) {
+          out.write(escape);
+        } else if (c == '/' && prev == '<') {
+          out.write('\\');
+          out.write('/');
+        } else {
+          out.write(c);
+        }
+      } else if ((c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+        out.write(unicodeEscape(c));
+      } else if (c < 0x800) {
+        out.write(0xc0 | (c >> 6));
+        out.write(0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < len
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        out.write(0xf0 | (cp >> 18));
+        out.write(0x80 | ((cp >> 12) & 0x3f));
+        out.write(0x80 | ((cp >> 6) & 0x3f));
+        out.write(0x80 | (cp & 0x3f));
+      } else if (c >= '\uD800' && c <= '\uDFFF') {
+        // unpaired surrogate, not representable in UTF-8
+        out.write(unicodeEscape(c));
+      } else {
+        out.write(0xe0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3f));
+        out.write(0x80 | (c & 0x3f));
+      }
+      prev = c;
+    }
+    out.write('"');
+  }
+
+  private static byte[] unicodeEscape(char c) {
+    return new byte[] { '\\', 'u', HEX[(c >> 12) & 0xf], HEX[(c >> 8) & 0xf],
+        HEX[(c >> 4) & 0xf], HEX[c & 0xf] };
+  }
+
+  /**
+   * A growable byte buffer, not thread safe.
+   */
+  private static class Utf8Buffer {
+    private byte[] buf = new byte[8192];
+    private int count;
+
+    private void ensure(int extra) {
+      if (count + extra > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+      }
+    }
+
+    void write(int b) {
+      ensure(1);
+      buf[count++] = (byte) b;
+    }
+
+    void write(byte[] b) {
+      ensure(b.length);
+      System.arraycopy(b, 0, buf, count, b.length);
+      count += b.length;
+    }
+
+    void writeAscii(String s) {
+      int len = s.length();
+      ensure(len);
+      for (int i = 0; i < len; i++) {
+        buf[count++] = (byte) s.charAt(i);
+      }
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+
+    void reset() {
+      count = 0;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buf, count);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(buf, 0, count);
+    }
+  }
+}
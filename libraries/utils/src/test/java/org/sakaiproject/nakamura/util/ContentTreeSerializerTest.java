@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.io.StringWriter;
+
+/**
+ *
+ */
+public class ContentTreeSerializerTest {
+
+  private ContentManager contentManager;
+
+  @Before
+  public void before() throws Exception {
+    contentManager = new BaseMemoryRepository().getRepository().loginAdministrative()
+        .getContentManager();
+    contentManager.update(new Content("/p/doc", ImmutableMap.of("title",
+        (Object) "A \"quoted\" </script> title\n", "count", 3L, "tags", new String[] {
+            "a", "b" }, "owner", "a:ieb")));
+    contentManager.update(new Content("/p/doc/page1", ImmutableMap.of("page",
+        (Object) "caf\u00e9\u2028")));
+    contentManager.update(new Content("/p/doc/page1/widget", ImmutableMap.of("enabled",
+        (Object) true)));
+  }
+
+  @Test
+  public void testSameAsExtendedJSONWriter() throws Exception {
+    Content doc = contentManager.get("/p/doc");
+    for (int depth : new int[] { 0, 1, -1 }) {
+      StringWriter w = new StringWriter();
+      ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+      ExtendedJSONWriter.writeContentTreeToWriter(writer, doc, false, depth);
+      JSONObject expected = new JSONObject(w.toString());
+      JSONObject actual = new JSONObject(new String(ContentTreeSerializer.serialize(doc,
+          depth, false), "UTF-8"));
+      assertEquals(expected.length(), actual.length());
+      assertEquals(expected.getString("title"), actual.getString("title"));
+      assertEquals(3L, actual.getLong("count"));
+      assertEquals("/~ieb", actual.getString("owner"));
+      JSONArray tags = actual.getJSONArray("tags");
+      assertEquals(2, tags.length());
+      assertEquals(depth != 0, actual.has("page1"));
+      if (depth == -1) {
+        JSONObject page = actual.getJSONObject("page1");
+        assertEquals("caf\u00e9\u2028", page.getString("page"));
+        assertTrue(page.getJSONObject("widget").getBoolean("enabled"));
+      } else if (depth == 1) {
+        assertFalse(actual.getJSONObject("page1").has("widget"));
+      }
+    }
+  }
+
+  @Test
+  public void testEscaping() throws Exception {
+    String json = new String(ContentTreeSerializer.serialize(contentManager.get("/p/doc"),
+        0, false), "UTF-8");
+    assertTrue(json.contains("A \\\"quoted\\\" <\\/script> title\\n"));
+  }
+
+  @Test
+  public void testTidy() throws Exception {
+    Content doc = contentManager.get("/p/doc");
+    String json = new String(ContentTreeSerializer.serialize(doc, -1, true), "UTF-8");
+    assertTrue(json.contains("\n  \"page1\": {"));
+    assertEquals(new JSONObject(json).length(), new JSONObject(new String(
+        ContentTreeSerializer.serialize(doc, -1, false), "UTF-8")).length());
+  }
+}